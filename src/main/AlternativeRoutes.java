@@ -0,0 +1,351 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import utils.EdgeSearchState;
+import utils.ModeGraph;
+import utils.Node;
+import utils.SearchStats;
+import utils.Segment;
+import utils.TurnRestrictions;
+
+/**
+ * AlternativeRoutes: Up to k meaningfully different routes between two nodes,
+ * found by the plateau method. One Dijkstra grows a tree forward from the
+ * start and another grows one backward from the goal, both only as far as
+ * the longest route that could be accepted. Like CRPSearcher both are over
+ * segments rather than nodes, so every branch of either tree obeys the turn
+ * restrictions. A plateau is a chain of segments along which the two trees
+ * turn the same way; each gives the route "start to the plateau on the
+ * forward tree, along it, and on to the goal on the backward tree", and that
+ * route is a shortest path over the whole length of the plateau. The first
+ * route is always the shortest, straight off the forward tree.
+ *
+ * Candidates are taken cheapest first and accepted only if they are at most
+ * maxStretch longer than the shortest route, share at most maxOverlap of its
+ * cost with the routes already accepted, and have a plateau at least
+ * minPlateau of their cost long (so they are locally optimal rather than
+ * taking silly detours). Routes that visit a node twice, which the two trees
+ * can meet to make, are skipped.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class AlternativeRoutes {
+
+	public static final double MAX_STRETCH = 0.3;
+	public static final double MAX_OVERLAP = 0.6;
+	public static final double MIN_PLATEAU = 0.2;
+
+	private static final SearchMetrics metrics = SearchMetrics.forEngine("plateau");
+
+	private final Node start;
+	private final Node goal;
+	private final EdgeSearchState forward;
+	private final EdgeSearchState backward;
+	private final RoadGraph graph;
+	private final ModeGraph modeGraph;
+	private final float[] weights;
+	private final TurnRestrictions restrictions;
+	private List<Route> routes = new ArrayList<Route>();
+	private SearchStats stats = new SearchStats();
+
+	/**
+	 * Route: One of the routes found.
+	 */
+	public static class Route {
+
+		private final List<Segment> segments;
+		private final double cost;
+		private final double plateau;
+		private double shared;
+
+		Route(List<Segment> segments, double cost, double plateau) {
+			this.segments = segments;
+			this.cost = cost;
+			this.plateau = plateau;
+		}
+
+		public List<Segment> getSegments() {
+			return segments;
+		}
+
+		public List<Node> getNodes() {
+			List<Node> nodes = new ArrayList<Node>(segments.size() + 1);
+			if (!segments.isEmpty()) {
+				nodes.add(segments.get(0).getStartNode());
+			}
+			for (Segment s : segments) {
+				nodes.add(s.getEndNode());
+			}
+			return nodes;
+		}
+
+		/**
+		 * @return the cost in the units of the weights
+		 */
+		public double getCost() {
+			return cost;
+		}
+
+		/**
+		 * @return the cost of the stretch over which the route is a shortest
+		 *         path
+		 */
+		public double getPlateau() {
+			return plateau;
+		}
+
+		/**
+		 * @return the cost this route shares with the routes before it
+		 */
+		public double getShared() {
+			return shared;
+		}
+
+	}
+
+	/**
+	 * Candidate: The route through a plateau, known by the plateau's first
+	 * segment.
+	 */
+	private static class Candidate {
+
+		final int via;
+		final double cost;
+		final double plateau;
+
+		Candidate(int via, double cost, double plateau) {
+			this.via = via;
+			this.cost = cost;
+			this.plateau = plateau;
+		}
+
+	}
+
+	/**
+	 * Finds up to k routes with the default limits.
+	 */
+	public AlternativeRoutes(Node start, Node goal, EdgeSearchState forward, EdgeSearchState backward,
+			RoadGraph graph, String transportMode, float[] weights, TurnRestrictions restrictions, int k) {
+		this(start, goal, forward, backward, graph, transportMode, weights, restrictions, k, MAX_STRETCH,
+				MAX_OVERLAP, MIN_PLATEAU);
+	}
+
+	/**
+	 * Finds up to k routes.
+	 *
+	 * @param forward
+	 *            reused for the forward tree, not in use by any other thread,
+	 *            sized for every segment of the graph
+	 * @param backward
+	 *            reused for the backward tree
+	 * @param transportMode
+	 *            picks the segments of the graph that may be used
+	 * @param weights
+	 *            the cost of each segment by Segment.getID(), infinite for
+	 *            segments that may not be used
+	 * @param restrictions
+	 *            turns routes may not make, or null
+	 */
+	public AlternativeRoutes(Node start, Node goal, EdgeSearchState forward, EdgeSearchState backward,
+			RoadGraph graph, String transportMode, float[] weights, TurnRestrictions restrictions, int k,
+			double maxStretch, double maxOverlap, double minPlateau) {
+		this.start = start;
+		this.goal = goal;
+		this.forward = forward;
+		this.backward = backward;
+		this.graph = graph;
+		this.modeGraph = graph.getModeGraph(transportMode);
+		this.weights = weights;
+		this.restrictions = restrictions;
+		SearchEvent event = new SearchEvent();
+		event.begin();
+		stats.start();
+		search(k, maxStretch, maxOverlap, minPlateau);
+		stats.stop();
+		metrics.record(stats);
+		if (event.shouldCommit()) {
+			event.engine = "plateau";
+			event.settled = stats.getSettled();
+			event.pathLength = routes.size();
+			event.commit();
+		}
+	}
+
+	private void search(int k, double maxStretch, double maxOverlap, double minPlateau) {
+		if (start == goal) {
+			return;
+		}
+		// forward until the goal is reached, which gives the bound for both
+		List<Integer> reached = new ArrayList<Integer>();
+		int last = grow(forward, start, goal, true, Double.POSITIVE_INFINITY, reached);
+		if (last < 0) {
+			return;
+		}
+		double best = forward.getCost(last);
+		List<Segment> shortest = buildPath(last, false);
+		routes.add(new Route(shortest, best, best));
+		Set<Segment> used = new HashSet<Segment>(shortest);
+		double limit = best * (1 + maxStretch);
+		grow(forward, null, null, true, limit, reached);
+		grow(backward, goal, null, false, limit, null);
+
+		// the first segment of every plateau: where the forward tree turns
+		// onto a segment the backward tree does not turn onto from there
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		for (int seg : reached) {
+			if (!backward.isSettled(seg)) {
+				continue;
+			}
+			int before = forward.getParent(seg);
+			if (before >= 0 && backward.isSettled(before) && backward.getParent(before) == seg) {
+				continue;
+			}
+			int end = seg;
+			for (int after = backward.getParent(end); after >= 0 && forward.isSettled(after)
+					&& forward.getParent(after) == end; after = backward.getParent(end)) {
+				end = after;
+			}
+			double w = weights[seg];
+			double cost = forward.getCost(seg) + backward.getCost(seg) - w;
+			double plateau = forward.getCost(end) - forward.getCost(seg) + w;
+			if (cost <= limit && plateau >= minPlateau * cost) {
+				candidates.add(new Candidate(seg, cost, plateau));
+			}
+		}
+		Collections.sort(candidates, new Comparator<Candidate>() {
+			public int compare(Candidate x, Candidate y) {
+				int c = Double.compare(x.cost, y.cost);
+				return c != 0 ? c : Double.compare(y.plateau, x.plateau);
+			}
+		});
+
+		for (Candidate candidate : candidates) {
+			if (routes.size() == k) {
+				break;
+			}
+			List<Segment> path = buildPath(candidate.via, true);
+			if (path == null) {
+				continue;
+			}
+			double shared = 0;
+			for (Segment s : path) {
+				if (used.contains(s)) {
+					shared += weights[s.getID()];
+				}
+			}
+			if (shared > maxOverlap * best) {
+				continue;
+			}
+			Route route = new Route(path, candidate.cost, candidate.plateau);
+			route.shared = shared;
+			routes.add(route);
+			used.addAll(path);
+		}
+	}
+
+	/**
+	 * Runs Dijkstra over segments until one reaching the target is settled or
+	 * the next key passes the limit. A null source carries on a search
+	 * already started. Going forward the cost of a segment is that of the
+	 * route from the source to its end; going backward it is that of the route
+	 * from its start to the source, and its parent is the segment after it.
+	 *
+	 * @param settledOrder
+	 *            collects the segments in the order they are settled, if given
+	 * @return the segment settled into the target, or -1
+	 */
+	private int grow(EdgeSearchState state, Node source, Node target, boolean isForward, double limit,
+			List<Integer> settledOrder) {
+		if (source != null) {
+			state.reset();
+			for (Segment s : isForward ? modeGraph.getOut(source) : modeGraph.getIn(source)) {
+				float w = weights[s.getID()];
+				if (w == Float.POSITIVE_INFINITY) {
+					stats.filterEdge();
+				} else if (state.relax(s.getID(), w, -1, -1, w)) {
+					stats.push();
+				}
+			}
+		}
+		while (!state.isEmpty() && state.peekKey() <= limit) {
+			int seg = state.pop();
+			stats.pop();
+			if (state.isSettled(seg)) {
+				stats.stalePop();
+				continue;
+			}
+			state.settle(seg);
+			stats.settle();
+			if (settledOrder != null) {
+				settledOrder.add(seg);
+			}
+			Segment s = graph.getSegment(seg);
+			Node node = isForward ? s.getEndNode() : s.getStartNode();
+			if (node == target) {
+				return seg;
+			}
+			double costToHere = state.getCost(seg);
+			for (Segment next : isForward ? modeGraph.getOut(node) : modeGraph.getIn(node)) {
+				float w = weights[next.getID()];
+				if (w == Float.POSITIVE_INFINITY) {
+					stats.filterEdge();
+					continue;
+				}
+				stats.restrictionCheck();
+				if (restrictions != null
+						&& (isForward ? restrictions.isRestricted(s, next) : restrictions.isRestricted(next, s))) {
+					continue;
+				}
+				if (state.relax(next.getID(), costToHere + w, seg, -1, costToHere + w)) {
+					stats.push();
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the forward tree path to the segment, followed by the backward
+	 *         tree path on from it if asked for, or null if it visits a node
+	 *         twice
+	 */
+	private List<Segment> buildPath(int via, boolean onToGoal) {
+		List<Segment> path = new ArrayList<Segment>();
+		for (int seg = via; seg >= 0; seg = forward.getParent(seg)) {
+			path.add(graph.getSegment(seg));
+		}
+		Collections.reverse(path);
+		if (onToGoal) {
+			for (int seg = backward.getParent(via); seg >= 0; seg = backward.getParent(seg)) {
+				path.add(graph.getSegment(seg));
+			}
+		}
+		Set<Node> visited = new HashSet<Node>();
+		visited.add(start);
+		for (Segment s : path) {
+			if (!visited.add(s.getEndNode())) {
+				return null;
+			}
+		}
+		return path;
+	}
+
+	/**
+	 * @return the routes, shortest first
+	 */
+	public List<Route> getRoutes() {
+		return routes;
+	}
+
+	public SearchStats getStats() {
+		return stats;
+	}
+
+}
@@ -25,11 +25,18 @@ public class ArtPts {
 	private List<Node> listArtPoints;
 
 	public ArtPts(Map<Integer, Node> nodes) {
+		ArtPtsEvent event = new ArtPtsEvent();
+		event.begin();
 		nodeSetArray = new ArrayList<Node>();
 		for (Node n : nodes.values()) {
 			nodeSetArray.add(n);
 		}
 		findArtPts(nodes);
+		if (event.shouldCommit()) {
+			event.nodes = nodes.size();
+			event.artPoints = artPoints.size();
+			event.commit();
+		}
 	}
 
 	public void findArtPts(Map<Integer, Node> nodes) {
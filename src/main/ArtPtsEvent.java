@@ -0,0 +1,28 @@
+package main;
+
+import jdk.jfr.Category;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * ArtPtsEvent: A Flight Recorder event covering one articulation point run.
+ * Disabled by default.
+ * 
+ * @author harryross
+ * @version 1.1
+ */
+@Name("auckland.ArtPts")
+@Label("Articulation Points")
+@Category({ "Auckland Mapper", "Analysis" })
+@Enabled(false)
+public class ArtPtsEvent extends Event {
+
+	@Label("Nodes")
+	public int nodes;
+
+	@Label("Articulation Points")
+	public int artPoints;
+
+}
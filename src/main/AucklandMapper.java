@@ -8,8 +8,15 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.JButton;
 import javax.swing.JComponent;
@@ -18,9 +25,15 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 
+import utils.CancelToken;
+import utils.EdgeSearchState;
 import utils.Location;
 import utils.Node;
+import utils.Road;
+import utils.SearchProgress;
+import utils.SearchState;
 import utils.Segment;
 
 /**
@@ -39,6 +52,7 @@ public class AucklandMapper {
 	private int windowSize = 700;
 
 	private RoadGraph roadGraph;
+	private BackgroundTiles background; // null if there are no polygons
 
 	private Node selectedNode;
 	private Node endNode; // AStar goal
@@ -51,6 +65,31 @@ public class AucklandMapper {
 	private String aStarMode = "distance";
 	private boolean shown;
 	private String transportMode = "car";
+	private double departure; // hours since midnight, for departure mode
+	private SearchState searchState;
+	private EdgeSearchState forwardEdges; // for alternative routes
+	private EdgeSearchState backwardEdges;
+	private int alternatives = 1; // routes to find, 1 for just the best
+	private List<List<Segment>> alternativeSegments = new ArrayList<List<Segment>>();
+	private boolean multiStop; // clicks add stops to plan a tour through
+	private List<Node> stops = new ArrayList<Node>();
+	private CancelToken runningSearch = CancelToken.NONE; // the route search
+	// in progress, cancelled when a new one is asked for
+	private final ExecutorService searchThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "route search");
+			t.setDaemon(true);
+			return t;
+		}
+	}); // one thread, so searchState and the edge states have one user at a time
+	private final SearchProgress searchProgress = new SearchProgress(PROGRESS_INTERVAL); // subscribed
+	// to while the search is shown growing
+	private static final int BACKGROUND_TILES = 256; // rasterised tiles to keep
+	private static final long TOUR_BUDGET = 1000; // ms to spend ordering stops
+	private static final long PROGRESS_INTERVAL = 40; // ms between search snapshots
+	private static final Color SETTLED_COLOUR = new Color(255, 200, 0);
+	private static final Color FRINGE_COLOUR = new Color(0, 160, 220);
+	private static final Color[] ROUTE_COLOURS = { Color.blue, Color.magenta, new Color(0, 150, 0), Color.cyan };
 
 	// Dimensions for drawing
 	double westBoundary;
@@ -67,12 +106,46 @@ public class AucklandMapper {
 		roadGraph = new RoadGraph();
 
 		setText("Loading data...");
-		appendText(roadGraph.loadData("../graph-data/"));
+		if (dataDir == null) {
+			dataDir = "../graph-data/";
+		} else if (!dataDir.endsWith("/")) {
+			dataDir += "/";
+		}
+		appendText(roadGraph.loadData(dataDir));
+		if (roadGraph.getPolygons() != null) {
+			background = new BackgroundTiles(roadGraph.getPolygons(), BACKGROUND_TILES);
+		}
 		setupScaling();
+		searchState = new SearchState(roadGraph.numNodes());
+		forwardEdges = new EdgeSearchState(roadGraph.numSegments());
+		backwardEdges = new EdgeSearchState(roadGraph.numSegments());
+		startTrafficFeed(dataDir + "traffic/");
 		loaded = true;
 		drawing.repaint();
 	}
 
+	/**
+	 * Starts applying live traffic updates dropped into the directory, if it
+	 * exists.
+	 */
+	private void startTrafficFeed(String trafficDir) {
+		if (!new File(trafficDir).isDirectory()) {
+			return;
+		}
+		TrafficFileFeed feed = new TrafficFileFeed(roadGraph.getTraffic(), trafficDir);
+		feed.setListener(new Runnable() {
+			public void run() {
+				drawing.repaint();
+			}
+		});
+		try {
+			feed.start();
+			appendText("Watching " + trafficDir + " for traffic updates\n");
+		} catch (IOException e) {
+			appendText("Failed to watch " + trafficDir + ": " + e + "\n");
+		}
+	}
+
 	private void setupScaling() {
 		double[] b = roadGraph.getBoundaries();
 		westBoundary = b[0];
@@ -179,6 +252,12 @@ public class AucklandMapper {
 				if (aStarMode.equals("distance"))
 					aStarMode = "time";
 				else if (aStarMode.equals("time"))
+					aStarMode = "arterial";
+				else if (aStarMode.equals("arterial"))
+					aStarMode = "comfort";
+				else if (aStarMode.equals("comfort"))
+					aStarMode = "departure";
+				else if (aStarMode.equals("departure"))
 					aStarMode = "distance";
 
 				setText("");
@@ -200,19 +279,84 @@ public class AucklandMapper {
 			}
 		});
 
+		button = new JButton("Toggle Alternatives");
+		panel.add(button);
+		button.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent ev) {
+				alternatives = alternatives == 1 ? 3 : 1;
+				setText("Showing up to " + alternatives + " routes\n");
+			}
+		});
+
+		button = new JButton("Watch Search");
+		panel.add(button);
+		button.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent ev) {
+				if (searchProgress.isSubscribed()) {
+					searchProgress.unsubscribe();
+				} else {
+					searchProgress.subscribe(new Runnable() {
+						public void run() {
+							drawing.repaint();
+						}
+					});
+				}
+				drawing.repaint();
+			}
+		});
+
+		button = new JButton("Toggle Multi-stop");
+		panel.add(button);
+		button.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent ev) {
+				cancelSearch();
+				multiStop = !multiStop;
+				stops.clear();
+				selectedSegments = null;
+				alternativeSegments.clear();
+				selectedNode = null;
+				endNode = null;
+				drawing.repaint();
+				setText(multiStop ? "Click stops, the first being the start, then Plan Tour\n" : "");
+			}
+		});
+
+		button = new JButton("Plan Tour");
+		panel.add(button);
+		button.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent ev) {
+				cancelSearch();
+				planTour();
+				drawing.repaint();
+			}
+		});
+
 		button = new JButton("Reset A*");
 		panel.add(button);
 		button.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent ev) {
+				cancelSearch();
+				searchProgress.clear();
 				selectedSegments = null;
+				alternativeSegments.clear();
 				selectedNode = null;
 				endNode = null;
+				stops.clear();
 
 				drawing.repaint();
 				setText("");
 			}
 		});
 
+		button = new JButton("Search Stats");
+		panel.add(button);
+		button.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent ev) {
+				setText(SearchMetrics.dumpAll() + roadGraph.getTraffic().dump()
+						+ (background == null ? "" : background + "\n") + searchProgress + "\n");
+			}
+		});
+
 		nameEntry = new JTextField(10);
 		panel.add(nameEntry);
 		nameEntry.addActionListener(new ActionListener() {
@@ -226,7 +370,9 @@ public class AucklandMapper {
 		// clicks.
 		drawing.addMouseListener(new MouseAdapter() {
 			public void mouseReleased(MouseEvent e) {
-				if (selectedNode == null || endNode != null) {
+				if (multiStop) {
+					addStop(e);
+				} else if (selectedNode == null || endNode != null) {
 					setSelectedNode(e);
 				} else {
 					setText("Selected road = " + selectedNode.toString());
@@ -358,7 +504,13 @@ public class AucklandMapper {
 	 */
 	public void redraw(Graphics g) {
 		if (roadGraph != null && loaded) {
-			roadGraph.redraw(g, origin, scale);
+			RedrawEvent event = new RedrawEvent();
+			event.begin();
+			if (background != null) {
+				background.draw(g, origin, scale, drawing.getWidth(), drawing.getHeight());
+			}
+			int drawn = roadGraph.redraw(g, origin, scale);
+			drawSearchProgress(g);
 			if (selectedNode != null) {
 				g.setColor(Color.red);
 				selectedNode.draw(g, origin, scale);
@@ -367,11 +519,25 @@ public class AucklandMapper {
 				g.setColor(Color.red);
 				endNode.draw(g, origin, scale);
 			}
+			for (int i = alternativeSegments.size() - 1; i >= 0; i--) {
+				g.setColor(ROUTE_COLOURS[i % ROUTE_COLOURS.length]);
+				for (Segment seg : alternativeSegments.get(i)) {
+					seg.draw(g, origin, scale);
+				}
+				drawn += alternativeSegments.get(i).size();
+			}
 			if (selectedSegments != null) {
 				g.setColor(Color.red);
 				for (Segment seg : selectedSegments) {
 					seg.draw(g, origin, scale);
 				}
+				drawn += selectedSegments.size();
+			}
+			if (!stops.isEmpty()) {
+				g.setColor(Color.red);
+				for (Node n : stops) {
+					n.draw(g, origin, scale);
+				}
 			}
 			if (!artPoints.isEmpty()) {
 				g.setColor(Color.green);
@@ -379,46 +545,245 @@ public class AucklandMapper {
 					n.draw(g, origin, scale);
 				}
 			}
+			if (event.shouldCommit()) {
+				event.segments = drawn;
+				event.scale = scale;
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Draws the latest snapshot of the search being watched, if there is one
+	 * to draw just now.
+	 */
+	private void drawSearchProgress(Graphics g) {
+		SearchProgress.Snapshot snapshot = searchProgress.acquire();
+		if (snapshot == null) {
+			return;
+		}
+		try {
+			g.setColor(SETTLED_COLOUR);
+			int[] settled = snapshot.getSettled();
+			for (int i = 0; i < snapshot.getNumSettled(); i++) {
+				roadGraph.getNode(settled[i]).draw(g, origin, scale);
+			}
+			g.setColor(FRINGE_COLOUR);
+			int[] fringe = snapshot.getFringe();
+			for (int i = 0; i < snapshot.getNumFringe(); i++) {
+				roadGraph.getNode(fringe[i]).draw(g, origin, scale);
+			}
+			g.setColor(Color.black);
+			g.drawString(String.format("%s: settled %,d, fringe %,d", snapshot.isFinished() ? "Done" : "Searching",
+					snapshot.getNumSettled(), snapshot.getNumFringe()), 5, 15);
+		} finally {
+			searchProgress.release(snapshot);
 		}
 	}
 
 	public void setSelectedNode(MouseEvent e) {
+		cancelSearch();
+		searchProgress.clear();
 		selectedSegments = null;
+		alternativeSegments.clear();
 		endNode = null;
 		selectedNode = findNode(e.getPoint());
 		setText(selectedNode.toString());
 	}
 
+	/**
+	 * Starts a search from the selected node to the clicked one on the search
+	 * thread. The route is shown once it is found, unless the search has been
+	 * cancelled by then.
+	 */
 	public void setEndNode(MouseEvent e) {
+		cancelSearch();
 		endNode = findNode(e.getPoint());
 		if (endNode == selectedNode) {
 			appendText("\nStart and Goal node are equal");
 			return;
 		}
 		appendText("\nGoal Node: " + endNode.toString());
-		Searcher temp = new Searcher(selectedNode, endNode, roadGraph.getNodes(), aStarMode, transportMode,
-				roadGraph.getRestrictionSet());
-		selectedSegments = buildSegList(temp.getNodePath());
+		LocalTime now = LocalTime.now();
+		departure = now.getHour() + now.getMinute() / 60.0;
+		appendText("\nSearching...");
+		final Node start = selectedNode;
+		final Node goal = endNode;
+		final String sMode = aStarMode;
+		final String tMode = transportMode;
+		final double leave = departure;
+		final int routes = alternatives;
+		final CancelToken cancel = new CancelToken();
+		runningSearch = cancel;
+		searchThread.execute(new Runnable() {
+			public void run() {
+				try {
+					final Searcher temp = new Searcher(start, goal, searchState, roadGraph, sMode, tMode, leave,
+							cancel, searchProgress);
+					final AlternativeRoutes found = routes > 1 && !cancel.isCancelled() ? findAlternatives(start,
+							goal, sMode, tMode, routes) : null;
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							if (!cancel.isCancelled()) {
+								showRoute(temp, found, sMode);
+							}
+						}
+					});
+				} catch (final RuntimeException ex) {
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							if (!cancel.isCancelled()) {
+								appendText("\nFailed to find route: " + ex);
+							}
+						}
+					});
+				}
+			}
+		});
+	}
+
+	/**
+	 * Cancels the route search in progress, if any, so its route is never
+	 * shown. Called on the event dispatch thread, which is also where results
+	 * are shown, so a route is either shown before this or not at all.
+	 */
+	private void cancelSearch() {
+		runningSearch.cancel();
+		runningSearch = CancelToken.NONE;
+	}
+
+	/**
+	 * Shows a finished search, and its alternatives if it looked for any.
+	 */
+	private void showRoute(Searcher temp, AlternativeRoutes found, String sMode) {
+		selectedSegments = temp.getNodePath() == null ? null : buildSegList(temp.getFinalPath());
+		if (sMode.equals("departure")) {
+			finalTime = temp.getCost();
+		}
 		appendRoute();
+		appendText("\nSearch: " + temp.getStats());
+		if (found != null) {
+			showAlternatives(found, costModelFor(sMode));
+		}
 		drawing.repaint();
 	}
 
-	public List<Segment> buildSegList(List<Node> n) {
-		if (n == null) {
-			return null;
+	public void addStop(MouseEvent e) {
+		Node stop = findNode(e.getPoint());
+		stops.add(stop);
+		appendText("Stop " + stops.size() + ": " + stop + "\n");
+	}
+
+	/**
+	 * Plans the order to visit the clicked stops in, starting and ending at
+	 * the first, on the search thread, and shows the route when it is done.
+	 * Departure mode plans by time.
+	 */
+	private void planTour() {
+		if (stops.size() < 2) {
+			setText("Click at least two stops first\n");
+			return;
 		}
-		List<Segment> s = new ArrayList<Segment>();
+		final List<Node> tourStops = new ArrayList<Node>(stops);
+		final String mode = CostModel.forName(aStarMode) == null ? "time" : aStarMode;
+		final String tMode = transportMode;
+		final CancelToken cancel = new CancelToken();
+		runningSearch = cancel;
+		setText("Planning tour...\n");
+		searchThread.execute(new Runnable() {
+			public void run() {
+				try {
+					TourPlanner planner = new TourPlanner(roadGraph, mode, tMode, Runtime.getRuntime()
+							.availableProcessors());
+					final TourPlanner.Tour tour = planner.plan(tourStops, true, TOUR_BUDGET, cancel);
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							if (!cancel.isCancelled()) {
+								showTour(tour);
+							}
+						}
+					});
+				} catch (final RuntimeException ex) {
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							if (!cancel.isCancelled()) {
+								appendText("\nFailed to plan tour: " + ex);
+							}
+						}
+					});
+				}
+			}
+		});
+	}
+
+	private void showTour(TourPlanner.Tour tour) {
+		selectedSegments = tour.getSegments();
+		alternativeSegments.clear();
+		StringBuilder b = new StringBuilder("Visit stops in order:");
+		for (int stop : tour.getOrder()) {
+			b.append(' ').append(stop + 1);
+		}
+		for (List<Segment> leg : tour.getLegs()) {
+			if (leg == null) {
+				b.append("\nSome stops cannot be reached");
+				break;
+			}
+		}
+		setText(b + "\nTour: " + tour + "\n");
+		drawing.repaint();
+	}
+
+	/**
+	 * @return the cost model of a search mode, time for departure mode
+	 */
+	private static CostModel costModelFor(String sMode) {
+		CostModel model = CostModel.forName(sMode);
+		return model == null ? CostModel.TIME : model;
+	}
+
+	/**
+	 * Finds other routes between two nodes with the search mode's cost model
+	 * (time in departure mode). Runs on the search thread.
+	 */
+	private AlternativeRoutes findAlternatives(Node start, Node goal, String sMode, String tMode, int routes) {
+		CostModel model = costModelFor(sMode);
+		return new AlternativeRoutes(start, goal, forwardEdges, backwardEdges, roadGraph, tMode,
+				roadGraph.getWeights(model, tMode), tMode.equals("car") ? roadGraph.getTurnRestrictions() : null,
+				routes);
+	}
+
+	/**
+	 * Draws the alternative routes found and lists how they compare.
+	 */
+	private void showAlternatives(AlternativeRoutes found, CostModel model) {
+		alternativeSegments.clear();
+		List<AlternativeRoutes.Route> routes = found.getRoutes();
+		appendText("\n");
+		for (int i = 0; i < routes.size(); i++) {
+			AlternativeRoutes.Route route = routes.get(i);
+			// the best route is already drawn in red
+			if (i > 0 || !route.getSegments().equals(selectedSegments)) {
+				alternativeSegments.add(route.getSegments());
+			}
+			appendText(String.format("%nRoute %d: %.3f %s, %.0f%% shared with earlier routes", i + 1,
+					route.getCost(), model == CostModel.DISTANCE ? "km" : model == CostModel.TIME ? "hours" : "units",
+					100 * route.getShared() / route.getCost()));
+		}
+		appendText("\nAlternatives: " + found.getStats());
+	}
+
+	/**
+	 * Copies the segments of a route found by a search, which may include
+	 * walking only segments and any one of several parallel segments, and
+	 * totals its length and time.
+	 */
+	public List<Segment> buildSegList(List<Segment> path) {
+		List<Segment> s = new ArrayList<Segment>(path);
 		finalPathLength = 0;
 		finalTime = 0;
-		for (int i = 1; i < n.size(); i++) {
-			Node a = n.get(i - 1);
-			Node b = n.get(i);
-			Segment seg = findSeg(a, b);
-			if (seg != null) {
-				s.add(seg);
-				finalTime = finalTime + (seg.getWeight() / seg.getRoad().getSpeedLimit());
-				finalPathLength = finalPathLength + seg.getWeight();
-			}
+		for (Segment seg : s) {
+			finalTime = finalTime + (seg.getWeight() / seg.getRoad().getSpeedLimit());
+			finalPathLength = finalPathLength + seg.getWeight();
 		}
 		return s;
 	}
@@ -430,29 +795,35 @@ public class AucklandMapper {
 		}
 		setText(selectedNode.getRoadNames() + "\n");
 		StringBuilder b = new StringBuilder();
-		List<String> roadNames = new ArrayList<String>();
-		List<Double> roadWeights = new ArrayList<Double>();
-		for (Segment s : selectedSegments) {
-			roadNames.add(s.getRoad().getName());
-			roadWeights.add(s.getWeight());
+		// roads are grouped by name ID, so equal names compare as ints
+		int n = selectedSegments.size();
+		Road[] roads = new Road[n];
+		int[] roadNames = new int[n];
+		double[] roadWeights = new double[n];
+		for (int i = 0; i < n; i++) {
+			Segment s = selectedSegments.get(i);
+			roads[i] = s.getRoad();
+			roadNames[i] = s.getRoad().getNameID();
+			roadWeights[i] = s.getWeight();
 		}
 		double temp = 0;
-		String prevName = "";
-		String currentName = "";
-		for (int i = 1; i < roadNames.size(); i++) {
-			temp = temp + roadWeights.get(i);
-			prevName = roadNames.get(i - 1);
-			currentName = roadNames.get(i);
-			while (prevName.equals(currentName)) {
-				if (i < roadNames.size()) {
-					temp = temp + roadWeights.get(i);
+		int prevName;
+		int currentName;
+		for (int i = 1; i < n; i++) {
+			temp = temp + roadWeights[i];
+			Road prevRoad = roads[i - 1];
+			prevName = roadNames[i - 1];
+			currentName = roadNames[i];
+			while (prevName == currentName) {
+				if (i < n) {
+					temp = temp + roadWeights[i];
 					prevName = currentName;
-					currentName = roadNames.get(i++);
+					currentName = roadNames[i++];
 				} else {
 					break;
 				}
 			}
-			b.append(prevName + ": " + temp + "km\n");
+			b.append(prevRoad.getName() + ": " + temp + "km\n");
 			temp = 0;
 		}
 		appendText("\n" + b.toString());
@@ -461,16 +832,11 @@ public class AucklandMapper {
 			appendText("\nTotal Distance = " + finalPathLength + "km");
 		else if (aStarMode.equals("time"))
 			appendText("\nTotal Time = " + finalTime + " hours");
-	}
-
-	public Segment findSeg(Node a, Node b) {
-
-		for (Segment s : a.getOutNeighbours()) {
-			if (s.getEndNode() == b) {
-				return s;
-			}
-		}
-		return null;
+		else if (aStarMode.equals("arterial") || aStarMode.equals("comfort"))
+			appendText("\nTotal Distance = " + finalPathLength + "km, Total Time = " + finalTime + " hours");
+		else if (aStarMode.equals("departure"))
+			appendText(String.format("%nTotal Time leaving at %02d:%02d = %s hours", (int) departure,
+					(int) Math.round(departure * 60) % 60, finalTime));
 	}
 
 	public void setText(String s) {
@@ -488,7 +854,31 @@ public class AucklandMapper {
 	}
 
 	public static void main(String[] arguments) {
-		if (arguments.length > 0) {
+		if (arguments.length > 0 && arguments[0].equals("--batch")) {
+			BatchRouter.main(Arrays.copyOfRange(arguments, 1, arguments.length));
+		} else if (arguments.length > 0 && arguments[0].equals("--partition")) {
+			Partitioner.main(Arrays.copyOfRange(arguments, 1, arguments.length));
+		} else if (arguments.length > 0 && arguments[0].equals("--shard")) {
+			ShardServer.main(Arrays.copyOfRange(arguments, 1, arguments.length));
+		} else if (arguments.length > 0 && arguments[0].equals("--coordinator")) {
+			ShardCoordinator.main(Arrays.copyOfRange(arguments, 1, arguments.length));
+		} else if (arguments.length > 0 && arguments[0].equals("--heap")) {
+			HeapReport.main(Arrays.copyOfRange(arguments, 1, arguments.length));
+		} else if (arguments.length > 0 && arguments[0].equals("--build-graph")) {
+			GraphBuilder.main(Arrays.copyOfRange(arguments, 1, arguments.length));
+		} else if (arguments.length > 0 && arguments[0].equals("--mapped")) {
+			MappedSearcher.main(Arrays.copyOfRange(arguments, 1, arguments.length));
+		} else if (arguments.length > 0 && arguments[0].equals("--match")) {
+			MapMatcher.main(Arrays.copyOfRange(arguments, 1, arguments.length));
+		} else if (arguments.length > 0 && arguments[0].equals("--tour")) {
+			TourPlanner.main(Arrays.copyOfRange(arguments, 1, arguments.length));
+		} else if (arguments.length > 0 && arguments[0].equals("--geocode")) {
+			ReverseGeocoder.main(Arrays.copyOfRange(arguments, 1, arguments.length));
+		} else if (arguments.length > 0 && arguments[0].equals("--tiles")) {
+			TileExporter.main(Arrays.copyOfRange(arguments, 1, arguments.length));
+		} else if (arguments.length > 0 && arguments[0].equals("--one-to-all")) {
+			OneToAll.main(Arrays.copyOfRange(arguments, 1, arguments.length));
+		} else if (arguments.length > 0) {
 			new AucklandMapper(arguments[0]);
 		} else {
 			new AucklandMapper(null);
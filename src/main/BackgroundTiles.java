@@ -0,0 +1,136 @@
+package main;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import utils.Location;
+import utils.PolygonStore;
+
+/**
+ * BackgroundTiles: The static polygon layers of the map, rasterised into
+ * square tiles that are kept and drawn behind the roads. Tiles are laid on a
+ * grid fixed to the map rather than to the window, so panning only renders the
+ * tiles that come into view and zooming back to an earlier scale finds its
+ * tiles still there. The least recently drawn tiles are dropped once there are
+ * more than maxTiles.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class BackgroundTiles {
+
+	/** The width and height of a tile in pixels */
+	public static final int TILE_SIZE = 256;
+
+	private static final Color LAND = Color.white;
+
+	private final PolygonStore polygons;
+	private final Map<Key, BufferedImage> tiles;
+	private long hits;
+	private long misses;
+	private long renderNanos;
+
+	// how many steps of scale a factor of e is split into: zooming in and
+	// back out leaves the scale a rounding error off, well within one step,
+	// and a step is too small to move a tile by a pixel
+	private static final double SCALE_STEPS = 1e9;
+
+	/**
+	 * Key: A tile, by scale and its place in the grid at that scale. The scale
+	 * is kept as a whole number of steps so that a scale reached again finds
+	 * its tiles.
+	 */
+	private static class Key {
+
+		final long scale;
+		final int x;
+		final int y;
+
+		Key(double scale, int x, int y) {
+			this.scale = Math.round(Math.log(scale) * SCALE_STEPS);
+			this.x = x;
+			this.y = y;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return k.scale == scale && k.x == x && k.y == y;
+		}
+
+		public int hashCode() {
+			return (Long.hashCode(scale) * 31 + x) * 31 + y;
+		}
+
+	}
+
+	public BackgroundTiles(PolygonStore polygons, final int maxTiles) {
+		this.polygons = polygons;
+		this.tiles = new LinkedHashMap<Key, BufferedImage>(maxTiles * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Key, BufferedImage> eldest) {
+				return size() > maxTiles;
+			}
+		};
+	}
+
+	/**
+	 * Draws the tiles covering a window of the given size, rendering any not
+	 * kept yet.
+	 */
+	public void draw(Graphics g, Location origin, double scale, int width, int height) {
+		double tileKm = TILE_SIZE / scale;
+		// the tile grid starts at the map's (0, 0), with y going down the
+		// window, so pixel column of a tile is the same however it is reached
+		int left = (int) Math.floor(origin.x / tileKm);
+		int top = (int) Math.floor(-origin.y / tileKm);
+		int right = (int) Math.floor((origin.x + width / scale) / tileKm);
+		int bottom = (int) Math.floor((height / scale - origin.y) / tileKm);
+		long shiftX = Math.round(origin.x * scale);
+		long shiftY = Math.round(-origin.y * scale);
+		for (int ty = top; ty <= bottom; ty++) {
+			for (int tx = left; tx <= right; tx++) {
+				BufferedImage tile = getTile(scale, tx, ty);
+				g.drawImage(tile, (int) ((long) tx * TILE_SIZE - shiftX), (int) ((long) ty * TILE_SIZE - shiftY),
+						null);
+			}
+		}
+	}
+
+	private BufferedImage getTile(double scale, int tx, int ty) {
+		Key key = new Key(scale, tx, ty);
+		BufferedImage tile = tiles.get(key);
+		if (tile != null) {
+			hits++;
+			return tile;
+		}
+		misses++;
+		long start = System.nanoTime();
+		tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = tile.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setColor(LAND);
+		g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+		double tileKm = TILE_SIZE / scale;
+		Location corner = new Location(tx * tileKm, -ty * tileKm);
+		polygons.draw(g, corner, scale, corner.x, corner.y - tileKm, corner.x + tileKm, corner.y);
+		g.dispose();
+		tiles.put(key, tile);
+		renderNanos += System.nanoTime() - start;
+		return tile;
+	}
+
+	public String toString() {
+		return String.format("background: %,d tiles kept, %,d hits, %,d rendered in %.0f ms", tiles.size(), hits,
+				misses, renderNanos / 1e6);
+	}
+
+}
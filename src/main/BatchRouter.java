@@ -0,0 +1,313 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.time.LocalTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import utils.Location;
+import utils.Node;
+import utils.SearchState;
+import utils.Segment;
+
+/**
+ * BatchRouter: Headless routing of a file of origin/destination pairs. Each
+ * input line is either two node IDs or two lat/lon pairs (snapped to the
+ * nearest node), separated by commas, tabs or spaces. Lines are routed in
+ * parallel with the same Searcher the map uses, and the results are written in
+ * input order as CSV or NDJSON.
+ *
+ * Only a fixed window of lines is ever in flight: once it is full the reader
+ * waits for the oldest route to finish and be written before reading on, so
+ * memory stays flat however long the input is.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class BatchRouter {
+
+	private static final String USAGE = "Usage: AucklandMapper --batch [--data dir]\n"
+			+ "         [--mode distance|time|arterial|comfort|departure] [--depart HH:MM]\n"
+			+ "         [--transport car|bike|walking] [--format csv|ndjson] [--threads n]\n"
+			+ "         [--traffic dir] [--reorder] [input|-]\n"
+			+ "Each input line is 'fromNodeID,toNodeID' or 'fromLat,fromLon,toLat,toLon'.";
+
+	private final RoadGraph roadGraph;
+	private final String searchMode;
+	private final String transportMode;
+	private final double departure;
+	private final boolean ndjson;
+	private final int threads;
+	private final int window;
+
+	// each worker thread reuses one search state for all of its routes
+	private final ThreadLocal<SearchState> states = new ThreadLocal<SearchState>() {
+		protected SearchState initialValue() {
+			return new SearchState(roadGraph.numNodes());
+		}
+	};
+
+	/**
+	 * @param departure
+	 *            hours since midnight, only used in departure mode
+	 */
+	public BatchRouter(RoadGraph roadGraph, String searchMode, String transportMode, double departure,
+			String format, int threads) {
+		this.roadGraph = roadGraph;
+		this.searchMode = searchMode;
+		this.transportMode = transportMode;
+		this.departure = departure;
+		this.ndjson = format.equals("ndjson");
+		this.threads = threads;
+		this.window = threads * 64;
+	}
+
+	/**
+	 * Routes every line of the input and writes one result per line, in input
+	 * order.
+	 *
+	 * @return the number of lines routed
+	 */
+	public long run(BufferedReader in, Writer out) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		Deque<Future<String>> inFlight = new ArrayDeque<Future<String>>(window);
+		long lineNo = 0;
+		try {
+			if (!ndjson) {
+				out.write("line,status,from,to,distance_km,time_h,path\n");
+			}
+			while (true) {
+				String line = in.readLine();
+				if (line == null) {
+					break;
+				}
+				lineNo++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				final long n = lineNo;
+				final String pair = line;
+				inFlight.add(pool.submit(new Callable<String>() {
+					public String call() {
+						return route(n, pair);
+					}
+				}));
+				if (inFlight.size() >= window) {
+					out.write(take(inFlight.poll()));
+				}
+			}
+			while (!inFlight.isEmpty()) {
+				out.write(take(inFlight.poll()));
+			}
+			out.flush();
+		} finally {
+			pool.shutdownNow();
+		}
+		return lineNo;
+	}
+
+	private String take(Future<String> result) throws IOException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while routing", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Routing failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Routes a single input line and formats the result.
+	 */
+	public String route(long lineNo, String line) {
+		String[] values = line.split("[,\\s]+");
+		Node from;
+		Node to;
+		try {
+			if (values.length == 2) {
+				from = roadGraph.getNodes().get(Integer.parseInt(values[0]));
+				to = roadGraph.getNodes().get(Integer.parseInt(values[1]));
+			} else if (values.length == 4) {
+				from = roadGraph.findNearestNode(
+						Location.newFromLatLon(Double.parseDouble(values[0]), Double.parseDouble(values[1])));
+				to = roadGraph.findNearestNode(
+						Location.newFromLatLon(Double.parseDouble(values[2]), Double.parseDouble(values[3])));
+			} else {
+				return format(lineNo, "bad_input", null, null, null);
+			}
+		} catch (NumberFormatException e) {
+			return format(lineNo, "bad_input", null, null, null);
+		}
+		if (from == null || to == null) {
+			return format(lineNo, "unknown_node", from, to, null);
+		}
+		Searcher searcher = new Searcher(from, to, states.get(), roadGraph, searchMode, transportMode, departure);
+		if (searcher.getNodePath() == null) {
+			return format(lineNo, "no_route", from, to, null);
+		}
+		return format(lineNo, "ok", from, to, searcher);
+	}
+
+	private String format(long lineNo, String status, Node from, Node to, Searcher searcher) {
+		double distance = 0;
+		double time = 0;
+		if (searcher != null) {
+			for (Segment seg : searcher.getFinalPath()) {
+				distance += seg.getWeight();
+				time += seg.getWeight() / seg.getRoad().getSpeedLimit();
+			}
+			if (searchMode.equals("departure")) {
+				time = searcher.getCost();
+			}
+		}
+		StringBuilder b = new StringBuilder(searcher == null ? 64 : 64 + 8 * searcher.getNodePath().size());
+		if (ndjson) {
+			b.append("{\"line\":").append(lineNo).append(",\"status\":\"").append(status).append('"');
+			b.append(",\"from\":").append(from == null ? "null" : String.valueOf(from.getID()));
+			b.append(",\"to\":").append(to == null ? "null" : String.valueOf(to.getID()));
+			if (searcher != null) {
+				b.append(String.format(Locale.ROOT, ",\"distance_km\":%.4f,\"time_h\":%.6f", distance, time));
+				b.append(",\"path\":[");
+				appendPath(b, searcher.getNodePath(), ',');
+				b.append(']');
+			}
+			b.append("}\n");
+		} else {
+			b.append(lineNo).append(',').append(status).append(',');
+			b.append(from == null ? "" : String.valueOf(from.getID())).append(',');
+			b.append(to == null ? "" : String.valueOf(to.getID())).append(',');
+			if (searcher != null) {
+				b.append(String.format(Locale.ROOT, "%.4f,%.6f,", distance, time));
+				appendPath(b, searcher.getNodePath(), ' ');
+			} else {
+				b.append(",,");
+			}
+			b.append('\n');
+		}
+		return b.toString();
+	}
+
+	private static void appendPath(StringBuilder b, List<Node> path, char separator) {
+		for (int i = 0; i < path.size(); i++) {
+			if (i > 0) {
+				b.append(separator);
+			}
+			b.append(path.get(i).getID());
+		}
+	}
+
+	public static void main(String[] arguments) {
+		String dataDir = "../graph-data/";
+		String searchMode = "distance";
+		String transportMode = "car";
+		String format = "csv";
+		LocalTime depart = LocalTime.now();
+		int threads = Runtime.getRuntime().availableProcessors();
+		String trafficDir = null;
+		boolean reorder = false;
+		String input = "-";
+		for (int i = 0; i < arguments.length; i++) {
+			String arg = arguments[i];
+			if (arg.startsWith("--") && !arg.equals("--reorder") && i + 1 >= arguments.length) {
+				System.err.println(USAGE);
+				return;
+			}
+			switch (arg) {
+			case "--data":
+				dataDir = arguments[++i];
+				break;
+			case "--mode":
+				searchMode = arguments[++i];
+				break;
+			case "--depart":
+				depart = LocalTime.parse(arguments[++i]);
+				break;
+			case "--transport":
+				transportMode = arguments[++i];
+				break;
+			case "--format":
+				format = arguments[++i];
+				break;
+			case "--traffic":
+				trafficDir = arguments[++i];
+				break;
+			case "--threads":
+				threads = Integer.parseInt(arguments[++i]);
+				break;
+			case "--reorder":
+				reorder = true;
+				break;
+			default:
+				input = arg;
+			}
+		}
+		if (!(CostModel.forName(searchMode) != null || searchMode.equals("departure"))
+				|| !(transportMode.equals("car") || transportMode.equals("bike") || transportMode.equals("walking"))
+				|| !(format.equals("csv") || format.equals("ndjson")) || threads < 1) {
+			System.err.println(USAGE);
+			return;
+		}
+		if (!dataDir.endsWith("/")) {
+			dataDir += "/";
+		}
+
+		// keep stdout for results only while the graph loads
+		PrintStream stdout = System.out;
+		System.setOut(System.err);
+		RoadGraph roadGraph = new RoadGraph();
+		System.err.print(roadGraph.loadData(dataDir));
+		if (reorder) {
+			System.err.print(roadGraph.reorderAlongHilbertCurve());
+		}
+		roadGraph.getNodeGrid();
+		System.setOut(stdout);
+
+		if (searchMode.equals("departure")) {
+			System.err.println("Departing at " + depart);
+		}
+		if (trafficDir != null) {
+			try {
+				new TrafficFileFeed(roadGraph.getTraffic(), trafficDir).start();
+			} catch (IOException e) {
+				System.err.println("Failed to watch " + trafficDir + ": " + e);
+				return;
+			}
+		}
+		BatchRouter router = new BatchRouter(roadGraph, searchMode, transportMode,
+				depart.getHour() + depart.getMinute() / 60.0, format, threads);
+		long start = System.nanoTime();
+		try {
+			BufferedReader in = new BufferedReader(input.equals("-") ? new InputStreamReader(System.in)
+					: new FileReader(input), 1 << 16);
+			Writer out = new BufferedWriter(new OutputStreamWriter(stdout), 1 << 16);
+			long lines = router.run(in, out);
+			in.close();
+			double secs = (System.nanoTime() - start) / 1e9;
+			System.err.printf("Routed %,d lines in %.2fs (%,.0f/s) on %d threads%n", lines, secs, lines / secs,
+					threads);
+			System.err.print(SearchMetrics.dumpAll());
+			if (trafficDir != null) {
+				System.err.print(roadGraph.getTraffic().dump());
+			}
+		} catch (IOException e) {
+			System.err.println("Batch routing failed: " + e);
+		}
+	}
+
+}
@@ -0,0 +1,320 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import utils.EdgeSearchState;
+import utils.Node;
+import utils.SearchState;
+import utils.SearchStats;
+import utils.Segment;
+
+/**
+ * CRPSearcher: A shortest route query over a customized cell overlay. The
+ * search is Dijkstra over segments; near the start and goal it follows the
+ * roads themselves, and everywhere else it crosses whole cells in one hop
+ * using their clique matrices, taking the biggest cell that contains neither
+ * end. The hops on the route found are then unpacked back into segments by
+ * small searches inside each cell.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class CRPSearcher {
+
+	private static final SearchMetrics metrics = SearchMetrics.forEngine("crp");
+
+	private final Customization custom;
+	private final CellPartition partition;
+	private final EdgeSearchState state;
+	private final Node start;
+	private final Node goal;
+	private List<Segment> finalPath = new ArrayList<Segment>();
+	private List<Node> nodePath;
+	private double cost = Double.POSITIVE_INFINITY;
+	private SearchStats stats = new SearchStats();
+
+	/**
+	 * Runs a query reusing the given state, which must not be in use by any
+	 * other thread.
+	 */
+	public CRPSearcher(Node start, Node goal, EdgeSearchState state, Customization custom) {
+		this.custom = custom;
+		this.partition = custom.getPartition();
+		this.state = state;
+		this.start = start;
+		this.goal = goal;
+		SearchEvent event = new SearchEvent();
+		event.begin();
+		stats.start();
+		search();
+		stats.stop();
+		metrics.record(stats);
+		if (event.shouldCommit()) {
+			event.engine = "crp";
+			event.settled = stats.getSettled();
+			event.pathLength = nodePath == null ? 0 : nodePath.size();
+			event.commit();
+		}
+	}
+
+	private void search() {
+		if (start == goal) {
+			nodePath = new ArrayList<Node>();
+			nodePath.add(start);
+			cost = 0;
+			return;
+		}
+		state.reset();
+		for (Segment s : custom.getModeGraph().getOut(start)) {
+			float w = custom.getWeight(s.getID());
+			if (w == Float.POSITIVE_INFINITY) {
+				stats.filterEdge();
+			} else if (state.relax(s.getID(), w, -1, -1, w)) {
+				stats.push();
+			}
+		}
+		int last = -1;
+		while (!state.isEmpty()) {
+			int seg = state.pop();
+			stats.pop();
+			if (state.isSettled(seg)) {
+				stats.stalePop();
+				continue;
+			}
+			stats.settle();
+			state.settle(seg);
+			Segment s = partition.getGraph().getSegment(seg);
+			Node node = s.getEndNode();
+			if (node == goal) {
+				last = seg;
+				break;
+			}
+			double costToHere = state.getCost(seg);
+			int level = queryLevel(node);
+			if (level >= 0) {
+				custom.relaxClique(state, level, s, costToHere, level);
+				continue;
+			}
+			for (Segment next : custom.getModeGraph().getOut(node)) {
+				float w = custom.getWeight(next.getID());
+				if (w == Float.POSITIVE_INFINITY) {
+					stats.filterEdge();
+					continue;
+				}
+				stats.restrictionCheck();
+				if (custom.isAllowed(s, next) && state.relax(next.getID(), costToHere + w, seg, -1, costToHere + w)) {
+					stats.push();
+				}
+			}
+		}
+		if (last >= 0) {
+			cost = state.getCost(last);
+			buildPath(last);
+		}
+	}
+
+	/**
+	 * @return the highest level on which the node's cell holds neither the
+	 *         start nor the goal, or -1 if there is none and the roads out of
+	 *         it must be followed one by one
+	 */
+	private int queryLevel(Node node) {
+		for (int l = partition.getLevels() - 1; l >= 0; l--) {
+			int cell = partition.getCell(l, node);
+			if (cell != partition.getCell(l, start) && cell != partition.getCell(l, goal)) {
+				return l;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Walks the parents back from the last segment, then replaces each cell
+	 * hop with the segments it stands for.
+	 */
+	private void buildPath(int last) {
+		List<int[]> hops = new ArrayList<int[]>();
+		for (int seg = last; seg >= 0; seg = state.getParent(seg)) {
+			hops.add(new int[] { seg, state.getHopLevel(seg), state.getParent(seg) });
+		}
+		Collections.reverse(hops);
+		for (int[] hop : hops) {
+			if (hop[1] >= 0) {
+				unpack(hop[1], hop[2], hop[0]);
+			} else {
+				finalPath.add(partition.getGraph().getSegment(hop[0]));
+			}
+		}
+		nodePath = new ArrayList<Node>(finalPath.size() + 1);
+		nodePath.add(start);
+		for (Segment s : finalPath) {
+			nodePath.add(s.getEndNode());
+		}
+	}
+
+	/**
+	 * Finds the best segments from the end of the entry segment to the end of
+	 * the exit segment without leaving the entry's cell on the given level,
+	 * and appends them to the route (the entry itself is already there).
+	 */
+	private void unpack(int level, int entry, int exit) {
+		int cell = partition.getCell(level, partition.getGraph().getSegment(entry).getEndNode());
+		state.reset();
+		state.relax(entry, 0, -1, -1, 0);
+		while (!state.isEmpty()) {
+			int seg = state.pop();
+			if (state.isSettled(seg)) {
+				continue;
+			}
+			state.settle(seg);
+			if (seg == exit) {
+				break;
+			}
+			Segment s = partition.getGraph().getSegment(seg);
+			if (seg != entry && partition.getCell(level, s.getEndNode()) != cell) {
+				continue;
+			}
+			double costToHere = state.getCost(seg);
+			for (Segment next : custom.getModeGraph().getOut(s.getEndNode())) {
+				float w = custom.getWeight(next.getID());
+				if (w != Float.POSITIVE_INFINITY && custom.isAllowed(s, next)) {
+					state.relax(next.getID(), costToHere + w, seg, -1, costToHere + w);
+				}
+			}
+		}
+		List<Segment> inside = new ArrayList<Segment>();
+		for (int seg = exit; seg != entry; seg = state.getParent(seg)) {
+			inside.add(partition.getGraph().getSegment(seg));
+		}
+		Collections.reverse(inside);
+		finalPath.addAll(inside);
+	}
+
+	/**
+	 * @return the segments along the route, empty if there is no route
+	 */
+	public List<Segment> getFinalPath() {
+		return finalPath;
+	}
+
+	public List<Node> getNodePath() {
+		return nodePath;
+	}
+
+	/**
+	 * @return the cost of the route in the units of the weights, or infinity
+	 *         if there is no route
+	 */
+	public double getCost() {
+		return cost;
+	}
+
+	public SearchStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Benchmark: partitions and customizes the graph in the given directory,
+	 * then checks random queries against Searcher and times them. Finally
+	 * closes 100 segments around one place, as roadworks would, and times bringing the time customization up to date,
+	 * checking it against customizing from scratch.
+	 */
+	public static void main(String[] arguments) {
+		String dataDir = arguments.length > 0 ? arguments[0] : "../graph-data/";
+		int queries = arguments.length > 1 ? Integer.parseInt(arguments[1]) : 1000;
+		RoadGraph graph = new RoadGraph();
+		System.out.print(graph.loadData(dataDir));
+
+		long t0 = System.nanoTime();
+		CellPartition partition = new CellPartition(graph, new int[] { 128, 1024, 8192 });
+		System.out.printf("Partitioned in %.2fs%n%s", (System.nanoTime() - t0) / 1e9, partition);
+		for (CostModel model : new CostModel[] { CostModel.DISTANCE, CostModel.TIME }) {
+			String mode = model.getName();
+			t0 = System.nanoTime();
+			Customization custom = new Customization(partition, model, "car");
+			System.out.printf("Customized for %s in %.3fs%n", mode, (System.nanoTime() - t0) / 1e9);
+
+			Random random = new Random(42);
+			EdgeSearchState edgeState = new EdgeSearchState(graph.numSegments());
+			SearchState nodeState = new SearchState(graph.numNodes());
+			int mismatches = 0;
+			long crpNanos = 0;
+			for (int i = 0; i < queries; i++) {
+				Node from = graph.getNode(random.nextInt(graph.numNodes()));
+				Node to = graph.getNode(random.nextInt(graph.numNodes()));
+				long q = System.nanoTime();
+				CRPSearcher crp = new CRPSearcher(from, to, edgeState, custom);
+				crpNanos += System.nanoTime() - q;
+				if (mode.equals("distance")) {
+					Searcher astar = new Searcher(from, to, nodeState, graph, mode, "car", 0);
+					// node based A* can miss routes that need a u-turn around a
+					// restriction, so it is only an upper bound
+					if (crp.getCost() > astar.getCost() + 1e-3) {
+						mismatches++;
+					}
+				}
+			}
+			System.out.printf("%,d %s queries, mean %.3f ms, %d worse than A*%n", queries, mode,
+					crpNanos / 1e6 / queries, mismatches);
+		}
+		closeRoads(graph, partition, 100, queries);
+		System.out.print(SearchMetrics.dumpAll());
+	}
+
+	private static void closeRoads(RoadGraph graph, CellPartition partition, int closures, int queries) {
+		Customization custom = new Customization(partition, CostModel.TIME, "car");
+		Random random = new Random(7);
+		TrafficManager.Batch batch = graph.getTraffic().newBatch();
+		// the segments nearest a random node, breadth first
+		List<Node> queue = new ArrayList<Node>();
+		Set<Node> seen = new HashSet<Node>();
+		queue.add(graph.getNode(random.nextInt(graph.numNodes())));
+		seen.add(queue.get(0));
+		for (int i = 0; i < queue.size() && batch.size() < closures; i++) {
+			for (Segment s : custom.getModeGraph().getOut(queue.get(i))) {
+				if (batch.size() < closures) {
+					batch.close(s);
+				}
+				if (seen.add(s.getEndNode())) {
+					queue.add(s.getEndNode());
+				}
+			}
+		}
+		long t0 = System.nanoTime();
+		graph.getTraffic().publish(batch);
+		long t1 = System.nanoTime();
+		graph.getWeights(CostModel.TIME, "car");
+		long t2 = System.nanoTime();
+		Customization updated = custom.update();
+		long t3 = System.nanoTime();
+		Customization full = new Customization(partition, CostModel.TIME, "car");
+		long t4 = System.nanoTime();
+		int cells = 0;
+		for (int l = 0; l < partition.getLevels(); l++) {
+			cells += partition.getNumCells(l);
+		}
+		System.out.printf("Closed %d segments: published in %.3f ms, weights in %.3f ms, "
+				+ "%,d of %,d cells customized again in %.3f ms (all of them %.3f ms)%n", batch.size(),
+				(t1 - t0) / 1e6, (t2 - t1) / 1e6, updated.getCellsCustomized(), cells, (t3 - t2) / 1e6,
+				(t4 - t3) / 1e6);
+
+		EdgeSearchState state = new EdgeSearchState(graph.numSegments());
+		int mismatches = 0;
+		for (int i = 0; i < queries; i++) {
+			Node from = graph.getNode(random.nextInt(graph.numNodes()));
+			Node to = graph.getNode(random.nextInt(graph.numNodes()));
+			double a = new CRPSearcher(from, to, state, updated).getCost();
+			double b = new CRPSearcher(from, to, state, full).getCost();
+			if (a != b && Math.abs(a - b) > 1e-6) {
+				mismatches++;
+			}
+		}
+		System.out.printf("%,d queries after closing, %d differ from a full customization%n", queries, mismatches);
+	}
+
+}
@@ -0,0 +1,248 @@
+package main;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import utils.Location;
+import utils.Node;
+import utils.Segment;
+
+/**
+ * CellPartition: The metric-independent half of Customizable Route Planning. The
+ * nodes are split into nested cells on several levels by recursive bisection,
+ * level 0 having the smallest cells, and each cell's boundary is recorded: the
+ * segments entering it from outside (entries) and the segments leaving it
+ * (exits). A segment that crosses a boundary on one level also crosses it on
+ * every level below.
+ *
+ * None of this depends on road speeds, lengths or transport mode, so it is
+ * built once and shared by every Customization.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class CellPartition {
+
+	/**
+	 * Bisector: A way of splitting a group of nodes in two.
+	 */
+	public interface Bisector {
+
+		/**
+		 * Reorders order[from..to) so that the two halves are
+		 * order[from..mid) and order[mid..to), and returns mid, which must be
+		 * strictly between from and to.
+		 *
+		 * @param order
+		 *            node indexes
+		 */
+		public int split(RoadGraph graph, int[] order, int from, int to);
+
+	}
+
+	/**
+	 * MedianBisector: Splits at the median of whichever of x or y has the
+	 * wider spread, giving equal halves but taking no notice of the roads.
+	 */
+	public static class MedianBisector implements Bisector {
+
+		public int split(final RoadGraph graph, int[] order, int from, int to) {
+			double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+			double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+			for (int i = from; i < to; i++) {
+				Location loc = graph.getNode(order[i]).getLoc();
+				minX = Math.min(minX, loc.x);
+				maxX = Math.max(maxX, loc.x);
+				minY = Math.min(minY, loc.y);
+				maxY = Math.max(maxY, loc.y);
+			}
+			final boolean byX = maxX - minX >= maxY - minY;
+			Integer[] range = new Integer[to - from];
+			for (int i = from; i < to; i++) {
+				range[i - from] = order[i];
+			}
+			Arrays.sort(range, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					Location la = graph.getNode(a).getLoc();
+					Location lb = graph.getNode(b).getLoc();
+					int c = byX ? Double.compare(la.x, lb.x) : Double.compare(la.y, lb.y);
+					return c != 0 ? c : Integer.compare(a, b);
+				}
+			});
+			for (int i = from; i < to; i++) {
+				order[i] = range[i - from];
+			}
+			return from + (to - from) / 2;
+		}
+
+	}
+
+	private final RoadGraph graph;
+	private final int[] maxCellSizes;
+	private final Bisector bisector;
+	private final int levels;
+
+	// [level][node index] -> cell
+	private final int[][] cellOf;
+	private final int[] numCells;
+
+	// [level][cell] -> segment IDs crossing into / out of the cell
+	private int[][][] entries;
+	private int[][][] exits;
+	// [level][segment ID] -> position in its cell's entries / exits, or -1
+	private int[][] entryIndex;
+	private int[][] exitIndex;
+
+	/**
+	 * Partitions the graph with median bisection.
+	 *
+	 * @param maxCellSizes
+	 *            the most nodes a cell may hold on each level, smallest (level
+	 *            0) first
+	 */
+	public CellPartition(RoadGraph graph, int[] maxCellSizes) {
+		this(graph, maxCellSizes, new MedianBisector());
+	}
+
+	public CellPartition(RoadGraph graph, int[] maxCellSizes, Bisector bisector) {
+		this.graph = graph;
+		this.maxCellSizes = maxCellSizes.clone();
+		this.bisector = bisector;
+		this.levels = maxCellSizes.length;
+		int n = graph.numNodes();
+		cellOf = new int[levels][n];
+		numCells = new int[levels];
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		assign(order, 0, n, levels - 1);
+		buildBoundaries();
+	}
+
+	/**
+	 * Gives the nodes in order[from..to) their cells on the given level and
+	 * below, splitting the range until it is small enough.
+	 */
+	private void assign(int[] order, int from, int to, int level) {
+		while (level >= 0 && to - from <= maxCellSizes[level]) {
+			int cell = numCells[level]++;
+			for (int i = from; i < to; i++) {
+				cellOf[level][order[i]] = cell;
+			}
+			level--;
+		}
+		if (level < 0) {
+			return;
+		}
+		int mid = bisector.split(graph, order, from, to);
+		assign(order, from, mid, level);
+		assign(order, mid, to, level);
+	}
+
+	private void buildBoundaries() {
+		int m = graph.numSegments();
+		entries = new int[levels][][];
+		exits = new int[levels][][];
+		entryIndex = new int[levels][m];
+		exitIndex = new int[levels][m];
+		for (int l = 0; l < levels; l++) {
+			int[] entryCount = new int[numCells[l]];
+			int[] exitCount = new int[numCells[l]];
+			Arrays.fill(entryIndex[l], -1);
+			Arrays.fill(exitIndex[l], -1);
+			for (int s = 0; s < m; s++) {
+				Segment seg = graph.getSegment(s);
+				int from = cellOf[l][seg.getStartNode().getIndex()];
+				int to = cellOf[l][seg.getEndNode().getIndex()];
+				if (from != to) {
+					exitIndex[l][s] = exitCount[from]++;
+					entryIndex[l][s] = entryCount[to]++;
+				}
+			}
+			entries[l] = new int[numCells[l]][];
+			exits[l] = new int[numCells[l]][];
+			for (int c = 0; c < numCells[l]; c++) {
+				entries[l][c] = new int[entryCount[c]];
+				exits[l][c] = new int[exitCount[c]];
+			}
+			for (int s = 0; s < m; s++) {
+				if (exitIndex[l][s] >= 0) {
+					Segment seg = graph.getSegment(s);
+					exits[l][cellOf[l][seg.getStartNode().getIndex()]][exitIndex[l][s]] = s;
+					entries[l][cellOf[l][seg.getEndNode().getIndex()]][entryIndex[l][s]] = s;
+				}
+			}
+		}
+	}
+
+	public RoadGraph getGraph() {
+		return graph;
+	}
+
+	public int getLevels() {
+		return levels;
+	}
+
+	public int getNumCells(int level) {
+		return numCells[level];
+	}
+
+	public int getCell(int level, Node node) {
+		return cellOf[level][node.getIndex()];
+	}
+
+	public int[] getEntries(int level, int cell) {
+		return entries[level][cell];
+	}
+
+	public int[] getExits(int level, int cell) {
+		return exits[level][cell];
+	}
+
+	/**
+	 * @return where the segment is in the entries of the cell it enters on
+	 *         this level, -1 if it does not cross a boundary there
+	 */
+	public int getEntryIndex(int level, int segment) {
+		return entryIndex[level][segment];
+	}
+
+	public int getExitIndex(int level, int segment) {
+		return exitIndex[level][segment];
+	}
+
+	/**
+	 * @return the number of segments crossing a cell boundary on the level
+	 */
+	public int getCutSize(int level) {
+		int cut = 0;
+		for (int c = 0; c < numCells[level]; c++) {
+			cut += exits[level][c].length;
+		}
+		return cut;
+	}
+
+	/**
+	 * @return the largest cell on the level divided by the average cell, ie 1
+	 *         for perfectly even cells
+	 */
+	public double getImbalance(int level) {
+		int[] sizes = new int[numCells[level]];
+		int max = 0;
+		for (int i = 0; i < cellOf[level].length; i++) {
+			max = Math.max(max, ++sizes[cellOf[level][i]]);
+		}
+		return max / ((double) cellOf[level].length / numCells[level]);
+	}
+
+	public String toString() {
+		StringBuilder b = new StringBuilder();
+		for (int l = 0; l < levels; l++) {
+			b.append(String.format("level %d: %,d cells of at most %,d nodes, %,d boundary segments, imbalance %.2f%n",
+					l, numCells[l], maxCellSizes[l], getCutSize(l), getImbalance(l)));
+		}
+		return b.toString();
+	}
+
+}
@@ -0,0 +1,376 @@
+package main;
+
+import java.util.Arrays;
+
+import utils.IntMinHeap;
+import utils.ModeGraph;
+import utils.Node;
+import utils.Segment;
+
+/**
+ * ContractionHierarchy: Ranks the nodes of a transport mode's graph by
+ * importance and contracts them from least to most important. Contracting a
+ * node takes it out of the graph, adding a shortcut between each pair of its
+ * remaining neighbours for which the route through it is the only shortest
+ * one (no witness route is found around it by a small local search).
+ *
+ * The hierarchy is the arcs each node had left to more important nodes when it
+ * was contracted, original segments and shortcuts together, with the cheapest
+ * weight between any pair. A shortest route can always be found going up the
+ * ranks then down them over these arcs, which is what OneToAll relies on.
+ *
+ * The next node to contract is the one with the smallest edge difference
+ * (shortcuts added less arcs removed) plus the number of its neighbours
+ * already contracted, which spreads contraction evenly over the map.
+ * Priorities are brought up to date lazily as nodes come off the queue.
+ *
+ * The hierarchy is node based, so it does not see turn restrictions.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class ContractionHierarchy {
+
+	// nodes a witness search may settle before giving up and adding the
+	// shortcut anyway, when only estimating a priority and when contracting
+	private static final int PRIORITY_SETTLE_LIMIT = 10;
+	private static final int WITNESS_SETTLE_LIMIT = 500;
+
+	private final int numNodes;
+	// order of contraction, by node index
+	private final int[] rank;
+	private int[] arcTail = new int[64];
+	private int[] arcHead = new int[64];
+	private float[] arcWeight = new float[64];
+	private int numArcs;
+	private int shortcuts;
+
+	// the graph as it is while contracting: out and in arcs of every node;
+	// a contracted node keeps its own but is taken out of everyone else's
+	private int[][] outTo;
+	private float[][] outWeight;
+	private int[] outSize;
+	private int[][] inFrom;
+	private float[][] inWeight;
+	private int[] inSize;
+	private boolean[] contracted;
+	private int[] contractedNeighbours;
+	private int[] lastUpdate; // the contraction each node was last updated for
+
+	// witness search state, reset lazily by round
+	private final float[] witnessCost;
+	private final int[] witnessRound;
+	private int round;
+	private final IntMinHeap witnessHeap;
+
+	/**
+	 * Contracts the graph of a transport mode under the given weights.
+	 *
+	 * @param weights
+	 *            the cost of each segment by Segment.getID(), infinite for
+	 *            segments that may not be used
+	 */
+	public ContractionHierarchy(RoadGraph graph, ModeGraph modeGraph, float[] weights) {
+		numNodes = graph.numNodes();
+		rank = new int[numNodes];
+		outTo = new int[numNodes][];
+		outWeight = new float[numNodes][];
+		outSize = new int[numNodes];
+		inFrom = new int[numNodes][];
+		inWeight = new float[numNodes][];
+		inSize = new int[numNodes];
+		contracted = new boolean[numNodes];
+		contractedNeighbours = new int[numNodes];
+		lastUpdate = new int[numNodes];
+		witnessCost = new float[numNodes];
+		witnessRound = new int[numNodes];
+		witnessHeap = new IntMinHeap(64);
+		for (int i = 0; i < numNodes; i++) {
+			outTo[i] = new int[4];
+			outWeight[i] = new float[4];
+			inFrom[i] = new int[4];
+			inWeight[i] = new float[4];
+		}
+		for (int i = 0; i < numNodes; i++) {
+			for (Segment s : modeGraph.getOut(graph.getNode(i))) {
+				float w = weights[s.getID()];
+				int head = s.getEndNode().getIndex();
+				if (w != Float.POSITIVE_INFINITY && head != i) {
+					addArc(i, head, w);
+				}
+			}
+		}
+		contractAll();
+		// free the working graph
+		outTo = inFrom = null;
+		outWeight = inWeight = null;
+		arcTail = Arrays.copyOf(arcTail, numArcs);
+		arcHead = Arrays.copyOf(arcHead, numArcs);
+		arcWeight = Arrays.copyOf(arcWeight, numArcs);
+	}
+
+	/**
+	 * Contracts with the weights of a cost model for a transport mode, without
+	 * traffic.
+	 */
+	public ContractionHierarchy(RoadGraph graph, CostModel model, String transportMode) {
+		this(graph, graph.getModeGraph(transportMode), graph.getWeights(model, transportMode));
+	}
+
+	private void contractAll() {
+		IntMinHeap queue = new IntMinHeap(numNodes);
+		double[] priority = new double[numNodes];
+		for (int v = 0; v < numNodes; v++) {
+			priority[v] = priority(v);
+			queue.push(v, priority[v]);
+		}
+		int next = 0;
+		while (!queue.isEmpty()) {
+			double key = queue.peekKey();
+			int v = queue.pop();
+			if (contracted[v] || key != priority[v]) {
+				// stale
+				continue;
+			}
+			// the priority may have grown since it was pushed
+			double now = priority(v);
+			if (!queue.isEmpty() && now > queue.peekKey()) {
+				priority[v] = now;
+				queue.push(v, now);
+				continue;
+			}
+			rank[v] = next++;
+			contract(v);
+			for (int k = 0; k < inSize[v]; k++) {
+				updateNeighbour(inFrom[v][k], next, queue, priority);
+			}
+			for (int k = 0; k < outSize[v]; k++) {
+				updateNeighbour(outTo[v][k], next, queue, priority);
+			}
+		}
+	}
+
+	/**
+	 * Counts a neighbour's newly contracted neighbour and works out its
+	 * priority again, once per contraction however many arcs join them.
+	 */
+	private void updateNeighbour(int u, int contraction, IntMinHeap queue, double[] priority) {
+		if (contracted[u] || lastUpdate[u] == contraction) {
+			return;
+		}
+		lastUpdate[u] = contraction;
+		contractedNeighbours[u]++;
+		priority[u] = priority(u);
+		queue.push(u, priority[u]);
+	}
+
+	private double priority(int v) {
+		return shortcutsFor(v, false) - inSize[v] - outSize[v] + contractedNeighbours[v];
+	}
+
+	/**
+	 * Takes a node out of the graph, recording its arcs to the nodes left and
+	 * adding the shortcuts it needs.
+	 */
+	private void contract(int v) {
+		for (int k = 0; k < inSize[v]; k++) {
+			record(inFrom[v][k], v, inWeight[v][k]);
+		}
+		for (int k = 0; k < outSize[v]; k++) {
+			record(v, outTo[v][k], outWeight[v][k]);
+		}
+		shortcuts += shortcutsFor(v, true);
+		contracted[v] = true;
+		// take it out of its neighbours' lists, so they stay short
+		for (int k = 0; k < inSize[v]; k++) {
+			removeOut(inFrom[v][k], v);
+		}
+		for (int k = 0; k < outSize[v]; k++) {
+			removeIn(outTo[v][k], v);
+		}
+	}
+
+	private void removeOut(int tail, int head) {
+		for (int k = 0; k < outSize[tail]; k++) {
+			if (outTo[tail][k] == head) {
+				int last = --outSize[tail];
+				outTo[tail][k] = outTo[tail][last];
+				outWeight[tail][k] = outWeight[tail][last];
+				return;
+			}
+		}
+	}
+
+	private void removeIn(int head, int tail) {
+		for (int k = 0; k < inSize[head]; k++) {
+			if (inFrom[head][k] == tail) {
+				int last = --inSize[head];
+				inFrom[head][k] = inFrom[head][last];
+				inWeight[head][k] = inWeight[head][last];
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Works out which shortcuts contracting a node needs, adding them if
+	 * asked to.
+	 *
+	 * @return the number of shortcuts
+	 */
+	private int shortcutsFor(int v, boolean add) {
+		float maxOut = 0;
+		for (int k = 0; k < outSize[v]; k++) {
+			maxOut = Math.max(maxOut, outWeight[v][k]);
+		}
+		int count = 0;
+		for (int i = 0; i < inSize[v]; i++) {
+			int u = inFrom[v][i];
+			float toV = inWeight[v][i];
+			witnessSearch(u, v, toV + maxOut, add ? WITNESS_SETTLE_LIMIT : PRIORITY_SETTLE_LIMIT);
+			for (int k = 0; k < outSize[v]; k++) {
+				int x = outTo[v][k];
+				if (x == u) {
+					continue;
+				}
+				float via = toV + outWeight[v][k];
+				if (witnessRound[x] != round || witnessCost[x] > via) {
+					count++;
+					if (add) {
+						addArc(u, x, via);
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Dijkstra from a node over the nodes not yet contracted, avoiding the
+	 * one being contracted, as far as the cost limit or until settleLimit
+	 * nodes are settled.
+	 */
+	private void witnessSearch(int source, int avoid, float limit, int settleLimit) {
+		round++;
+		witnessHeap.clear();
+		witnessRound[source] = round;
+		witnessCost[source] = 0;
+		witnessHeap.push(source, 0);
+		int settled = 0;
+		while (!witnessHeap.isEmpty() && settled < settleLimit) {
+			double key = witnessHeap.peekKey();
+			int u = witnessHeap.pop();
+			if (key > limit) {
+				break;
+			}
+			if (key > witnessCost[u]) {
+				continue;
+			}
+			settled++;
+			for (int k = 0; k < outSize[u]; k++) {
+				int x = outTo[u][k];
+				if (x == avoid) {
+					continue;
+				}
+				float c = witnessCost[u] + outWeight[u][k];
+				if (witnessRound[x] != round || c < witnessCost[x]) {
+					witnessRound[x] = round;
+					witnessCost[x] = c;
+					witnessHeap.push(x, c);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds an arc to the working graph, or lowers the weight of the one
+	 * already there.
+	 */
+	private void addArc(int tail, int head, float w) {
+		for (int k = 0; k < outSize[tail]; k++) {
+			if (outTo[tail][k] == head) {
+				if (w < outWeight[tail][k]) {
+					outWeight[tail][k] = w;
+					for (int j = 0; j < inSize[head]; j++) {
+						if (inFrom[head][j] == tail) {
+							inWeight[head][j] = w;
+						}
+					}
+				}
+				return;
+			}
+		}
+		if (outSize[tail] == outTo[tail].length) {
+			outTo[tail] = Arrays.copyOf(outTo[tail], 2 * outSize[tail]);
+			outWeight[tail] = Arrays.copyOf(outWeight[tail], 2 * outSize[tail]);
+		}
+		outTo[tail][outSize[tail]] = head;
+		outWeight[tail][outSize[tail]++] = w;
+		if (inSize[head] == inFrom[head].length) {
+			inFrom[head] = Arrays.copyOf(inFrom[head], 2 * inSize[head]);
+			inWeight[head] = Arrays.copyOf(inWeight[head], 2 * inSize[head]);
+		}
+		inFrom[head][inSize[head]] = tail;
+		inWeight[head][inSize[head]++] = w;
+	}
+
+	private void record(int tail, int head, float w) {
+		if (numArcs == arcTail.length) {
+			arcTail = Arrays.copyOf(arcTail, 2 * numArcs);
+			arcHead = Arrays.copyOf(arcHead, 2 * numArcs);
+			arcWeight = Arrays.copyOf(arcWeight, 2 * numArcs);
+		}
+		arcTail[numArcs] = tail;
+		arcHead[numArcs] = head;
+		arcWeight[numArcs++] = w;
+	}
+
+	public int numNodes() {
+		return numNodes;
+	}
+
+	/**
+	 * @return the place of a node, by index, in the order of contraction;
+	 *         higher is more important
+	 */
+	public int getRank(int node) {
+		return rank[node];
+	}
+
+	/**
+	 * @return the number of arcs in the hierarchy
+	 */
+	public int numArcs() {
+		return numArcs;
+	}
+
+	/**
+	 * @return the index of the node an arc leaves
+	 */
+	public int getTail(int arc) {
+		return arcTail[arc];
+	}
+
+	/**
+	 * @return the index of the node an arc goes to
+	 */
+	public int getHead(int arc) {
+		return arcHead[arc];
+	}
+
+	public float getWeight(int arc) {
+		return arcWeight[arc];
+	}
+
+	/**
+	 * @return the number of arcs that are shortcuts
+	 */
+	public int numShortcuts() {
+		return shortcuts;
+	}
+
+	public String toString() {
+		return String.format("%,d nodes contracted, %,d arcs of which %,d shortcuts", numNodes, numArcs, shortcuts);
+	}
+
+}
@@ -0,0 +1,168 @@
+package main;
+
+import java.util.List;
+
+import utils.Road;
+import utils.Segment;
+import utils.TrafficSnapshot;
+
+/**
+ * CostModel: What a search minimises, as a cost for each segment. A model is
+ * compiled once into a flat array of segment weights indexed by
+ * Segment.getID(), with the segments the transport mode may not use (and
+ * closed segments) set to infinity, so a search loop only ever reads one
+ * float per segment and never looks at the road, the transport mode or the
+ * model again. RoadGraph.getWeights() keeps the compiled arrays.
+ *
+ * Each model also gives the least it can cost to cover a kilometre, which
+ * times the straight line distance is a lower bound for A*.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public abstract class CostModel {
+
+	/** Kilometres */
+	public static final CostModel DISTANCE = new CostModel("distance", 1) {
+		protected double cost(Segment s, TrafficSnapshot traffic) {
+			return s.getLength();
+		}
+	};
+
+	/** Hours at the speed limit, or the live traffic speed */
+	public static final CostModel TIME = new CostModel("time", 1.0 / Road.MAX_SPEED_LIMIT) {
+		protected double cost(Segment s, TrafficSnapshot traffic) {
+			return s.getLength() / traffic.speedOf(s);
+		}
+	};
+
+	// by road class, residential to major highway
+	private static final double[] ARTERIAL_FACTORS = { 1.5, 1.2, 1.0, 0.9, 0.85 };
+
+	/**
+	 * Hours, but with minor roads made to look slower and highways faster, so
+	 * routes keep to the main roads unless a side road saves a lot
+	 */
+	public static final CostModel PREFER_ARTERIALS = new CostModel("arterial", 0.85 / Road.MAX_SPEED_LIMIT) {
+		protected double cost(Segment s, TrafficSnapshot traffic) {
+			return s.getLength() / traffic.speedOf(s) * classFactor(ARTERIAL_FACTORS, s.getRoad());
+		}
+	};
+
+	// by road class, residential to major highway
+	private static final double[] COMFORT_FACTORS = { 1.0, 1.15, 1.5, 2.5, 3.0 };
+
+	/**
+	 * Kilometres, with busier and faster roads counted as longer, so a cyclist
+	 * goes a little out of the way to stay on quiet streets
+	 */
+	public static final CostModel CYCLIST_COMFORT = new CostModel("comfort", 1) {
+		protected double cost(Segment s, TrafficSnapshot traffic) {
+			double factor = classFactor(COMFORT_FACTORS, s.getRoad());
+			if (traffic.speedOf(s) > 60) {
+				factor *= 1.3;
+			}
+			return s.getLength() * factor;
+		}
+	};
+
+	private static final CostModel[] MODELS = { DISTANCE, TIME, PREFER_ARTERIALS, CYCLIST_COMFORT };
+
+	private final String name;
+	private final double minCostPerKm;
+
+	protected CostModel(String name, double minCostPerKm) {
+		this.name = name;
+		this.minCostPerKm = minCostPerKm;
+	}
+
+	/**
+	 * @return the cost of using the segment, at least minCostPerKm times its
+	 *         length
+	 */
+	protected abstract double cost(Segment s, TrafficSnapshot traffic);
+
+	private static double classFactor(double[] factors, Road road) {
+		int c = road.getRoadclass();
+		return factors[Math.max(0, Math.min(factors.length - 1, c))];
+	}
+
+	/**
+	 * @return the model with the given name, or null if there is none
+	 */
+	public static CostModel forName(String name) {
+		for (CostModel model : MODELS) {
+			if (model.name.equals(name)) {
+				return model;
+			}
+		}
+		return null;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return a lower bound on the cost per kilometre of straight line
+	 *         distance
+	 */
+	public double getMinCostPerKm() {
+		return minCostPerKm;
+	}
+
+	/**
+	 * Works out the weight of every segment for the transport mode and
+	 * traffic.
+	 *
+	 * @param segments
+	 *            every segment, each with a distinct ID below numSegments
+	 */
+	public float[] compile(Iterable<Segment> segments, int numSegments, String transportMode,
+			TrafficSnapshot traffic) {
+		float[] weights = new float[numSegments];
+		for (Segment s : segments) {
+			weights[s.getID()] = weight(s, transportMode, traffic);
+		}
+		return weights;
+	}
+
+	/**
+	 * Works out the weights again after a traffic change, for the changed
+	 * segments only.
+	 *
+	 * @param weights
+	 *            the weights before the change, which are left as they are
+	 * @param changed
+	 *            the IDs of the segments whose traffic changed
+	 * @return a copy of the weights with the changed segments worked out again
+	 */
+	public float[] recompile(float[] weights, int[] changed, List<Segment> segments, String transportMode,
+			TrafficSnapshot traffic) {
+		float[] ans = weights.clone();
+		for (int id : changed) {
+			ans[id] = weight(segments.get(id), transportMode, traffic);
+		}
+		return ans;
+	}
+
+	private float weight(Segment s, String transportMode, TrafficSnapshot traffic) {
+		if (!s.isFor(transportMode) || traffic.isClosed(s)) {
+			return Float.POSITIVE_INFINITY;
+		}
+		return (float) cost(s, traffic);
+	}
+
+	/**
+	 * Works out the weight of every segment of the graph with its current
+	 * traffic. Use RoadGraph.getWeights() to share the result.
+	 */
+	public float[] compile(RoadGraph graph, String transportMode) {
+		return compile(graph.getSegments(), graph.numSegments(), transportMode, graph.getTraffic().getSnapshot());
+	}
+
+	public String toString() {
+		return name;
+	}
+
+}
@@ -0,0 +1,300 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import utils.EdgeSearchState;
+import utils.ModeGraph;
+import utils.Node;
+import utils.Segment;
+import utils.TrafficSnapshot;
+import utils.TurnRestrictions;
+
+/**
+ * Customization: The metric-dependent half of Customizable Route Planning. For
+ * one weight per segment it works out, for every cell of a CellPartition, the
+ * cost of crossing the cell from each of its entries to each of its exits (the
+ * cell's clique matrix). Level 0 cliques come from searches over the segments
+ * inside the cell, and the cliques of each higher level from searches over the
+ * cliques of the level below, so the work per cell stays small. Cells on the
+ * same level are independent and are customized in parallel.
+ *
+ * A customization for a cost model can be brought up to date with the traffic
+ * by update(). A segment's weight only counts towards the cliques of the cells
+ * holding its start node, one on each level, so only those cells are
+ * customized again; the rest share their cliques with the old customization,
+ * which searches already under way go on using unchanged.
+ *
+ * Searches here and in CRPSearcher are edge based, so turn restrictions are
+ * part of every clique. A clique value is the cost from the end of the entry
+ * segment to the end of the exit segment, ie it includes the exit but not the
+ * entry. They follow the ModeGraph of the transport mode rather than the
+ * nodes' own lists, so pedestrians may use the walking only segments.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class Customization {
+
+	private final CellPartition partition;
+	private final ModeGraph modeGraph;
+	private final float[] weights;
+	private final TurnRestrictions restrictions;
+	private final int threads;
+	// [level][cell] -> entries x exits, row per entry
+	private final float[][][] cliques;
+	private int cellsCustomized;
+
+	// what the weights came from, or null if they were given
+	private final CostModel model;
+	private final String transportMode;
+	private final TrafficSnapshot traffic;
+
+	private final ThreadLocal<EdgeSearchState> states = new ThreadLocal<EdgeSearchState>() {
+		protected EdgeSearchState initialValue() {
+			return new EdgeSearchState(partition.getGraph().numSegments());
+		}
+	};
+
+	/**
+	 * Customizes the partition for the given weights.
+	 *
+	 * @param modeGraph
+	 *            the segments of the transport mode the weights are for
+	 * @param weights
+	 *            the cost of each segment by Segment.getID(), infinite for
+	 *            segments that may not be used
+	 * @param restrictions
+	 *            turns to forbid, or null to allow every turn
+	 */
+	public Customization(CellPartition partition, ModeGraph modeGraph, float[] weights, TurnRestrictions restrictions,
+			int threads) {
+		this(partition, modeGraph, weights, restrictions, threads, null, null, null, null);
+	}
+
+	/**
+	 * Customizes for a cost model and transport mode with the graph's current
+	 * traffic, using every processor.
+	 */
+	public Customization(CellPartition partition, CostModel model, String transportMode) {
+		this(partition, model, transportMode, partition.getGraph().getTraffic().getSnapshot());
+	}
+
+	private Customization(CellPartition partition, CostModel model, String transportMode, TrafficSnapshot traffic) {
+		this(partition, partition.getGraph().getModeGraph(transportMode),
+				partition.getGraph().getWeights(model, transportMode, traffic),
+				transportMode.equals("car") ? partition.getGraph().getTurnRestrictions() : null,
+				Runtime.getRuntime().availableProcessors(), model, transportMode, traffic, null);
+	}
+
+	/**
+	 * @param old
+	 *            a customization to share the cliques of unchanged cells with,
+	 *            or null to customize every cell
+	 */
+	private Customization(CellPartition partition, ModeGraph modeGraph, float[] weights,
+			TurnRestrictions restrictions, int threads, CostModel model, String transportMode, TrafficSnapshot traffic,
+			Customization old) {
+		this.partition = partition;
+		this.modeGraph = modeGraph;
+		this.weights = weights;
+		this.restrictions = restrictions;
+		this.threads = threads;
+		this.model = model;
+		this.transportMode = transportMode;
+		this.traffic = traffic;
+		this.cliques = new float[partition.getLevels()][][];
+		boolean[][] changed = old == null ? null : changedCells(old.weights);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for (int l = 0; l < partition.getLevels(); l++) {
+				customizeLevel(pool, l, old, changed == null ? null : changed[l]);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Brings a customization for a cost model up to date with the graph's
+	 * current traffic, customizing again only the cells whose segments have
+	 * changed weight. This one is left as it is.
+	 *
+	 * @return this if the traffic has not changed, otherwise the new
+	 *         customization
+	 */
+	public Customization update() {
+		if (model == null) {
+			throw new IllegalStateException("Only a customization for a cost model can be updated");
+		}
+		TrafficSnapshot now = partition.getGraph().getTraffic().getSnapshot();
+		if (now == traffic) {
+			return this;
+		}
+		return new Customization(partition, modeGraph, partition.getGraph().getWeights(model, transportMode, now),
+				restrictions, threads, model, transportMode, now, this);
+	}
+
+	/**
+	 * @return by level and cell, whether the cell holds the start of a segment
+	 *         whose weight is not the same as in the old weights
+	 */
+	private boolean[][] changedCells(float[] oldWeights) {
+		boolean[][] changed = new boolean[partition.getLevels()][];
+		for (int l = 0; l < changed.length; l++) {
+			changed[l] = new boolean[partition.getNumCells(l)];
+		}
+		for (int id = 0; id < weights.length; id++) {
+			if (Float.compare(weights[id], oldWeights[id]) != 0) {
+				Node start = partition.getGraph().getSegment(id).getStartNode();
+				for (int l = 0; l < changed.length; l++) {
+					changed[l][partition.getCell(l, start)] = true;
+				}
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * @param changed
+	 *            which cells to customize, or null for all of them; the rest
+	 *            share the cliques of old
+	 */
+	private void customizeLevel(ExecutorService pool, final int level, Customization old, boolean[] changed) {
+		int cells = partition.getNumCells(level);
+		cliques[level] = new float[cells][];
+		List<Future<?>> done = new ArrayList<Future<?>>(cells);
+		for (int c = 0; c < cells; c++) {
+			if (changed != null && !changed[c]) {
+				cliques[level][c] = old.cliques[level][c];
+				continue;
+			}
+			cellsCustomized++;
+			final int cell = c;
+			done.add(pool.submit(new Callable<Void>() {
+				public Void call() {
+					cliques[level][cell] = customizeCell(states.get(), level, cell);
+					return null;
+				}
+			}));
+		}
+		for (Future<?> f : done) {
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while customizing", e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("Customization failed", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Searches from each entry of the cell to all of its exits.
+	 */
+	private float[] customizeCell(EdgeSearchState state, int level, int cell) {
+		int[] entries = partition.getEntries(level, cell);
+		int[] exits = partition.getExits(level, cell);
+		float[] clique = new float[entries.length * exits.length];
+		Arrays.fill(clique, Float.POSITIVE_INFINITY);
+		if (exits.length == 0) {
+			return clique;
+		}
+		for (int i = 0; i < entries.length; i++) {
+			state.reset();
+			state.relax(entries[i], 0, -1, -1, 0);
+			while (!state.isEmpty()) {
+				int seg = state.pop();
+				if (state.isSettled(seg)) {
+					continue;
+				}
+				state.settle(seg);
+				double cost = state.getCost(seg);
+				Segment s = partition.getGraph().getSegment(seg);
+				if (seg != entries[i] && partition.getCell(level, s.getEndNode()) != cell) {
+					// left the cell
+					clique[i * exits.length + partition.getExitIndex(level, seg)] = (float) cost;
+					continue;
+				}
+				if (level == 0) {
+					for (Segment next : modeGraph.getOut(s.getEndNode())) {
+						float w = weights[next.getID()];
+						if (w != Float.POSITIVE_INFINITY && isAllowed(s, next)) {
+							state.relax(next.getID(), cost + w, seg, -1, cost + w);
+						}
+					}
+				} else {
+					relaxClique(state, level - 1, s, cost, -1);
+				}
+			}
+		}
+		return clique;
+	}
+
+	/**
+	 * Relaxes every exit of the cell on the given level that the segment
+	 * enters, at the cost of the clique from that entry.
+	 *
+	 * @param hopLevel
+	 *            what to record as the level of the hop
+	 */
+	void relaxClique(EdgeSearchState state, int level, Segment in, double cost, int hopLevel) {
+		int cell = partition.getCell(level, in.getEndNode());
+		int entry = partition.getEntryIndex(level, in.getID());
+		int[] exits = partition.getExits(level, cell);
+		float[] clique = cliques[level][cell];
+		int row = entry * exits.length;
+		for (int j = 0; j < exits.length; j++) {
+			float w = clique[row + j];
+			if (w != Float.POSITIVE_INFINITY) {
+				state.relax(exits[j], cost + w, in.getID(), hopLevel, cost + w);
+			}
+		}
+	}
+
+	/**
+	 * @return false if the turn from one segment into the next is restricted
+	 */
+	boolean isAllowed(Segment in, Segment out) {
+		return restrictions == null || !restrictions.isRestricted(in, out);
+	}
+
+	/**
+	 * @return the segments searches over this customization may follow
+	 */
+	public ModeGraph getModeGraph() {
+		return modeGraph;
+	}
+
+	public CellPartition getPartition() {
+		return partition;
+	}
+
+	/**
+	 * @return the number of cells, over every level, that were customized
+	 *         rather than shared with an older customization
+	 */
+	public int getCellsCustomized() {
+		return cellsCustomized;
+	}
+
+	public float getWeight(int segment) {
+		return weights[segment];
+	}
+
+	/**
+	 * @return the cost of crossing the cell from the given entry to the given
+	 *         exit, infinite if it cannot be done
+	 */
+	public float getClique(int level, int cell, int entry, int exit) {
+		return cliques[level][cell][entry * partition.getExits(level, cell).length + exit];
+	}
+
+}
@@ -0,0 +1,568 @@
+package main;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import utils.ExternalSorter;
+import utils.MappedGraph;
+import utils.Restriction;
+import utils.Road;
+import utils.Segment;
+
+/**
+ * GraphBuilder: Builds the compact binary graph that utils.MappedGraph maps,
+ * straight from the .tab files and in a fixed amount of memory however big
+ * they are. Nothing is ever held as objects; every step streams sorted
+ * records through an ExternalSorter:
+ *
+ * 1. the roads and the segments are each sorted by road ID, and joined so
+ * every segment becomes its arcs (both ways on a two way road, and a walking
+ * only arc back along a one way road, as RoadGraph does), sorted by the ID of
+ * the node they leave;
+ *
+ * 2. the nodes are sorted by ID, which numbers them, and joined with the arcs
+ * to give each its tail's number, and the node section of the file is
+ * written on the way; the arcs are sorted again by the ID of their head;
+ *
+ * 3. a second pass over the nodes gives each arc its head's number, and the
+ * arcs are sorted by tail and head number and written out with the index of
+ * each node's first arc;
+ *
+ * 4. the turn restrictions are sorted by the ID of the node they are at and
+ * written out.
+ *
+ * No more than three sorters are in use at once, so each is given a third of
+ * the memory. Segments and arcs naming a road or node that does not exist
+ * are left out and counted.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class GraphBuilder {
+
+	private static final String USAGE = "Usage: AucklandMapper --build-graph [--data dir] [--out file]"
+			+ " [--memory MB] [--tmp dir] [--check]";
+
+	private final long memoryBytes;
+	private final File tmpDirectory;
+	private final List<File> tmpFiles = new ArrayList<File>();
+
+	private long badLines;
+	private long unknownRoads;
+	private long unknownNodes;
+	private long duplicateNodes;
+	private int runs;
+
+	/**
+	 * @param memoryBytes
+	 *            the most memory to sort in, over every step
+	 * @param tmpDirectory
+	 *            where to spill sorted runs and sections of the file, or null
+	 *            for the system's temporary directory
+	 */
+	public GraphBuilder(long memoryBytes, File tmpDirectory) {
+		this.memoryBytes = memoryBytes;
+		this.tmpDirectory = tmpDirectory;
+	}
+
+	/**
+	 * Builds the graph file from the .tab files in the data directory.
+	 *
+	 * @return a report on what was built
+	 */
+	public String build(String dataDirectory, File out) throws IOException {
+		long t0 = System.nanoTime();
+		ExternalSorter roads = sorter(2);
+		ExternalSorter segments = sorter(4);
+		ExternalSorter nodes = sorter(2);
+		ExternalSorter arcsByTail = sorter(4);
+		ExternalSorter arcsByHead = sorter(4);
+		ExternalSorter arcs = sorter(3);
+		ExternalSorter restrictions = sorter(2);
+		try {
+			readRoads(new File(dataDirectory, "roadID-roadInfo.tab"), roads);
+			readSegments(new File(dataDirectory, "roadSeg-roadID-length-nodeID-nodeID-coords.tab"), segments);
+			joinRoads(roads, segments, arcsByTail);
+			finish(roads);
+			finish(segments);
+
+			readNodes(new File(dataDirectory, "nodeID-lat-lon.tab"), nodes);
+			File nodeSection = tmpFile();
+			int numNodes = numberTails(nodes, arcsByTail, arcsByHead, nodeSection);
+			finish(arcsByTail);
+			numberHeads(nodes, arcsByHead, arcs);
+			finish(nodes);
+			finish(arcsByHead);
+
+			File arcSection = tmpFile();
+			File firstArcSection = tmpFile();
+			int numArcs = writeArcs(arcs, numNodes, arcSection, firstArcSection);
+			finish(arcs);
+
+			readRestrictions(new File(dataDirectory, "restrictions.tab"), restrictions);
+			File restrictionSection = tmpFile();
+			int numRestrictions = writeRestrictions(restrictions, restrictionSection);
+			finish(restrictions);
+
+			try (FileOutputStream file = new FileOutputStream(out)) {
+				DataOutputStream header = new DataOutputStream(file);
+				MappedGraph.writeHeader(header, numNodes, numArcs, numRestrictions);
+				header.flush();
+				append(file.getChannel(), nodeSection);
+				append(file.getChannel(), arcSection);
+				append(file.getChannel(), firstArcSection);
+				append(file.getChannel(), restrictionSection);
+			}
+			return String.format("Built %s: %,d nodes, %,d arcs, %,d restrictions, %,d KB in %.2fs, sorting in %,d MB"
+					+ " (%d runs)%n  left out: %,d bad lines, %,d segments on unknown roads, %,d arcs to or from"
+					+ " unknown nodes, %,d repeated nodes%n", out, numNodes, numArcs, numRestrictions,
+					out.length() >> 10, (System.nanoTime() - t0) / 1e9, memoryBytes >> 20, runs, badLines,
+					unknownRoads, unknownNodes, duplicateNodes);
+		} finally {
+			for (ExternalSorter s : new ExternalSorter[] { roads, segments, nodes, arcsByTail, arcsByHead, arcs,
+					restrictions }) {
+				s.close();
+			}
+			for (File f : tmpFiles) {
+				f.delete();
+			}
+			tmpFiles.clear();
+		}
+	}
+
+	private ExternalSorter sorter(int width) {
+		return new ExternalSorter(width, memoryBytes / 3, tmpDirectory);
+	}
+
+	private void finish(ExternalSorter sorter) {
+		runs += sorter.numRuns();
+		sorter.close();
+	}
+
+	private File tmpFile() throws IOException {
+		File f = File.createTempFile("graph", ".section", tmpDirectory);
+		tmpFiles.add(f);
+		return f;
+	}
+
+	private static void append(FileChannel out, File section) throws IOException {
+		try (FileChannel in = new FileInputStream(section).getChannel()) {
+			long pos = 0;
+			while (pos < in.size()) {
+				pos += in.transferTo(pos, in.size() - pos, out);
+			}
+		}
+	}
+
+	/**
+	 * @return the first n tab separated fields of the line, ignoring the rest
+	 */
+	private static String[] fields(String line, int n) {
+		String[] values = new String[n];
+		int start = 0;
+		for (int i = 0; i < n; i++) {
+			int end = line.indexOf('\t', start);
+			if (end < 0) {
+				if (i < n - 1) {
+					throw new IllegalArgumentException("Too few fields: " + line);
+				}
+				end = line.length();
+			}
+			values[i] = line.substring(start, end);
+			start = end + 1;
+		}
+		return values;
+	}
+
+	/**
+	 * Sorts (road ID, attributes) by road ID.
+	 */
+	private void readRoads(File file, ExternalSorter roads) throws IOException {
+		long[] record = new long[2];
+		try (BufferedReader data = new BufferedReader(new FileReader(file), 1 << 16)) {
+			data.readLine(); // get rid of headers
+			for (String line = data.readLine(); line != null; line = data.readLine()) {
+				try {
+					record[0] = Integer.parseInt(fields(line, 1)[0]);
+					record[1] = Road.parseAttributes(line);
+				} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+					badLines++;
+					continue;
+				}
+				roads.add(record);
+			}
+		}
+	}
+
+	/**
+	 * Sorts (road ID, from node ID, to node ID, length) by road ID.
+	 */
+	private void readSegments(File file, ExternalSorter segments) throws IOException {
+		long[] record = new long[4];
+		try (BufferedReader data = new BufferedReader(new FileReader(file), 1 << 16)) {
+			data.readLine(); // get rid of headers
+			for (String line = data.readLine(); line != null; line = data.readLine()) {
+				try {
+					String[] values = fields(line, 4);
+					record[0] = Integer.parseInt(values[0]);
+					record[1] = Integer.parseInt(values[2]);
+					record[2] = Integer.parseInt(values[3]);
+					record[3] = Float.floatToIntBits(Float.parseFloat(values[1]));
+				} catch (IllegalArgumentException e) {
+					badLines++;
+					continue;
+				}
+				segments.add(record);
+			}
+		}
+	}
+
+	/**
+	 * Sorts (node ID, latitude and longitude) by node ID, the angles packed
+	 * into one long in units of MappedGraph.DEGREE_UNIT.
+	 */
+	private void readNodes(File file, ExternalSorter nodes) throws IOException {
+		long[] record = new long[2];
+		try (BufferedReader data = new BufferedReader(new FileReader(file), 1 << 16)) {
+			for (String line = data.readLine(); line != null; line = data.readLine()) {
+				try {
+					String[] values = fields(line, 3);
+					record[0] = Integer.parseInt(values[0]);
+					int lat = (int) Math.round(Double.parseDouble(values[1]) / MappedGraph.DEGREE_UNIT);
+					int lon = (int) Math.round(Double.parseDouble(values[2]) / MappedGraph.DEGREE_UNIT);
+					record[1] = (long) lat << 32 | lon & 0xffffffffL;
+				} catch (IllegalArgumentException e) {
+					badLines++;
+					continue;
+				}
+				nodes.add(record);
+			}
+		}
+	}
+
+	/**
+	 * Sorts (node ID, from and to node IDs) by the ID of the node the
+	 * restriction is at, the other two packed into one long. A missing file
+	 * has no restrictions, as RoadGraph takes it.
+	 */
+	private void readRestrictions(File file, ExternalSorter restrictions) throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		long[] record = new long[2];
+		try (BufferedReader data = new BufferedReader(new FileReader(file), 1 << 16)) {
+			data.readLine(); // get rid of headers
+			for (String line = data.readLine(); line != null; line = data.readLine()) {
+				try {
+					String[] values = fields(line, 5);
+					record[0] = Integer.parseInt(values[2]);
+					record[1] = (long) Integer.parseInt(values[0]) << 32 | Integer.parseInt(values[4]) & 0xffffffffL;
+				} catch (IllegalArgumentException e) {
+					badLines++;
+					continue;
+				}
+				restrictions.add(record);
+			}
+		}
+	}
+
+	/**
+	 * Joins the segments with their roads, adding (tail ID, head ID, road ID,
+	 * flags and length) for every arc, sorted by tail ID.
+	 */
+	private void joinRoads(ExternalSorter roads, ExternalSorter segments, ExternalSorter arcs) throws IOException {
+		long[] road = new long[2];
+		long[] seg = new long[4];
+		long[] arc = new long[4];
+		try (ExternalSorter.Reader roadReader = roads.sorted(); ExternalSorter.Reader segReader = segments.sorted()) {
+			boolean hasRoad = roadReader.next(road);
+			while (segReader.next(seg)) {
+				while (hasRoad && road[0] < seg[0]) {
+					hasRoad = roadReader.next(road);
+				}
+				if (!hasRoad || road[0] != seg[0]) {
+					unknownRoads++;
+					continue;
+				}
+				short attributes = (short) road[1];
+				long length = seg[3] & 0xffffffffL;
+				arc[0] = seg[1];
+				arc[1] = seg[2];
+				arc[2] = seg[0];
+				arc[3] = (long) (attributes & 0xffff) << 32 | length;
+				arcs.add(arc);
+				arc[0] = seg[2];
+				arc[1] = seg[1];
+				int flags = attributes & 0xffff;
+				if (Road.isOneWay(attributes)) {
+					if (!Road.isFor(attributes, "walking")) {
+						// no one may go the other way
+						continue;
+					}
+					flags |= MappedGraph.WALKING_ONLY;
+				}
+				arc[3] = (long) flags << 32 | length;
+				arcs.add(arc);
+			}
+		}
+	}
+
+	/**
+	 * Numbers the nodes in order of ID, writing the node section, and gives
+	 * each arc its tail's number, adding (head ID, tail number, road ID, flags
+	 * and length) sorted by head ID.
+	 *
+	 * @return the number of nodes
+	 */
+	private int numberTails(ExternalSorter nodes, ExternalSorter arcsByTail, ExternalSorter arcsByHead,
+			File nodeSection) throws IOException {
+		long[] node = new long[2];
+		long[] arc = new long[4];
+		long[] out = new long[4];
+		int number = 0;
+		try (ExternalSorter.Reader nodeReader = nodes.sorted();
+				ExternalSorter.Reader arcReader = arcsByTail.sorted();
+				DataOutputStream section = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+						nodeSection), 1 << 16))) {
+			boolean hasArc = arcReader.next(arc);
+			long last = Long.MIN_VALUE;
+			while (nodeReader.next(node)) {
+				if (node[0] == last) {
+					duplicateNodes++;
+					continue;
+				}
+				last = node[0];
+				section.writeInt((int) node[0]);
+				section.writeInt((int) (node[1] >> 32));
+				section.writeInt((int) node[1]);
+				for (; hasArc && arc[0] <= node[0]; hasArc = arcReader.next(arc)) {
+					if (arc[0] < node[0]) {
+						unknownNodes++;
+						continue;
+					}
+					out[0] = arc[1];
+					out[1] = number;
+					out[2] = arc[2];
+					out[3] = arc[3];
+					arcsByHead.add(out);
+				}
+				if (number == Integer.MAX_VALUE) {
+					throw new IOException("Too many nodes");
+				}
+				number++;
+			}
+			for (; hasArc; hasArc = arcReader.next(arc)) {
+				unknownNodes++;
+			}
+		}
+		return number;
+	}
+
+	/**
+	 * Gives each arc its head's number, adding (tail and head number, road
+	 * ID, flags and length) sorted by tail and then head number.
+	 */
+	private void numberHeads(ExternalSorter nodes, ExternalSorter arcsByHead, ExternalSorter arcs)
+			throws IOException {
+		long[] node = new long[2];
+		long[] arc = new long[4];
+		long[] out = new long[3];
+		long number = 0;
+		try (ExternalSorter.Reader nodeReader = nodes.sorted();
+				ExternalSorter.Reader arcReader = arcsByHead.sorted()) {
+			boolean hasArc = arcReader.next(arc);
+			long last = Long.MIN_VALUE;
+			while (nodeReader.next(node)) {
+				if (node[0] == last) {
+					continue;
+				}
+				last = node[0];
+				for (; hasArc && arc[0] <= node[0]; hasArc = arcReader.next(arc)) {
+					if (arc[0] < node[0]) {
+						unknownNodes++;
+						continue;
+					}
+					out[0] = arc[1] << 32 | number;
+					out[1] = arc[2];
+					out[2] = arc[3];
+					arcs.add(out);
+				}
+				number++;
+			}
+			for (; hasArc; hasArc = arcReader.next(arc)) {
+				unknownNodes++;
+			}
+		}
+	}
+
+	/**
+	 * Writes the arc section, and the first arc of every node.
+	 *
+	 * @return the number of arcs
+	 */
+	private int writeArcs(ExternalSorter arcs, int numNodes, File arcSection, File firstArcSection)
+			throws IOException {
+		long[] arc = new long[3];
+		int count = 0;
+		int node = 0;
+		try (ExternalSorter.Reader arcReader = arcs.sorted();
+				DataOutputStream arcOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+						arcSection), 1 << 16));
+				DataOutputStream firstOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+						firstArcSection), 1 << 16))) {
+			while (arcReader.next(arc)) {
+				int tail = (int) (arc[0] >>> 32);
+				for (; node <= tail; node++) {
+					firstOut.writeInt(count);
+				}
+				arcOut.writeInt((int) arc[0]);
+				arcOut.writeInt((int) arc[2]);
+				arcOut.writeInt((int) arc[1]);
+				arcOut.writeInt((int) (arc[2] >>> 32));
+				if (count == Integer.MAX_VALUE) {
+					throw new IOException("Too many arcs");
+				}
+				count++;
+			}
+			for (; node <= numNodes; node++) {
+				firstOut.writeInt(count);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Writes the restriction section.
+	 *
+	 * @return the number of restrictions
+	 */
+	private int writeRestrictions(ExternalSorter restrictions, File restrictionSection) throws IOException {
+		long[] restriction = new long[2];
+		int count = 0;
+		try (ExternalSorter.Reader reader = restrictions.sorted();
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+						restrictionSection), 1 << 16))) {
+			while (reader.next(restriction)) {
+				out.writeInt((int) restriction[0]);
+				out.writeInt((int) (restriction[1] >> 32));
+				out.writeInt((int) restriction[1]);
+				if (count == Integer.MAX_VALUE) {
+					throw new IOException("Too many restrictions");
+				}
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Compares a mapped graph with the graph loaded from the same files,
+	 * segment by segment and restriction by restriction.
+	 *
+	 * @return the number of nodes whose arcs differ, and one more if the
+	 *         restrictions do
+	 */
+	public static int check(RoadGraph graph, MappedGraph mapped) {
+		Map<Integer, List<String>> expected = new HashMap<Integer, List<String>>();
+		for (Segment s : graph.getSegments()) {
+			List<String> arcs = expected.get(s.getStartNode().getID());
+			if (arcs == null) {
+				arcs = new ArrayList<String>();
+				expected.put(s.getStartNode().getID(), arcs);
+			}
+			arcs.add(s.getEndNode().getID() + " " + s.getRoad().getID() + " " + (float) s.getLength() + " "
+					+ s.isWalkingOnly());
+		}
+		int mismatches = graph.numNodes() == mapped.numNodes() ? 0 : 1;
+		for (int id : graph.getNodes().keySet()) {
+			List<String> want = expected.containsKey(id) ? expected.get(id) : new ArrayList<String>();
+			List<String> got = new ArrayList<String>();
+			int node = mapped.findNode(id);
+			if (node >= 0) {
+				for (int a = mapped.getFirstArc(node); a < mapped.getEndArc(node); a++) {
+					got.add(mapped.getNodeID(mapped.getHead(a)) + " " + mapped.getRoadID(a) + " "
+							+ mapped.getLength(a) + " " + mapped.isWalkingOnly(a));
+				}
+			}
+			Collections.sort(want);
+			Collections.sort(got);
+			if (node < 0 || !want.equals(got)) {
+				mismatches++;
+			}
+		}
+		boolean sameRestrictions = graph.getRestrictionSet().size() == mapped.numRestrictions();
+		for (Restriction r : graph.getRestrictionSet()) {
+			sameRestrictions &= mapped.isRestricted(r.getNode1(), r.getNode(), r.getNode2());
+		}
+		return sameRestrictions ? mismatches : mismatches + 1;
+	}
+
+	public static void main(String[] arguments) {
+		String dataDir = "../graph-data/";
+		String out = null;
+		long memoryMB = 64;
+		File tmp = null;
+		boolean check = false;
+		for (int i = 0; i < arguments.length; i++) {
+			String arg = arguments[i];
+			if (!arg.equals("--check") && i + 1 >= arguments.length) {
+				System.err.println(USAGE);
+				return;
+			}
+			switch (arg) {
+			case "--data":
+				dataDir = arguments[++i];
+				break;
+			case "--out":
+				out = arguments[++i];
+				break;
+			case "--memory":
+				memoryMB = Long.parseLong(arguments[++i]);
+				break;
+			case "--tmp":
+				tmp = new File(arguments[++i]);
+				break;
+			case "--check":
+				check = true;
+				break;
+			default:
+				System.err.println(USAGE);
+				return;
+			}
+		}
+		if (memoryMB < 1) {
+			System.err.println(USAGE);
+			return;
+		}
+		if (!dataDir.endsWith("/")) {
+			dataDir += "/";
+		}
+		File outFile = new File(out != null ? out : dataDir + "graph.bin");
+		try {
+			System.out.print(new GraphBuilder(memoryMB << 20, tmp).build(dataDir, outFile));
+			MappedGraph mapped = new MappedGraph(outFile);
+			System.out.println("Mapped " + mapped);
+			if (check) {
+				RoadGraph graph = new RoadGraph();
+				graph.loadData(dataDir);
+				System.out.printf("%,d nodes differ from the graph loaded from %s%n", check(graph, mapped),
+						dataDir);
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to build the graph: " + e);
+		}
+	}
+
+}
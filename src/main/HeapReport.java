@@ -0,0 +1,214 @@
+package main;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+/**
+ * HeapReport: Loads a RoadGraph one structure at a time and reports how many
+ * bytes each structure keeps alive. After every step it takes a class
+ * histogram of the live heap with the JVM's own GC.class_histogram diagnostic
+ * command (the same as "jcmd pid GC.class_histogram", which collects garbage
+ * first), and charges the growth of each class since the step before to the
+ * structure that step built.
+ *
+ * The output is newline-delimited JSON so that it can be kept and compared
+ * across versions: one line per structure and class, one total per
+ * structure, and a summary with the bytes per node and per segment and the
+ * JVM settings that change object sizes. Classes that grew by less than
+ * --min-bytes are folded into one "(other)" line per structure.
+ *
+ * Run it with -XX:+UseG1GC or -XX:+UseParallelGC. The serial collector, which
+ * the JVM picks on small machines, can leave thousands of dead int[] fillers
+ * in a histogram and charge them to whichever step comes next.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class HeapReport {
+
+	private static final String USAGE = "Usage: AucklandMapper --heap [--data dir] [--min-bytes n]";
+
+	// "   1:          5208         243728  [B (java.base@17.0.9)"
+	private static final Pattern ROW = Pattern.compile("^\\s*\\d+:\\s+(\\d+)\\s+(\\d+)\\s+(\\S+)");
+
+	private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	private final long minBytes;
+	private final StringBuilder out = new StringBuilder();
+	private Map<String, long[]> last;
+	private long total;
+
+	public HeapReport(long minBytes) throws JMException {
+		this.minBytes = minBytes;
+		// the first Flight Recorder event and the first histogram each set up
+		// state of their own, which is not the graph's, so the baseline comes
+		// after both
+		new LoadEvent().commit();
+		invokeHistogram();
+		this.last = histogram();
+	}
+
+	/**
+	 * @return instances and bytes of every class with live objects
+	 */
+	private Map<String, long[]> histogram() throws JMException {
+		// some garbage (finalised and cleaned objects, say) outlives the first
+		// collection, so the histogram is read after a second
+		invokeHistogram();
+		String text = invokeHistogram();
+		Map<String, long[]> classes = new HashMap<String, long[]>();
+		for (String line : text.split("\n")) {
+			Matcher m = ROW.matcher(line);
+			if (m.find()) {
+				classes.put(m.group(3), new long[] { Long.parseLong(m.group(1)), Long.parseLong(m.group(2)) });
+			}
+		}
+		return classes;
+	}
+
+	private String invokeHistogram() throws JMException {
+		return (String) server.invoke(new ObjectName("com.sun.management:type=DiagnosticCommand"),
+				"gcClassHistogram", new Object[] { new String[0] }, new String[] { String[].class.getName() });
+	}
+
+	/**
+	 * Charges everything that has grown since the last step to a structure.
+	 */
+	public void step(String structure) throws JMException {
+		Map<String, long[]> now = histogram();
+		final Map<String, long[]> grown = new HashMap<String, long[]>();
+		for (Map.Entry<String, long[]> e : now.entrySet()) {
+			long[] before = last.get(e.getKey());
+			long instances = e.getValue()[0] - (before == null ? 0 : before[0]);
+			long bytes = e.getValue()[1] - (before == null ? 0 : before[1]);
+			if (bytes != 0) {
+				grown.put(e.getKey(), new long[] { instances, bytes });
+			}
+		}
+		last = now;
+
+		List<String> names = new ArrayList<String>(grown.keySet());
+		Collections.sort(names, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return Long.compare(grown.get(b)[1], grown.get(a)[1]);
+			}
+		});
+		long structureInstances = 0;
+		long structureBytes = 0;
+		long otherInstances = 0;
+		long otherBytes = 0;
+		for (String name : names) {
+			long[] g = grown.get(name);
+			structureInstances += g[0];
+			structureBytes += g[1];
+			if (Math.abs(g[1]) < minBytes) {
+				otherInstances += g[0];
+				otherBytes += g[1];
+			} else {
+				row(structure, name, g[0], g[1]);
+			}
+		}
+		if (otherBytes != 0) {
+			row(structure, "(other)", otherInstances, otherBytes);
+		}
+		row(structure, "*", structureInstances, structureBytes);
+		total += structureBytes;
+	}
+
+	private void row(String structure, String className, long instances, long bytes) {
+		out.append(String.format(Locale.ROOT,
+				"{\"structure\":\"%s\",\"class\":\"%s\",\"instances\":%d,\"bytes\":%d}%n", structure, className,
+				instances, bytes));
+	}
+
+	/**
+	 * Adds the summary line for the whole graph.
+	 */
+	public void summarise(RoadGraph graph) {
+		HotSpotDiagnosticMXBean hotspot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+		StringBuilder collectors = new StringBuilder();
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			collectors.append(collectors.length() == 0 ? "" : ",").append(gc.getName());
+		}
+		out.append(String.format(Locale.ROOT,
+				"{\"summary\":\"graph\",\"java\":\"%s\",\"gc\":\"%s\",\"compressedOops\":%s,\"nodes\":%d,"
+						+ "\"segments\":%d,\"bytes\":%d,\"bytesPerNode\":%.1f,\"bytesPerSegment\":%.1f}%n",
+				System.getProperty("java.version"), collectors, hotspot.getVMOption("UseCompressedOops").getValue(),
+				graph.numNodes(), graph.numSegments(), total, (double) total / Math.max(1, graph.numNodes()),
+				(double) total / Math.max(1, graph.numSegments())));
+	}
+
+	public String toString() {
+		return out.toString();
+	}
+
+	public static void main(String[] arguments) {
+		String dataDir = "../graph-data/";
+		long minBytes = 1024;
+		for (int i = 0; i < arguments.length; i++) {
+			if (i + 1 >= arguments.length) {
+				System.err.println(USAGE);
+				return;
+			}
+			switch (arguments[i]) {
+			case "--data":
+				dataDir = arguments[++i];
+				break;
+			case "--min-bytes":
+				minBytes = Long.parseLong(arguments[++i]);
+				break;
+			default:
+				System.err.println(USAGE);
+				return;
+			}
+		}
+		if (!dataDir.endsWith("/")) {
+			dataDir += "/";
+		}
+		// the loaders report on stdout, which is kept for the report
+		PrintStream stdout = System.out;
+		System.setOut(System.err);
+		try {
+			RoadGraph graph = new RoadGraph();
+			HeapReport report = new HeapReport(minBytes);
+			graph.loadRoads(dataDir);
+			report.step("roads and name tables");
+			graph.loadSpeedProfiles(dataDir);
+			report.step("speed profiles");
+			graph.loadNodes(dataDir);
+			report.step("nodes and nodes map");
+			graph.loadSegments(dataDir);
+			report.step("segments, neighbour lists and coords");
+			graph.buildModeGraphs();
+			report.step("mode graphs");
+			graph.loadRestrictions(dataDir);
+			report.step("restrictions");
+			graph.getNodeGrid();
+			report.step("node grid");
+			graph.getWeights(CostModel.DISTANCE, "car");
+			report.step("compiled weights (one model and mode)");
+			report.summarise(graph);
+			stdout.print(report);
+		} catch (JMException e) {
+			System.err.println("Failed to take a heap histogram: " + e);
+		} finally {
+			System.setOut(stdout);
+		}
+	}
+
+}
@@ -0,0 +1,294 @@
+package main;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import utils.Location;
+import utils.Segment;
+
+/**
+ * InertialFlowBisector: Splits a group of nodes along the fewest road segments
+ * it can find. For each of a few directions (east-west, north-south and the
+ * two diagonals) the nodes are ordered along that direction, the first and
+ * last fraction of them are fixed as source and sink, and a unit capacity max
+ * flow between the two gives the minimum cut separating them. The direction
+ * with the smallest cut wins. Every segment counts as one unit of capacity in
+ * either direction, and ties are broken by node index, so the result is the
+ * same on every run.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class InertialFlowBisector implements CellPartition.Bisector {
+
+	private static final double[][] DIRECTIONS = { { 1, 0 }, { 0, 1 }, { 1, 1 }, { 1, -1 } };
+
+	private final double balance;
+
+	// node index -> position in the group being split, -1 outside it
+	private int[] local;
+
+	// the group's segments as arcs by tail, each with a mate arc going the
+	// other way so flow can be pushed back
+	private int[] first;
+	private int[] head;
+	private int[] mate;
+	private int[] flow;
+	private int[] parentArc;
+	private int[] queue;
+	private int[] visited;
+	private int stamp;
+
+	public InertialFlowBisector() {
+		this(0.25);
+	}
+
+	/**
+	 * @param balance
+	 *            the fraction of the group fixed to each side, so no side
+	 *            ends up with less than this; between 0 and 0.5
+	 */
+	public InertialFlowBisector(double balance) {
+		this.balance = balance;
+	}
+
+	public int split(final RoadGraph graph, int[] order, int from, int to) {
+		int n = to - from;
+		if (local == null || local.length != graph.numNodes()) {
+			local = new int[graph.numNodes()];
+			Arrays.fill(local, -1);
+		}
+		for (int i = from; i < to; i++) {
+			local[order[i]] = i - from;
+		}
+		buildArcs(graph, order, from, to);
+
+		int fixed = Math.max(1, (int) (n * balance));
+		int bestCut = Integer.MAX_VALUE;
+		boolean[] bestSide = null;
+		Integer[] sorted = new Integer[n];
+		for (double[] dir : DIRECTIONS) {
+			final double dx = dir[0];
+			final double dy = dir[1];
+			for (int i = 0; i < n; i++) {
+				sorted[i] = order[from + i];
+			}
+			Arrays.sort(sorted, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					Location la = graph.getNode(a).getLoc();
+					Location lb = graph.getNode(b).getLoc();
+					int c = Double.compare(la.x * dx + la.y * dy, lb.x * dx + lb.y * dy);
+					return c != 0 ? c : Integer.compare(a, b);
+				}
+			});
+			int[] sources = new int[fixed];
+			boolean[] sink = new boolean[n];
+			for (int i = 0; i < fixed; i++) {
+				sources[i] = local[sorted[i]];
+				sink[local[sorted[n - 1 - i]]] = true;
+			}
+			int cut = maxFlow(sources, sink, bestCut);
+			if (cut < bestCut) {
+				bestCut = cut;
+				bestSide = mostBalanced(reachable(sources), reachedBy(sink), n);
+			}
+		}
+
+		// source side first, each side keeping its current order
+		int[] reordered = new int[n];
+		int mid = 0;
+		for (int i = 0; i < n; i++) {
+			if (bestSide[i]) {
+				reordered[mid++] = order[from + i];
+			}
+		}
+		int k = mid;
+		for (int i = 0; i < n; i++) {
+			if (!bestSide[i]) {
+				reordered[k++] = order[from + i];
+			}
+		}
+		for (int i = from; i < to; i++) {
+			local[order[i]] = -1;
+		}
+		System.arraycopy(reordered, 0, order, from, n);
+		return from + mid;
+	}
+
+	/**
+	 * Collects the segments with both ends in the group, in node order.
+	 */
+	private void buildArcs(RoadGraph graph, int[] order, int from, int to) {
+		int n = to - from;
+		int[] degree = new int[n + 1];
+		int arcs = 0;
+		for (int i = from; i < to; i++) {
+			for (Segment s : graph.getNode(order[i]).getOutNeighbours()) {
+				int v = local[s.getEndNode().getIndex()];
+				if (v >= 0 && v != i - from) {
+					degree[i - from]++;
+					degree[v]++;
+					arcs += 2;
+				}
+			}
+		}
+		first = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			first[i + 1] = first[i] + degree[i];
+		}
+		// arcs are grouped by tail; pos[] fills each node's range
+		int[] pos = Arrays.copyOf(first, n);
+		head = new int[arcs];
+		mate = new int[arcs];
+		for (int i = from; i < to; i++) {
+			int u = i - from;
+			for (Segment s : graph.getNode(order[i]).getOutNeighbours()) {
+				int v = local[s.getEndNode().getIndex()];
+				if (v >= 0 && v != u) {
+					int a = pos[u]++;
+					int b = pos[v]++;
+					head[a] = v;
+					head[b] = u;
+					mate[a] = b;
+					mate[b] = a;
+				}
+			}
+		}
+		flow = new int[arcs];
+		parentArc = new int[n];
+		queue = new int[n];
+		if (visited == null || visited.length < n) {
+			visited = new int[n];
+			stamp = 0;
+		}
+	}
+
+	/**
+	 * Pushes unit flows from the sources to the sinks along shortest residual
+	 * paths until none is left, or until it is clear the cut is no better than
+	 * the best found so far.
+	 *
+	 * @return the flow, ie the size of the minimum cut
+	 */
+	private int maxFlow(int[] sources, boolean[] sink, int giveUpAt) {
+		Arrays.fill(flow, 0);
+		int total = 0;
+		while (total < giveUpAt) {
+			stamp++;
+			int qHead = 0;
+			int qTail = 0;
+			for (int s : sources) {
+				visited[s] = stamp;
+				parentArc[s] = -1;
+				queue[qTail++] = s;
+			}
+			int reachedSink = -1;
+			while (qHead < qTail && reachedSink < 0) {
+				int u = queue[qHead++];
+				for (int a = first[u]; a < first[u + 1]; a++) {
+					int v = head[a];
+					if (visited[v] != stamp && flow[a] < 1) {
+						visited[v] = stamp;
+						parentArc[v] = a;
+						if (sink[v]) {
+							reachedSink = v;
+							break;
+						}
+						queue[qTail++] = v;
+					}
+				}
+			}
+			if (reachedSink < 0) {
+				break;
+			}
+			for (int v = reachedSink; parentArc[v] >= 0; v = headOfMate(parentArc[v])) {
+				int a = parentArc[v];
+				flow[a]++;
+				flow[mate[a]]--;
+			}
+			total++;
+		}
+		return total;
+	}
+
+	/**
+	 * @return the tail of an arc, which is the head of its mate
+	 */
+	private int headOfMate(int arc) {
+		return head[mate[arc]];
+	}
+
+	/**
+	 * Of the smallest and largest source sides of the minimum cut, returns
+	 * the one nearer half of the group. Any min cut will do, so this is free
+	 * balance.
+	 */
+	private static boolean[] mostBalanced(boolean[] smallest, boolean[] notLargest, int n) {
+		int small = 0;
+		int large = 0;
+		for (int i = 0; i < n; i++) {
+			if (smallest[i]) {
+				small++;
+			}
+			if (!notLargest[i]) {
+				large++;
+				notLargest[i] = true;
+			} else {
+				notLargest[i] = false;
+			}
+		}
+		return Math.abs(2 * small - n) <= Math.abs(2 * large - n) ? smallest : notLargest;
+	}
+
+	/**
+	 * @return which nodes the sources can still reach after the max flow
+	 */
+	private boolean[] reachable(int[] sources) {
+		boolean[] side = new boolean[first.length - 1];
+		int qHead = 0;
+		int qTail = 0;
+		for (int s : sources) {
+			side[s] = true;
+			queue[qTail++] = s;
+		}
+		while (qHead < qTail) {
+			int u = queue[qHead++];
+			for (int a = first[u]; a < first[u + 1]; a++) {
+				int v = head[a];
+				if (!side[v] && flow[a] < 1) {
+					side[v] = true;
+					queue[qTail++] = v;
+				}
+			}
+		}
+		return side;
+	}
+
+	/**
+	 * @return which nodes can still reach the sinks after the max flow
+	 */
+	private boolean[] reachedBy(boolean[] sink) {
+		boolean[] side = new boolean[sink.length];
+		int qHead = 0;
+		int qTail = 0;
+		for (int v = 0; v < sink.length; v++) {
+			if (sink[v]) {
+				side[v] = true;
+				queue[qTail++] = v;
+			}
+		}
+		while (qHead < qTail) {
+			int v = queue[qHead++];
+			// arcs into v are the mates of the arcs out of it
+			for (int a = first[v]; a < first[v + 1]; a++) {
+				int u = head[a];
+				if (!side[u] && flow[mate[a]] < 1) {
+					side[u] = true;
+					queue[qTail++] = u;
+				}
+			}
+		}
+		return side;
+	}
+
+}
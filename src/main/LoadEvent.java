@@ -0,0 +1,37 @@
+package main;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * LoadEvent: A Flight Recorder event covering the loading of one of the data
+ * files in RoadGraph. Like the other auckland.* events it is disabled unless
+ * turned on in the recording settings, eg with the auckland.jfc file:
+ * -XX:StartFlightRecording:settings=default,settings=auckland.jfc
+ * 
+ * @author harryross
+ * @version 1.1
+ */
+@Name("auckland.Load")
+@Label("Load Data File")
+@Category({ "Auckland Mapper", "Load" })
+@Description("Parsing of one .tab file into the road graph")
+@Enabled(false)
+public class LoadEvent extends Event {
+
+	@Label("File")
+	public String file;
+
+	@Label("Records")
+	public int records;
+
+	@Label("Bytes")
+	@DataAmount
+	public long bytes;
+
+}
@@ -0,0 +1,185 @@
+package main;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+
+import utils.Location;
+import utils.ModeGraph;
+import utils.Node;
+import utils.SearchState;
+import utils.Segment;
+
+/**
+ * LocalityBenchmark: Compares the graph as loaded with the graph reordered
+ * along a Hilbert curve (RoadGraph.reorderAlongHilbertCurve()) on the same
+ * queries. For each it reports how far apart the ends of a segment are in the
+ * node arrays, the cache misses a search would have on a simulated cache, the
+ * mean A* query time and the mean time to draw the whole map.
+ *
+ * Java cannot read the hardware counters, so the misses come from replaying
+ * the array accesses of a Dijkstra search (the cost and settled arrays by node
+ * index and the weights by segment ID) through an LRU cache model. For real
+ * counts run it under "perf stat -e cache-misses" once with each order.
+ *
+ * Usage: java main.LocalityBenchmark [dataDir] [queries]
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class LocalityBenchmark {
+
+	private static final int LINE = 64;
+
+	/**
+	 * CacheModel: A set associative cache with LRU replacement that only
+	 * counts hits and misses.
+	 */
+	private static class CacheModel {
+
+		private final long[][] tags;
+		private final int[][] ages;
+		private int clock;
+		long accesses;
+		long misses;
+
+		CacheModel(int bytes, int ways) {
+			int sets = bytes / LINE / ways;
+			tags = new long[sets][ways];
+			ages = new int[sets][ways];
+			for (long[] set : tags) {
+				Arrays.fill(set, -1);
+			}
+		}
+
+		void access(long address) {
+			long line = address / LINE;
+			int set = (int) (line % tags.length);
+			accesses++;
+			clock++;
+			int oldest = 0;
+			for (int w = 0; w < tags[set].length; w++) {
+				if (tags[set][w] == line) {
+					ages[set][w] = clock;
+					return;
+				}
+				if (ages[set][w] < ages[set][oldest]) {
+					oldest = w;
+				}
+			}
+			misses++;
+			tags[set][oldest] = line;
+			ages[set][oldest] = clock;
+		}
+
+	}
+
+	/**
+	 * Replays a Dijkstra search from one node to another through the caches.
+	 */
+	private static void simulate(ModeGraph modeGraph, float[] weights, SearchState state, Node from, Node to,
+			CacheModel[] caches) {
+		// where the arrays would sit, far enough apart not to overlap
+		long costBase = 0;
+		long settledBase = 1L << 32;
+		long weightBase = 2L << 32;
+		state.reset();
+		state.reach(from, 0, null);
+		state.push(from, 0);
+		while (!state.isEmpty()) {
+			Node node = state.pop();
+			if (state.isSettled(node)) {
+				continue;
+			}
+			state.settle(node);
+			touch(caches, settledBase + 4L * node.getIndex());
+			if (node == to) {
+				return;
+			}
+			double costToHere = state.getCost(node);
+			for (Segment s : modeGraph.getOut(node)) {
+				touch(caches, weightBase + 4L * s.getID());
+				Node next = s.getEndNode();
+				touch(caches, settledBase + 4L * next.getIndex());
+				touch(caches, costBase + 8L * next.getIndex());
+				float w = weights[s.getID()];
+				if (w != Float.POSITIVE_INFINITY && !state.isSettled(next) && costToHere + w < state.getCost(next)) {
+					state.reach(next, costToHere + w, s);
+					state.push(next, costToHere + w);
+				}
+			}
+		}
+	}
+
+	private static void touch(CacheModel[] caches, long address) {
+		for (CacheModel c : caches) {
+			c.access(address);
+		}
+	}
+
+	/**
+	 * Runs every measurement on one graph, with the queries given by node ID.
+	 */
+	private static void measure(String name, RoadGraph graph, int[][] queries, boolean report) {
+		ModeGraph modeGraph = graph.getModeGraph("car");
+		float[] weights = graph.getWeights(CostModel.DISTANCE, "car");
+		SearchState state = new SearchState(graph.numNodes());
+		CacheModel[] caches = { new CacheModel(32 << 10, 8), new CacheModel(1 << 20, 16) };
+		for (int[] q : queries) {
+			simulate(modeGraph, weights, state, graph.getNodes().get(q[0]), graph.getNodes().get(q[1]), caches);
+		}
+
+		long t0 = System.nanoTime();
+		for (int[] q : queries) {
+			new Searcher(graph.getNodes().get(q[0]), graph.getNodes().get(q[1]), state, graph, "distance", "car", 0);
+		}
+		long nanos = System.nanoTime() - t0;
+
+		double[] bounds = graph.getBoundaries();
+		int size = 1000;
+		double scale = Math.min(size / (bounds[1] - bounds[0]), size / (bounds[3] - bounds[2]));
+		Location origin = new Location(bounds[0], bounds[3]);
+		BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		int draws = 20;
+		t0 = System.nanoTime();
+		for (int i = 0; i < draws; i++) {
+			graph.redraw(g, origin, scale);
+		}
+		long renderNanos = System.nanoTime() - t0;
+		g.dispose();
+
+		if (!report) {
+			return;
+		}
+		System.out.printf("%-10s index gap %,10.1f  misses/query 32K %,9.1f (%.1f%%) 1M %,9.1f (%.1f%%)  "
+				+ "A* %.3f ms  redraw %.2f ms%n", name, graph.getMeanIndexGap(),
+				(double) caches[0].misses / queries.length, 100.0 * caches[0].misses / caches[0].accesses,
+				(double) caches[1].misses / queries.length, 100.0 * caches[1].misses / caches[1].accesses,
+				nanos / 1e6 / queries.length, renderNanos / 1e6 / draws);
+	}
+
+	public static void main(String[] arguments) {
+		String dataDir = arguments.length > 0 ? arguments[0] : "../graph-data/";
+		int queries = arguments.length > 1 ? Integer.parseInt(arguments[1]) : 1000;
+		RoadGraph loaded = new RoadGraph();
+		System.out.print(loaded.loadData(dataDir));
+		RoadGraph reordered = new RoadGraph();
+		reordered.loadData(dataDir);
+		System.out.print(reordered.reorderAlongHilbertCurve());
+
+		Random random = new Random(42);
+		int[][] pairs = new int[queries][];
+		for (int i = 0; i < queries; i++) {
+			pairs[i] = new int[] { loaded.getNode(random.nextInt(loaded.numNodes())).getID(),
+					loaded.getNode(random.nextInt(loaded.numNodes())).getID() };
+		}
+		// the first round only warms up the JIT for both
+		for (int round = 0; round < 2; round++) {
+			measure("loaded", loaded, pairs, round > 0);
+			measure("hilbert", reordered, pairs, round > 0);
+		}
+	}
+
+}
@@ -0,0 +1,515 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+import utils.Location;
+import utils.ModeGraph;
+import utils.Node;
+import utils.SearchState;
+import utils.Segment;
+import utils.SegmentGrid;
+
+/**
+ * MapMatcher: Matches GPS traces to the segments that were driven, with a
+ * hidden Markov model decoded by Viterbi. The candidates for a ping are the
+ * segments within a radius of it, found with a SegmentGrid, and are more
+ * likely the closer they are (a normal distribution with the GPS noise as its
+ * deviation). Moving from a candidate of one ping to a candidate of the next
+ * is more likely the closer the length of the route between them is to the
+ * straight line between the pings (an exponential distribution). Route
+ * lengths come from a Dijkstra search from the end of each candidate segment,
+ * stopped once every candidate of the next ping is reached or the route is
+ * too long to be plausible, and shared by the candidates on the same segment
+ * end.
+ *
+ * A ping with no candidates is left unmatched and the model carries on past
+ * it. If no candidate of a ping can be reached from any of the one before,
+ * the trace is decoded so far and the model starts again from that ping.
+ *
+ * Input is streamed: the pings of each trace are on consecutive lines, traces
+ * are matched in parallel with only a fixed window in flight, and the results
+ * are written in input order, one line per ping.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class MapMatcher {
+
+	private static final String USAGE = "Usage: AucklandMapper --match [--data dir]\n"
+			+ "         [--transport car|bike|walking] [--sigma m] [--radius m] [--beta m]\n"
+			+ "         [--candidates n] [--threads n] [input|-]\n"
+			+ "Each input line is 'traceID,lat,lon', the pings of a trace on consecutive lines\n"
+			+ "in time order. Any further fields are ignored.";
+
+	// how many times longer than the straight line between two pings the
+	// route between them may be
+	private static final double MAX_DETOUR = 4;
+
+	private final RoadGraph graph;
+	private final String transportMode;
+	private final ModeGraph modeGraph;
+	private final SegmentGrid grid;
+	private final double sigma;
+	private final double radius;
+	private final double beta;
+	private final int maxCandidates;
+	private final int threads;
+	private final int window;
+
+	private final LongAdder traces = new LongAdder();
+	private final LongAdder pings = new LongAdder();
+	private final LongAdder matched = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder searches = new LongAdder();
+	private final LongAdder matchNanos = new LongAdder();
+	private final LongAdder routeNanos = new LongAdder();
+
+	// each worker thread reuses one search state for all of its traces
+	private final ThreadLocal<SearchState> states = new ThreadLocal<SearchState>() {
+		protected SearchState initialValue() {
+			return new SearchState(graph.numNodes());
+		}
+	};
+
+	/**
+	 * @param sigma
+	 *            the standard deviation of the GPS noise, in kilometres
+	 * @param radius
+	 *            how far from a ping to look for candidates, in kilometres
+	 * @param beta
+	 *            how much a route may differ in length from the straight
+	 *            line between pings, typically, in kilometres
+	 * @param maxCandidates
+	 *            the most candidates to keep per ping, the closest ones
+	 */
+	public MapMatcher(RoadGraph graph, String transportMode, double sigma, double radius, double beta,
+			int maxCandidates, int threads) {
+		this.graph = graph;
+		this.transportMode = transportMode;
+		this.modeGraph = graph.getModeGraph(transportMode);
+		this.sigma = sigma;
+		this.radius = radius;
+		this.beta = beta;
+		this.maxCandidates = maxCandidates;
+		this.threads = threads;
+		this.window = threads * 16;
+		List<Segment> segments = new ArrayList<Segment>();
+		for (Segment s : graph.getSegments()) {
+			if (s.isFor(transportMode)) {
+				segments.add(s);
+			}
+		}
+		this.grid = new SegmentGrid(segments, Math.max(radius, 0.05));
+	}
+
+	/**
+	 * Matches every trace of the input and writes one result per ping, in
+	 * input order.
+	 *
+	 * @return the number of pings read
+	 */
+	public long run(BufferedReader in, Writer out) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		Deque<Future<String>> inFlight = new ArrayDeque<Future<String>>(window);
+		long lines = 0;
+		try {
+			out.write("trace,ping,status,road,from,to,offset_km,error_m\n");
+			String trace = null;
+			List<Location> locations = new ArrayList<Location>();
+			while (true) {
+				String line = in.readLine();
+				String id = null;
+				Location loc = null;
+				if (line != null) {
+					lines++;
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("#")) {
+						continue;
+					}
+					String[] values = line.split("[,\\s]+");
+					try {
+						id = values[0];
+						loc = Location.newFromLatLon(Double.parseDouble(values[1]), Double.parseDouble(values[2]));
+					} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+						rejected.increment();
+						continue;
+					}
+				}
+				if (trace != null && (line == null || !id.equals(trace))) {
+					final String t = trace;
+					final List<Location> l = locations;
+					inFlight.add(pool.submit(new Callable<String>() {
+						public String call() {
+							return format(t, match(l));
+						}
+					}));
+					if (inFlight.size() >= window) {
+						out.write(take(inFlight.poll()));
+					}
+					locations = new ArrayList<Location>();
+				}
+				if (line == null) {
+					break;
+				}
+				trace = id;
+				locations.add(loc);
+			}
+			while (!inFlight.isEmpty()) {
+				out.write(take(inFlight.poll()));
+			}
+			out.flush();
+		} finally {
+			pool.shutdownNow();
+		}
+		return lines;
+	}
+
+	private String take(Future<String> result) throws IOException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while matching", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Matching failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Matches one trace.
+	 *
+	 * @return the matched point of each ping, null where there is none
+	 */
+	public SegmentGrid.Projection[] match(List<Location> trace) {
+		long start = System.nanoTime();
+		long routing = 0;
+		float[] weights = graph.getWeights(CostModel.DISTANCE, transportMode);
+		SearchState state = states.get();
+		SegmentGrid.Projection[] ans = new SegmentGrid.Projection[trace.size()];
+
+		// the lattice since the model last started: for each ping with
+		// candidates, which ping it is, its candidates, the log probability of
+		// the best path to each, and the candidate before on that path
+		List<Integer> layerPing = new ArrayList<Integer>();
+		List<List<SegmentGrid.Projection>> layers = new ArrayList<List<SegmentGrid.Projection>>();
+		List<double[]> scores = new ArrayList<double[]>();
+		List<int[]> back = new ArrayList<int[]>();
+		for (int i = 0; i < trace.size(); i++) {
+			List<SegmentGrid.Projection> candidates = candidates(trace.get(i), weights);
+			if (candidates.isEmpty()) {
+				continue;
+			}
+			double[] score = new double[candidates.size()];
+			int[] from = new int[candidates.size()];
+			boolean reached = false;
+			if (!layers.isEmpty()) {
+				int last = layers.size() - 1;
+				List<SegmentGrid.Projection> before = layers.get(last);
+				double[] beforeScore = scores.get(last);
+				double straight = trace.get(layerPing.get(last)).distanceTo(trace.get(i));
+				long t = System.nanoTime();
+				double[][] routes = routeLengths(state, weights, before, candidates, MAX_DETOUR * straight + 2
+						* radius);
+				routing += System.nanoTime() - t;
+				for (int j = 0; j < candidates.size(); j++) {
+					score[j] = Double.NEGATIVE_INFINITY;
+					from[j] = -1;
+					for (int k = 0; k < before.size(); k++) {
+						if (routes[k][j] == Double.POSITIVE_INFINITY) {
+							continue;
+						}
+						double s = beforeScore[k] - Math.abs(routes[k][j] - straight) / beta;
+						if (s > score[j]) {
+							score[j] = s;
+							from[j] = k;
+						}
+					}
+					if (from[j] >= 0) {
+						score[j] += emission(candidates.get(j));
+						reached = true;
+					}
+				}
+				if (!reached) {
+					decode(layerPing, layers, scores, back, ans);
+					layerPing.clear();
+					layers.clear();
+					scores.clear();
+					back.clear();
+				}
+			}
+			if (!reached) {
+				for (int j = 0; j < candidates.size(); j++) {
+					score[j] = emission(candidates.get(j));
+					from[j] = -1;
+				}
+			}
+			layerPing.add(i);
+			layers.add(candidates);
+			scores.add(score);
+			back.add(from);
+		}
+		decode(layerPing, layers, scores, back, ans);
+
+		traces.increment();
+		pings.add(trace.size());
+		for (SegmentGrid.Projection p : ans) {
+			if (p != null) {
+				matched.increment();
+			}
+		}
+		routeNanos.add(routing);
+		matchNanos.add(System.nanoTime() - start);
+		return ans;
+	}
+
+	/**
+	 * @return the closest usable segments to the ping
+	 */
+	private List<SegmentGrid.Projection> candidates(Location ping, float[] weights) {
+		List<SegmentGrid.Projection> ans = new ArrayList<SegmentGrid.Projection>(maxCandidates);
+		for (SegmentGrid.Projection p : grid.near(ping, radius)) {
+			if (weights[p.segment.getID()] != Float.POSITIVE_INFINITY) {
+				ans.add(p);
+				if (ans.size() == maxCandidates) {
+					break;
+				}
+			}
+		}
+		return ans;
+	}
+
+	/**
+	 * @return the log probability of a candidate, less a constant
+	 */
+	private double emission(SegmentGrid.Projection p) {
+		double z = p.distance / sigma;
+		return -0.5 * z * z;
+	}
+
+	/**
+	 * Works out the length of the route from every candidate of one ping to
+	 * every candidate of the next, infinite where it is longer than the bound.
+	 */
+	private double[][] routeLengths(SearchState state, float[] weights, List<SegmentGrid.Projection> from,
+			List<SegmentGrid.Projection> to, double bound) {
+		List<Node> targets = new ArrayList<Node>();
+		for (SegmentGrid.Projection b : to) {
+			if (!targets.contains(b.segment.getStartNode())) {
+				targets.add(b.segment.getStartNode());
+			}
+		}
+		// the search from each segment end is shared by its candidates
+		Map<Node, double[]> cache = new HashMap<Node, double[]>();
+		double[][] ans = new double[from.size()][to.size()];
+		for (int k = 0; k < from.size(); k++) {
+			SegmentGrid.Projection a = from.get(k);
+			Node end = a.segment.getEndNode();
+			double[] toTargets = cache.get(end);
+			if (toTargets == null) {
+				toTargets = search(state, weights, end, targets, bound);
+				cache.put(end, toTargets);
+			}
+			double rest = a.segment.getLength() - a.offset;
+			for (int j = 0; j < to.size(); j++) {
+				SegmentGrid.Projection b = to.get(j);
+				if (b.segment == a.segment && b.offset >= a.offset - sigma) {
+					// further along the same segment, or as good as
+					ans[k][j] = Math.max(0, b.offset - a.offset);
+				} else {
+					ans[k][j] = rest + toTargets[targets.indexOf(b.segment.getStartNode())] + b.offset;
+				}
+			}
+		}
+		return ans;
+	}
+
+	/**
+	 * Dijkstra by length from a node until every target is settled or the
+	 * bound is passed.
+	 *
+	 * @return the length of the route to each target, infinite if it is
+	 *         longer than the bound
+	 */
+	private double[] search(SearchState state, float[] weights, Node from, List<Node> targets, double bound) {
+		searches.increment();
+		double[] ans = new double[targets.size()];
+		Arrays.fill(ans, Double.POSITIVE_INFINITY);
+		int left = targets.size();
+		state.reset();
+		state.reach(from, 0, null);
+		state.push(from, 0);
+		while (!state.isEmpty() && left > 0) {
+			Node node = state.pop();
+			if (state.isSettled(node)) {
+				continue;
+			}
+			state.settle(node);
+			double costToHere = state.getCost(node);
+			if (costToHere > bound) {
+				break;
+			}
+			int t = targets.indexOf(node);
+			if (t >= 0) {
+				ans[t] = costToHere;
+				left--;
+			}
+			for (Segment s : modeGraph.getOut(node)) {
+				Node next = s.getEndNode();
+				if (weights[s.getID()] == Float.POSITIVE_INFINITY || state.isSettled(next)) {
+					continue;
+				}
+				double cost = costToHere + s.getLength();
+				if (cost < state.getCost(next)) {
+					state.reach(next, cost, s);
+					state.push(next, cost);
+				}
+			}
+		}
+		return ans;
+	}
+
+	/**
+	 * Follows the best path back through the lattice, setting the matched
+	 * point of each of its pings.
+	 */
+	private static void decode(List<Integer> layerPing, List<List<SegmentGrid.Projection>> layers,
+			List<double[]> scores, List<int[]> back, SegmentGrid.Projection[] ans) {
+		if (layers.isEmpty()) {
+			return;
+		}
+		int last = layers.size() - 1;
+		double[] score = scores.get(last);
+		int c = 0;
+		for (int j = 1; j < score.length; j++) {
+			if (score[j] > score[c]) {
+				c = j;
+			}
+		}
+		for (int l = last; l >= 0 && c >= 0; l--) {
+			ans[layerPing.get(l)] = layers.get(l).get(c);
+			c = back.get(l)[c];
+		}
+	}
+
+	private String format(String trace, SegmentGrid.Projection[] matches) {
+		StringBuilder b = new StringBuilder(48 * matches.length);
+		for (int i = 0; i < matches.length; i++) {
+			SegmentGrid.Projection p = matches[i];
+			b.append(trace).append(',').append(i + 1).append(',');
+			if (p == null) {
+				b.append("unmatched,,,,,\n");
+			} else {
+				Segment s = p.segment;
+				b.append("ok,").append(s.getRoad().getID()).append(',').append(s.getStartNode().getID())
+						.append(',').append(s.getEndNode().getID());
+				b.append(String.format(Locale.ROOT, ",%.4f,%.1f%n", p.offset, p.distance * 1000));
+			}
+		}
+		return b.toString();
+	}
+
+	public String dump() {
+		double matchSecs = matchNanos.sum() / 1e9;
+		return String.format("map matching: %,d traces, %,d pings, %,d matched, %,d lines rejected%n"
+				+ "  %,.0f pings/s of matching time, %.0f%% of it routing (%,d searches)%n", traces.sum(),
+				pings.sum(), matched.sum(), rejected.sum(), matchSecs == 0 ? 0 : pings.sum() / matchSecs,
+				matchSecs == 0 ? 0 : 100 * routeNanos.sum() / 1e9 / matchSecs, searches.sum());
+	}
+
+	public static void main(String[] arguments) {
+		String dataDir = "../graph-data/";
+		String transportMode = "car";
+		double sigma = 10;
+		double radius = 50;
+		double beta = 20;
+		int candidates = 8;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String input = "-";
+		for (int i = 0; i < arguments.length; i++) {
+			String arg = arguments[i];
+			if (arg.startsWith("--") && i + 1 >= arguments.length) {
+				System.err.println(USAGE);
+				return;
+			}
+			switch (arg) {
+			case "--data":
+				dataDir = arguments[++i];
+				break;
+			case "--transport":
+				transportMode = arguments[++i];
+				break;
+			case "--sigma":
+				sigma = Double.parseDouble(arguments[++i]);
+				break;
+			case "--radius":
+				radius = Double.parseDouble(arguments[++i]);
+				break;
+			case "--beta":
+				beta = Double.parseDouble(arguments[++i]);
+				break;
+			case "--candidates":
+				candidates = Integer.parseInt(arguments[++i]);
+				break;
+			case "--threads":
+				threads = Integer.parseInt(arguments[++i]);
+				break;
+			default:
+				input = arg;
+			}
+		}
+		if (!(transportMode.equals("car") || transportMode.equals("bike") || transportMode.equals("walking"))
+				|| sigma <= 0 || radius <= 0 || beta <= 0 || candidates < 1 || threads < 1) {
+			System.err.println(USAGE);
+			return;
+		}
+		if (!dataDir.endsWith("/")) {
+			dataDir += "/";
+		}
+
+		// keep stdout for results only while the graph loads
+		PrintStream stdout = System.out;
+		System.setOut(System.err);
+		RoadGraph roadGraph = new RoadGraph();
+		System.err.print(roadGraph.loadData(dataDir));
+		System.setOut(stdout);
+
+		MapMatcher matcher = new MapMatcher(roadGraph, transportMode, sigma / 1000, radius / 1000, beta / 1000,
+				candidates, threads);
+		long start = System.nanoTime();
+		try {
+			BufferedReader in = new BufferedReader(input.equals("-") ? new InputStreamReader(System.in)
+					: new FileReader(input), 1 << 16);
+			Writer out = new BufferedWriter(new OutputStreamWriter(stdout), 1 << 16);
+			matcher.run(in, out);
+			in.close();
+			double secs = (System.nanoTime() - start) / 1e9;
+			System.err.printf("Matched %,d pings in %.2fs (%,.0f/s) on %d threads%n", matcher.pings.sum(), secs,
+					matcher.pings.sum() / secs, threads);
+			System.err.print(matcher.dump());
+		} catch (IOException e) {
+			System.err.println("Map matching failed: " + e);
+		}
+	}
+
+}
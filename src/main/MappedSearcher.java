@@ -0,0 +1,359 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import utils.IntMinHeap;
+import utils.Location;
+import utils.MappedGraph;
+import utils.Node;
+import utils.Road;
+import utils.SearchStats;
+
+/**
+ * MappedSearcher: A* over a MappedGraph, shortest by distance or by time at
+ * the speed limits, for one transport mode. Arcs are read from the mapped file
+ * as the search reaches them, so a graph bigger than the heap can be routed
+ * on. Like CRPSearcher the search is over arcs rather than nodes, so that car
+ * routes can obey the turn restrictions in the file; all a searcher holds is
+ * a cost, a parent, a tail and a round number for each arc, kept from query
+ * to query so nothing is cleared between them, and the projected position of
+ * each node for the heuristic.
+ *
+ * Routes take no notice of traffic. A searcher is for one thread at a time;
+ * any number may share the graph.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class MappedSearcher {
+
+	private static final String USAGE = "Usage: AucklandMapper --mapped --graph file [--mode distance|time]\n"
+			+ "         [--transport car|bike|walking] [--data dir --check n] [input|-]\n"
+			+ "Each input line 'fromNodeID,toNodeID' gives 'from,to,cost,path', the path as node IDs.\n"
+			+ "--check routes n random pairs and compares them with the graph data searched in process.";
+
+	private final MappedGraph graph;
+	private final boolean byTime;
+	private final String transportMode;
+	private final boolean checkTurns;
+	private final double minCostPerKm;
+	// by node index, in kilometres as Location has them
+	private final double[] x;
+	private final double[] y;
+	// by arc index
+	private final double[] cost;
+	private final int[] parent;
+	private final int[] tail;
+	private final int[] reached; // the round the arc was last reached in
+	private final int[] settled; // the round the arc was settled in
+	private int round;
+	private final IntMinHeap heap;
+	private SearchStats stats = new SearchStats();
+	private int start = -1;
+	private int goal = -1;
+	private int last = -1;
+	private double found = Double.POSITIVE_INFINITY;
+	private double targetX;
+	private double targetY;
+
+	/**
+	 * @param sMode
+	 *            "distance" or "time"
+	 */
+	public MappedSearcher(MappedGraph graph, String sMode, String transportMode) {
+		if (!sMode.equals("distance") && !sMode.equals("time")) {
+			throw new IllegalArgumentException("A mapped graph can only be searched by distance or time: " + sMode);
+		}
+		this.graph = graph;
+		this.byTime = sMode.equals("time");
+		this.transportMode = transportMode;
+		this.checkTurns = transportMode.equals("car");
+		this.minCostPerKm = byTime ? 1.0 / Road.MAX_SPEED_LIMIT : 1;
+		x = new double[graph.numNodes()];
+		y = new double[graph.numNodes()];
+		for (int n = 0; n < graph.numNodes(); n++) {
+			Location l = graph.getLocation(n);
+			x[n] = l.x;
+			y[n] = l.y;
+		}
+		cost = new double[graph.numArcs()];
+		parent = new int[graph.numArcs()];
+		tail = new int[graph.numArcs()];
+		reached = new int[graph.numArcs()];
+		settled = new int[graph.numArcs()];
+		heap = new IntMinHeap(64);
+	}
+
+	/**
+	 * Finds the cheapest route between two nodes, by index.
+	 *
+	 * @return its cost, or infinity if there is none
+	 */
+	public double search(int start, int goal) {
+		this.start = start;
+		this.goal = goal;
+		last = -1;
+		found = Double.POSITIVE_INFINITY;
+		stats = new SearchStats();
+		stats.start();
+		round++;
+		heap.clear();
+		targetX = x[goal];
+		targetY = y[goal];
+		if (start == goal) {
+			found = 0;
+			stats.stop();
+			return found;
+		}
+		relaxOut(start, -1, 0);
+		while (!heap.isEmpty()) {
+			int arc = heap.pop();
+			stats.pop();
+			if (settled[arc] == round) {
+				stats.stalePop();
+				continue;
+			}
+			settled[arc] = round;
+			stats.settle();
+			int node = graph.getHead(arc);
+			if (node == goal) {
+				last = arc;
+				found = cost[arc];
+				break;
+			}
+			relaxOut(node, arc, cost[arc]);
+		}
+		stats.stop();
+		return found;
+	}
+
+	/**
+	 * Reaches the arcs out of a node, having arrived by the given arc (-1 at
+	 * the start) at the given cost.
+	 */
+	private void relaxOut(int node, int from, double costToHere) {
+		int fromID = from < 0 ? -1 : graph.getNodeID(tail[from]);
+		int nodeID = graph.getNodeID(node);
+		for (int a = graph.getFirstArc(node); a < graph.getEndArc(node); a++) {
+			if (!graph.isFor(a, transportMode)) {
+				stats.filterEdge();
+				continue;
+			}
+			if (settled[a] == round) {
+				continue;
+			}
+			int next = graph.getHead(a);
+			if (checkTurns && fromID >= 0) {
+				stats.restrictionCheck();
+				if (graph.isRestricted(fromID, nodeID, graph.getNodeID(next))) {
+					continue;
+				}
+			}
+			double c = costToHere + weight(a);
+			if (reached[a] != round || c < cost[a]) {
+				reached[a] = round;
+				cost[a] = c;
+				parent[a] = from;
+				tail[a] = node;
+				heap.push(a, c + Math.hypot(x[next] - targetX, y[next] - targetY) * minCostPerKm);
+				stats.push();
+			}
+		}
+	}
+
+	/**
+	 * @return the weight of an arc as CostModel would give its segment
+	 */
+	private float weight(int arc) {
+		float length = graph.getLength(arc);
+		return byTime ? (float) (length / (double) graph.getSpeedLimit(arc)) : length;
+	}
+
+	/**
+	 * @return the cost of the last route found, or infinity if there was none
+	 */
+	public double getCost() {
+		return found;
+	}
+
+	/**
+	 * @return the node indices along the last route found from start to goal,
+	 *         or null if there was none
+	 */
+	public List<Integer> getPath() {
+		if (found == Double.POSITIVE_INFINITY) {
+			return null;
+		}
+		List<Integer> path = new ArrayList<Integer>();
+		for (int a = last; a >= 0; a = parent[a]) {
+			path.add(graph.getHead(a));
+		}
+		path.add(start);
+		Collections.reverse(path);
+		return path;
+	}
+
+	/**
+	 * @return the counters for the last query
+	 */
+	public SearchStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Routes random pairs both here and with a segment-based search over the
+	 * graph loaded from the same files, with the same turn restrictions.
+	 * Searcher would do for walking and cycling, but being node based it can
+	 * miss a car route that goes round the block to get past a restricted
+	 * turn.
+	 *
+	 * @return the number of pairs whose costs differ
+	 */
+	public int check(RoadGraph roadGraph, String sMode, int queries) {
+		boolean[] everywhere = new boolean[roadGraph.numNodes()];
+		Arrays.fill(everywhere, true);
+		ShardSearch whole = new ShardSearch(roadGraph, everywhere, roadGraph.getModeGraph(transportMode),
+				roadGraph.getWeights(CostModel.forName(sMode), transportMode),
+				checkTurns ? roadGraph.getTurnRestrictions() : null);
+		Random random = new Random(42);
+		int mismatches = 0;
+		long nanos = 0;
+		for (int i = 0; i < queries; i++) {
+			Node from = roadGraph.getNode(random.nextInt(roadGraph.numNodes()));
+			Node to = roadGraph.getNode(random.nextInt(roadGraph.numNodes()));
+			long start = System.nanoTime();
+			double got = search(graph.findNode(from.getID()), graph.findNode(to.getID()));
+			nanos += System.nanoTime() - start;
+			double expected = whole.forward(from, -1, to, -1);
+			boolean same = Double.isInfinite(expected) ? Double.isInfinite(got)
+					: Math.abs(got - expected) <= 1e-5 * Math.max(1, expected);
+			if (!same) {
+				mismatches++;
+				System.out.printf("Mismatch %d -> %d: mapped %.6f, expected %.6f%n", from.getID(), to.getID(), got,
+						expected);
+			}
+		}
+		System.out.printf("Checked %,d queries: %d mismatches, mean %.3f ms per query%n", queries, mismatches,
+				nanos / 1e6 / queries);
+		return mismatches;
+	}
+
+	private void routeAll(BufferedReader in) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+		out.write("from,to,cost,path\n");
+		while (true) {
+			String line = in.readLine();
+			if (line == null) {
+				break;
+			}
+			String[] values = line.trim().split("[,\\s]+");
+			if (values.length != 2) {
+				continue;
+			}
+			int from;
+			int to;
+			try {
+				from = graph.findNode(Integer.parseInt(values[0]));
+				to = graph.findNode(Integer.parseInt(values[1]));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			out.write(values[0] + "," + values[1] + ",");
+			if (from >= 0 && to >= 0 && search(from, to) != Double.POSITIVE_INFINITY) {
+				out.write(String.format(Locale.ROOT, "%.6f,", getCost()));
+				List<Integer> path = getPath();
+				for (int i = 0; i < path.size(); i++) {
+					out.write((i > 0 ? " " : "") + graph.getNodeID(path.get(i)));
+				}
+			} else {
+				out.write(",");
+			}
+			out.write('\n');
+		}
+		in.close();
+		out.flush();
+	}
+
+	public static void main(String[] arguments) {
+		String file = null;
+		String sMode = "distance";
+		String transportMode = "car";
+		String dataDir = null;
+		int check = 0;
+		String input = "-";
+		for (int i = 0; i < arguments.length; i++) {
+			String arg = arguments[i];
+			if (!arg.startsWith("--")) {
+				input = arg;
+				continue;
+			}
+			if (i + 1 >= arguments.length) {
+				System.err.println(USAGE);
+				return;
+			}
+			switch (arg) {
+			case "--graph":
+				file = arguments[++i];
+				break;
+			case "--mode":
+				sMode = arguments[++i];
+				break;
+			case "--transport":
+				transportMode = arguments[++i];
+				break;
+			case "--data":
+				dataDir = arguments[++i];
+				break;
+			case "--check":
+				check = Integer.parseInt(arguments[++i]);
+				break;
+			default:
+				System.err.println(USAGE);
+				return;
+			}
+		}
+		if (file == null || (check > 0 && dataDir == null)
+				|| !Arrays.asList("distance", "time").contains(sMode)
+				|| !Arrays.asList("car", "bike", "walking").contains(transportMode)) {
+			System.err.println(USAGE);
+			return;
+		}
+		try {
+			MappedGraph graph = new MappedGraph(new File(file));
+			System.err.println("Mapped " + graph);
+			MappedSearcher searcher = new MappedSearcher(graph, sMode, transportMode);
+			if (check > 0) {
+				if (!dataDir.endsWith("/")) {
+					dataDir += "/";
+				}
+				RoadGraph roadGraph = new RoadGraph();
+				// the graph loader reports on stdout
+				PrintStream stdout = System.out;
+				System.setOut(System.err);
+				roadGraph.loadData(dataDir);
+				System.setOut(stdout);
+				searcher.check(roadGraph, sMode, check);
+			} else {
+				searcher.routeAll(input.equals("-") ? new BufferedReader(new InputStreamReader(System.in))
+						: new BufferedReader(new FileReader(input)));
+			}
+		} catch (IOException e) {
+			System.err.println("Mapped search failed: " + e);
+		}
+	}
+
+}
@@ -0,0 +1,476 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import utils.IntMinHeap;
+import utils.Node;
+
+/**
+ * OneToAll: The cost from a source to every node of the graph, for many
+ * sources, by PHAST over a ContractionHierarchy. For each source a Dijkstra
+ * goes up the hierarchy only, which settles a few hundred nodes, and then one
+ * linear sweep over every node from the most important down takes each node's
+ * cost from its arcs to the more important nodes, which are all final by then.
+ *
+ * The nodes are renumbered in sweep order, and each node's arcs from above
+ * are stored together, so the sweep reads memory front to back. Sources are
+ * swept LANES at a time: the costs of a node for the sources of a batch sit
+ * side by side, so one pass over the arcs serves every source in the batch
+ * with an inner loop the JIT can vectorise. Batches are shared out over the
+ * worker threads.
+ *
+ * Built reversed, it gives the cost to each source from every node instead,
+ * as for the time from everywhere to the nearest hospital. Like the
+ * hierarchy, costs do not take turn restrictions into account.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class OneToAll {
+
+	private static final String USAGE = "Usage: AucklandMapper --one-to-all [--data dir] [--mode costModel]\n"
+			+ "         [--transport car|bike|walking] [--threads n] [--to] [--within cost]\n"
+			+ "         [sources|-]\n"
+			+ "Each input line is a source node ID. Writes 'node,cost,source' for every node, the cost being\n"
+			+ "from (with --to, to) the nearest source, or with --within, 'source,nodes' for every source,\n"
+			+ "the number of nodes within that cost of it.";
+
+	/** The number of sources swept together */
+	public static final int LANES = 8;
+
+	private final int numNodes;
+	private final boolean reverse;
+	private final int threads;
+	// sweep position by node index, and node index by sweep position
+	private final int[] position;
+	private final int[] nodeAt;
+	// arcs to more important nodes, by position of their tail
+	private final int[] upFirst;
+	private final int[] upHead;
+	private final float[] upWeight;
+	// arcs from more important nodes, by position of their head
+	private final int[] downFirst;
+	private final int[] downTail;
+	private final float[] downWeight;
+
+	/**
+	 * @param reverse
+	 *            true for the cost to each source rather than from it
+	 */
+	public OneToAll(ContractionHierarchy hierarchy, boolean reverse, int threads) {
+		this.numNodes = hierarchy.numNodes();
+		this.reverse = reverse;
+		this.threads = threads;
+		int n = numNodes;
+		position = new int[n];
+		nodeAt = new int[n];
+		for (int v = 0; v < n; v++) {
+			int p = n - 1 - hierarchy.getRank(v);
+			position[v] = p;
+			nodeAt[p] = v;
+		}
+		int arcs = hierarchy.numArcs();
+		upFirst = new int[n + 1];
+		downFirst = new int[n + 1];
+		for (int a = 0; a < arcs; a++) {
+			int tail = position[reverse ? hierarchy.getHead(a) : hierarchy.getTail(a)];
+			int head = position[reverse ? hierarchy.getTail(a) : hierarchy.getHead(a)];
+			// a smaller position is more important
+			if (head < tail) {
+				upFirst[tail + 1]++;
+			} else {
+				downFirst[head + 1]++;
+			}
+		}
+		for (int p = 0; p < n; p++) {
+			upFirst[p + 1] += upFirst[p];
+			downFirst[p + 1] += downFirst[p];
+		}
+		upHead = new int[upFirst[n]];
+		upWeight = new float[upFirst[n]];
+		downTail = new int[downFirst[n]];
+		downWeight = new float[downFirst[n]];
+		int[] upNext = Arrays.copyOf(upFirst, n);
+		int[] downNext = Arrays.copyOf(downFirst, n);
+		for (int a = 0; a < arcs; a++) {
+			int tail = position[reverse ? hierarchy.getHead(a) : hierarchy.getTail(a)];
+			int head = position[reverse ? hierarchy.getTail(a) : hierarchy.getHead(a)];
+			if (head < tail) {
+				upHead[upNext[tail]] = head;
+				upWeight[upNext[tail]++] = hierarchy.getWeight(a);
+			} else {
+				downTail[downNext[head]] = tail;
+				downWeight[downNext[head]++] = hierarchy.getWeight(a);
+			}
+		}
+	}
+
+	/**
+	 * Lanes: A worker's costs for one batch, LANES floats per node in sweep
+	 * order, and the heap for its upward searches.
+	 */
+	private class Lanes {
+
+		final float[] cost = new float[numNodes * LANES];
+		final IntMinHeap heap = new IntMinHeap(256);
+
+	}
+
+	/**
+	 * Sink: Takes the costs of each batch of sources as a worker sweeps it.
+	 */
+	private interface Sink {
+
+		/**
+		 * @param cost
+		 *            LANES costs per node in sweep order, for the sources from
+		 *            first, of which there are count
+		 */
+		void accept(float[] cost, int first, int count);
+
+	}
+
+	/**
+	 * SinkFactory: Makes each worker its own sink, or hands them all one that
+	 * they can share.
+	 */
+	private interface SinkFactory {
+
+		Sink newSink();
+
+	}
+
+	/**
+	 * Fills in the costs of a batch of sources: an upward search in each lane,
+	 * then the sweep for all of them at once.
+	 */
+	private void sweep(Lanes lanes, List<Node> sources, int first, int count) {
+		float[] cost = lanes.cost;
+		Arrays.fill(cost, Float.POSITIVE_INFINITY);
+		IntMinHeap heap = lanes.heap;
+		for (int k = 0; k < count; k++) {
+			int source = position[sources.get(first + k).getIndex()];
+			cost[source * LANES + k] = 0;
+			heap.clear();
+			heap.push(source, 0);
+			while (!heap.isEmpty()) {
+				double key = heap.peekKey();
+				int p = heap.pop();
+				if (key > cost[p * LANES + k]) {
+					continue;
+				}
+				for (int a = upFirst[p]; a < upFirst[p + 1]; a++) {
+					int q = upHead[a] * LANES + k;
+					float c = (float) key + upWeight[a];
+					if (c < cost[q]) {
+						cost[q] = c;
+						heap.push(upHead[a], c);
+					}
+				}
+			}
+		}
+		for (int p = 0; p < numNodes; p++) {
+			int to = p * LANES;
+			for (int a = downFirst[p]; a < downFirst[p + 1]; a++) {
+				int from = downTail[a] * LANES;
+				float w = downWeight[a];
+				for (int k = 0; k < LANES; k++) {
+					cost[to + k] = Math.min(cost[to + k], cost[from + k] + w);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sweeps every source, batches shared out over the workers.
+	 *
+	 * @return the sink of each worker
+	 */
+	private List<Sink> run(final List<Node> sources, final SinkFactory sinks) {
+		final int batches = (sources.size() + LANES - 1) / LANES;
+		final AtomicInteger next = new AtomicInteger();
+		int workers = Math.max(1, Math.min(threads, batches));
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		List<Future<Sink>> done = new ArrayList<Future<Sink>>(workers);
+		try {
+			for (int t = 0; t < workers; t++) {
+				done.add(pool.submit(new Callable<Sink>() {
+					public Sink call() {
+						Sink sink = sinks.newSink();
+						Lanes lanes = null;
+						for (int b = next.getAndIncrement(); b < batches; b = next.getAndIncrement()) {
+							if (lanes == null) {
+								lanes = new Lanes();
+							}
+							int first = b * LANES;
+							int count = Math.min(LANES, sources.size() - first);
+							sweep(lanes, sources, first, count);
+							sink.accept(lanes.cost, first, count);
+						}
+						return sink;
+					}
+				}));
+			}
+			List<Sink> ans = new ArrayList<Sink>(workers);
+			for (Future<Sink> f : done) {
+				try {
+					ans.add(f.get());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while sweeping", e);
+				} catch (ExecutionException e) {
+					throw new IllegalStateException("Sweeping failed", e.getCause());
+				}
+			}
+			return ans;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return for each source, the cost from it (to it, if reversed) of every
+	 *         node by Node.getIndex(), infinite where there is no route
+	 */
+	public float[][] distances(List<Node> sources) {
+		final float[][] ans = new float[sources.size()][];
+		final Sink sink = new Sink() {
+			public void accept(float[] cost, int first, int count) {
+				for (int k = 0; k < count; k++) {
+					float[] row = new float[numNodes];
+					for (int p = 0; p < numNodes; p++) {
+						row[nodeAt[p]] = cost[p * LANES + k];
+					}
+					ans[first + k] = row;
+				}
+			}
+		};
+		run(sources, new SinkFactory() {
+			public Sink newSink() {
+				return sink;
+			}
+		});
+		return ans;
+	}
+
+	/**
+	 * Nearest: The cheapest source of each node that one worker has seen, in
+	 * sweep order.
+	 */
+	private class Nearest implements Sink {
+
+		final float[] best = new float[numNodes];
+		final int[] source = new int[numNodes];
+
+		Nearest() {
+			Arrays.fill(best, Float.POSITIVE_INFINITY);
+			Arrays.fill(source, -1);
+		}
+
+		public void accept(float[] cost, int first, int count) {
+			for (int p = 0; p < numNodes; p++) {
+				for (int k = 0; k < count; k++) {
+					if (cost[p * LANES + k] < best[p]) {
+						best[p] = cost[p * LANES + k];
+						source[p] = first + k;
+					}
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Finds the cheapest source of every node, keeping only one cost per node
+	 * whatever the number of sources.
+	 *
+	 * @param nearest
+	 *            filled with the place in sources of the cheapest source of
+	 *            each node by Node.getIndex(), -1 where there is no route
+	 * @return the cost from (to, if reversed) the cheapest source of each
+	 *         node by Node.getIndex(), infinite where there is no route
+	 */
+	public float[] nearest(List<Node> sources, int[] nearest) {
+		List<Sink> found = run(sources, new SinkFactory() {
+			public Sink newSink() {
+				return new Nearest();
+			}
+		});
+		float[] ans = new float[numNodes];
+		Arrays.fill(ans, Float.POSITIVE_INFINITY);
+		Arrays.fill(nearest, 0, numNodes, -1);
+		for (Sink sink : found) {
+			Nearest n = (Nearest) sink;
+			for (int p = 0; p < numNodes; p++) {
+				int v = nodeAt[p];
+				// ties go to the earlier source, whichever worker had it
+				if (n.best[p] < ans[v] || n.best[p] == ans[v] && n.source[p] >= 0 && n.source[p] < nearest[v]) {
+					ans[v] = n.best[p];
+					nearest[v] = n.source[p];
+				}
+			}
+		}
+		return ans;
+	}
+
+	/**
+	 * @return for each source, the number of nodes at most the limit from it
+	 *         (to it, if reversed), itself included
+	 */
+	public int[] countWithin(List<Node> sources, final float limit) {
+		final int[] ans = new int[sources.size()];
+		final Sink sink = new Sink() {
+			public void accept(float[] cost, int first, int count) {
+				for (int k = 0; k < count; k++) {
+					int within = 0;
+					for (int p = 0; p < numNodes; p++) {
+						if (cost[p * LANES + k] <= limit) {
+							within++;
+						}
+					}
+					ans[first + k] = within;
+				}
+			}
+		};
+		run(sources, new SinkFactory() {
+			public Sink newSink() {
+				return sink;
+			}
+		});
+		return ans;
+	}
+
+	public boolean isReverse() {
+		return reverse;
+	}
+
+	public String toString() {
+		return String.format("%,d nodes, %,d arcs up and %,d down, %d lanes on %d threads", numNodes, upHead.length,
+				downTail.length, LANES, threads);
+	}
+
+	public static void main(String[] arguments) {
+		String dataDir = "../graph-data/";
+		String mode = "time";
+		String transportMode = "car";
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean reverse = false;
+		float within = Float.NaN;
+		String input = "-";
+		for (int i = 0; i < arguments.length; i++) {
+			String arg = arguments[i];
+			if (arg.equals("--to")) {
+				reverse = true;
+				continue;
+			}
+			if (arg.startsWith("--") && i + 1 >= arguments.length) {
+				System.err.println(USAGE);
+				return;
+			}
+			switch (arg) {
+			case "--data":
+				dataDir = arguments[++i];
+				break;
+			case "--mode":
+				mode = arguments[++i];
+				break;
+			case "--transport":
+				transportMode = arguments[++i];
+				break;
+			case "--threads":
+				threads = Integer.parseInt(arguments[++i]);
+				break;
+			case "--within":
+				within = Float.parseFloat(arguments[++i]);
+				break;
+			default:
+				input = arg;
+			}
+		}
+		CostModel model = CostModel.forName(mode);
+		if (model == null || threads < 1) {
+			System.err.println(USAGE);
+			return;
+		}
+		if (!dataDir.endsWith("/")) {
+			dataDir += "/";
+		}
+
+		// keep stdout for results only while the graph loads
+		PrintStream stdout = System.out;
+		System.setOut(System.err);
+		RoadGraph roadGraph = new RoadGraph();
+		System.err.print(roadGraph.loadData(dataDir));
+		System.setOut(stdout);
+
+		try {
+			List<Node> sources = new ArrayList<Node>();
+			BufferedReader in = new BufferedReader(input.equals("-") ? new InputStreamReader(System.in)
+					: new FileReader(input));
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				Node node = roadGraph.getNodes().get(Integer.parseInt(line));
+				if (node == null) {
+					throw new IOException("No such node: " + line);
+				}
+				sources.add(node);
+			}
+			in.close();
+
+			long start = System.nanoTime();
+			ContractionHierarchy hierarchy = new ContractionHierarchy(roadGraph, model, transportMode);
+			System.err.printf("Contracted in %.2fs: %s%n", (System.nanoTime() - start) / 1e9, hierarchy);
+			OneToAll engine = new OneToAll(hierarchy, reverse, threads);
+
+			start = System.nanoTime();
+			Writer out = new BufferedWriter(new OutputStreamWriter(stdout), 1 << 16);
+			if (Float.isNaN(within)) {
+				int[] nearest = new int[roadGraph.numNodes()];
+				float[] cost = engine.nearest(sources, nearest);
+				out.write("node,cost,source\n");
+				for (int v = 0; v < cost.length; v++) {
+					out.write(roadGraph.getNode(v).getID() + ",");
+					if (nearest[v] >= 0) {
+						out.write(cost[v] + "," + sources.get(nearest[v]).getID());
+					} else {
+						out.write(",");
+					}
+					out.write("\n");
+				}
+			} else {
+				int[] counts = engine.countWithin(sources, within);
+				out.write("source,nodes\n");
+				for (int i = 0; i < counts.length; i++) {
+					out.write(sources.get(i).getID() + "," + counts[i] + "\n");
+				}
+			}
+			out.flush();
+			double secs = (System.nanoTime() - start) / 1e9;
+			System.err.printf("Swept %,d sources in %.2fs (%,.0f/s) over %s%n", sources.size(), secs,
+					sources.size() / secs, engine);
+		} catch (IOException | NumberFormatException e) {
+			System.err.println("One-to-all failed: " + e);
+		}
+	}
+
+}
@@ -0,0 +1,329 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import utils.ModeGraph;
+import utils.Node;
+import utils.Segment;
+import utils.ShardFile;
+
+/**
+ * Partitioner: Splits a RoadGraph into shards for routing across several
+ * processes. The nodes are bisected recursively, by InertialFlowBisector or
+ * CellPartition.MedianBisector, until there are as many groups as shards, and
+ * each shard is written out as a ShardFile with the costs across it, from
+ * each segment into it to each segment out, worked out in advance. The same
+ * graph, shard count and strategy always give the same shards.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class Partitioner {
+
+	private static final String USAGE = "Usage: AucklandMapper --partition [--data dir] [--shards n]\n"
+			+ "         [--strategy inertial|median] [--balance f] [--transport car|bike|walking]\n"
+			+ "         [--threads n] [--out dir]\n"
+			+ "The number of shards must be a power of two. Inertial flow keeps at least the --balance\n"
+			+ "fraction (default 0.4) of each group on either side. Without --out only the report is printed.";
+
+	private final RoadGraph graph;
+	private final int shards;
+	// node index -> shard
+	private final int[] shardOf;
+
+	public Partitioner(RoadGraph graph, int shards, CellPartition.Bisector bisector) {
+		this.graph = graph;
+		this.shards = shards;
+		int n = graph.numNodes();
+		shardOf = new int[n];
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		bisect(bisector, order, 0, n, 0, shards);
+	}
+
+	private void bisect(CellPartition.Bisector bisector, int[] order, int from, int to, int firstShard, int count) {
+		if (count == 1 || to - from < 2) {
+			for (int i = from; i < to; i++) {
+				shardOf[order[i]] = firstShard;
+			}
+			return;
+		}
+		int mid = bisector.split(graph, order, from, to);
+		bisect(bisector, order, from, mid, firstShard, count / 2);
+		bisect(bisector, order, mid, to, firstShard + count / 2, count - count / 2);
+	}
+
+	public int getShard(Node node) {
+		return shardOf[node.getIndex()];
+	}
+
+	public int getShards() {
+		return shards;
+	}
+
+	/**
+	 * @return the number of (directed) segments between different shards
+	 */
+	public int getCutSize() {
+		int cut = 0;
+		for (int i = 0; i < graph.numSegments(); i++) {
+			Segment s = graph.getSegment(i);
+			if (getShard(s.getStartNode()) != getShard(s.getEndNode())) {
+				cut++;
+			}
+		}
+		return cut;
+	}
+
+	public int[] getShardSizes() {
+		int[] sizes = new int[shards];
+		for (int s : shardOf) {
+			sizes[s]++;
+		}
+		return sizes;
+	}
+
+	/**
+	 * @return the largest shard divided by the average shard, ie 1 for
+	 *         perfectly even shards
+	 */
+	public double getImbalance() {
+		int max = 0;
+		for (int size : getShardSizes()) {
+			max = Math.max(max, size);
+		}
+		return max / ((double) shardOf.length / shards);
+	}
+
+	public String report() {
+		int[] sizes = getShardSizes();
+		int min = Integer.MAX_VALUE;
+		int max = 0;
+		for (int size : sizes) {
+			min = Math.min(min, size);
+			max = Math.max(max, size);
+		}
+		return String.format("%d shards of %,d to %,d nodes, imbalance %.3f, cut %,d of %,d segments (%.2f%%)%n",
+				shards, min, max, getImbalance(), getCutSize(), graph.numSegments(),
+				100.0 * getCutSize() / Math.max(1, graph.numSegments()));
+	}
+
+	/**
+	 * Works out one shard's nodes, cut segments and the costs across it from
+	 * each entering cut segment to each leaving one.
+	 *
+	 * @param weights
+	 *            compiled from CostModel.DISTANCE, so segments
+	 *            the transport mode may not use are infinite
+	 */
+	public ShardFile buildShard(int shard, String transportMode, float[] weights) {
+		List<Node> members = new ArrayList<Node>();
+		for (int i = 0; i < shardOf.length; i++) {
+			if (shardOf[i] == shard) {
+				members.add(graph.getNode(i));
+			}
+		}
+		sortByID(members);
+		int[] nodes = new int[members.size()];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = members.get(i).getID();
+		}
+
+		// parallel cut segments are one, the shortest
+		ModeGraph modeGraph = graph.getModeGraph(transportMode);
+		Map<Long, Segment> entries = new LinkedHashMap<Long, Segment>();
+		Map<Long, Segment> exits = new LinkedHashMap<Long, Segment>();
+		for (Node node : members) {
+			for (Segment s : modeGraph.getIn(node)) {
+				if (weights[s.getID()] != Float.POSITIVE_INFINITY && getShard(s.getStartNode()) != shard) {
+					keepShortest(entries, s, weights);
+				}
+			}
+			for (Segment s : modeGraph.getOut(node)) {
+				if (weights[s.getID()] != Float.POSITIVE_INFINITY && getShard(s.getEndNode()) != shard) {
+					keepShortest(exits, s, weights);
+				}
+			}
+		}
+		int[] entryFrom = new int[entries.size()];
+		int[] entryTo = new int[entries.size()];
+		List<Node> entryEnds = new ArrayList<Node>();
+		int i = 0;
+		for (Segment s : entries.values()) {
+			entryFrom[i] = s.getStartNode().getID();
+			entryTo[i] = s.getEndNode().getID();
+			entryEnds.add(s.getEndNode());
+			i++;
+		}
+		int[] exitFrom = new int[exits.size()];
+		int[] exitTo = new int[exits.size()];
+		int[] exitShard = new int[exits.size()];
+		float[] exitLength = new float[exits.size()];
+		List<Node> exitStarts = new ArrayList<Node>();
+		i = 0;
+		for (Segment s : exits.values()) {
+			exitFrom[i] = s.getStartNode().getID();
+			exitTo[i] = s.getEndNode().getID();
+			exitShard[i] = getShard(s.getEndNode());
+			exitLength[i] = weights[s.getID()];
+			exitStarts.add(s.getStartNode());
+			i++;
+		}
+
+		boolean[] inside = new boolean[shardOf.length];
+		for (Node node : members) {
+			inside[node.getIndex()] = true;
+		}
+		ShardSearch search = new ShardSearch(graph, inside, modeGraph, weights,
+				transportMode.equals("car") ? graph.getTurnRestrictions() : null);
+		int x = exitFrom.length;
+		float[] costs = new float[entryFrom.length * x];
+		for (int e = 0; e < entryFrom.length; e++) {
+			search.forward(entryEnds.get(e), entryFrom[e], null, -1);
+			for (int j = 0; j < x; j++) {
+				costs[e * x + j] = (float) (search.costTo(exitStarts.get(j), exitTo[j]) + exitLength[j]);
+			}
+		}
+		return new ShardFile(shard, shards, transportMode, nodes, entryFrom, entryTo, exitFrom, exitTo, exitShard,
+				exitLength, costs);
+	}
+
+	private static void keepShortest(Map<Long, Segment> cut, Segment s, float[] weights) {
+		Long key = ((long) s.getStartNode().getID() << 32) | (s.getEndNode().getID() & 0xffffffffL);
+		Segment old = cut.get(key);
+		if (old == null || weights[s.getID()] < weights[old.getID()]) {
+			cut.put(key, s);
+		}
+	}
+
+	private static void sortByID(List<Node> nodes) {
+		Collections.sort(nodes, new Comparator<Node>() {
+			public int compare(Node a, Node b) {
+				return Integer.compare(a.getID(), b.getID());
+			}
+		});
+	}
+
+	/**
+	 * Builds and writes every shard, several at a time.
+	 */
+	public void writeShards(final String directory, final String transportMode, int threads) throws IOException {
+		final float[] weights = graph.getWeights(CostModel.DISTANCE, transportMode);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Void>> done = new ArrayList<Future<Void>>();
+		try {
+			for (int s = 0; s < shards; s++) {
+				final int shard = s;
+				done.add(pool.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						ShardFile file = buildShard(shard, transportMode, weights);
+						file.write(ShardFile.fileFor(directory, shard));
+						System.out.printf("shard %d: %,d nodes, %,d cut segments in, %,d out%n", shard,
+								file.getNodes().length, file.numEntries(), file.numExits());
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> f : done) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing shards", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Failed to build shards", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public static void main(String[] arguments) {
+		String dataDir = "../graph-data/";
+		int shards = 8;
+		String strategy = "inertial";
+		double balance = 0.4;
+		String transportMode = "car";
+		int threads = Runtime.getRuntime().availableProcessors();
+		String outDir = null;
+		for (int i = 0; i < arguments.length; i++) {
+			String arg = arguments[i];
+			if (i + 1 >= arguments.length) {
+				System.err.println(USAGE);
+				return;
+			}
+			switch (arg) {
+			case "--data":
+				dataDir = arguments[++i];
+				break;
+			case "--shards":
+				shards = Integer.parseInt(arguments[++i]);
+				break;
+			case "--strategy":
+				strategy = arguments[++i];
+				break;
+			case "--balance":
+				balance = Double.parseDouble(arguments[++i]);
+				break;
+			case "--transport":
+				transportMode = arguments[++i];
+				break;
+			case "--threads":
+				threads = Integer.parseInt(arguments[++i]);
+				break;
+			case "--out":
+				outDir = arguments[++i];
+				break;
+			default:
+				System.err.println(USAGE);
+				return;
+			}
+		}
+		if (shards < 1 || Integer.bitCount(shards) != 1 || threads < 1 || !(balance > 0 && balance <= 0.5)
+				|| !(strategy.equals("inertial") || strategy.equals("median"))
+				|| !(transportMode.equals("car") || transportMode.equals("bike") || transportMode.equals("walking"))) {
+			System.err.println(USAGE);
+			return;
+		}
+		if (!dataDir.endsWith("/")) {
+			dataDir += "/";
+		}
+		RoadGraph graph = new RoadGraph();
+		System.out.print(graph.loadData(dataDir));
+
+		long start = System.nanoTime();
+		CellPartition.Bisector bisector = strategy.equals("inertial") ? new InertialFlowBisector(balance)
+				: new CellPartition.MedianBisector();
+		Partitioner partitioner = new Partitioner(graph, shards, bisector);
+		System.out.printf("Partitioned with %s bisection in %.2fs%n", strategy, (System.nanoTime() - start) / 1e9);
+		System.out.print(partitioner.report());
+		if (outDir != null) {
+			new File(outDir).mkdirs();
+			start = System.nanoTime();
+			try {
+				partitioner.writeShards(outDir, transportMode, threads);
+			} catch (IOException e) {
+				System.out.println("Failed to write shards: " + e);
+				return;
+			}
+			System.out.printf("Wrote %d shards to %s in %.2fs%n", shards, outDir, (System.nanoTime() - start) / 1e9);
+		}
+	}
+
+}
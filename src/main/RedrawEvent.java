@@ -0,0 +1,28 @@
+package main;
+
+import jdk.jfr.Category;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * RedrawEvent: A Flight Recorder event covering one repaint of the map.
+ * Disabled by default.
+ * 
+ * @author harryross
+ * @version 1.1
+ */
+@Name("auckland.Redraw")
+@Label("Map Redraw")
+@Category({ "Auckland Mapper", "Paint" })
+@Enabled(false)
+public class RedrawEvent extends Event {
+
+	@Label("Segments Drawn")
+	public int segments;
+
+	@Label("Scale")
+	public double scale;
+
+}
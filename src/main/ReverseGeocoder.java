@@ -0,0 +1,299 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import utils.Location;
+import utils.Road;
+import utils.Segment;
+import utils.SegmentGrid;
+
+/**
+ * ReverseGeocoder: Finds the nearest road to each of any number of points,
+ * with its full name, road class and how far away it is. The drawn shape of
+ * every road is indexed in a SegmentGrid, and each point is projected as
+ * Location.newFromLatLon would, without making a Location, and looked up by
+ * searching outwards from its cell, so a lookup allocates nothing and only
+ * measures the roads nearby.
+ *
+ * The bulk lookup fills arrays given by the caller. The command line tool
+ * reads points in batches, looks the batches up in parallel with only a fixed
+ * window in flight, and writes the results in input order.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class ReverseGeocoder {
+
+	private static final String USAGE = "Usage: AucklandMapper --geocode [--data dir] [--max-distance m]\n"
+			+ "         [--threads n] [input|-]\n"
+			+ "Each input line is 'lat,lon'. Any further fields are ignored.";
+
+	/** Points read and looked up together */
+	public static final int BATCH = 8192;
+
+	// the width of a grid cell in kilometres
+	private static final double CELL_SIZE = 0.1;
+
+	private final RoadGraph graph;
+	private final SegmentGrid grid;
+	private final double maxDistance;
+	// the CSV field for each road name, by full name ID
+	private final String[] csvNames;
+
+	/**
+	 * @param maxDistance
+	 *            how far from a point a road may be, in kilometres
+	 */
+	public ReverseGeocoder(RoadGraph graph, double maxDistance) {
+		this.graph = graph;
+		this.maxDistance = maxDistance;
+		List<Segment> segments = new ArrayList<Segment>();
+		int names = 0;
+		for (Road road : graph.getRoads()) {
+			// a road's reversed segments have the same shape
+			segments.addAll(road.getSegments());
+			names = Math.max(names, road.getFullNameID() + 1);
+		}
+		this.grid = new SegmentGrid(segments, CELL_SIZE);
+		this.csvNames = new String[names];
+		for (Road road : graph.getRoads()) {
+			String name = road.getFullName();
+			if (name.indexOf(',') >= 0 || name.indexOf('"') >= 0) {
+				name = '"' + name.replace("\"", "\"\"") + '"';
+			}
+			csvNames[road.getFullNameID()] = name;
+		}
+	}
+
+	/**
+	 * Finds the nearest road to each of the first count points.
+	 *
+	 * @param roads
+	 *            filled with the ID of each point's nearest road, -1 where
+	 *            there is none within the maximum distance or the point is
+	 *            not a number
+	 * @param distances
+	 *            filled with how far each point is from its road, in
+	 *            kilometres
+	 */
+	public void geocode(double[] lats, double[] lons, int count, int[] roads, float[] distances) {
+		for (int i = 0; i < count; i++) {
+			double x = Location.xFromLatLon(lats[i], lons[i]);
+			double y = Location.yFromLatLon(lats[i]);
+			int piece = grid.nearestPiece(x, y, maxDistance);
+			if (piece < 0) {
+				roads[i] = -1;
+				distances[i] = Float.NaN;
+			} else {
+				roads[i] = grid.getSegment(piece).getRoad().getID();
+				distances[i] = (float) grid.distanceToPiece(piece, x, y);
+			}
+		}
+	}
+
+	/**
+	 * @return the nearest road to a point, null if there is none within the
+	 *         maximum distance
+	 */
+	public Road geocode(double lat, double lon) {
+		int piece = grid.nearestPiece(Location.xFromLatLon(lat, lon), Location.yFromLatLon(lat), maxDistance);
+		return piece < 0 ? null : grid.getSegment(piece).getRoad();
+	}
+
+	/**
+	 * Batch: Points read together, by line number, and their results.
+	 */
+	private static class Batch {
+
+		final long[] lines = new long[BATCH];
+		final double[] lats = new double[BATCH];
+		final double[] lons = new double[BATCH];
+		final int[] roads = new int[BATCH];
+		final float[] distances = new float[BATCH];
+		int size;
+
+	}
+
+	/**
+	 * Looks up every point of the input and writes one result per point, in
+	 * input order. Lines that are not a point are written as bad_input.
+	 *
+	 * @return the number of points looked up
+	 */
+	public long run(BufferedReader in, Writer out, int threads) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		int window = threads * 4;
+		Deque<Future<String>> inFlight = new ArrayDeque<Future<String>>(window);
+		long lineNo = 0;
+		long points = 0;
+		try {
+			out.write("line,road,name,class,distance_m\n");
+			Batch batch = new Batch();
+			while (true) {
+				String line = in.readLine();
+				if (line != null) {
+					lineNo++;
+					if (line.isEmpty() || line.charAt(0) == '#') {
+						continue;
+					}
+					batch.lines[batch.size] = lineNo;
+					if (!parse(line, batch)) {
+						batch.lats[batch.size] = Double.NaN;
+					}
+					batch.size++;
+				}
+				if (batch.size == BATCH || line == null && batch.size > 0) {
+					final Batch b = batch;
+					inFlight.add(pool.submit(new Callable<String>() {
+						public String call() {
+							geocode(b.lats, b.lons, b.size, b.roads, b.distances);
+							return format(b);
+						}
+					}));
+					points += batch.size;
+					batch = new Batch();
+					if (inFlight.size() >= window) {
+						out.write(take(inFlight.poll()));
+					}
+				}
+				if (line == null) {
+					break;
+				}
+			}
+			while (!inFlight.isEmpty()) {
+				out.write(take(inFlight.poll()));
+			}
+			out.flush();
+		} finally {
+			pool.shutdownNow();
+		}
+		return points;
+	}
+
+	/**
+	 * Reads the latitude and longitude at the start of a line into the next
+	 * place in the batch.
+	 *
+	 * @return false if they are not there
+	 */
+	private static boolean parse(String line, Batch batch) {
+		int comma = line.indexOf(',');
+		if (comma < 0) {
+			return false;
+		}
+		int end = line.indexOf(',', comma + 1);
+		try {
+			batch.lats[batch.size] = Double.parseDouble(line.substring(0, comma).trim());
+			batch.lons[batch.size] = Double.parseDouble(line.substring(comma + 1, end < 0 ? line.length() : end)
+					.trim());
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private String take(Future<String> result) throws IOException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while geocoding", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Geocoding failed", e.getCause());
+		}
+	}
+
+	private String format(Batch b) {
+		StringBuilder s = new StringBuilder(40 * b.size);
+		for (int i = 0; i < b.size; i++) {
+			s.append(b.lines[i]).append(',');
+			if (Double.isNaN(b.lats[i])) {
+				s.append("bad_input,,,\n");
+			} else if (b.roads[i] < 0) {
+				s.append(",,,\n");
+			} else {
+				Road road = graph.getRoad(b.roads[i]);
+				s.append(road.getID()).append(',').append(csvNames[road.getFullNameID()]).append(',');
+				s.append(road.getRoadclass()).append(',');
+				// to the decimetre, without String.format
+				long decimetres = Math.round(b.distances[i] * 10000.0);
+				s.append(decimetres / 10).append('.').append(decimetres % 10).append('\n');
+			}
+		}
+		return s.toString();
+	}
+
+	public static void main(String[] arguments) {
+		String dataDir = "../graph-data/";
+		double maxDistance = 1000;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String input = "-";
+		for (int i = 0; i < arguments.length; i++) {
+			String arg = arguments[i];
+			if (arg.startsWith("--") && i + 1 >= arguments.length) {
+				System.err.println(USAGE);
+				return;
+			}
+			switch (arg) {
+			case "--data":
+				dataDir = arguments[++i];
+				break;
+			case "--max-distance":
+				maxDistance = Double.parseDouble(arguments[++i]);
+				break;
+			case "--threads":
+				threads = Integer.parseInt(arguments[++i]);
+				break;
+			default:
+				input = arg;
+			}
+		}
+		if (maxDistance <= 0 || threads < 1) {
+			System.err.println(USAGE);
+			return;
+		}
+		if (!dataDir.endsWith("/")) {
+			dataDir += "/";
+		}
+
+		// keep stdout for results only while the graph loads
+		PrintStream stdout = System.out;
+		System.setOut(System.err);
+		RoadGraph roadGraph = new RoadGraph();
+		System.err.print(roadGraph.loadData(dataDir));
+		System.setOut(stdout);
+
+		ReverseGeocoder geocoder = new ReverseGeocoder(roadGraph, maxDistance / 1000);
+		System.err.printf("Indexed %,d pieces of road%n", geocoder.grid.numPieces());
+		long start = System.nanoTime();
+		try {
+			BufferedReader in = new BufferedReader(input.equals("-") ? new InputStreamReader(System.in)
+					: new FileReader(input), 1 << 16);
+			Writer out = new BufferedWriter(new OutputStreamWriter(stdout), 1 << 16);
+			long points = geocoder.run(in, out, threads);
+			in.close();
+			double secs = (System.nanoTime() - start) / 1e9;
+			System.err.printf("Geocoded %,d points in %.2fs (%,.0f/s, %,.0f/min) on %d threads%n", points, secs,
+					points / secs, points / secs * 60, threads);
+		} catch (IOException e) {
+			System.err.println("Geocoding failed: " + e);
+		}
+	}
+
+}
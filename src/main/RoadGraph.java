@@ -8,17 +8,31 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import utils.HilbertCurve;
 import utils.Location;
+import utils.ModeGraph;
+import utils.NodeGrid;
+import utils.PolygonStore;
+import utils.PolylineStore;
 import utils.Node;
 import utils.Restriction;
 import utils.Road;
 import utils.Segment;
+import utils.SpeedProfiles;
+import utils.StringTable;
+import utils.TrafficSnapshot;
+import utils.TurnRestrictions;
 
 /**
  * RoadGraph data structure containing nodes and their connections.
@@ -32,37 +46,130 @@ public class RoadGraph {
 	// nodeID
 	private Map<Integer, Node> nodes = new HashMap<Integer, Node>();
 
+	// the same nodes in order of Node.getIndex()
+	private List<Node> nodeList = new ArrayList<Node>();
+
 	// the map of roads, hashed by the roadID
 	private Map<Integer, Road> roads = new HashMap<Integer, Road>();;
 
-	// the map of roads, hashed by name (for the trie)
-	private Map<String, Set<Road>> roadsByName = new HashMap<String, Set<Road>>();;
+	// every road name, city and full name, shared by the roads
+	private StringTable roadNames = new StringTable();
 
-	private Set<String> roadNames = new HashSet<String>();
+	// the map of roads, hashed by full name ID (for the trie)
+	private Map<Integer, Set<Road>> roadsByName = new HashMap<Integer, Set<Road>>();
 
 	private Set<Restriction> restrictionSet = new HashSet<Restriction>();
+	// the same restrictions indexed by intersection
+	private TurnRestrictions turnRestrictions = new TurnRestrictions(restrictionSet);
+
+	// the coords of every segment, packed
+	private PolylineStore polylines = new PolylineStore();
+
+	// every directed segment in order of Segment.getID()
+	private List<Segment> segmentList = new ArrayList<Segment>();
+	// the nodes to load, or null for all of them
+	private Set<Integer> onlyNodes;
+
+	// hourly speed profiles for departure-time routing, flat unless loaded
+	private SpeedProfiles speedProfiles = new SpeedProfiles();
+
+	// background shapes for drawing, null if there are none
+	private PolygonStore polygons;
+
+	// live speed and closure overrides
+	private TrafficManager traffic = new TrafficManager(this);
+
+	// the index and ID each node and segment was loaded with, by their
+	// current index and ID, or null if they have not been reordered
+	private int[] loadIndex;
+	private int[] loadID;
+
+	// spatial index for nearest node lookups, built on first use
+	private NodeGrid nodeGrid;
+
+	// the segments each transport mode may use, by transport mode
+	private Map<String, ModeGraph> modeGraphs = new HashMap<String, ModeGraph>();
+
+	// compiled cost model weights by model and transport mode
+	private Map<String, CompiledWeights> compiledWeights = new ConcurrentHashMap<String, CompiledWeights>();
+
+	private static class CompiledWeights {
+		final TrafficSnapshot traffic;
+		final float[] weights;
+
+		CompiledWeights(TrafficSnapshot traffic, float[] weights) {
+			this.traffic = traffic;
+			this.weights = weights;
+		}
+	}
 
 	public String loadData(String dataDirectory) {
 		String report = "";
 		System.out.println("Loading roads...");
 		loadRoads(dataDirectory);
 		report += String.format("Loaded %,d roads, with %,d distinct road names%n", roads.entrySet().size(),
-				roadNames.size());
+				roadsByName.size());
+		if (loadSpeedProfiles(dataDirectory)) {
+			report += String.format("Loaded %,d distinct speed profiles%n", speedProfiles.size() - 1);
+		}
 		System.out.println("Loading intersections...");
 		loadNodes(dataDirectory);
 		report += String.format("Loaded %,d intersections%n", nodes.entrySet().size());
 		System.out.println("Loading road segments...");
 		loadSegments(dataDirectory);
-		report += String.format("Loaded %,d road segments%n", numSegments());
+		buildModeGraphs();
+		int walkingOnly = 0;
+		for (Segment s : segmentList) {
+			if (s.isWalkingOnly()) {
+				walkingOnly++;
+			}
+		}
+		report += String.format("Loaded %,d road segments, of which %,d are walking only copies of one way roads%n",
+				numSegments(), walkingOnly);
+		report += String.format("  coords: %s%n", polylines);
+		for (ModeGraph g : modeGraphs.values()) {
+			report += String.format("  %s%n", g);
+		}
+		System.out.println("Loading restrictions...");
+		loadRestrictions(dataDirectory);
+		report += String.format("Loaded %,d turn restrictions%n", restrictionSet.size());
+		if (loadPolygons(dataDirectory)) {
+			report += String.format("Loaded %s%n", polygons);
+		}
 		return report;
 	}
 
+	/**
+	 * Loads the given nodes and the segments between them, for a process that
+	 * only routes inside one part of the graph. Every road is loaded, and the
+	 * restrictions on turns at the part's nodes, but segments with an end
+	 * outside the part and the background shapes are not.
+	 */
+	public String loadPart(String dataDirectory, Set<Integer> nodeIDs) {
+		onlyNodes = nodeIDs;
+		try {
+			loadRoads(dataDirectory);
+			loadSpeedProfiles(dataDirectory);
+			loadNodes(dataDirectory);
+			loadSegments(dataDirectory);
+			loadRestrictions(dataDirectory);
+			buildModeGraphs();
+		} finally {
+			onlyNodes = null;
+		}
+		return String.format("Loaded %,d of %,d intersections, %,d road segments and %,d turn restrictions%n",
+				nodes.size(), nodeIDs.size(), numSegments(), restrictionSet.size());
+	}
+
 	public void loadRoads(String dataDirectory) {
 		File roadFile = new File(dataDirectory + "roadID-roadInfo.tab");
 		if (!roadFile.exists()) {
 			System.out.println("roadID-roadInfo.tab not found");
 			return;
 		}
+		LoadEvent event = new LoadEvent();
+		event.begin();
+		int records = 0;
 		BufferedReader data;
 		try {
 			data = new BufferedReader(new FileReader(roadFile));
@@ -72,20 +179,25 @@ public class RoadGraph {
 				if (line == null) {
 					break;
 				}
-				Road road = new Road(line);
+				records++;
+				Road road = new Road(line, roadNames);
 				roads.put(road.getID(), road);
-				String fullName = road.getFullName();
-				roadNames.add(fullName);
-				Set<Road> rds = roadsByName.get(fullName);
+				Set<Road> rds = roadsByName.get(road.getFullNameID());
 				if (rds == null) {
 					rds = new HashSet<Road>(4);
-					roadsByName.put(fullName, rds);
+					roadsByName.put(road.getFullNameID(), rds);
 				}
 				rds.add(road);
 			}
 		} catch (IOException e) {
 			System.out.println("Failed to open roadID-roadInfo.tab: " + e);
 		}
+		if (event.shouldCommit()) {
+			event.file = "roadID-roadInfo.tab";
+			event.records = records;
+			event.bytes = roadFile.length();
+			event.commit();
+		}
 	}
 
 	public void loadNodes(String dataDirectory) {
@@ -94,6 +206,9 @@ public class RoadGraph {
 			System.out.println("nodeID-lat-lon.tab not found");
 			return;
 		}
+		LoadEvent event = new LoadEvent();
+		event.begin();
+		int records = 0;
 		BufferedReader data;
 		try {
 			data = new BufferedReader(new FileReader(nodeFile));
@@ -102,12 +217,24 @@ public class RoadGraph {
 				if (line == null) {
 					break;
 				}
+				records++;
 				Node node = new Node(line);
+				if (onlyNodes != null && !onlyNodes.contains(node.getID())) {
+					continue;
+				}
+				node.setIndex(nodeList.size());
 				nodes.put(node.getID(), node);
+				nodeList.add(node);
 			}
 		} catch (IOException e) {
 			System.out.println("Failed to open roadID-roadInfo.tab: " + e);
 		}
+		if (event.shouldCommit()) {
+			event.file = "nodeID-lat-lon.tab";
+			event.records = records;
+			event.bytes = nodeFile.length();
+			event.commit();
+		}
 	}
 
 	public void loadSegments(String dataDirectory) {
@@ -116,6 +243,9 @@ public class RoadGraph {
 			System.out.println("roadSeg-roadID-length-nodeID-nodeID-coords.tab not found");
 			return;
 		}
+		LoadEvent event = new LoadEvent();
+		event.begin();
+		int records = 0;
 		BufferedReader data;
 		try {
 			data = new BufferedReader(new FileReader(segFile));
@@ -125,7 +255,13 @@ public class RoadGraph {
 				if (line == null) {
 					break;
 				}
-				Segment seg = new Segment(line, roads, nodes);
+				records++;
+				if (onlyNodes != null && !bothEndsLoaded(line)) {
+					continue;
+				}
+				Segment seg = new Segment(line, roads, nodes, polylines);
+				seg.setID(segmentList.size());
+				segmentList.add(seg);
 				Node node1 = seg.getStartNode();
 				Node node2 = seg.getEndNode();
 				node1.addOutSegment(seg);
@@ -134,13 +270,169 @@ public class RoadGraph {
 				road.addSegment(seg);
 				if (!road.isOneWay()) {
 					Segment revSeg = seg.reverse();
+					revSeg.setID(segmentList.size());
+					segmentList.add(revSeg);
 					node2.addOutSegment(revSeg);
 					node1.addInSegment(revSeg);
+				} else if (!road.isNotForPedestrians()) {
+					// pedestrians may walk either way, but it is left out of
+					// the nodes' lists so nothing else sees it
+					Segment revSeg = seg.reverseForWalking();
+					revSeg.setID(segmentList.size());
+					segmentList.add(revSeg);
 				}
 			}
 		} catch (IOException e) {
 			System.out.println("Failed to open roadID-roadInfo.tab: " + e);
 		}
+		polylines.trim();
+		if (event.shouldCommit()) {
+			event.file = "roadSeg-roadID-length-nodeID-nodeID-coords.tab";
+			event.records = records;
+			event.bytes = segFile.length();
+			event.commit();
+		}
+	}
+
+	/**
+	 * Builds the car, bike and walking graphs, sharing per node arrays
+	 * between them where they match.
+	 */
+	void buildModeGraphs() {
+		ModeGraph car = new ModeGraph("car", nodeList.size(), segmentList);
+		ModeGraph bike = new ModeGraph("bike", nodeList.size(), segmentList, car);
+		ModeGraph walking = new ModeGraph("walking", nodeList.size(), segmentList, car, bike);
+		modeGraphs = new LinkedHashMap<String, ModeGraph>();
+		modeGraphs.put("car", car);
+		modeGraphs.put("bike", bike);
+		modeGraphs.put("walking", walking);
+	}
+
+	/**
+	 * @return the segments the transport mode ("car", "bike" or "walking") may
+	 *         use, which for walking include both ways along one way roads
+	 */
+	public ModeGraph getModeGraph(String transportMode) {
+		ModeGraph g = modeGraphs.get(transportMode);
+		if (g == null) {
+			throw new IllegalArgumentException("Unknown transport mode: " + transportMode);
+		}
+		return g;
+	}
+
+	/**
+	 * Renumbers the nodes in order along a Hilbert curve over their
+	 * locations, and the segments in order of their start nodes, so that
+	 * nodes close together on the map are close together in every array
+	 * indexed by Node.getIndex() or Segment.getID(), and are drawn in that
+	 * order. Node IDs are not changed, and getLoadIndex() and getLoadID() give
+	 * the numbers from before. It must be done straight after loading, before
+	 * anything has kept an index or any traffic has been published.
+	 *
+	 * @return a report of how far apart the ends of a segment are in the node
+	 *         arrays, before and after
+	 */
+	public String reorderAlongHilbertCurve() {
+		if (traffic.getVersion() > 0) {
+			throw new IllegalStateException("Nodes must be reordered before any traffic is published");
+		}
+		double before = getMeanIndexGap();
+		List<Location> locations = new ArrayList<Location>(nodeList.size());
+		for (Node node : nodeList) {
+			locations.add(node.getLoc());
+		}
+		HilbertCurve curve = new HilbertCurve(locations);
+		final long[] key = new long[nodeList.size()];
+		for (Node node : nodeList) {
+			key[node.getIndex()] = curve.indexOf(node.getLoc());
+		}
+		List<Node> order = new ArrayList<Node>(nodeList);
+		Collections.sort(order, new Comparator<Node>() {
+			public int compare(Node a, Node b) {
+				return Long.compare(key[a.getIndex()], key[b.getIndex()]);
+			}
+		});
+		int[] oldIndex = new int[order.size()];
+		for (int i = 0; i < order.size(); i++) {
+			oldIndex[i] = getLoadIndex(order.get(i));
+		}
+		for (int i = 0; i < order.size(); i++) {
+			order.get(i).setIndex(i);
+		}
+		nodeList = order;
+		loadIndex = oldIndex;
+
+		// a segment and its reversed copy move together, so the copy still
+		// comes straight after the original
+		List<Segment> firsts = new ArrayList<Segment>();
+		for (Segment seg : segmentList) {
+			if (!isReversedCopy(seg)) {
+				firsts.add(seg);
+			}
+		}
+		Collections.sort(firsts, new Comparator<Segment>() {
+			public int compare(Segment a, Segment b) {
+				return Integer.compare(a.getStartNode().getIndex(), b.getStartNode().getIndex());
+			}
+		});
+		List<Segment> oldList = segmentList;
+		List<Segment> newList = new ArrayList<Segment>(oldList.size());
+		int[] oldID = new int[oldList.size()];
+		for (Segment seg : firsts) {
+			int next = seg.getID() + 1;
+			oldID[newList.size()] = getLoadID(seg);
+			newList.add(seg);
+			if (next < oldList.size() && isReversedCopy(oldList.get(next))) {
+				oldID[newList.size()] = getLoadID(oldList.get(next));
+				newList.add(oldList.get(next));
+			}
+		}
+		for (int i = 0; i < newList.size(); i++) {
+			newList.get(i).setID(i);
+		}
+		segmentList = newList;
+		loadID = oldID;
+
+		nodeGrid = null;
+		compiledWeights.clear();
+		buildModeGraphs();
+		return String.format("Reordered %,d nodes and %,d segments along a Hilbert curve, "
+				+ "mean index gap %,.1f -> %,.1f%n", nodeList.size(), segmentList.size(), before, getMeanIndexGap());
+	}
+
+	/**
+	 * @return true if the segment is the reversed copy of the one before it
+	 */
+	private boolean isReversedCopy(Segment seg) {
+		int id = seg.getID();
+		return id > 0 && segmentList.get(id - 1).sharesCoords(seg);
+	}
+
+	/**
+	 * @return the mean distance between the indexes of the start and end node
+	 *         of a segment, a measure of how scattered a search's memory
+	 *         accesses are
+	 */
+	public double getMeanIndexGap() {
+		long gap = 0;
+		for (Segment seg : segmentList) {
+			gap += Math.abs(seg.getStartNode().getIndex() - seg.getEndNode().getIndex());
+		}
+		return segmentList.isEmpty() ? 0 : (double) gap / segmentList.size();
+	}
+
+	/**
+	 * @return the index the node had when it was loaded
+	 */
+	public int getLoadIndex(Node node) {
+		return loadIndex == null ? node.getIndex() : loadIndex[node.getIndex()];
+	}
+
+	/**
+	 * @return the ID the segment had when it was loaded
+	 */
+	public int getLoadID(Segment seg) {
+		return loadID == null ? seg.getID() : loadID[seg.getID()];
 	}
 
 	public void loadRestrictions(String dataDirectory) {
@@ -149,6 +441,9 @@ public class RoadGraph {
 			System.out.println("restrictions.tab not found");
 			return;
 		}
+		LoadEvent event = new LoadEvent();
+		event.begin();
+		int records = 0;
 		BufferedReader data;
 		try {
 			data = new BufferedReader(new FileReader(segFile));
@@ -158,14 +453,98 @@ public class RoadGraph {
 				if (line == null) {
 					break;
 				}
-				Restriction r = new Restriction(data.readLine());
-				restrictionSet.add(r);
+				records++;
+				Restriction r = new Restriction(line);
+				if (onlyNodes == null || onlyNodes.contains(r.getNode())) {
+					restrictionSet.add(r);
+				}
 			}
 		} catch (IOException e) {
-			System.out.println("Failed to open roadID-roadInfo.tab: " + e);
+			System.out.println("Failed to open restrictions.tab: " + e);
+		}
+		turnRestrictions = new TurnRestrictions(restrictionSet);
+		if (event.shouldCommit()) {
+			event.file = "restrictions.tab";
+			event.records = records;
+			event.bytes = segFile.length();
+			event.commit();
 		}
 	}
 
+	/**
+	 * Loads the optional hourly speed profiles and assigns them to the roads,
+	 * which must already be loaded.
+	 * 
+	 * @return true if there was a profile file
+	 */
+	public boolean loadSpeedProfiles(String dataDirectory) {
+		File profileFile = new File(dataDirectory + "speed-profiles.tab");
+		if (!profileFile.exists()) {
+			return false;
+		}
+		LoadEvent event = new LoadEvent();
+		event.begin();
+		int records = 0;
+		BufferedReader data;
+		try {
+			data = new BufferedReader(new FileReader(profileFile));
+			data.readLine(); // get rid of headers
+			while (true) {
+				String line = data.readLine();
+				if (line == null) {
+					break;
+				}
+				records++;
+				speedProfiles.addLine(line);
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			System.out.println("Failed to read speed-profiles.tab: " + e);
+		}
+		speedProfiles.assign(roads.values());
+		if (event.shouldCommit()) {
+			event.file = "speed-profiles.tab";
+			event.records = records;
+			event.bytes = profileFile.length();
+			event.commit();
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the background shapes, if there is a polygon file.
+	 *
+	 * @return true if they were read
+	 */
+	public boolean loadPolygons(String dataDirectory) {
+		File polygonFile = new File(dataDirectory + "polygon-shapes.mp");
+		if (!polygonFile.exists()) {
+			return false;
+		}
+		System.out.println("Loading polygons...");
+		LoadEvent event = new LoadEvent();
+		event.begin();
+		try (BufferedReader data = new BufferedReader(new FileReader(polygonFile))) {
+			polygons = PolygonStore.read(data);
+		} catch (IOException | IllegalArgumentException e) {
+			System.out.println("Failed to read polygon-shapes.mp: " + e);
+			return false;
+		}
+		if (event.shouldCommit()) {
+			event.file = "polygon-shapes.mp";
+			event.records = polygons.size();
+			event.bytes = polygonFile.length();
+			event.commit();
+		}
+		return true;
+	}
+
+	/**
+	 * @return the background shapes, null if none were loaded
+	 */
+	public PolygonStore getPolygons() {
+		return polygons;
+	}
+
 	public double[] getBoundaries() {
 		double west = Double.POSITIVE_INFINITY;
 		double east = Double.NEGATIVE_INFINITY;
@@ -191,46 +570,77 @@ public class RoadGraph {
 	}
 
 	public void checkNodes() {
-		for (Node node : nodes.values()) {
+		for (Node node : nodeList) {
 			if (node.getOutNeighbours().isEmpty() && node.getInNeighbours().isEmpty()) {
 				System.out.println("Orphan: " + node);
 			}
 		}
 	}
 
+	/**
+	 * @return true if both nodes of a line of the segment file are loaded
+	 */
+	private boolean bothEndsLoaded(String line) {
+		String[] values = line.split("\t", 5);
+		return nodes.containsKey(Integer.parseInt(values[2])) && nodes.containsKey(Integer.parseInt(values[3]));
+	}
+
+	/**
+	 * @return the number of directed segments, ie reversed copies of two way
+	 *         segments and the walking only copies of one way segments are
+	 *         counted separately
+	 */
 	public int numSegments() {
-		int ans = 0;
-		for (Node node : nodes.values()) {
-			ans += node.getOutNeighbours().size();
-		}
-		return ans;
+		return segmentList.size();
 	}
 
-	public void redraw(Graphics g, Location origin, double scale) {
+	/**
+	 * Draws every segment and node, with closed segments in orange.
+	 * 
+	 * @return the number of segments drawn
+	 */
+	public int redraw(Graphics g, Location origin, double scale) {
+		int drawn = 0;
 		g.setColor(Color.black);
-		for (Node node : nodes.values()) {
+		for (Node node : nodeList) {
 			for (Segment seg : node.getOutNeighbours()) {
 				seg.draw(g, origin, scale);
+				drawn++;
+			}
+		}
+		TrafficSnapshot snapshot = traffic.getSnapshot();
+		if (snapshot.getOverrides() > 0) {
+			g.setColor(Color.orange);
+			for (Segment seg : segmentList) {
+				if (snapshot.isClosed(seg)) {
+					seg.draw(g, origin, scale);
+				}
 			}
 		}
 		g.setColor(Color.blue);
-		for (Node node : nodes.values()) {
+		for (Node node : nodeList) {
 			node.draw(g, origin, scale);
 		}
+		return drawn;
 	}
 
 	public Node findNode(Point point, Location origin, double scale) {
 		Location mousePlace = Location.newFromPoint(point, origin, scale);
-		Node closestNode = null;
-		double mindist = Double.POSITIVE_INFINITY;
-		for (Node node : nodes.values()) {
-			double dist = node.distanceTo(mousePlace);
-			if (dist < mindist) {
-				mindist = dist;
-				closestNode = node;
-			}
+		return findNearestNode(mousePlace);
+	}
+
+	/**
+	 * Returns the node closest to a location, null if there are no nodes.
+	 */
+	public Node findNearestNode(Location loc) {
+		return getNodeGrid().nearest(loc);
+	}
+
+	public synchronized NodeGrid getNodeGrid() {
+		if (nodeGrid == null) {
+			nodeGrid = new NodeGrid(nodeList, 0.5);
 		}
-		return closestNode;
+		return nodeGrid;
 	}
 
 	/**
@@ -242,7 +652,8 @@ public class RoadGraph {
 		if (query == null)
 			return null;
 		query = query.toLowerCase();
-		for (String name : roadNames) {
+		for (int id : roadsByName.keySet()) {
+			String name = roadNames.get(id);
 			if (name.equals(query)) { // this is the right answer
 				ans.clear();
 				ans.add(name);
@@ -263,7 +674,7 @@ public class RoadGraph {
 	 * @return
 	 */
 	public Set<Road> getRoadsByName(String fullname) {
-		return roadsByName.get(fullname);
+		return roadsByName.get(roadNames.find(fullname));
 	}
 
 	/**
@@ -274,7 +685,7 @@ public class RoadGraph {
 	 * @return list of segments making up a road
 	 */
 	public List<Segment> getRoadSegments(String fullname) {
-		Set<Road> rds = roadsByName.get(fullname);
+		Set<Road> rds = getRoadsByName(fullname);
 		if (rds == null) {
 			return null;
 		}
@@ -290,8 +701,118 @@ public class RoadGraph {
 		return nodes;
 	}
 
+	/**
+	 * @return the node with the given dense index (not the node ID)
+	 */
+	public Node getNode(int index) {
+		return nodeList.get(index);
+	}
+
+	public int numNodes() {
+		return nodeList.size();
+	}
+
+	/**
+	 * @return the directed segment with the given index
+	 */
+	public Segment getSegment(int id) {
+		return segmentList.get(id);
+	}
+
+	public Road getRoad(int roadID) {
+		return roads.get(roadID);
+	}
+
+	public Collection<Road> getRoads() {
+		return Collections.unmodifiableCollection(roads.values());
+	}
+
+	/**
+	 * Returns the segment of a road running from one node to another, null if
+	 * there is none. For a two way road this may be a reversed segment.
+	 */
+	public Segment findSegment(int roadID, int fromNodeID, int toNodeID) {
+		Node from = nodes.get(fromNodeID);
+		if (from == null) {
+			return null;
+		}
+		for (Segment seg : from.getOutNeighbours()) {
+			if (seg.getRoad().getID() == roadID && seg.getEndNode().getID() == toNodeID) {
+				return seg;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the segments of a road in both directions, ie including the
+	 * reversed copies of two way segments that Road.getSegments() leaves out,
+	 * and the walking only copies of one way segments.
+	 */
+	public List<Segment> getDirectedSegments(Road road) {
+		List<Segment> ans = new ArrayList<Segment>();
+		for (Segment seg : road.getSegments()) {
+			ans.add(seg);
+			// the reversed copy comes straight after the original
+			int next = seg.getID() + 1;
+			if (next < segmentList.size() && isReversedCopy(segmentList.get(next))) {
+				ans.add(segmentList.get(next));
+			}
+		}
+		return ans;
+	}
+
 	public Set<Restriction> getRestrictionSet() {
 		return restrictionSet;
 	}
 
+	/**
+	 * Returns the segment weights of a cost model for a transport mode and
+	 * traffic snapshot. They are compiled the first time they are asked for
+	 * and are shared, so the array must not be changed. When the traffic
+	 * changes only the segments it changed are worked out again, in a copy.
+	 */
+	public float[] getWeights(CostModel model, String transportMode, TrafficSnapshot snapshot) {
+		String key = model.getName() + "/" + transportMode;
+		CompiledWeights compiled = compiledWeights.get(key);
+		if (compiled != null && compiled.traffic == snapshot) {
+			return compiled.weights;
+		}
+		int[] changed = compiled == null ? null : traffic.changedBetween(compiled.traffic, snapshot);
+		float[] weights = changed == null ? model.compile(segmentList, segmentList.size(), transportMode, snapshot)
+				: model.recompile(compiled.weights, changed, segmentList, transportMode, snapshot);
+		// a search still on an older snapshot does not replace newer weights
+		if (compiled == null || snapshot.getVersion() >= compiled.traffic.getVersion()) {
+			compiledWeights.put(key, new CompiledWeights(snapshot, weights));
+		}
+		return weights;
+	}
+
+	/**
+	 * Returns the segment weights of a cost model for a transport mode with
+	 * the current traffic.
+	 */
+	public float[] getWeights(CostModel model, String transportMode) {
+		return getWeights(model, transportMode, traffic.getSnapshot());
+	}
+
+	/**
+	 * @return every directed segment, in ID order
+	 */
+	public List<Segment> getSegments() {
+		return Collections.unmodifiableList(segmentList);
+	}
+
+	public TurnRestrictions getTurnRestrictions() {
+		return turnRestrictions;
+	}
+
+	public SpeedProfiles getSpeedProfiles() {
+		return speedProfiles;
+	}
+
+	public TrafficManager getTraffic() {
+		return traffic;
+	}
+
 }
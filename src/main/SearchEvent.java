@@ -0,0 +1,40 @@
+package main;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * SearchEvent: A Flight Recorder event covering one route query. Disabled by
+ * default.
+ * 
+ * @author harryross
+ * @version 1.1
+ */
+@Name("auckland.Search")
+@Label("Route Search")
+@Category({ "Auckland Mapper", "Search" })
+@Description("One start to goal query")
+@Enabled(false)
+public class SearchEvent extends Event {
+
+	@Label("Engine")
+	public String engine;
+
+	@Label("Search Mode")
+	public String searchMode;
+
+	@Label("Transport Mode")
+	public String transportMode;
+
+	@Label("Nodes Settled")
+	public int settled;
+
+	@Label("Path Length")
+	@Description("Number of nodes on the path found, 0 if there is no route")
+	public int pathLength;
+
+}
@@ -0,0 +1,184 @@
+package main;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import utils.LatencyHistogram;
+import utils.SearchStats;
+
+/**
+ * SearchMetrics: Aggregated statistics for every query answered by one search
+ * engine. Each engine gets its own instance from forEngine(), which is also
+ * registered with the platform MBeanServer as
+ * AucklandMapper:type=SearchMetrics,engine=&lt;name&gt; so the numbers can be
+ * watched from jconsole or any other JMX client.
+ *
+ * All counters are LongAdders and the latencies go into a LatencyHistogram, so
+ * recording from many threads is lock-free.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class SearchMetrics implements SearchMetricsMBean {
+
+	private static final ConcurrentMap<String, SearchMetrics> engines = new ConcurrentHashMap<String, SearchMetrics>();
+
+	private final String engine;
+	private final LongAdder queries = new LongAdder();
+	private final LongAdder settled = new LongAdder();
+	private final LongAdder pushes = new LongAdder();
+	private final LongAdder pops = new LongAdder();
+	private final LongAdder stalePops = new LongAdder();
+	private final LongAdder restrictionChecks = new LongAdder();
+	private final LongAdder filteredEdges = new LongAdder();
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	private SearchMetrics(String engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * Returns the metrics for the named engine, creating and registering them
+	 * the first time the engine is seen.
+	 *
+	 * @param engine
+	 * @return the metrics shared by every query of that engine
+	 */
+	public static SearchMetrics forEngine(String engine) {
+		SearchMetrics m = engines.get(engine);
+		if (m == null) {
+			SearchMetrics created = new SearchMetrics(engine);
+			m = engines.putIfAbsent(engine, created);
+			if (m == null) {
+				m = created;
+				m.register();
+			}
+		}
+		return m;
+	}
+
+	private void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("AucklandMapper:type=SearchMetrics,engine=" + ObjectName.quote(engine));
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+		} catch (JMException e) {
+			System.out.println("Failed to register search metrics for " + engine + ": " + e);
+		}
+	}
+
+	/**
+	 * Adds the counters of a finished query to the totals.
+	 *
+	 * @param stats
+	 */
+	public void record(SearchStats stats) {
+		queries.increment();
+		settled.add(stats.getSettled());
+		pushes.add(stats.getPushes());
+		pops.add(stats.getPops());
+		stalePops.add(stats.getStalePops());
+		restrictionChecks.add(stats.getRestrictionChecks());
+		filteredEdges.add(stats.getFilteredEdges());
+		latency.record(stats.getWallTime());
+	}
+
+	public String getEngine() {
+		return engine;
+	}
+
+	public long getQueries() {
+		return queries.sum();
+	}
+
+	public long getNodesSettled() {
+		return settled.sum();
+	}
+
+	public long getHeapPushes() {
+		return pushes.sum();
+	}
+
+	public long getHeapPops() {
+		return pops.sum();
+	}
+
+	public long getStalePops() {
+		return stalePops.sum();
+	}
+
+	public long getRestrictionChecks() {
+		return restrictionChecks.sum();
+	}
+
+	public long getEdgesFiltered() {
+		return filteredEdges.sum();
+	}
+
+	public double getMeanMillis() {
+		return latency.getMean() / 1e6;
+	}
+
+	public double getP50Millis() {
+		return latency.getPercentile(0.5) / 1e6;
+	}
+
+	public double getP99Millis() {
+		return latency.getPercentile(0.99) / 1e6;
+	}
+
+	public double getMaxMillis() {
+		return latency.getMax() / 1e6;
+	}
+
+	public String dump() {
+		long n = Math.max(1, getQueries());
+		StringBuilder b = new StringBuilder();
+		b.append(String.format("%s: %,d queries%n", engine, getQueries()));
+		b.append(String.format("  settled        %,14d  (%,.1f/query)%n", getNodesSettled(), getNodesSettled() / (double) n));
+		b.append(String.format("  heap pushes    %,14d  (%,.1f/query)%n", getHeapPushes(), getHeapPushes() / (double) n));
+		b.append(String.format("  heap pops      %,14d  (%,.1f/query)%n", getHeapPops(), getHeapPops() / (double) n));
+		b.append(String.format("  stale pops     %,14d  (%,.1f/query)%n", getStalePops(), getStalePops() / (double) n));
+		b.append(String.format("  restr. checks  %,14d  (%,.1f/query)%n", getRestrictionChecks(),
+				getRestrictionChecks() / (double) n));
+		b.append(String.format("  edges filtered %,14d  (%,.1f/query)%n", getEdgesFiltered(),
+				getEdgesFiltered() / (double) n));
+		b.append(String.format("  latency ms     mean %.3f, p50 %.3f, p90 %.3f, p99 %.3f, max %.3f%n", getMeanMillis(),
+				getP50Millis(), latency.getPercentile(0.9) / 1e6, getP99Millis(), getMaxMillis()));
+		return b.toString();
+	}
+
+	public void reset() {
+		queries.reset();
+		settled.reset();
+		pushes.reset();
+		pops.reset();
+		stalePops.reset();
+		restrictionChecks.reset();
+		filteredEdges.reset();
+		latency.reset();
+	}
+
+	/**
+	 * Returns a text dump of every engine seen so far, in name order.
+	 */
+	public static String dumpAll() {
+		StringBuilder b = new StringBuilder();
+		Map<String, SearchMetrics> sorted = new TreeMap<String, SearchMetrics>(engines);
+		for (SearchMetrics m : sorted.values()) {
+			b.append(m.dump());
+		}
+		return b.toString();
+	}
+
+}
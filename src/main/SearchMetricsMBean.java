@@ -0,0 +1,40 @@
+package main;
+
+/**
+ * SearchMetricsMBean: The JMX view of the aggregated statistics for one search
+ * engine. Times are reported in milliseconds.
+ * 
+ * @author harryross
+ * @version 1.1
+ */
+public interface SearchMetricsMBean {
+
+	public String getEngine();
+
+	public long getQueries();
+
+	public long getNodesSettled();
+
+	public long getHeapPushes();
+
+	public long getHeapPops();
+
+	public long getStalePops();
+
+	public long getRestrictionChecks();
+
+	public long getEdgesFiltered();
+
+	public double getMeanMillis();
+
+	public double getP50Millis();
+
+	public double getP99Millis();
+
+	public double getMaxMillis();
+
+	public String dump();
+
+	public void reset();
+
+}
@@ -1,161 +1,370 @@
 package main;
 
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.Queue;
 import java.util.Set;
 
-import utils.AStarNode;
+import utils.CancelToken;
+import utils.ModeGraph;
 import utils.Node;
 import utils.Restriction;
+import utils.Road;
+import utils.SearchProgress;
+import utils.SearchState;
+import utils.SearchStats;
 import utils.Segment;
-
+import utils.SpeedProfiles;
+import utils.TrafficSnapshot;
+
+/**
+ * Searcher: A* search between two nodes. All of the per-query bookkeeping
+ * lives in a SearchState rather than on the nodes, so any number of Searchers
+ * can run over the same RoadGraph at once as long as each thread brings its own
+ * state.
+ *
+ * The search mode names a CostModel ("distance", "time", "arterial" or
+ * "comfort"), whose compiled segment weights are all the search looks at, or
+ * is "departure" for time-dependent routing. Only the segments in the
+ * transport mode's ModeGraph are ever expanded.
+ *
+ * A search given a CancelToken checks it before settling each node and stops
+ * with no route once it is cancelled. One given a SearchProgress with a
+ * subscriber publishes snapshots of its settled nodes and fringe to it as it
+ * goes.
+ *
+ * @author harryross
+ * @version 1.1
+ */
 public class Searcher {
 
-	private Queue<AStarNode> fringe;
+	private static final SearchMetrics metrics = SearchMetrics.forEngine("astar");
+
+	private SearchState state;
 	private Node start;
 	private Node goal;
-	private AStarComparator comp;
 	private List<Segment> finalPath;
 	private List<Node> nodePath;
-	private String transportMode;
+	private ModeGraph modeGraph;
+	private float[] weights;
+	private boolean checkTurns;
 	private Set<Restriction> restrictions;
+	private SpeedProfiles profiles;
+	private double departure;
+	private TrafficSnapshot traffic;
+	private SearchStats stats = new SearchStats();
+	private CancelToken cancel;
+	private SearchProgress progress; // null when no one is watching
+	private boolean cancelled;
 
 	public Searcher(Node start, Node goal, Map<Integer, Node> nodes, String sMode, String transportMode,
 			Set<Restriction> restrictions) {
+		this(start, goal, new SearchState(nodes.size()), sMode, transportMode, restrictions, new SpeedProfiles(), 0,
+				TrafficSnapshot.EMPTY, ModeGraph.of(transportMode, nodes.values(), nodes.size()),
+				compile(nodes, sMode, transportMode));
+	}
+
+	/**
+	 * Runs a search reusing the given state, which must not be in use by any
+	 * other thread, with the given restrictions in place of the graph's and
+	 * without traffic or speed profiles.
+	 */
+	public Searcher(Node start, Node goal, SearchState state, RoadGraph graph, String sMode, String transportMode,
+			Set<Restriction> restrictions) {
+		this(start, goal, state, sMode, transportMode, restrictions, new SpeedProfiles(), 0, TrafficSnapshot.EMPTY,
+				graph.getModeGraph(transportMode), graph.getWeights(modelFor(sMode), transportMode,
+						TrafficSnapshot.EMPTY));
+	}
+
+	/**
+	 * Runs a search with the restrictions, speed profiles and current traffic
+	 * of the graph.
+	 *
+	 * @param departure
+	 *            hours since midnight, for departure mode
+	 */
+	public Searcher(Node start, Node goal, SearchState state, RoadGraph graph, String sMode, String transportMode,
+			double departure) {
+		this(start, goal, state, graph, sMode, transportMode, departure, CancelToken.NONE);
+	}
+
+	/**
+	 * Runs a search with the restrictions, speed profiles and current traffic
+	 * of the graph that gives up once the token is cancelled.
+	 *
+	 * @param departure
+	 *            hours since midnight, for departure mode
+	 */
+	public Searcher(Node start, Node goal, SearchState state, RoadGraph graph, String sMode, String transportMode,
+			double departure, CancelToken cancel) {
+		this(start, goal, state, graph, sMode, transportMode, departure, cancel, null);
+	}
+
+	/**
+	 * Runs a search with the restrictions, speed profiles and current traffic
+	 * of the graph that gives up once the token is cancelled, publishing its
+	 * progress if anyone is subscribed to it.
+	 *
+	 * @param departure
+	 *            hours since midnight, for departure mode
+	 */
+	public Searcher(Node start, Node goal, SearchState state, RoadGraph graph, String sMode, String transportMode,
+			double departure, CancelToken cancel, SearchProgress progress) {
+		this(start, goal, state, graph, sMode, transportMode, departure, graph.getTraffic().getSnapshot(), cancel,
+				progress);
+	}
+
+	private Searcher(Node start, Node goal, SearchState state, RoadGraph graph, String sMode, String transportMode,
+			double departure, TrafficSnapshot traffic, CancelToken cancel, SearchProgress progress) {
+		this(start, goal, state, sMode, transportMode, graph.getRestrictionSet(), graph.getSpeedProfiles(),
+				departure, traffic, graph.getModeGraph(transportMode), graph.getWeights(modelFor(sMode),
+						transportMode, traffic), cancel, progress);
+	}
+
+	/**
+	 * Runs a search that may be time-dependent. The "departure" mode finds the
+	 * earliest arrival when setting off at the given time, with road speeds
+	 * taken from the speed profiles; the other modes ignore both. Speed
+	 * overrides in the traffic snapshot replace the speed limit and profile of
+	 * their segment.
+	 *
+	 * @param departure
+	 *            hours since midnight
+	 * @param modeGraph
+	 *            the segments the transport mode may use
+	 * @param weights
+	 *            the compiled weights of the search mode's cost model (the
+	 *            time model for departure mode, which only uses them to skip
+	 *            segments that cannot be used) for the transport mode and
+	 *            traffic
+	 */
+	public Searcher(Node start, Node goal, SearchState state, String sMode, String transportMode,
+			Set<Restriction> restrictions, SpeedProfiles profiles, double departure, TrafficSnapshot traffic,
+			ModeGraph modeGraph, float[] weights) {
+		this(start, goal, state, sMode, transportMode, restrictions, profiles, departure, traffic, modeGraph, weights,
+				CancelToken.NONE, null);
+	}
+
+	private Searcher(Node start, Node goal, SearchState state, String sMode, String transportMode,
+			Set<Restriction> restrictions, SpeedProfiles profiles, double departure, TrafficSnapshot traffic,
+			ModeGraph modeGraph, float[] weights, CancelToken cancel, SearchProgress progress) {
 		this.start = start;
 		this.goal = goal;
-		comp = new AStarComparator();
-		fringe = new PriorityQueue<AStarNode>(10, comp);
+		this.state = state;
 		finalPath = new ArrayList<Segment>();
-		this.transportMode = transportMode;
+		this.modeGraph = modeGraph;
+		this.weights = weights;
+		this.checkTurns = transportMode.equals("car");
 		this.restrictions = restrictions;
-		if (sMode.equals("distance"))
-			distanceSearch(nodes);
-		else if (sMode.equals("time"))
-			timeSearch(nodes);
+		this.profiles = profiles;
+		this.departure = departure;
+		this.traffic = traffic;
+		this.cancel = cancel;
+		if (progress != null && progress.isSubscribed()) {
+			this.progress = progress;
+			progress.begin();
+		}
+		SearchEvent event = new SearchEvent();
+		event.begin();
+		stats.start();
+		CostModel model = CostModel.forName(sMode);
+		if (model != null)
+			weightedSearch(model.getMinCostPerKm());
+		else if (sMode.equals("departure"))
+			departureSearch();
 		else {
-			System.out.println("Unrecognised transport mode");
+			System.out.println("Unrecognised search mode");
 		}
+		stats.stop();
+		if (this.progress != null && !cancelled) {
+			this.progress.finish(state);
+		}
+		// a cancelled search says nothing about how long searches take
+		if (!cancelled) {
+			metrics.record(stats);
+		}
+		if (event.shouldCommit()) {
+			event.engine = "astar";
+			event.searchMode = sMode;
+			event.transportMode = transportMode;
+			event.settled = stats.getSettled();
+			event.pathLength = nodePath == null ? 0 : nodePath.size();
+			event.commit();
+		}
+	}
+
+	/**
+	 * @return the cost model for a search mode, the time model for departure
+	 *         mode (and for anything unknown)
+	 */
+	private static CostModel modelFor(String sMode) {
+		CostModel model = CostModel.forName(sMode);
+		return model == null ? CostModel.TIME : model;
 	}
 
-	public void distanceSearch(Map<Integer, Node> nodes) {
+	private static float[] compile(Map<Integer, Node> nodes, String sMode, String transportMode) {
+		List<Segment> segments = new ArrayList<Segment>();
+		int numSegments = 0;
 		for (Node n : nodes.values()) {
-			n.setVisited(false);
-			n.setFrom(null);
+			for (Segment s : n.getOutNeighbours()) {
+				segments.add(s);
+				numSegments = Math.max(numSegments, s.getID() + 1);
+			}
 		}
+		return modelFor(sMode).compile(segments, numSegments, transportMode, TrafficSnapshot.EMPTY);
+	}
 
-		fringe.add(new AStarNode(start, null, null, 0, estimate(start, goal)));
-
-		while (fringe.peek() != null) {
-			AStarNode temp = fringe.poll();
-
-			Node currNode = temp.getMain();
-			Node prevNode = temp.getPrev();
-			Double costToHere = temp.getCost();
-
-			if (!currNode.getVisited()) {
+	/**
+	 * A* over the compiled weights. The heuristic is the straight line times
+	 * the least the cost model charges per kilometre.
+	 */
+	public void weightedSearch(double minCostPerKm) {
+		state.reset();
+		state.reach(start, 0, null);
+		state.push(start, estimate(start, goal) * minCostPerKm);
+		stats.push();
+
+		while (!state.isEmpty()) {
+			if (cancel.isCancelled()) {
+				cancelled = true;
+				return;
+			}
+			Node node = state.pop();
+			stats.pop();
 
-				currNode.setVisited(true);
-				currNode.setFrom(prevNode);
-				currNode.setCost(costToHere);
+			if (state.isSettled(node)) {
+				stats.stalePop();
+				continue;
+			}
+			stats.settle();
+			state.settle(node);
+			// only look at the clock every 64 nodes
+			if (progress != null && (stats.getSettled() & 63) == 0) {
+				progress.offer(state);
+			}
 
-				if (currNode.equals(goal)) {
-					nodePath = temp.buildPath();
-					return;
+			if (node.equals(goal)) {
+				buildPath();
+				return;
+			}
+			double costToHere = state.getCost(node);
+			Segment arrivedBy = state.getVia(node);
+			Node from = arrivedBy == null ? null : arrivedBy.getStartNode();
+
+			for (Segment s : modeGraph.getOut(node)) {
+				float w = weights[s.getID()];
+				if (w == Float.POSITIVE_INFINITY) {
+					stats.filterEdge();
+					continue;
 				}
-
-				for (Segment s : currNode.getOutNeighbours()) {
-					if (transportMode.equals("car")) {
-						if (s.getRoad().isNotForCars())
-							continue;
-						else if (checkRestrictions(prevNode, currNode, s.getEndNode())) {
-							continue;
-						}
-					} else if (transportMode.equals("bike")) {
-						if (s.getRoad().isNotForBicycles())
-							continue;
-					} else if (transportMode.equals("walking")) {
-						if (s.getRoad().isNotForPedestrians())
-							continue;
-					}
-					Node next = s.getEndNode();
-
-					if (!next.getVisited()) {
-
-						double costToNeigh = costToHere + s.getWeight();
-						double estTotal = costToNeigh + estimate(next, goal);
-
-						fringe.add(new AStarNode(next, currNode, temp, costToNeigh, estTotal));
-					}
+				Node next = s.getEndNode();
+				if (state.isSettled(next) || (checkTurns && checkRestrictions(from, node, next))) {
+					continue;
+				}
+				double costToNeigh = costToHere + w;
+				if (costToNeigh < state.getCost(next)) {
+					state.reach(next, costToNeigh, s);
+					state.push(next, costToNeigh + estimate(next, goal) * minCostPerKm);
+					stats.push();
 				}
 			}
 		}
 	}
 
-	public void timeSearch(Map<Integer, Node> nodes) {
-		for (Node n : nodes.values()) {
-
-			n.setVisited(false);
-			n.setFrom(null);
-		}
-
-		fringe.add(new AStarNode(start, null, null, 0, timeEstimate(start, goal)));
-
-		while (fringe.peek() != null) {
-			AStarNode temp = fringe.poll();
-
-			Node node = temp.getMain();
-			Node from = temp.getPrev();
-			Double costToHere = temp.getCost();
-
-			if (!node.getVisited()) {
+	/**
+	 * Time-dependent A*: the cost of a node is the hours taken to reach it, and
+	 * each segment is costed at the speeds in force when it is entered. The
+	 * travel times are FIFO, so settling each node once at its earliest arrival
+	 * is still exact.
+	 */
+	public void departureSearch() {
+		state.reset();
+		state.reach(start, 0, null);
+		state.push(start, departureEstimate(start, goal));
+		stats.push();
+
+		while (!state.isEmpty()) {
+			if (cancel.isCancelled()) {
+				cancelled = true;
+				return;
+			}
+			Node node = state.pop();
+			stats.pop();
 
-				node.setVisited(true);
-				node.setFrom(from);
-				node.setCost(costToHere);
+			if (state.isSettled(node)) {
+				stats.stalePop();
+				continue;
+			}
+			stats.settle();
+			state.settle(node);
+			// only look at the clock every 64 nodes
+			if (progress != null && (stats.getSettled() & 63) == 0) {
+				progress.offer(state);
+			}
 
-				if (node.equals(goal)) {
-					nodePath = temp.buildPath();
-					return;
+			if (node.equals(goal)) {
+				buildPath();
+				return;
+			}
+			double costToHere = state.getCost(node);
+			Segment arrivedBy = state.getVia(node);
+			Node from = arrivedBy == null ? null : arrivedBy.getStartNode();
+
+			for (Segment s : modeGraph.getOut(node)) {
+				if (weights[s.getID()] == Float.POSITIVE_INFINITY) {
+					stats.filterEdge();
+					continue;
 				}
-
-				for (Segment s : node.getOutNeighbours()) {
-					if (transportMode.equals("car")) {
-						if (s.getRoad().isNotForCars())
-							continue;
-					} else if (transportMode.equals("bike")) {
-						if (s.getRoad().isNotForBicycles())
-							continue;
-					} else if (transportMode.equals("walking")) {
-						if (s.getRoad().isNotForPedestrians())
-							continue;
-					}
-					Node next = s.getEndNode();
-
-					if (!checkRestrictions(from, node, next) && !next.getVisited()) {
-						double costToNeigh = costToHere + (estimate(next, goal) / s.getRoad().getSpeedLimit());
-						double estTotal = costToNeigh + timeEstimate(next, goal);
-
-						fringe.add(new AStarNode(next, node, temp, costToNeigh, estTotal));
+				Node next = s.getEndNode();
+
+				if (!(checkTurns && checkRestrictions(from, node, next)) && !state.isSettled(next)) {
+					double costToNeigh = costToHere + (traffic.hasOverride(s) ? s.getLength() / traffic.getSpeed(s)
+							: profiles.travelTime(s.getRoad(), s.getLength(), departure + costToHere));
+					if (costToNeigh < state.getCost(next)) {
+						state.reach(next, costToNeigh, s);
+						state.push(next, costToNeigh + departureEstimate(next, goal));
+						stats.push();
 					}
 				}
 			}
 		}
 	}
 
-	public double timeEstimate(Node start, Node goal) {
-		double straightLine = start.getLoc().distanceTo(goal.getLoc());
-		return 110 / straightLine;
+	/**
+	 * A lower bound on the hours from start to goal at any time of day: the
+	 * straight line at the fastest speed any profile allows.
+	 */
+	public double departureEstimate(Node start, Node goal) {
+		return estimate(start, goal) / (Road.MAX_SPEED_LIMIT * profiles.getMaxFactor());
+	}
+
+	/**
+	 * Walks the via segments back from the goal to fill in the node and
+	 * segment paths.
+	 */
+	private void buildPath() {
+		nodePath = new ArrayList<Node>();
+		Node n = goal;
+		nodePath.add(n);
+		Segment s = state.getVia(n);
+		while (s != null) {
+			finalPath.add(s);
+			n = s.getStartNode();
+			nodePath.add(n);
+			s = state.getVia(n);
+		}
+		Collections.reverse(nodePath);
+		Collections.reverse(finalPath);
 	}
 
 	public double estimate(Node start, Node goal) {
 		return start.getLoc().distanceTo(goal.getLoc());
 	}
 
+	/**
+	 * @return the segments along the route, empty if there is no route
+	 */
 	public List<Segment> getFinalPath() {
 		return finalPath;
 	}
@@ -164,7 +373,33 @@ public class Searcher {
 		return nodePath;
 	}
 
+	/**
+	 * @return the cost of the route found in the units of the search mode, or
+	 *         infinity if there is no route
+	 */
+	public double getCost() {
+		return nodePath == null ? Double.POSITIVE_INFINITY : state.getCost(goal);
+	}
+
+	/**
+	 * @return the counters for this query
+	 */
+	public SearchStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * @return true if the search was cancelled before it finished
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
 	public boolean checkRestrictions(Node n1, Node n, Node n2) {
+		if (n1 == null) {
+			return false;
+		}
+		stats.restrictionCheck();
 		for (Restriction r : restrictions) {
 			if (r.getNode1() == n1.getID() && r.getNode() == n.getID() && r.getNode2() == n2.getID()) {
 				return true;
@@ -172,12 +407,4 @@ public class Searcher {
 		}
 		return false;
 	}
-
-	private static class AStarComparator implements Comparator<AStarNode> {
-
-		public int compare(AStarNode a, AStarNode b) {
-
-			return (int) Math.signum(a.getEstimate() - b.getEstimate());
-		}
-	}
 }
@@ -0,0 +1,674 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import utils.IntMinHeap;
+import utils.ModeGraph;
+import utils.Node;
+import utils.SearchState;
+import utils.Segment;
+import utils.ShardFile;
+import utils.TurnRestrictions;
+
+/**
+ * ShardCoordinator: Answers route queries over a graph split across several
+ * ShardServer processes. The overlay it searches has a node for each segment
+ * between shards and, for each shard, an edge from every segment into it to
+ * every segment out of it costing the best route across the shard, all of
+ * which it reads from the shard files. A query asks the start's shard for the
+ * costs from the start to its segments out and the goal's shard for the costs
+ * from its segments in to the goal, then searches the overlay. The winning
+ * route is stitched together from path pieces fetched from the shards it
+ * passes through.
+ *
+ * Since an overlay node is a segment rather than an intersection, the shards
+ * can check every turn against the turn restrictions, including the turns
+ * onto and off the segments between shards, so car routes obey them as
+ * Searcher's do. Routes are shortest by distance for one transport mode and
+ * take no notice of traffic.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class ShardCoordinator implements Closeable {
+
+	private static final String USAGE = "Usage: AucklandMapper --coordinator --shards dir\n"
+			+ "         [--servers host:port,...] [--spawn] [--port n] [--data dir] [--check n] [input|-]\n"
+			+ "--spawn starts one shard process per shard file on ports from --port (default 7400).\n"
+			+ "--check routes n random pairs and compares them with the whole graph searched in\n"
+			+ "process, failing if any differ (needs the graph data).\n"
+			+ "Otherwise each input line 'fromNodeID,toNodeID' gives 'from,to,distance_km,path'.";
+
+	private final ShardFile[] shards;
+	private final ShardClient[] clients;
+	private final Map<Integer, Integer> shardOfNode = new HashMap<Integer, Integer>();
+
+	// the overlay: every segment between shards, in the order of the shards'
+	// segments out
+	private final int[] overlayFrom;
+	private final int[] overlayTo;
+	// the shard the segment goes into and its position among that shard's
+	// segments in
+	private final int[] overlayShard;
+	private final int[] entryIndex;
+	// by shard, the overlay node of each segment out
+	private final int[][] exitNode;
+	private int[] firstEdge;
+	private int[] edgeHead;
+	private double[] edgeLength;
+
+	private double[] dist;
+	private int[] parent;
+	private IntMinHeap heap = new IntMinHeap(256);
+
+	/**
+	 * @param servers
+	 *            host:port of the server for each shard, in shard order
+	 * @throws IOException
+	 *             if the shards do not agree on their cut segments
+	 */
+	public ShardCoordinator(ShardFile[] shards, String[] servers) throws IOException {
+		this.shards = shards;
+		int total = 0;
+		exitNode = new int[shards.length][];
+		for (int s = 0; s < shards.length; s++) {
+			for (int id : shards[s].getNodes()) {
+				shardOfNode.put(id, s);
+			}
+			total += shards[s].numExits();
+		}
+		overlayFrom = new int[total];
+		overlayTo = new int[total];
+		overlayShard = new int[total];
+		entryIndex = new int[total];
+		Map<Long, Integer> overlayIndex = new HashMap<Long, Integer>();
+		int v = 0;
+		for (int s = 0; s < shards.length; s++) {
+			exitNode[s] = new int[shards[s].numExits()];
+			for (int i = 0; i < exitNode[s].length; i++) {
+				overlayFrom[v] = shards[s].getExitFrom(i);
+				overlayTo[v] = shards[s].getExitTo(i);
+				overlayShard[v] = shards[s].getExitShard(i);
+				entryIndex[v] = -1;
+				overlayIndex.put(key(overlayFrom[v], overlayTo[v]), v);
+				exitNode[s][i] = v++;
+			}
+		}
+		int[][] entryNode = new int[shards.length][];
+		for (int s = 0; s < shards.length; s++) {
+			entryNode[s] = new int[shards[s].numEntries()];
+			for (int i = 0; i < entryNode[s].length; i++) {
+				Integer w = overlayIndex.get(key(shards[s].getEntryFrom(i), shards[s].getEntryTo(i)));
+				if (w == null || overlayShard[w] != s) {
+					throw new IOException("Shard " + s + " has a segment in from " + shards[s].getEntryFrom(i)
+							+ " that no other shard has out");
+				}
+				entryNode[s][i] = w;
+				entryIndex[w] = i;
+			}
+		}
+		buildOverlay(entryNode);
+		dist = new double[total];
+		parent = new int[total];
+
+		clients = new ShardClient[shards.length];
+		try {
+			for (int s = 0; s < shards.length; s++) {
+				clients[s] = new ShardClient(servers[s]);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private static long key(int fromID, int toID) {
+		return ((long) fromID << 32) | (toID & 0xffffffffL);
+	}
+
+	/**
+	 * Builds the overlay adjacency: from each segment into a shard to each
+	 * segment out of it that it can reach.
+	 */
+	private void buildOverlay(int[][] entryNode) {
+		int total = overlayFrom.length;
+		int[] degree = new int[total];
+		for (int s = 0; s < shards.length; s++) {
+			for (int i = 0; i < shards[s].numEntries(); i++) {
+				for (int j = 0; j < shards[s].numExits(); j++) {
+					if (shards[s].getCost(i, j) != Float.POSITIVE_INFINITY) {
+						degree[entryNode[s][i]]++;
+					}
+				}
+			}
+		}
+		firstEdge = new int[total + 1];
+		for (int i = 0; i < total; i++) {
+			firstEdge[i + 1] = firstEdge[i] + degree[i];
+		}
+		int[] pos = Arrays.copyOf(firstEdge, total);
+		edgeHead = new int[firstEdge[total]];
+		edgeLength = new double[firstEdge[total]];
+		for (int s = 0; s < shards.length; s++) {
+			for (int i = 0; i < shards[s].numEntries(); i++) {
+				for (int j = 0; j < shards[s].numExits(); j++) {
+					float c = shards[s].getCost(i, j);
+					if (c != Float.POSITIVE_INFINITY) {
+						int e = pos[entryNode[s][i]]++;
+						edgeHead[e] = exitNode[s][j];
+						edgeLength[e] = c;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Route: A route found by the coordinator.
+	 */
+	public static class Route {
+
+		private final double distance;
+		private final List<Integer> nodes;
+
+		Route(double distance, List<Integer> nodes) {
+			this.distance = distance;
+			this.nodes = nodes;
+		}
+
+		/**
+		 * @return kilometres
+		 */
+		public double getDistance() {
+			return distance;
+		}
+
+		/**
+		 * @return the node IDs along the route
+		 */
+		public List<Integer> getNodes() {
+			return nodes;
+		}
+
+	}
+
+	/**
+	 * Finds the shortest route between two nodes.
+	 *
+	 * @return the route, or null if there is none
+	 * @throws IllegalArgumentException
+	 *             if either node is in no shard
+	 */
+	public Route route(int fromID, int toID) throws IOException {
+		Integer fromShard = shardOfNode.get(fromID);
+		Integer toShard = shardOfNode.get(toID);
+		if (fromShard == null || toShard == null) {
+			throw new IllegalArgumentException("Unknown node " + (fromShard == null ? fromID : toID));
+		}
+		if (fromID == toID) {
+			return new Route(0, Arrays.asList(fromID));
+		}
+		double[] fromStart = clients[fromShard].distances("FORWARD " + fromID);
+		double[] toGoal = clients[toShard].distances("BACKWARD " + toID);
+
+		// a route that never leaves the shard is not in the overlay
+		double best = Double.POSITIVE_INFINITY;
+		List<Integer> bestPath = null;
+		if (fromShard.equals(toShard)) {
+			bestPath = clients[fromShard].path(-1, fromID, toID, -1);
+			if (bestPath != null) {
+				best = clients[fromShard].lastCost;
+			}
+		}
+
+		Arrays.fill(dist, Double.POSITIVE_INFINITY);
+		heap.clear();
+		for (int i = 0; i < fromStart.length; i++) {
+			int v = exitNode[fromShard][i];
+			if (fromStart[i] < dist[v]) {
+				dist[v] = fromStart[i];
+				parent[v] = -1;
+				heap.push(v, fromStart[i]);
+			}
+		}
+		int last = -1;
+		while (!heap.isEmpty() && heap.peekKey() < best) {
+			double key = heap.peekKey();
+			int v = heap.pop();
+			if (key > dist[v]) {
+				continue;
+			}
+			if (overlayShard[v] == toShard) {
+				double viaHere = dist[v] + toGoal[entryIndex[v]];
+				if (viaHere < best) {
+					best = viaHere;
+					last = v;
+				}
+			}
+			for (int e = firstEdge[v]; e < firstEdge[v + 1]; e++) {
+				int w = edgeHead[e];
+				double d = dist[v] + edgeLength[e];
+				if (d < dist[w]) {
+					dist[w] = d;
+					parent[w] = v;
+					heap.push(w, d);
+				}
+			}
+		}
+		if (last < 0) {
+			return bestPath == null ? null : new Route(best, bestPath);
+		}
+		return new Route(best, stitch(fromID, toID, fromShard, toShard, last));
+	}
+
+	/**
+	 * Fetches the pieces of the route through the segments between shards
+	 * ending at last: start to the first of them, across a shard from each to
+	 * the next, and from the last to the goal. Each piece is asked for with
+	 * the nodes either side of it, so the shard finds the same piece, turns
+	 * and all, as its costs were worked out for.
+	 */
+	private List<Integer> stitch(int fromID, int toID, int fromShard, int toShard, int last) throws IOException {
+		List<Integer> hops = new ArrayList<Integer>();
+		for (int v = last; v >= 0; v = parent[v]) {
+			hops.add(v);
+		}
+		Collections.reverse(hops);
+		List<Integer> nodes = new ArrayList<Integer>();
+		nodes.add(fromID);
+		int first = hops.get(0);
+		appendPiece(nodes, fromShard, -1, fromID, overlayFrom[first], overlayTo[first]);
+		nodes.add(overlayTo[first]);
+		for (int i = 1; i < hops.size(); i++) {
+			int a = hops.get(i - 1);
+			int b = hops.get(i);
+			appendPiece(nodes, overlayShard[a], overlayFrom[a], overlayTo[a], overlayFrom[b], overlayTo[b]);
+			nodes.add(overlayTo[b]);
+		}
+		appendPiece(nodes, toShard, overlayFrom[last], overlayTo[last], toID, -1);
+		return nodes;
+	}
+
+	/**
+	 * Appends the nodes after the first of a piece from one node to another
+	 * inside a shard.
+	 */
+	private void appendPiece(List<Integer> nodes, int shard, int prevID, int fromID, int toID, int nextID)
+			throws IOException {
+		List<Integer> piece = clients[shard].path(prevID, fromID, toID, nextID);
+		if (piece == null) {
+			throw new IOException("Shard " + shard + " has no path from " + fromID + " to " + toID);
+		}
+		nodes.addAll(piece.subList(1, piece.size()));
+	}
+
+	public void close() {
+		for (ShardClient client : clients) {
+			if (client != null) {
+				client.close();
+			}
+		}
+	}
+
+	/**
+	 * ShardClient: One connection to a ShardServer.
+	 */
+	private static class ShardClient {
+
+		private final Socket socket;
+		private final BufferedReader in;
+		private final Writer out;
+		private double lastCost;
+
+		/**
+		 * Connects, retrying for a while in case the server is still loading.
+		 */
+		ShardClient(String server) throws IOException {
+			int colon = server.lastIndexOf(':');
+			String host = server.substring(0, colon);
+			int port = Integer.parseInt(server.substring(colon + 1));
+			long giveUp = System.currentTimeMillis() + 60000;
+			Socket s = null;
+			while (s == null) {
+				try {
+					s = new Socket();
+					s.connect(new InetSocketAddress(host, port), 1000);
+				} catch (IOException e) {
+					s.close();
+					s = null;
+					if (System.currentTimeMillis() > giveUp) {
+						throw new IOException("Failed to connect to shard at " + server, e);
+					}
+					try {
+						Thread.sleep(100);
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while connecting to " + server, ie);
+					}
+				}
+			}
+			socket = s;
+			socket.setTcpNoDelay(true);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+		}
+
+		String request(String line) throws IOException {
+			out.write(line);
+			out.write('\n');
+			out.flush();
+			String reply = in.readLine();
+			if (reply == null) {
+				throw new IOException("Shard closed the connection");
+			}
+			if (reply.startsWith("ERR")) {
+				throw new IOException("Shard refused '" + line + "': " + reply);
+			}
+			return reply;
+		}
+
+		double[] distances(String line) throws IOException {
+			String[] values = request(line).split(" ");
+			double[] d = new double[values.length - 1];
+			for (int i = 0; i < d.length; i++) {
+				d[i] = Double.parseDouble(values[i + 1]);
+			}
+			return d;
+		}
+
+		/**
+		 * @return the node IDs along the path, or null if there is none; its
+		 *         length is left in lastCost
+		 */
+		List<Integer> path(int prevID, int fromID, int toID, int nextID) throws IOException {
+			String reply = request("PATH " + prevID + " " + fromID + " " + toID + " " + nextID);
+			if (reply.equals("NONE")) {
+				return null;
+			}
+			String[] values = reply.split(" ");
+			lastCost = Double.parseDouble(values[1]);
+			List<Integer> nodes = new ArrayList<Integer>(values.length - 2);
+			for (int i = 2; i < values.length; i++) {
+				nodes.add(Integer.parseInt(values[i]));
+			}
+			return nodes;
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already gone
+			}
+		}
+
+	}
+
+	/**
+	 * Routes random pairs both here and in-process over the whole graph with
+	 * its turn restrictions, reporting every pair that differs: a cost other
+	 * than a segment-based search of the whole graph finds, a cost above
+	 * Searcher's, or a route from here that is not as long as its cost or
+	 * makes a restricted turn. Searcher is only an upper bound, as being node
+	 * based it can miss a route that goes round the block to get past a
+	 * restricted turn.
+	 *
+	 * @return the number of pairs that differ
+	 */
+	private int check(RoadGraph graph, int queries) throws IOException {
+		String transportMode = shards[0].getTransportMode();
+		SearchState state = new SearchState(graph.numNodes());
+		TurnRestrictions turns = transportMode.equals("car") ? graph.getTurnRestrictions() : null;
+		boolean[] everywhere = new boolean[graph.numNodes()];
+		Arrays.fill(everywhere, true);
+		ShardSearch whole = new ShardSearch(graph, everywhere, graph.getModeGraph(transportMode),
+				graph.getWeights(CostModel.DISTANCE, transportMode), turns);
+		Random random = new Random(42);
+		int mismatches = 0;
+		int routes = 0;
+		int shorter = 0;
+		long nanos = 0;
+		for (int i = 0; i < queries; i++) {
+			Node from = graph.getNode(random.nextInt(graph.numNodes()));
+			Node to = graph.getNode(random.nextInt(graph.numNodes()));
+			long start = System.nanoTime();
+			Route route = route(from.getID(), to.getID());
+			nanos += System.nanoTime() - start;
+			double expected = whole.forward(from, -1, to, -1);
+			double upper = new Searcher(from, to, state, graph, "distance", transportMode, graph.getRestrictionSet())
+					.getCost();
+			double got = route == null ? Double.POSITIVE_INFINITY : route.getDistance();
+			boolean same = Double.isInfinite(expected) ? Double.isInfinite(got) : Math.abs(got - expected) < 1e-4;
+			same = same && !(got > upper + 1e-4);
+			if (same && route != null) {
+				routes++;
+				same = Math.abs(pathLength(graph, route.getNodes(), transportMode) - expected) < 1e-4
+						&& !(turns != null && makesRestrictedTurn(turns, route.getNodes()));
+			}
+			if (!same) {
+				mismatches++;
+				System.out.printf("Mismatch %d -> %d: coordinator %.6f, whole graph %.6f, Searcher %.6f%n",
+						from.getID(), to.getID(), got, expected, upper);
+			} else if (got < upper - 1e-4) {
+				shorter++;
+			}
+		}
+		System.out.printf("Checked %,d queries (%,d with a route): %d mismatches, %d shorter than Searcher's, "
+				+ "mean %.3f ms per query%n", queries, routes, mismatches, shorter, nanos / 1e6 / queries);
+		return mismatches;
+	}
+
+	/**
+	 * @return true if the path goes through some node in a way a turn
+	 *         restriction forbids
+	 */
+	private static boolean makesRestrictedTurn(TurnRestrictions turns, List<Integer> nodes) {
+		for (int i = 2; i < nodes.size(); i++) {
+			if (turns.isRestricted(nodes.get(i - 2), nodes.get(i - 1), nodes.get(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the length of the shortest usable segment between each pair of
+	 *         consecutive nodes, infinite if some pair is not joined
+	 */
+	private static double pathLength(RoadGraph graph, List<Integer> nodes, String transportMode) {
+		ModeGraph modeGraph = graph.getModeGraph(transportMode);
+		float[] weights = graph.getWeights(CostModel.DISTANCE, transportMode);
+		double length = 0;
+		for (int i = 1; i < nodes.size(); i++) {
+			double step = Double.POSITIVE_INFINITY;
+			for (Segment s : modeGraph.getOut(graph.getNodes().get(nodes.get(i - 1)))) {
+				if (s.getEndNode().getID() == nodes.get(i) && weights[s.getID()] != Float.POSITIVE_INFINITY) {
+					step = Math.min(step, s.getLength());
+				}
+			}
+			length += step;
+		}
+		return length;
+	}
+
+	public static void main(String[] arguments) {
+		String shardDir = null;
+		String servers = null;
+		boolean spawn = false;
+		int port = 7400;
+		String dataDir = "../graph-data/";
+		int check = 0;
+		String input = "-";
+		for (int i = 0; i < arguments.length; i++) {
+			String arg = arguments[i];
+			if (arg.equals("--spawn")) {
+				spawn = true;
+				continue;
+			}
+			if (arg.startsWith("--") && i + 1 >= arguments.length) {
+				System.err.println(USAGE);
+				return;
+			}
+			switch (arg) {
+			case "--shards":
+				shardDir = arguments[++i];
+				break;
+			case "--servers":
+				servers = arguments[++i];
+				break;
+			case "--port":
+				port = Integer.parseInt(arguments[++i]);
+				break;
+			case "--data":
+				dataDir = arguments[++i];
+				break;
+			case "--check":
+				check = Integer.parseInt(arguments[++i]);
+				break;
+			default:
+				input = arg;
+			}
+		}
+		if (shardDir == null || (servers == null) == !spawn) {
+			System.err.println(USAGE);
+			return;
+		}
+		if (!dataDir.endsWith("/")) {
+			dataDir += "/";
+		}
+
+		List<ShardFile> files = new ArrayList<ShardFile>();
+		try {
+			for (int s = 0; ShardFile.fileFor(shardDir, s).exists(); s++) {
+				files.add(ShardFile.read(ShardFile.fileFor(shardDir, s)));
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to read shards: " + e);
+			return;
+		}
+		if (files.isEmpty()) {
+			System.err.println("No shard files in " + shardDir);
+			return;
+		}
+		String[] addresses;
+		final List<Process> processes = new ArrayList<Process>();
+		if (spawn) {
+			addresses = new String[files.size()];
+			String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+			try {
+				for (int s = 0; s < files.size(); s++) {
+					ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+							"main.ShardServer", "--data", dataDir, "--shards", shardDir, "--id", String.valueOf(s),
+							"--port", String.valueOf(port + s));
+					builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+					builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+					processes.add(builder.start());
+					addresses[s] = InetAddress.getLoopbackAddress().getHostAddress() + ":" + (port + s);
+				}
+			} catch (IOException e) {
+				System.err.println("Failed to start shard processes: " + e);
+				stopAll(processes);
+				return;
+			}
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					stopAll(processes);
+				}
+			});
+		} else {
+			addresses = servers.split(",");
+			if (addresses.length != files.size()) {
+				System.err.println("Expected " + files.size() + " servers, one per shard");
+				return;
+			}
+		}
+
+		long start = System.nanoTime();
+		int failed = 0;
+		try (ShardCoordinator coordinator = new ShardCoordinator(files.toArray(new ShardFile[0]), addresses)) {
+			System.err.printf("Connected to %d shards in %.2fs, overlay of %,d segments between shards%n",
+					files.size(), (System.nanoTime() - start) / 1e9, coordinator.overlayFrom.length);
+			if (check > 0) {
+				PrintStream stdout = System.out;
+				System.setOut(System.err);
+				RoadGraph graph = new RoadGraph();
+				graph.loadData(dataDir);
+				System.setOut(stdout);
+				failed = coordinator.check(graph, check);
+			} else {
+				coordinator.routeAll(input.equals("-") ? new BufferedReader(new InputStreamReader(System.in))
+						: new BufferedReader(new FileReader(input)));
+			}
+		} catch (IOException e) {
+			System.err.println("Coordinator failed: " + e);
+		} finally {
+			stopAll(processes);
+		}
+		if (failed > 0) {
+			System.err.printf("Check failed: %d of %d routes differ%n", failed, check);
+			System.exit(1);
+		}
+	}
+
+	private void routeAll(BufferedReader in) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+		out.write("from,to,distance_km,path\n");
+		while (true) {
+			String line = in.readLine();
+			if (line == null) {
+				break;
+			}
+			String[] values = line.trim().split("[,\\s]+");
+			if (values.length != 2) {
+				continue;
+			}
+			try {
+				int from = Integer.parseInt(values[0]);
+				int to = Integer.parseInt(values[1]);
+				Route route = route(from, to);
+				out.write(from + "," + to + ",");
+				if (route != null) {
+					out.write(String.format(Locale.ROOT, "%.4f,", route.getDistance()));
+					for (int i = 0; i < route.getNodes().size(); i++) {
+						out.write((i > 0 ? " " : "") + route.getNodes().get(i));
+					}
+				} else {
+					out.write(",");
+				}
+				out.write('\n');
+			} catch (IllegalArgumentException e) {
+				out.write(values[0] + "," + values[1] + ",,\n");
+			}
+		}
+		in.close();
+		out.flush();
+	}
+
+	private static void stopAll(List<Process> processes) {
+		for (Process p : processes) {
+			p.destroy();
+		}
+	}
+
+}
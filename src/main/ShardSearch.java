@@ -0,0 +1,204 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import utils.EdgeSearchState;
+import utils.ModeGraph;
+import utils.Node;
+import utils.Segment;
+import utils.TurnRestrictions;
+
+/**
+ * ShardSearch: Dijkstra over the segments inside one shard, for the
+ * Partitioner working out a shard's overlay costs and for a ShardServer
+ * answering the coordinator. Like CRPSearcher the search is over segments, so
+ * that a turn can be checked against the restrictions, and a route may be
+ * given the node it arrives from and the node it leaves for, which lie in
+ * other shards: the turns at both ends are checked too.
+ *
+ * A search is for one thread at a time.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class ShardSearch {
+
+	private final RoadGraph graph;
+	private final boolean[] inside;
+	private final ModeGraph modeGraph;
+	private final float[] weights;
+	private final TurnRestrictions restrictions;
+	private final EdgeSearchState state;
+
+	// the last search
+	private boolean forward;
+	private Node origin;
+	private int prevID;
+	private int found;
+	private double foundCost;
+
+	/**
+	 * @param inside
+	 *            by node index, the nodes of the shard
+	 * @param weights
+	 *            infinite for segments that may not be used
+	 * @param restrictions
+	 *            the turns to obey, or null for a transport mode that may
+	 *            turn anywhere
+	 */
+	public ShardSearch(RoadGraph graph, boolean[] inside, ModeGraph modeGraph, float[] weights,
+			TurnRestrictions restrictions) {
+		this.graph = graph;
+		this.inside = inside;
+		this.modeGraph = modeGraph;
+		this.weights = weights;
+		this.restrictions = restrictions;
+		this.state = new EdgeSearchState(graph.numSegments());
+	}
+
+	private boolean isAllowed(int fromID, Node at, int toID) {
+		return restrictions == null || !restrictions.isRestricted(fromID, at.getID(), toID);
+	}
+
+	private boolean isUsable(Segment s) {
+		return weights[s.getID()] != Float.POSITIVE_INFINITY && inside[s.getStartNode().getIndex()]
+				&& inside[s.getEndNode().getIndex()];
+	}
+
+	/**
+	 * Searches forwards from a node having arrived from prevID (-1 if the
+	 * route starts there). With a target it stops at the best route that ends
+	 * at the target and may turn from it towards nextID (-1 if the route ends
+	 * there); without one it covers the whole shard, ready for costTo().
+	 *
+	 * @return the cost of the route to the target, or infinity if there is
+	 *         none or no target
+	 */
+	public double forward(Node from, int prevID, Node target, int nextID) {
+		forward = true;
+		origin = from;
+		this.prevID = prevID;
+		found = -1;
+		foundCost = Double.POSITIVE_INFINITY;
+		state.reset();
+		if (from == target && isAllowed(prevID, from, nextID)) {
+			foundCost = 0;
+			return 0;
+		}
+		for (Segment s : modeGraph.getOut(from)) {
+			float w = weights[s.getID()];
+			if (isUsable(s) && isAllowed(prevID, from, s.getEndNode().getID())) {
+				state.relax(s.getID(), w, -1, -1, w);
+			}
+		}
+		while (!state.isEmpty()) {
+			int seg = state.pop();
+			if (state.isSettled(seg)) {
+				continue;
+			}
+			state.settle(seg);
+			Segment s = graph.getSegment(seg);
+			Node node = s.getEndNode();
+			if (node == target && isAllowed(s.getStartNode().getID(), node, nextID)) {
+				found = seg;
+				foundCost = state.getCost(seg);
+				break;
+			}
+			double costToHere = state.getCost(seg);
+			for (Segment next : modeGraph.getOut(node)) {
+				if (isUsable(next) && isAllowed(s.getStartNode().getID(), node, next.getEndNode().getID())) {
+					double c = costToHere + weights[next.getID()];
+					state.relax(next.getID(), c, seg, -1, c);
+				}
+			}
+		}
+		return foundCost;
+	}
+
+	/**
+	 * After a forward search of the whole shard, finds the cheapest route to
+	 * a node that may turn from it towards nextID.
+	 *
+	 * @return its cost, or infinity if there is none
+	 */
+	public double costTo(Node to, int nextID) {
+		double best = to == origin && isAllowed(prevID, to, nextID) ? 0 : Double.POSITIVE_INFINITY;
+		for (Segment s : modeGraph.getIn(to)) {
+			if (state.isSettled(s.getID()) && isAllowed(s.getStartNode().getID(), to, nextID)) {
+				best = Math.min(best, state.getCost(s.getID()));
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return the nodes along the route to the target of the last forward
+	 *         search, or null if it found none
+	 */
+	public List<Node> getPath() {
+		if (!forward || foundCost == Double.POSITIVE_INFINITY) {
+			return null;
+		}
+		List<Node> nodes = new ArrayList<Node>();
+		for (int seg = found; seg >= 0; seg = state.getParent(seg)) {
+			nodes.add(graph.getSegment(seg).getEndNode());
+		}
+		nodes.add(origin);
+		Collections.reverse(nodes);
+		return nodes;
+	}
+
+	/**
+	 * Searches backwards over the whole shard from a node the routes end at,
+	 * ready for costFrom().
+	 */
+	public void backward(Node to) {
+		forward = false;
+		origin = to;
+		foundCost = Double.POSITIVE_INFINITY;
+		state.reset();
+		// the cost of a segment is what is left to pay after driving it
+		for (Segment s : modeGraph.getIn(to)) {
+			if (isUsable(s)) {
+				state.relax(s.getID(), 0, -1, -1, 0);
+			}
+		}
+		while (!state.isEmpty()) {
+			int seg = state.pop();
+			if (state.isSettled(seg)) {
+				continue;
+			}
+			state.settle(seg);
+			Segment s = graph.getSegment(seg);
+			Node node = s.getStartNode();
+			double c = state.getCost(seg) + weights[seg];
+			for (Segment before : modeGraph.getIn(node)) {
+				if (isUsable(before) && isAllowed(before.getStartNode().getID(), node, s.getEndNode().getID())) {
+					state.relax(before.getID(), c, seg, -1, c);
+				}
+			}
+		}
+	}
+
+	/**
+	 * After a backward search, finds the cheapest route from a node, having
+	 * arrived from prevID, to the node searched from.
+	 *
+	 * @return its cost, or infinity if there is none
+	 */
+	public double costFrom(int prevID, Node from) {
+		if (from == origin) {
+			return 0;
+		}
+		double best = Double.POSITIVE_INFINITY;
+		for (Segment s : modeGraph.getOut(from)) {
+			if (state.isSettled(s.getID()) && isAllowed(prevID, from, s.getEndNode().getID())) {
+				best = Math.min(best, state.getCost(s.getID()) + weights[s.getID()]);
+			}
+		}
+		return best;
+	}
+
+}
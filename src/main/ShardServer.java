@@ -0,0 +1,255 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import utils.ModeGraph;
+import utils.Node;
+import utils.ShardFile;
+
+/**
+ * ShardServer: Answers routing questions about one shard of a partitioned
+ * graph over a socket, for a ShardCoordinator. Every search stays inside the
+ * shard and, for cars, obeys the turn restrictions. The protocol is one
+ * request line and one reply line:
+ *
+ * <pre>
+ * FORWARD nodeID        OK c0 c1 ...   costs from the node to the end of each cut segment out
+ * BACKWARD nodeID       OK c0 c1 ...   costs from the end of each cut segment in to the node
+ * PATH prevID fromID toID nextID   OK cost id id ...  or NONE
+ * PING                  PONG
+ * </pre>
+ *
+ * Costs are in kilometres, in the order of the shard file's cut segments, and
+ * "Infinity" where there is no route. A path arrives at its first node from
+ * prevID and leaves its last node for nextID, either of which may be outside
+ * the shard or -1 for none, and turns at neither end against a restriction.
+ * Anything that cannot be answered gets "ERR" and a reason. Each connection is
+ * served by its own thread.
+ *
+ * The process loads only the shard's own nodes, the segments between them
+ * and the restrictions on turns at them, so the graph it holds is the shard
+ * and nothing more.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class ShardServer {
+
+	private static final String USAGE = "Usage: AucklandMapper --shard [--data dir] --shards dir --id n [--port n]";
+
+	private final RoadGraph graph;
+	private final ShardFile shard;
+	private final ModeGraph modeGraph;
+	private final float[] weights;
+	// by node index
+	private final boolean[] inside;
+	// the inside ends of the cut segments
+	private final Node[] entryEnds;
+	private final Node[] exitStarts;
+
+	private final ThreadLocal<ShardSearch> searches = new ThreadLocal<ShardSearch>() {
+		protected ShardSearch initialValue() {
+			return new ShardSearch(graph, inside, modeGraph, weights,
+					shard.getTransportMode().equals("car") ? graph.getTurnRestrictions() : null);
+		}
+	};
+
+	public ShardServer(RoadGraph graph, ShardFile shard) {
+		this.graph = graph;
+		this.shard = shard;
+		this.modeGraph = graph.getModeGraph(shard.getTransportMode());
+		this.weights = graph.getWeights(CostModel.DISTANCE, shard.getTransportMode());
+		inside = new boolean[graph.numNodes()];
+		for (int id : shard.getNodes()) {
+			inside[graph.getNodes().get(id).getIndex()] = true;
+		}
+		entryEnds = new Node[shard.numEntries()];
+		for (int i = 0; i < entryEnds.length; i++) {
+			entryEnds[i] = graph.getNodes().get(shard.getEntryTo(i));
+		}
+		exitStarts = new Node[shard.numExits()];
+		for (int i = 0; i < exitStarts.length; i++) {
+			exitStarts[i] = graph.getNodes().get(shard.getExitFrom(i));
+		}
+	}
+
+	/**
+	 * Accepts connections on the port until the process is killed.
+	 */
+	public void serve(int port) throws IOException {
+		ExecutorService pool = Executors.newCachedThreadPool();
+		try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+			System.err.printf("Shard %d listening on port %d%n", shard.getShard(), server.getLocalPort());
+			while (true) {
+				final Socket socket = server.accept();
+				pool.execute(new Runnable() {
+					public void run() {
+						serveConnection(socket);
+					}
+				});
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private void serveConnection(Socket socket) {
+		try (Socket s = socket;
+				BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(),
+						StandardCharsets.UTF_8));
+				Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+			s.setTcpNoDelay(true);
+			while (true) {
+				String line = in.readLine();
+				if (line == null) {
+					break;
+				}
+				out.write(handle(line));
+				out.write('\n');
+				out.flush();
+			}
+		} catch (IOException e) {
+			System.err.println("Shard connection failed: " + e);
+		}
+	}
+
+	/**
+	 * Answers one request line.
+	 */
+	public String handle(String line) {
+		String[] values = line.trim().split("\\s+");
+		try {
+			if (values[0].equals("PING")) {
+				return "PONG";
+			} else if ((values[0].equals("FORWARD") || values[0].equals("BACKWARD")) && values.length == 2) {
+				Node node = findInside(values[1]);
+				if (node == null) {
+					return "ERR node " + values[1] + " is not in shard " + shard.getShard();
+				}
+				ShardSearch search = searches.get();
+				StringBuilder b = new StringBuilder(16 * Math.max(entryEnds.length, exitStarts.length) + 2);
+				b.append("OK");
+				if (values[0].equals("FORWARD")) {
+					search.forward(node, -1, null, -1);
+					for (int i = 0; i < exitStarts.length; i++) {
+						b.append(' ').append(search.costTo(exitStarts[i], shard.getExitTo(i)) + shard.getExitLength(i));
+					}
+				} else {
+					search.backward(node);
+					for (int i = 0; i < entryEnds.length; i++) {
+						b.append(' ').append(search.costFrom(shard.getEntryFrom(i), entryEnds[i]));
+					}
+				}
+				return b.toString();
+			} else if (values[0].equals("PATH") && values.length == 5) {
+				Node from = findInside(values[2]);
+				Node to = findInside(values[3]);
+				if (from == null || to == null) {
+					return "ERR path ends must be in shard " + shard.getShard();
+				}
+				return path(Integer.parseInt(values[1]), from, to, Integer.parseInt(values[4]));
+			}
+		} catch (NumberFormatException e) {
+			// fall through
+		}
+		return "ERR bad request: " + line;
+	}
+
+	private Node findInside(String id) {
+		Node node = graph.getNodes().get(Integer.parseInt(id));
+		return node != null && inside[node.getIndex()] ? node : null;
+	}
+
+	private String path(int prevID, Node from, Node to, int nextID) {
+		ShardSearch search = searches.get();
+		double cost = search.forward(from, prevID, to, nextID);
+		List<Node> nodes = search.getPath();
+		if (nodes == null) {
+			return "NONE";
+		}
+		StringBuilder b = new StringBuilder(16 + 8 * nodes.size());
+		b.append("OK ").append(cost);
+		for (Node n : nodes) {
+			b.append(' ').append(n.getID());
+		}
+		return b.toString();
+	}
+
+	public static void main(String[] arguments) {
+		String dataDir = "../graph-data/";
+		String shardDir = null;
+		int id = -1;
+		int port = 0;
+		for (int i = 0; i < arguments.length; i++) {
+			String arg = arguments[i];
+			if (i + 1 >= arguments.length) {
+				System.err.println(USAGE);
+				return;
+			}
+			switch (arg) {
+			case "--data":
+				dataDir = arguments[++i];
+				break;
+			case "--shards":
+				shardDir = arguments[++i];
+				break;
+			case "--id":
+				id = Integer.parseInt(arguments[++i]);
+				break;
+			case "--port":
+				port = Integer.parseInt(arguments[++i]);
+				break;
+			default:
+				System.err.println(USAGE);
+				return;
+			}
+		}
+		if (shardDir == null || id < 0) {
+			System.err.println(USAGE);
+			return;
+		}
+		if (!dataDir.endsWith("/")) {
+			dataDir += "/";
+		}
+		ShardFile shard;
+		try {
+			File file = ShardFile.fileFor(shardDir, id);
+			shard = ShardFile.read(file);
+		} catch (IOException e) {
+			System.err.println("Failed to read shard " + id + ": " + e);
+			return;
+		}
+		Set<Integer> nodeIDs = new HashSet<Integer>();
+		for (int nodeID : shard.getNodes()) {
+			nodeIDs.add(nodeID);
+		}
+		// the graph loader reports on stdout
+		PrintStream stdout = System.out;
+		System.setOut(System.err);
+		RoadGraph graph = new RoadGraph();
+		System.err.print(graph.loadPart(dataDir, nodeIDs));
+		System.setOut(stdout);
+		try {
+			new ShardServer(graph, shard).serve(port);
+		} catch (IOException e) {
+			System.err.println("Shard " + id + " failed: " + e);
+		}
+	}
+
+}
@@ -0,0 +1,582 @@
+package main;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import utils.Location;
+import utils.Road;
+import utils.Segment;
+
+/**
+ * TileExporter: Renders the road graph into a pyramid of PNG tiles in the
+ * standard web map layout, out/z/x/y.png in the Web Mercator tile grid, so a
+ * web frontend can serve the base map as static files.
+ *
+ * Roads are drawn with Segment.draw, coloured and widened by road class and
+ * with the higher classes on top. The graph's own projection is linear in
+ * latitude and longitude, so within a tile Web Mercator is just a different
+ * scale down the tile than across it; each tile is drawn supersampled with
+ * that scale as a transform, which keeps the pixel rounding in Segment.draw
+ * below a quarter of a pixel.
+ *
+ * Only tiles that some segment's bounding box touches are rendered, each with
+ * just the segments that touch it, on all cores.
+ *
+ * Every export writes a manifest, out/manifest.tab, of the segments it drew
+ * and their bounding boxes. The next export reads it, so that tiles only the
+ * old segments touched are rendered again too, or deleted if nothing touches
+ * them now. Given a set of changed roads or segments, only the tiles they
+ * touch now or touched before are rendered again, which catches segments
+ * that have moved or gone.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class TileExporter {
+
+	private static final String USAGE = "Usage: AucklandMapper --tiles [--data dir] --out dir\n"
+			+ "         [--min-zoom z] [--max-zoom z] [--threads n] [--changed file]\n"
+			+ "The changed file lists what to render again, one 'road <roadID>' or\n"
+			+ "'segment <roadID> <fromNodeID> <toNodeID>' a line, and needs the manifest of an\n"
+			+ "earlier export in the out dir.";
+
+	/** The file in the out dir listing the segments drawn and their bounds */
+	public static final String MANIFEST = "manifest.tab";
+
+	/** The width and height of a tile in pixels */
+	public static final int TILE_SIZE = 256;
+	public static final int MAX_ZOOM = 18;
+
+	// drawing is this many times finer than the tile, so the rounding to
+	// whole pixels in Segment.draw is small
+	private static final int SUPERSAMPLE = 4;
+	// how far past its bounding box a segment's line may reach, in pixels
+	private static final double MARGIN = 4;
+
+	// colour and width of each road class, residential to major highway
+	private static final Color[] CLASS_COLOURS = { new Color(150, 150, 150), new Color(230, 200, 90),
+			new Color(240, 160, 60), new Color(225, 110, 50), new Color(200, 50, 50) };
+	private static final float[] CLASS_WIDTHS = { 1, 1.5f, 2, 2.5f, 3 };
+
+	private final int minZoom;
+	private final int maxZoom;
+	private final int threads;
+	// the segments drawn, lowest class first, and their bounding boxes as
+	// west, south, east, north in degrees
+	private final Segment[] segments;
+	private final double[] bounds;
+	private final String[] keys;
+
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong deleted = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+
+	public TileExporter(RoadGraph graph, int minZoom, int maxZoom, int threads) {
+		this.minZoom = minZoom;
+		this.maxZoom = maxZoom;
+		this.threads = threads;
+		List<Segment> drawn = new ArrayList<Segment>();
+		for (Road road : graph.getRoads()) {
+			// a road's reversed segments draw the same line
+			for (Segment seg : road.getSegments()) {
+				if (!seg.getCoords().isEmpty()) {
+					drawn.add(seg);
+				}
+			}
+		}
+		Collections.sort(drawn, new Comparator<Segment>() {
+			public int compare(Segment a, Segment b) {
+				return Integer.compare(a.getRoad().getRoadclass(), b.getRoad().getRoadclass());
+			}
+		});
+		this.segments = drawn.toArray(new Segment[drawn.size()]);
+		this.bounds = new double[4 * segments.length];
+		this.keys = new String[segments.length];
+		for (int i = 0; i < segments.length; i++) {
+			keys[i] = key(segments[i]);
+			double west = Double.POSITIVE_INFINITY, east = Double.NEGATIVE_INFINITY;
+			double south = Double.POSITIVE_INFINITY, north = Double.NEGATIVE_INFINITY;
+			for (Location loc : segments[i].getCoords()) {
+				double lat = loc.getLat();
+				double lon = loc.getLon();
+				west = Math.min(west, lon);
+				east = Math.max(east, lon);
+				south = Math.min(south, lat);
+				north = Math.max(north, lat);
+			}
+			bounds[4 * i] = west;
+			bounds[4 * i + 1] = south;
+			bounds[4 * i + 2] = east;
+			bounds[4 * i + 3] = north;
+		}
+	}
+
+	// --------- Web Mercator tile coordinates, fractional ------------------
+
+	public static double tileX(double lon, int zoom) {
+		return (lon + 180) / 360 * (1 << zoom);
+	}
+
+	public static double tileY(double lat, int zoom) {
+		double r = Math.toRadians(lat);
+		return (1 - Math.log(Math.tan(r) + 1 / Math.cos(r)) / Math.PI) / 2 * (1 << zoom);
+	}
+
+	public static double lon(double tileX, int zoom) {
+		return tileX / (1 << zoom) * 360 - 180;
+	}
+
+	public static double lat(double tileY, int zoom) {
+		return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * tileY / (1 << zoom)))));
+	}
+
+	/**
+	 * Changes: The roads and segments whose tiles an update renders again.
+	 * Segments are known by road and end nodes, so ones that are no longer in
+	 * the graph can be named, and a reversed copy is the same as the segment
+	 * it copies.
+	 */
+	public static class Changes {
+
+		private final Set<Integer> roads = new HashSet<Integer>();
+		private final Set<String> segments = new HashSet<String>();
+
+		public void addRoad(int roadID) {
+			roads.add(roadID);
+		}
+
+		public void addSegment(int roadID, int fromNodeID, int toNodeID) {
+			segments.add(key(roadID, fromNodeID, toNodeID));
+		}
+
+		public void add(Segment s) {
+			segments.add(key(s));
+		}
+
+		boolean contains(String key) {
+			return segments.contains(key) || roads.contains(Integer.parseInt(key.substring(0, key.indexOf(':'))));
+		}
+
+	}
+
+	/**
+	 * Renders every tile of every zoom level that a segment touches, and
+	 * those the segments of the last export touched, deleting the ones that
+	 * are now empty.
+	 *
+	 * @return the number of tiles written
+	 */
+	public long export(File out) throws IOException {
+		return render(out, null);
+	}
+
+	/**
+	 * Renders again only the tiles the changed segments touch, now or in the
+	 * last export, and deletes any of them that no longer have a segment.
+	 *
+	 * @return the number of tiles written
+	 * @throws IOException
+	 *             if there is no manifest of an earlier export to say where
+	 *             the segments were
+	 */
+	public long update(File out, Changes changed) throws IOException {
+		return render(out, changed);
+	}
+
+	private long render(final File out, Changes changed) throws IOException {
+		written.set(0);
+		deleted.set(0);
+		bytes.set(0);
+		Manifest old = Manifest.read(new File(out, MANIFEST));
+		if (changed != null && old == null) {
+			throw new IOException("No " + MANIFEST + " in " + out + ", so export every tile first");
+		}
+		boolean[] include = null;
+		boolean[] includeOld = null;
+		if (changed != null) {
+			include = new boolean[segments.length];
+			for (int i = 0; i < segments.length; i++) {
+				include[i] = changed.contains(keys[i]);
+			}
+			includeOld = new boolean[old.keys.size()];
+			for (int i = 0; i < includeOld.length; i++) {
+				includeOld[i] = changed.contains(old.keys.get(i));
+			}
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+				final long[] tiles = tilesOf(zoom, bounds, segments.length, null);
+				long[] wanted = changed == null ? tiles : tilesOf(zoom, bounds, segments.length, include);
+				if (old != null) {
+					// where the segments were, which may now be empty
+					wanted = merge(wanted, tilesOf(zoom, old.bounds, old.keys.size(), includeOld));
+				}
+				// tiles are in runs of (tile, segment), by tile; hand each
+				// worker a share of the runs
+				final int z = zoom;
+				final long[] want = wanted;
+				List<Future<?>> parts = new ArrayList<Future<?>>();
+				for (int t = 0; t < threads; t++) {
+					final int part = t;
+					parts.add(pool.submit(new Callable<Void>() {
+						public Void call() throws IOException {
+							renderPart(out, z, tiles, want, part);
+							return null;
+						}
+					}));
+				}
+				for (Future<?> f : parts) {
+					try {
+						f.get();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while rendering tiles", e);
+					} catch (ExecutionException e) {
+						throw new IOException("Rendering tiles failed", e.getCause());
+					}
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		writeManifest(out);
+		return written.get();
+	}
+
+	/**
+	 * @param bounds
+	 *            the bounding box of each segment, as for the field
+	 * @return for every tile of the zoom level that a segment (of those
+	 *         included, or of all) touches, (tile << 24 | segment), sorted;
+	 *         the tile being x << zoom | y
+	 */
+	private static long[] tilesOf(int zoom, double[] bounds, int count, boolean[] include) {
+		double margin = MARGIN / TILE_SIZE;
+		long[] ans = new long[1024];
+		int size = 0;
+		for (int i = 0; i < count; i++) {
+			if (include != null && !include[i]) {
+				continue;
+			}
+			int x0 = (int) Math.floor(tileX(bounds[4 * i], zoom) - margin);
+			int x1 = (int) Math.floor(tileX(bounds[4 * i + 2], zoom) + margin);
+			// y grows southwards
+			int y0 = (int) Math.floor(tileY(bounds[4 * i + 3], zoom) - margin);
+			int y1 = (int) Math.floor(tileY(bounds[4 * i + 1], zoom) + margin);
+			for (int x = x0; x <= x1; x++) {
+				for (int y = y0; y <= y1; y++) {
+					if (size == ans.length) {
+						ans = Arrays.copyOf(ans, size * 2);
+					}
+					ans[size++] = ((long) x << zoom | y) << 24 | i;
+				}
+			}
+		}
+		ans = Arrays.copyOf(ans, size);
+		Arrays.sort(ans);
+		return ans;
+	}
+
+	/**
+	 * @return both sorted lists of tiles in one, sorted
+	 */
+	private static long[] merge(long[] a, long[] b) {
+		long[] ans = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, ans, a.length, b.length);
+		Arrays.sort(ans);
+		return ans;
+	}
+
+	/**
+	 * @return the road and nodes of a segment, the same for its reversed
+	 *         copy
+	 */
+	private static String key(Segment s) {
+		return key(s.getRoad().getID(), s.getStartNode().getID(), s.getEndNode().getID());
+	}
+
+	private static String key(int roadID, int a, int b) {
+		return roadID + ":" + Math.min(a, b) + ":" + Math.max(a, b);
+	}
+
+	/**
+	 * Manifest: The segments an export drew, by key, and their bounding boxes.
+	 */
+	private static class Manifest {
+
+		final List<String> keys = new ArrayList<String>();
+		double[] bounds = new double[1024];
+
+		/**
+		 * @return the manifest in the file, or null if there is none
+		 */
+		static Manifest read(File file) throws IOException {
+			if (!file.exists()) {
+				return null;
+			}
+			Manifest m = new Manifest();
+			try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					String[] values = line.split("\t");
+					if (values.length != 5) {
+						throw new IOException("Bad line in " + file + ": " + line);
+					}
+					int i = m.keys.size();
+					if (4 * i + 4 > m.bounds.length) {
+						m.bounds = Arrays.copyOf(m.bounds, 2 * m.bounds.length);
+					}
+					m.keys.add(values[0]);
+					for (int k = 0; k < 4; k++) {
+						m.bounds[4 * i + k] = Double.parseDouble(values[k + 1]);
+					}
+				}
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad number in " + file + ": " + e.getMessage());
+			}
+			if (m.keys.size() >= 1 << 24) {
+				throw new IOException("Too many segments in " + file);
+			}
+			return m;
+		}
+
+	}
+
+	/**
+	 * Writes the manifest of the segments drawn, replacing the old one only
+	 * once the new one is complete.
+	 */
+	private void writeManifest(File out) throws IOException {
+		out.mkdirs();
+		File file = new File(out, MANIFEST);
+		File tmp = new File(out, MANIFEST + ".tmp");
+		try (Writer w = new BufferedWriter(new FileWriter(tmp))) {
+			for (int i = 0; i < segments.length; i++) {
+				w.write(keys[i]);
+				for (int k = 0; k < 4; k++) {
+					w.write('\t');
+					w.write(Double.toString(bounds[4 * i + k]));
+				}
+				w.write('\n');
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Renders the tiles in want whose number is the part, counting round
+	 * the threads, with the segments listed against them in tiles.
+	 */
+	private void renderPart(File out, int zoom, long[] tiles, long[] want, int part) throws IOException {
+		BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+		int n = 0;
+		int i = 0;
+		long last = -1;
+		for (int k = 0; k < want.length; k++) {
+			long tile = want[k] >>> 24;
+			if (tile == last) {
+				continue;
+			}
+			last = tile;
+			if (n++ % threads != part) {
+				continue;
+			}
+			// the run of this tile in tiles, which is sorted the same way
+			while (i < tiles.length && tiles[i] >>> 24 < tile) {
+				i++;
+			}
+			int end = i;
+			while (end < tiles.length && tiles[end] >>> 24 == tile) {
+				end++;
+			}
+			int x = (int) (tile >>> zoom);
+			int y = (int) (tile & ((1L << zoom) - 1));
+			File file = new File(out, zoom + "/" + x + "/" + y + ".png");
+			if (end == i) {
+				if (file.delete()) {
+					deleted.incrementAndGet();
+				}
+				continue;
+			}
+			draw(image, zoom, x, y, tiles, i, end);
+			file.getParentFile().mkdirs();
+			ImageIO.write(image, "png", file);
+			written.incrementAndGet();
+			bytes.addAndGet(file.length());
+			i = end;
+		}
+	}
+
+	/**
+	 * Draws the segments of tiles[from..to) onto the image, as tile (x, y).
+	 */
+	private void draw(BufferedImage image, int zoom, int x, int y, long[] tiles, int from, int to) {
+		Graphics2D g = image.createGraphics();
+		g.setComposite(AlphaComposite.Clear);
+		g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+		g.setComposite(AlphaComposite.SrcOver);
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+		Location northWest = Location.newFromLatLon(lat(y, zoom), lon(x, zoom));
+		Location southEast = Location.newFromLatLon(lat(y + 1, zoom), lon(x + 1, zoom));
+		double across = TILE_SIZE / (southEast.x - northWest.x);
+		double down = TILE_SIZE / (northWest.y - southEast.y);
+		// Segment.draw scales both ways by one scale, so stretch the rest
+		double scale = across * SUPERSAMPLE;
+		g.scale(1.0 / SUPERSAMPLE, down / scale);
+		// the stretch widens lines down the tile, so split the difference
+		double widen = SUPERSAMPLE / Math.sqrt(down / across);
+		// thinner lines when zoomed out
+		double zoomWidth = Math.max(0.5, Math.min(2, Math.pow(2, (zoom - 15) / 2.0)));
+		int roadClass = -1;
+		for (int k = from; k < to; k++) {
+			Segment seg = segments[(int) (tiles[k] & 0xffffff)];
+			int c = Math.min(seg.getRoad().getRoadclass(), CLASS_COLOURS.length - 1);
+			if (c != roadClass) {
+				roadClass = c;
+				g.setColor(CLASS_COLOURS[c]);
+				g.setStroke(new BasicStroke((float) (CLASS_WIDTHS[c] * zoomWidth * widen), BasicStroke.CAP_ROUND,
+						BasicStroke.JOIN_ROUND));
+			}
+			seg.draw(g, northWest, scale);
+		}
+		g.dispose();
+	}
+
+	public String toString() {
+		return String.format("%,d segments, zoom %d to %d: %,d tiles written (%,d KB), %,d deleted",
+				segments.length, minZoom, maxZoom, written.get(), bytes.get() >> 10, deleted.get());
+	}
+
+	/**
+	 * Reads a changed file: 'road <roadID>' for all of a road's segments or
+	 * 'segment <roadID> <fromNodeID> <toNodeID>' for one. Neither need still
+	 * be in the graph.
+	 */
+	private static Changes readChanged(File file) throws IOException {
+		Changes ans = new Changes();
+		try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] values = line.split("\\s+");
+				if (values[0].equals("road") && values.length == 2) {
+					ans.addRoad(Integer.parseInt(values[1]));
+				} else if (values[0].equals("segment") && values.length == 4) {
+					ans.addSegment(Integer.parseInt(values[1]), Integer.parseInt(values[2]),
+							Integer.parseInt(values[3]));
+				} else {
+					throw new IOException("Bad line: " + line);
+				}
+			}
+		}
+		return ans;
+	}
+
+	public static void main(String[] arguments) {
+		String dataDir = "../graph-data/";
+		String outDir = null;
+		int minZoom = 10;
+		int maxZoom = 16;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String changedFile = null;
+		for (int i = 0; i < arguments.length; i++) {
+			String arg = arguments[i];
+			if (!arg.startsWith("--") || i + 1 >= arguments.length) {
+				System.err.println(USAGE);
+				return;
+			}
+			switch (arg) {
+			case "--data":
+				dataDir = arguments[++i];
+				break;
+			case "--out":
+				outDir = arguments[++i];
+				break;
+			case "--min-zoom":
+				minZoom = Integer.parseInt(arguments[++i]);
+				break;
+			case "--max-zoom":
+				maxZoom = Integer.parseInt(arguments[++i]);
+				break;
+			case "--threads":
+				threads = Integer.parseInt(arguments[++i]);
+				break;
+			case "--changed":
+				changedFile = arguments[++i];
+				break;
+			default:
+				System.err.println(USAGE);
+				return;
+			}
+		}
+		if (outDir == null || minZoom < 0 || maxZoom > MAX_ZOOM || minZoom > maxZoom || threads < 1) {
+			System.err.println(USAGE);
+			return;
+		}
+		if (!dataDir.endsWith("/")) {
+			dataDir += "/";
+		}
+
+		PrintStream stdout = System.out;
+		System.setOut(System.err);
+		RoadGraph roadGraph = new RoadGraph();
+		System.err.print(roadGraph.loadData(dataDir));
+		System.setOut(stdout);
+
+		TileExporter exporter = new TileExporter(roadGraph, minZoom, maxZoom, threads);
+		if (exporter.segments.length >= 1 << 24) {
+			System.err.println("Too many segments to export");
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			long tiles;
+			if (changedFile == null) {
+				tiles = exporter.export(new File(outDir));
+			} else {
+				tiles = exporter.update(new File(outDir), readChanged(new File(changedFile)));
+			}
+			double secs = (System.nanoTime() - start) / 1e9;
+			System.err.printf("Rendered %,d tiles in %.2fs (%,.0f/s) on %d threads%n", tiles, secs, tiles / secs,
+					threads);
+			System.err.println(exporter);
+		} catch (IOException | NumberFormatException e) {
+			System.err.println("Tile export failed: " + e);
+		}
+	}
+
+}
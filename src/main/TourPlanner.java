@@ -0,0 +1,903 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import utils.CancelToken;
+import utils.Location;
+import utils.ModeGraph;
+import utils.Node;
+import utils.SearchState;
+import utils.SearchStats;
+import utils.Segment;
+import utils.TurnRestrictions;
+
+/**
+ * TourPlanner: Plans the order to visit a list of stops in, as for a
+ * courier's run. The cost of every leg from one stop to another is found
+ * first, in parallel, with one Dijkstra search per stop that ends once every
+ * other stop is settled. The order is then built by cheapest insertion and
+ * improved with 2-opt and Or-opt moves until neither helps, after which a
+ * random double bridge kicks the best order found out of its local optimum
+ * and the moves start again, until the time budget runs out. Lastly each leg
+ * of the best order is routed with the Searcher and the legs are stitched
+ * into one path.
+ *
+ * The first stop is where the run starts, and where it ends unless it is an
+ * open run. Stops may have time windows, when the cost model is in hours:
+ * arriving early means waiting for the window to open, and each hour late
+ * after it closes costs LATE_PENALTY hours.
+ *
+ * The solver allocates all of its arrays once per plan, so trying a move
+ * allocates nothing.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class TourPlanner {
+
+	private static final String USAGE = "Usage: AucklandMapper --tour [--data dir]\n"
+			+ "         [--mode distance|time|arterial|comfort] [--transport car|bike|walking]\n"
+			+ "         [--budget ms] [--open] [--depart HH:MM] [--service minutes] [--threads n] [input|-]\n"
+			+ "Each input line is a stop, 'nodeID' or 'lat,lon', optionally followed by a time window\n"
+			+ "',HH:MM,HH:MM' (time mode only). The first stop is where the run starts.";
+
+	/** What each hour late at a stop costs, in hours */
+	public static final double LATE_PENALTY = 100;
+	/** The longest chain of stops an Or-opt move shifts */
+	public static final int OR_OPT_LENGTH = 3;
+
+	private static final SearchMetrics metrics = SearchMetrics.forEngine("matrix");
+
+	private final RoadGraph graph;
+	private final String searchMode;
+	private final String transportMode;
+	private final CostModel model;
+	private final int threads;
+
+	// each worker thread reuses one search state for all of its stops
+	private final ThreadLocal<SearchState> states = new ThreadLocal<SearchState>() {
+		protected SearchState initialValue() {
+			return new SearchState(graph.numNodes());
+		}
+	};
+
+	/**
+	 * @param searchMode
+	 *            the name of a cost model
+	 */
+	public TourPlanner(RoadGraph graph, String searchMode, String transportMode, int threads) {
+		this.model = CostModel.forName(searchMode);
+		if (model == null) {
+			throw new IllegalArgumentException("No cost model called " + searchMode);
+		}
+		this.graph = graph;
+		this.searchMode = searchMode;
+		this.transportMode = transportMode;
+		this.threads = threads;
+	}
+
+	/**
+	 * Tour: The best order found and its route.
+	 */
+	public static class Tour {
+
+		private final int[] order;
+		private final List<List<Segment>> legs;
+		private final double cost;
+		private final double lateness;
+		private final double[] arrivals;
+		private final String stats;
+
+		Tour(int[] order, List<List<Segment>> legs, double cost, double lateness, double[] arrivals, String stats) {
+			this.order = order;
+			this.legs = legs;
+			this.cost = cost;
+			this.lateness = lateness;
+			this.arrivals = arrivals;
+			this.stats = stats;
+		}
+
+		/**
+		 * @return the indexes of the stops in the order to visit them, from
+		 *         the first stop
+		 */
+		public int[] getOrder() {
+			return order;
+		}
+
+		/**
+		 * @return the route of each leg: leg i arrives at stop order[i], so
+		 *         leg 0 is empty, and on a round trip one last leg returns to
+		 *         the first stop. A leg is null if there is no route.
+		 */
+		public List<List<Segment>> getLegs() {
+			return legs;
+		}
+
+		/**
+		 * @return the legs stitched into one route, without any that have no
+		 *         route
+		 */
+		public List<Segment> getSegments() {
+			List<Segment> ans = new ArrayList<Segment>();
+			for (List<Segment> leg : legs) {
+				if (leg != null) {
+					ans.addAll(leg);
+				}
+			}
+			return ans;
+		}
+
+		/**
+		 * @return the nodes along the stitched route
+		 */
+		public List<Node> getNodePath() {
+			List<Segment> segments = getSegments();
+			List<Node> ans = new ArrayList<Node>(segments.size() + 1);
+			if (!segments.isEmpty()) {
+				ans.add(segments.get(0).getStartNode());
+			}
+			for (Segment s : segments) {
+				ans.add(s.getEndNode());
+			}
+			return ans;
+		}
+
+		/**
+		 * @return the cost of travelling the legs in the units of the cost
+		 *         model, infinite if any leg has no route
+		 */
+		public double getCost() {
+			return cost;
+		}
+
+		/**
+		 * @return the hours the stops are reached after their windows close,
+		 *         in total
+		 */
+		public double getLateness() {
+			return lateness;
+		}
+
+		/**
+		 * @return the hour each stop in the order is reached at, or null if
+		 *         there are no time windows
+		 */
+		public double[] getArrivals() {
+			return arrivals;
+		}
+
+		public String toString() {
+			return String.format("%d stops, cost %.4f, %.2f hours late; %s", order.length, cost, lateness, stats);
+		}
+
+	}
+
+	/**
+	 * Plans a run with no time windows.
+	 */
+	public Tour plan(List<Node> stops, boolean roundTrip, long budgetMillis) {
+		return plan(stops, roundTrip, budgetMillis, CancelToken.NONE);
+	}
+
+	/**
+	 * Plans a run with no time windows, improving the order only until the
+	 * budget runs out, and giving up once the token is cancelled.
+	 *
+	 * @return the plan, or null if the token was cancelled
+	 */
+	public Tour plan(List<Node> stops, boolean roundTrip, long budgetMillis, CancelToken cancel) {
+		return plan(stops, roundTrip, null, null, 0, 0, budgetMillis, cancel);
+	}
+
+	/**
+	 * Plans the order to visit the stops in, starting from the first.
+	 *
+	 * @param roundTrip
+	 *            whether the run ends back at the first stop
+	 * @param open
+	 *            the hour each stop's window opens, or null for no windows
+	 * @param close
+	 *            the hour each stop's window closes
+	 * @param departure
+	 *            the hour the run starts, if there are windows
+	 * @param service
+	 *            the hours spent at each stop, if there are windows
+	 * @param budgetMillis
+	 *            how long to spend improving the order
+	 */
+	public Tour plan(List<Node> stops, boolean roundTrip, double[] open, double[] close, double departure,
+			double service, long budgetMillis) {
+		return plan(stops, roundTrip, open, close, departure, service, budgetMillis, CancelToken.NONE);
+	}
+
+	/**
+	 * Plans the order to visit the stops in, as above, but gives up as soon as
+	 * the token is cancelled, whether working out the leg costs, improving
+	 * the order or routing the legs.
+	 *
+	 * @return the plan, or null if the token was cancelled
+	 */
+	public Tour plan(List<Node> stops, boolean roundTrip, double[] open, double[] close, double departure,
+			double service, long budgetMillis, CancelToken cancel) {
+		if (open != null && model != CostModel.TIME) {
+			throw new IllegalArgumentException("Time windows need the time cost model");
+		}
+		long start = System.nanoTime();
+		double[] costs = legCosts(stops, cancel);
+		if (costs == null) {
+			return null;
+		}
+		long matrixNanos = System.nanoTime() - start;
+
+		int n = stops.size();
+		double[] solved = costs.clone();
+		for (int i = 0; i < n * n; i++) {
+			if (solved[i] == Double.POSITIVE_INFINITY) {
+				// far worse than any real route, but still comparable
+				solved[i] = 1e9;
+			}
+		}
+		if (!roundTrip) {
+			// returning to the first stop is free, so the run ends anywhere
+			for (int i = 0; i < n; i++) {
+				solved[i * n] = 0;
+			}
+		}
+		Solver solver = new Solver(n, solved, open, close, departure, service);
+		solver.solve(start + matrixNanos + budgetMillis * 1000000L, cancel);
+		long solveNanos = System.nanoTime() - start - matrixNanos;
+
+		int[] order = solver.best.clone();
+		double cost = 0;
+		for (int k = 1; k <= n; k++) {
+			if (k < n || roundTrip) {
+				cost += costs[order[k - 1] * n + order[k % n]];
+			}
+		}
+		List<List<Segment>> legs = stitch(stops, order, roundTrip, cancel);
+		if (legs == null) {
+			return null;
+		}
+		String stats = String.format("legs %.0f ms, ordering %.0f ms (%,d moves tried, %,d made, %,d kicks)",
+				matrixNanos / 1e6, solveNanos / 1e6, solver.tried, solver.applied, solver.kicks);
+		return new Tour(order, legs, cost, open == null ? 0 : solver.lateness(order), open == null ? null
+				: solver.arrivals(order), stats);
+	}
+
+	/**
+	 * Works out the cost of travelling from every stop to every other, one
+	 * search per stop, on the worker threads.
+	 *
+	 * @return the cost from stop i to stop j at [i * n + j], infinite where
+	 *         there is no route
+	 */
+	public double[] legCosts(List<Node> stops) {
+		return legCosts(stops, CancelToken.NONE);
+	}
+
+	/**
+	 * Works out the leg costs as above, but stops each search as soon as the
+	 * token is cancelled.
+	 *
+	 * @return the costs, or null if the token was cancelled
+	 */
+	public double[] legCosts(final List<Node> stops, final CancelToken cancel) {
+		final int n = stops.size();
+		final double[] ans = new double[n * n];
+		final float[] weights = graph.getWeights(model, transportMode);
+		final boolean[] isStop = new boolean[graph.numNodes()];
+		int distinct = 0;
+		for (Node stop : stops) {
+			if (!isStop[stop.getIndex()]) {
+				isStop[stop.getIndex()] = true;
+				distinct++;
+			}
+		}
+		final int targets = distinct;
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, n)));
+		try {
+			List<Future<?>> rows = new ArrayList<Future<?>>(n);
+			for (int i = 0; i < n; i++) {
+				final int from = i;
+				rows.add(pool.submit(new Runnable() {
+					public void run() {
+						if (!cancel.isCancelled()) {
+							costsFrom(states.get(), weights, stops, isStop, targets, from, ans, cancel);
+						}
+					}
+				}));
+			}
+			for (Future<?> row : rows) {
+				try {
+					row.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while finding leg costs", e);
+				} catch (ExecutionException e) {
+					throw new IllegalStateException("Finding leg costs failed", e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+		return cancel.isCancelled() ? null : ans;
+	}
+
+	/**
+	 * Dijkstra from one stop until every stop is settled, checking turns as
+	 * the Searcher does, filling in one row of the costs. Like the Searcher it
+	 * checks the token before settling each node, and leaves the row alone
+	 * once it is cancelled.
+	 *
+	 * @param isStop
+	 *            whether each node, by index, is a stop
+	 * @param targets
+	 *            the number of different nodes that are stops
+	 */
+	private void costsFrom(SearchState state, float[] weights, List<Node> stops, boolean[] isStop, int targets,
+			int from, double[] costs, CancelToken cancel) {
+		int n = stops.size();
+		ModeGraph modeGraph = graph.getModeGraph(transportMode);
+		TurnRestrictions restrictions = transportMode.equals("car") ? graph.getTurnRestrictions() : null;
+		SearchStats stats = new SearchStats();
+		stats.start();
+		state.reset();
+		state.reach(stops.get(from), 0, null);
+		state.push(stops.get(from), 0);
+		stats.push();
+		int left = targets;
+		while (!state.isEmpty() && left > 0) {
+			Node node = state.pop();
+			stats.pop();
+			if (state.isSettled(node)) {
+				stats.stalePop();
+				continue;
+			}
+			if (cancel.isCancelled()) {
+				return;
+			}
+			stats.settle();
+			state.settle(node);
+			if (isStop[node.getIndex()]) {
+				left--;
+			}
+			double costToHere = state.getCost(node);
+			Segment arrivedBy = state.getVia(node);
+			for (Segment s : modeGraph.getOut(node)) {
+				float w = weights[s.getID()];
+				if (w == Float.POSITIVE_INFINITY) {
+					stats.filterEdge();
+					continue;
+				}
+				Node next = s.getEndNode();
+				if (state.isSettled(next)) {
+					continue;
+				}
+				if (restrictions != null && arrivedBy != null) {
+					stats.restrictionCheck();
+					if (restrictions.isRestricted(arrivedBy, s)) {
+						continue;
+					}
+				}
+				double cost = costToHere + w;
+				if (cost < state.getCost(next)) {
+					state.reach(next, cost, s);
+					state.push(next, cost);
+					stats.push();
+				}
+			}
+		}
+		for (int j = 0; j < n; j++) {
+			Node stop = stops.get(j);
+			costs[from * n + j] = j == from ? 0 : state.isSettled(stop) ? state.getCost(stop)
+					: Double.POSITIVE_INFINITY;
+		}
+		stats.stop();
+		metrics.record(stats);
+	}
+
+	/**
+	 * Routes each leg of the order with the Searcher.
+	 *
+	 * @return the legs, or null if the token was cancelled
+	 */
+	private List<List<Segment>> stitch(List<Node> stops, int[] order, boolean roundTrip, CancelToken cancel) {
+		SearchState state = states.get();
+		List<List<Segment>> legs = new ArrayList<List<Segment>>();
+		legs.add(new ArrayList<Segment>());
+		int n = order.length;
+		for (int k = 1; k <= n; k++) {
+			if (k == n && !roundTrip) {
+				break;
+			}
+			Node from = stops.get(order[k - 1]);
+			Node to = stops.get(order[k % n]);
+			if (from == to) {
+				legs.add(new ArrayList<Segment>());
+				continue;
+			}
+			Searcher searcher = new Searcher(from, to, state, graph, searchMode, transportMode, 0, cancel);
+			if (cancel.isCancelled()) {
+				return null;
+			}
+			legs.add(searcher.getNodePath() == null ? null : new ArrayList<Segment>(searcher.getFinalPath()));
+		}
+		return legs;
+	}
+
+	/**
+	 * Solver: Orders the stops of one plan. The order is a cycle through every
+	 * stop with the first stop fixed in position 0.
+	 */
+	private static class Solver {
+
+		private static final double EPSILON = 1e-9;
+
+		final int n;
+		final double[] cost;
+		final double[] open;
+		final double[] close;
+		final double departure;
+		final double service;
+		final Random random = new Random(1);
+		int[] tour;
+		int[] scratch;
+		final int[] best;
+		// the cost of the tour up to each position, forwards and with every
+		// leg turned round, so a 2-opt move's change is worked out in O(1)
+		final double[] forward;
+		final double[] backward;
+		double current;
+		double bestCost;
+		long deadline;
+		long tried;
+		long applied;
+		int kicks;
+
+		Solver(int n, double[] cost, double[] open, double[] close, double departure, double service) {
+			this.n = n;
+			this.cost = cost;
+			this.open = open;
+			this.close = close;
+			this.departure = departure;
+			this.service = service;
+			tour = new int[n];
+			scratch = new int[n];
+			best = new int[n];
+			forward = new double[n];
+			backward = new double[n];
+		}
+
+		double c(int from, int to) {
+			return cost[from * n + to];
+		}
+
+		void solve(long deadline, CancelToken cancel) {
+			this.deadline = deadline;
+			insertCheapest();
+			current = objective(tour);
+			localSearch();
+			System.arraycopy(tour, 0, best, 0, n);
+			bestCost = current;
+			// a double bridge needs four edges to cut
+			while (n >= 8 && System.nanoTime() < deadline && !cancel.isCancelled()) {
+				doubleBridge();
+				kicks++;
+				current = objective(tour);
+				localSearch();
+				if (current < bestCost - EPSILON) {
+					System.arraycopy(tour, 0, best, 0, n);
+					bestCost = current;
+				}
+			}
+		}
+
+		/**
+		 * Builds the first tour by repeatedly inserting the stop that adds
+		 * the least where it adds least.
+		 */
+		void insertCheapest() {
+			boolean[] inTour = new boolean[n];
+			tour[0] = 0;
+			inTour[0] = true;
+			for (int size = 1; size < n; size++) {
+				int bestStop = -1;
+				int bestAfter = 0;
+				double bestIncrease = Double.POSITIVE_INFINITY;
+				for (int s = 1; s < n; s++) {
+					if (inTour[s]) {
+						continue;
+					}
+					for (int k = 0; k < size; k++) {
+						int u = tour[k];
+						int v = tour[(k + 1) % size];
+						double increase = c(u, s) + c(s, v) - c(u, v);
+						if (increase < bestIncrease) {
+							bestIncrease = increase;
+							bestStop = s;
+							bestAfter = k;
+						}
+					}
+				}
+				System.arraycopy(tour, bestAfter + 1, tour, bestAfter + 2, size - bestAfter - 1);
+				tour[bestAfter + 1] = bestStop;
+				inTour[bestStop] = true;
+			}
+		}
+
+		void localSearch() {
+			prefixes();
+			while (System.nanoTime() < deadline) {
+				boolean improved = twoOpt();
+				improved |= orOpt();
+				if (!improved) {
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Tries reversing every stretch of the tour, making each reversal
+		 * that helps.
+		 */
+		boolean twoOpt() {
+			boolean improved = false;
+			for (int i = 1; i < n - 1; i++) {
+				if (System.nanoTime() >= deadline) {
+					break;
+				}
+				for (int j = i + 1; j < n; j++) {
+					tried++;
+					double delta;
+					if (open == null) {
+						int a = tour[i - 1];
+						int b = tour[(j + 1) % n];
+						delta = c(a, tour[j]) + c(tour[i], b) - c(a, tour[i]) - c(tour[j], b) + backward[j]
+								- backward[i] - forward[j] + forward[i];
+					} else {
+						reverse(tour, scratch, i, j);
+						delta = objective(scratch) - current;
+					}
+					if (delta < -EPSILON) {
+						if (open == null) {
+							reverse(tour, scratch, i, j);
+						}
+						accept();
+						improved = true;
+					}
+				}
+			}
+			return improved;
+		}
+
+		/**
+		 * Tries moving every chain of up to OR_OPT_LENGTH stops, either way
+		 * round, between every other pair of neighbours, making each move
+		 * that helps.
+		 */
+		boolean orOpt() {
+			boolean improved = false;
+			for (int length = 1; length <= OR_OPT_LENGTH && length < n - 1; length++) {
+				for (int i = 1; i + length <= n; i++) {
+					if (System.nanoTime() >= deadline) {
+						return improved;
+					}
+					int end = i + length - 1;
+					int first = tour[i];
+					int last = tour[end];
+					double removed = c(tour[i - 1], first) + c(last, tour[(end + 1) % n])
+							- c(tour[i - 1], tour[(end + 1) % n]);
+					double turned = backward[end] - backward[i] - forward[end] + forward[i];
+					for (int p = 0; p < n; p++) {
+						if (p >= i - 1 && p <= end) {
+							continue;
+						}
+						int u = tour[p];
+						int v = tour[(p + 1) % n];
+						for (int way = 0; way < (length == 1 ? 1 : 2); way++) {
+							boolean reversed = way == 1;
+							tried++;
+							double delta;
+							if (open == null) {
+								delta = (reversed ? c(u, last) + c(first, v) + turned : c(u, first) + c(last, v))
+										- c(u, v) - removed;
+							} else {
+								move(tour, scratch, i, end, p, reversed);
+								delta = objective(scratch) - current;
+							}
+							if (delta < -EPSILON) {
+								if (open == null) {
+									move(tour, scratch, i, end, p, reversed);
+								}
+								accept();
+								return true;
+							}
+						}
+					}
+				}
+			}
+			return improved;
+		}
+
+		/**
+		 * Makes the tour in scratch the tour.
+		 */
+		void accept() {
+			int[] t = tour;
+			tour = scratch;
+			scratch = t;
+			current = objective(tour);
+			prefixes();
+			applied++;
+		}
+
+		/**
+		 * Copies the tour with positions i to j reversed.
+		 */
+		static void reverse(int[] from, int[] to, int i, int j) {
+			System.arraycopy(from, 0, to, 0, from.length);
+			for (int a = i, b = j; a < b; a++, b--) {
+				int t = to[a];
+				to[a] = to[b];
+				to[b] = t;
+			}
+		}
+
+		/**
+		 * Copies the tour with the chain at positions i to end moved to just
+		 * after position p, reversed if asked.
+		 */
+		static void move(int[] from, int[] to, int i, int end, int p, boolean reversed) {
+			int k = 0;
+			for (int q = 0; q < from.length; q++) {
+				if (q >= i && q <= end) {
+					continue;
+				}
+				to[k++] = from[q];
+				if (q == p) {
+					for (int c = 0; c <= end - i; c++) {
+						to[k++] = from[reversed ? end - c : i + c];
+					}
+				}
+			}
+		}
+
+		/**
+		 * Cuts the best tour into four and puts the middle two the other way
+		 * round, as the starting point of the next local search.
+		 */
+		void doubleBridge() {
+			int a = 1 + random.nextInt(n - 3);
+			int b = a + 1 + random.nextInt(n - a - 2);
+			int c = b + 1 + random.nextInt(n - b - 1);
+			int k = 0;
+			for (int q = 0; q < a; q++) {
+				tour[k++] = best[q];
+			}
+			for (int q = b; q < c; q++) {
+				tour[k++] = best[q];
+			}
+			for (int q = a; q < b; q++) {
+				tour[k++] = best[q];
+			}
+			for (int q = c; q < n; q++) {
+				tour[k++] = best[q];
+			}
+		}
+
+		void prefixes() {
+			for (int k = 1; k < n; k++) {
+				forward[k] = forward[k - 1] + c(tour[k - 1], tour[k]);
+				backward[k] = backward[k - 1] + c(tour[k], tour[k - 1]);
+			}
+		}
+
+		double objective(int[] t) {
+			double travel = 0;
+			for (int k = 1; k <= n; k++) {
+				travel += c(t[k - 1], t[k % n]);
+			}
+			return open == null ? travel : travel + LATE_PENALTY * lateness(t);
+		}
+
+		/**
+		 * @return the total hours the stops are reached after their windows
+		 *         close
+		 */
+		double lateness(int[] t) {
+			double time = departure;
+			double late = 0;
+			for (int k = 1; k < n; k++) {
+				time = Math.max(time + c(t[k - 1], t[k]), open[t[k]]);
+				late += Math.max(0, time - close[t[k]]);
+				time += service;
+			}
+			return late;
+		}
+
+		double[] arrivals(int[] t) {
+			double[] ans = new double[n];
+			double time = departure;
+			ans[0] = departure;
+			for (int k = 1; k < n; k++) {
+				time += c(t[k - 1], t[k]);
+				ans[k] = time;
+				time = Math.max(time, open[t[k]]) + service;
+			}
+			return ans;
+		}
+
+	}
+
+	public static void main(String[] arguments) {
+		String dataDir = "../graph-data/";
+		String searchMode = "time";
+		String transportMode = "car";
+		long budget = 1000;
+		boolean roundTrip = true;
+		LocalTime depart = LocalTime.now();
+		double service = 0;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String input = "-";
+		for (int i = 0; i < arguments.length; i++) {
+			String arg = arguments[i];
+			if (arg.startsWith("--") && !arg.equals("--open") && i + 1 >= arguments.length) {
+				System.err.println(USAGE);
+				return;
+			}
+			switch (arg) {
+			case "--data":
+				dataDir = arguments[++i];
+				break;
+			case "--mode":
+				searchMode = arguments[++i];
+				break;
+			case "--transport":
+				transportMode = arguments[++i];
+				break;
+			case "--budget":
+				budget = Long.parseLong(arguments[++i]);
+				break;
+			case "--open":
+				roundTrip = false;
+				break;
+			case "--depart":
+				depart = LocalTime.parse(arguments[++i]);
+				break;
+			case "--service":
+				service = Double.parseDouble(arguments[++i]) / 60;
+				break;
+			case "--threads":
+				threads = Integer.parseInt(arguments[++i]);
+				break;
+			default:
+				input = arg;
+			}
+		}
+		if (CostModel.forName(searchMode) == null
+				|| !(transportMode.equals("car") || transportMode.equals("bike") || transportMode.equals("walking"))
+				|| budget < 0 || threads < 1) {
+			System.err.println(USAGE);
+			return;
+		}
+		if (!dataDir.endsWith("/")) {
+			dataDir += "/";
+		}
+
+		// keep stdout for results only while the graph loads
+		PrintStream stdout = System.out;
+		System.setOut(System.err);
+		RoadGraph roadGraph = new RoadGraph();
+		System.err.print(roadGraph.loadData(dataDir));
+		System.setOut(stdout);
+
+		List<Node> stops = new ArrayList<Node>();
+		List<double[]> windows = new ArrayList<double[]>();
+		boolean anyWindow = false;
+		try {
+			BufferedReader in = new BufferedReader(input.equals("-") ? new InputStreamReader(System.in)
+					: new FileReader(input));
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] values = line.split("[,\\s]+");
+				Node stop;
+				int next;
+				if (values.length == 1 || values.length == 3 && values[1].contains(":")) {
+					stop = roadGraph.getNodes().get(Integer.parseInt(values[0]));
+					next = 1;
+				} else {
+					stop = roadGraph.findNearestNode(Location.newFromLatLon(Double.parseDouble(values[0]),
+							Double.parseDouble(values[1])));
+					next = 2;
+				}
+				if (stop == null) {
+					System.err.println("No node " + values[0]);
+					return;
+				}
+				stops.add(stop);
+				if (values.length >= next + 2) {
+					windows.add(new double[] { hours(LocalTime.parse(values[next])),
+							hours(LocalTime.parse(values[next + 1])) });
+					anyWindow = true;
+				} else {
+					windows.add(new double[] { 0, Double.POSITIVE_INFINITY });
+				}
+			}
+			in.close();
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Failed to read stops: " + e);
+			return;
+		}
+		if (stops.isEmpty()) {
+			System.err.println(USAGE);
+			return;
+		}
+		if (anyWindow && CostModel.forName(searchMode) != CostModel.TIME) {
+			System.err.println("Time windows need --mode time");
+			return;
+		}
+
+		double[] open = null;
+		double[] close = null;
+		if (anyWindow) {
+			open = new double[stops.size()];
+			close = new double[stops.size()];
+			for (int i = 0; i < stops.size(); i++) {
+				open[i] = windows.get(i)[0];
+				close[i] = windows.get(i)[1];
+			}
+		}
+		TourPlanner planner = new TourPlanner(roadGraph, searchMode, transportMode, threads);
+		Tour tour = planner.plan(stops, roundTrip, open, close, hours(depart), service, budget);
+
+		StringBuilder b = new StringBuilder("position,stop,node,status,arrival,path\n");
+		int[] order = tour.getOrder();
+		for (int k = 0; k < tour.getLegs().size(); k++) {
+			int stop = order[k % order.length];
+			List<Segment> leg = tour.getLegs().get(k);
+			b.append(k).append(',').append(stop + 1).append(',').append(stops.get(stop).getID()).append(',');
+			b.append(leg == null ? "no_route" : "ok").append(',');
+			if (tour.getArrivals() != null && k < order.length) {
+				long minutes = Math.round(tour.getArrivals()[k] * 60);
+				b.append(String.format(Locale.ROOT, "%02d:%02d", minutes / 60 % 24, minutes % 60));
+			}
+			b.append(',');
+			if (leg != null) {
+				for (int s = 0; s < leg.size(); s++) {
+					if (s == 0) {
+						b.append(leg.get(s).getStartNode().getID());
+					}
+					b.append(' ').append(leg.get(s).getEndNode().getID());
+				}
+			}
+			b.append('\n');
+		}
+		stdout.print(b);
+		stdout.flush();
+		System.err.println("Tour: " + tour);
+		System.err.print(SearchMetrics.dumpAll());
+	}
+
+	private static double hours(LocalTime time) {
+		return time.getHour() + time.getMinute() / 60.0;
+	}
+
+}
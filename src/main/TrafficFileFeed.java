@@ -0,0 +1,138 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * TrafficFileFeed: A stand-in for a real traffic feed that watches a directory
+ * for update files. Each file ending in .upd is one batch in the
+ * TrafficManager.Batch line format; it is published as soon as it appears and
+ * then renamed to .applied. Producers should write to another name and rename
+ * to .upd when done, so that a half written file is never read. The file's
+ * modification time is taken as the time the updates were produced.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class TrafficFileFeed implements Runnable {
+
+	private final TrafficManager traffic;
+	private final Path directory;
+	private volatile Runnable listener;
+	private WatchService watcher;
+
+	public TrafficFileFeed(TrafficManager traffic, String directory) {
+		this.traffic = traffic;
+		this.directory = Paths.get(directory);
+	}
+
+	/**
+	 * Sets something to run (on the feed thread) after each batch is
+	 * published, eg a repaint.
+	 */
+	public void setListener(Runnable listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts watching on a daemon thread.
+	 */
+	public Thread start() throws IOException {
+		watcher = directory.getFileSystem().newWatchService();
+		// a rename into the directory is reported as a create
+		directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+		Thread thread = new Thread(this, "traffic-feed");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	public void stop() throws IOException {
+		watcher.close();
+	}
+
+	public void run() {
+		try {
+			// files dropped before we started, then whatever turns up
+			applyPending();
+			while (true) {
+				WatchKey key = watcher.take();
+				key.pollEvents();
+				applyPending();
+				if (!key.reset()) {
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ClosedWatchServiceException e) {
+			// stopped
+		}
+	}
+
+	/**
+	 * Publishes every waiting .upd file, oldest name first.
+	 *
+	 * @return the number of files applied
+	 */
+	public int applyPending() {
+		List<Path> files = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.upd")) {
+			for (Path file : stream) {
+				files.add(file);
+			}
+		} catch (IOException e) {
+			System.out.println("Failed to list traffic updates: " + e);
+			return 0;
+		}
+		Collections.sort(files);
+		for (Path file : files) {
+			applyFile(file);
+		}
+		return files.size();
+	}
+
+	private void applyFile(Path file) {
+		TrafficManager.Batch batch = traffic.newBatch();
+		try (BufferedReader data = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			batch.setSourceTime(Files.getLastModifiedTime(file).toMillis());
+			while (true) {
+				String line = data.readLine();
+				if (line == null) {
+					break;
+				}
+				if (!batch.addLine(line)) {
+					System.out.println("Ignoring traffic update in " + file.getFileName() + ": " + line);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Failed to read traffic update " + file + ": " + e);
+			return;
+		}
+		traffic.publish(batch);
+		try {
+			Files.move(file, file.resolveSibling(file.getFileName() + ".applied"),
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			System.out.println("Failed to mark " + file + " as applied: " + e);
+		}
+		Runnable l = listener;
+		if (l != null) {
+			l.run();
+		}
+	}
+
+}
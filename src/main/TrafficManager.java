@@ -0,0 +1,360 @@
+package main;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import utils.LatencyHistogram;
+import utils.Road;
+import utils.Segment;
+import utils.TrafficSnapshot;
+
+/**
+ * TrafficManager: Live speed and closure overrides for the segments of a
+ * RoadGraph. Updates are gathered into a Batch and published together: the
+ * override array is copied once, the whole batch is applied to the copy, and
+ * the new TrafficSnapshot is swapped in with a single atomic set. Searches
+ * just read whatever snapshot is current when they start, without locking, and
+ * never see half a batch.
+ *
+ * Publishing is serialised, so batches may come from any number of feeds.
+ * The segments each of the last CHANGE_LOG versions changed are remembered,
+ * so that weights and customizations built for an older snapshot can be
+ * brought up to date by redoing only those segments.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class TrafficManager implements TrafficManagerMBean {
+
+	// how many versions back changedBetween() can look
+	private static final int CHANGE_LOG = 64;
+
+	private final RoadGraph graph;
+	private final AtomicReference<TrafficSnapshot> current = new AtomicReference<TrafficSnapshot>(
+			TrafficSnapshot.EMPTY);
+
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder updates = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LatencyHistogram visible = new LatencyHistogram();
+
+	// the IDs of the segments each version changed, by version % CHANGE_LOG
+	private final int[][] changeLog = new int[CHANGE_LOG][];
+
+	public TrafficManager(RoadGraph graph) {
+		this.graph = graph;
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("AucklandMapper:type=Traffic");
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+		} catch (JMException e) {
+			System.out.println("Failed to register traffic metrics: " + e);
+		}
+	}
+
+	/**
+	 * @return the overrides currently in force
+	 */
+	public TrafficSnapshot getSnapshot() {
+		return current.get();
+	}
+
+	public Batch newBatch() {
+		return new Batch();
+	}
+
+	/**
+	 * Applies a batch of updates and makes them visible to new searches.
+	 *
+	 * @return the snapshot that was published
+	 */
+	public synchronized TrafficSnapshot publish(Batch batch) {
+		TrafficSnapshot old = current.get();
+		float[] speeds = old.copySpeeds(graph.numSegments());
+		int overrides = old.getOverrides();
+		BitSet changed = new BitSet();
+		for (int i = 0; i < batch.size; i++) {
+			int id = batch.segments[i];
+			boolean had = !Float.isNaN(speeds[id]);
+			if (Float.compare(speeds[id], batch.speeds[i]) != 0) {
+				changed.set(id);
+			}
+			speeds[id] = batch.speeds[i];
+			boolean has = !Float.isNaN(speeds[id]);
+			if (had != has) {
+				overrides += has ? 1 : -1;
+			}
+		}
+		TrafficSnapshot snapshot = new TrafficSnapshot(speeds, old.getVersion() + 1, overrides, System.nanoTime());
+		changeLog[(int) (snapshot.getVersion() % CHANGE_LOG)] = toArray(changed);
+		current.set(snapshot);
+
+		batches.increment();
+		updates.add(batch.size);
+		if (batch.sourceMillis > 0) {
+			visible.record((System.currentTimeMillis() - batch.sourceMillis) * 1000000L);
+		} else {
+			visible.record(snapshot.getPublishedAt() - batch.createdAt);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @return the IDs of the segments whose overrides differ between two
+	 *         snapshots, in order, or null if the older one is too old to
+	 *         tell, or is not older
+	 */
+	public synchronized int[] changedBetween(TrafficSnapshot from, TrafficSnapshot to) {
+		if (from.getVersion() > to.getVersion() || current.get().getVersion() - from.getVersion() > CHANGE_LOG) {
+			return null;
+		}
+		BitSet changed = new BitSet();
+		for (long v = from.getVersion() + 1; v <= to.getVersion(); v++) {
+			for (int id : changeLog[(int) (v % CHANGE_LOG)]) {
+				changed.set(id);
+			}
+		}
+		return toArray(changed);
+	}
+
+	private static int[] toArray(BitSet bits) {
+		int[] ans = new int[bits.cardinality()];
+		int i = 0;
+		for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+			ans[i++] = id;
+		}
+		return ans;
+	}
+
+	/**
+	 * Closes both directions of a road straight away.
+	 *
+	 * @return false if there is no road with that ID
+	 */
+	public boolean closeRoad(int roadID) {
+		Batch batch = new Batch();
+		if (!batch.closeRoad(roadID)) {
+			return false;
+		}
+		publish(batch);
+		return true;
+	}
+
+	/**
+	 * Removes the overrides from both directions of a road straight away.
+	 *
+	 * @return false if there is no road with that ID
+	 */
+	public boolean openRoad(int roadID) {
+		Batch batch = new Batch();
+		if (!batch.openRoad(roadID)) {
+			return false;
+		}
+		publish(batch);
+		return true;
+	}
+
+	public long getVersion() {
+		return current.get().getVersion();
+	}
+
+	public int getActiveOverrides() {
+		return current.get().getOverrides();
+	}
+
+	public long getBatches() {
+		return batches.sum();
+	}
+
+	public long getUpdates() {
+		return updates.sum();
+	}
+
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	public double getMeanVisibleMillis() {
+		return visible.getMean() / 1e6;
+	}
+
+	public double getP99VisibleMillis() {
+		return visible.getPercentile(0.99) / 1e6;
+	}
+
+	public double getMaxVisibleMillis() {
+		return visible.getMax() / 1e6;
+	}
+
+	public String dump() {
+		return String.format("traffic: version %,d, %,d overrides active%n"
+				+ "  batches %,d, updates %,d, rejected %,d%n"
+				+ "  update to visible ms  mean %.3f, p50 %.3f, p99 %.3f, max %.3f%n", getVersion(),
+				getActiveOverrides(), getBatches(), getUpdates(), getRejected(), getMeanVisibleMillis(),
+				visible.getPercentile(0.5) / 1e6, getP99VisibleMillis(), getMaxVisibleMillis());
+	}
+
+	/**
+	 * Batch: A set of overrides to publish together. Not thread safe; each feed
+	 * builds its own batches.
+	 */
+	public class Batch {
+
+		private int[] segments = new int[16];
+		private float[] speeds = new float[16];
+		private int size;
+		private final long createdAt = System.nanoTime();
+		private long sourceMillis;
+
+		private Batch() {
+		}
+
+		private void add(Segment seg, float speed) {
+			if (size == segments.length) {
+				segments = Arrays.copyOf(segments, size * 2);
+				speeds = Arrays.copyOf(speeds, size * 2);
+			}
+			segments[size] = seg.getID();
+			speeds[size] = speed;
+			size++;
+		}
+
+		/**
+		 * Sets the speed on a directed segment, 0 closes it. Speeds are capped
+		 * at Road.MAX_SPEED_LIMIT so the search heuristics stay lower bounds.
+		 */
+		public void setSpeed(Segment seg, double kmh) {
+			add(seg, (float) Math.max(0, Math.min(Road.MAX_SPEED_LIMIT, kmh)));
+		}
+
+		public void close(Segment seg) {
+			add(seg, 0);
+		}
+
+		/**
+		 * Removes any override on the segment.
+		 */
+		public void open(Segment seg) {
+			add(seg, Float.NaN);
+		}
+
+		/**
+		 * Sets the speed in both directions along a whole road, 0 closes it.
+		 */
+		public void setRoadSpeed(Road road, double kmh) {
+			for (Segment seg : graph.getDirectedSegments(road)) {
+				setSpeed(seg, kmh);
+			}
+		}
+
+		public void closeRoad(Road road) {
+			setRoadSpeed(road, 0);
+		}
+
+		public void openRoad(Road road) {
+			for (Segment seg : graph.getDirectedSegments(road)) {
+				open(seg);
+			}
+		}
+
+		/**
+		 * Closes both directions of the road with the given ID.
+		 *
+		 * @return false if there is no such road
+		 */
+		public boolean closeRoad(int roadID) {
+			Road road = graph.getRoad(roadID);
+			if (road == null) {
+				return false;
+			}
+			closeRoad(road);
+			return true;
+		}
+
+		/**
+		 * Removes the overrides from the road with the given ID.
+		 *
+		 * @return false if there is no such road
+		 */
+		public boolean openRoad(int roadID) {
+			Road road = graph.getRoad(roadID);
+			if (road == null) {
+				return false;
+			}
+			openRoad(road);
+			return true;
+		}
+
+		/**
+		 * Adds one line of the feed format: either
+		 * "road &lt;roadID&gt; &lt;action&gt;" or "segment &lt;roadID&gt;
+		 * &lt;fromNodeID&gt; &lt;toNodeID&gt; &lt;action&gt;", where the action
+		 * is "closed", "open" or a speed in km/h. Blank lines and lines starting
+		 * with # are ignored.
+		 *
+		 * @return false if the line could not be understood
+		 */
+		public boolean addLine(String line) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				return true;
+			}
+			String[] values = line.split("\\s+");
+			try {
+				if (values[0].equals("road") && values.length == 3) {
+					Road road = graph.getRoad(Integer.parseInt(values[1]));
+					if (road != null) {
+						String action = values[2];
+						if (action.equals("open")) {
+							openRoad(road);
+						} else {
+							setRoadSpeed(road, action.equals("closed") ? 0 : Double.parseDouble(action));
+						}
+						return true;
+					}
+				} else if (values[0].equals("segment") && values.length == 5) {
+					Segment seg = graph.findSegment(Integer.parseInt(values[1]), Integer.parseInt(values[2]),
+							Integer.parseInt(values[3]));
+					if (seg != null) {
+						String action = values[4];
+						if (action.equals("open")) {
+							open(seg);
+						} else {
+							setSpeed(seg, action.equals("closed") ? 0 : Double.parseDouble(action));
+						}
+						return true;
+					}
+				}
+			} catch (NumberFormatException e) {
+				// fall through to reject the line
+			}
+			rejected.increment();
+			return false;
+		}
+
+		/**
+		 * Sets when the updates in this batch were produced, for the latency
+		 * metrics. Defaults to when the batch was created.
+		 *
+		 * @param epochMillis
+		 */
+		public void setSourceTime(long epochMillis) {
+			sourceMillis = epochMillis;
+		}
+
+		public int size() {
+			return size;
+		}
+
+	}
+
+}
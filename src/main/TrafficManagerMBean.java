@@ -0,0 +1,36 @@
+package main;
+
+/**
+ * TrafficManagerMBean: The JMX view of the live traffic feed. Latencies are
+ * from an update being received (or its file written) to it being visible to
+ * new searches, in milliseconds. Roads can be closed and opened from here
+ * too, by road ID.
+ * 
+ * @author harryross
+ * @version 1.1
+ */
+public interface TrafficManagerMBean {
+
+	public long getVersion();
+
+	public int getActiveOverrides();
+
+	public long getBatches();
+
+	public long getUpdates();
+
+	public long getRejected();
+
+	public double getMeanVisibleMillis();
+
+	public double getP99VisibleMillis();
+
+	public double getMaxVisibleMillis();
+
+	public String dump();
+
+	public boolean closeRoad(int roadID);
+
+	public boolean openRoad(int roadID);
+
+}
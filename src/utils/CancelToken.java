@@ -0,0 +1,29 @@
+package utils;
+
+/**
+ * CancelToken: A flag that one thread raises to ask work running on another to
+ * stop. The work polls isCancelled() as it goes and gives up early when it is
+ * set; nothing is interrupted. A token is raised once and stays raised, so each
+ * piece of work should be given a fresh one.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class CancelToken {
+
+	/** A token that is never cancelled, for work that cannot be stopped */
+	public static final CancelToken NONE = new CancelToken();
+
+	private volatile boolean cancelled;
+
+	public void cancel() {
+		if (this != NONE) {
+			cancelled = true;
+		}
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+}
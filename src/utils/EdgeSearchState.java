@@ -0,0 +1,111 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * EdgeSearchState: The working memory of an edge-based search, where a search
+ * state is "has just driven along segment e" rather than "is at node n". That
+ * is what turn restrictions need, since whether a turn is allowed depends on
+ * the segment you arrive by. Arrays are indexed by Segment.getID() and reset
+ * lazily, so one state is reused for many searches by the same thread.
+ *
+ * Besides the cost and parent segment, each state remembers the level of the
+ * hop that reached it: -1 for an ordinary turn onto the segment, or the
+ * overlay level of a shortcut across a cell.
+ * 
+ * @author harryross
+ * @version 1.1
+ */
+public class EdgeSearchState {
+
+	private double[] cost;
+	private int[] parent;
+	private byte[] hopLevel;
+	private int[] reached;
+	private int[] settled;
+	private int round;
+	private IntMinHeap heap = new IntMinHeap(256);
+
+	public EdgeSearchState(int numSegments) {
+		cost = new double[numSegments];
+		parent = new int[numSegments];
+		hopLevel = new byte[numSegments];
+		reached = new int[numSegments];
+		settled = new int[numSegments];
+	}
+
+	public void reset() {
+		heap.clear();
+		round++;
+		if (round == Integer.MAX_VALUE) {
+			Arrays.fill(reached, 0);
+			Arrays.fill(settled, 0);
+			round = 1;
+		}
+	}
+
+	public boolean isReached(int seg) {
+		return reached[seg] == round;
+	}
+
+	public boolean isSettled(int seg) {
+		return settled[seg] == round;
+	}
+
+	public void settle(int seg) {
+		settled[seg] = round;
+	}
+
+	public double getCost(int seg) {
+		return reached[seg] == round ? cost[seg] : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @return the segment before this one on the best route so far, -1 for a
+	 *         segment leaving the start
+	 */
+	public int getParent(int seg) {
+		return parent[seg];
+	}
+
+	public int getHopLevel(int seg) {
+		return hopLevel[seg];
+	}
+
+	/**
+	 * Records a (better) route ending with the given segment.
+	 */
+	public void reach(int seg, double c, int from, int level) {
+		reached[seg] = round;
+		cost[seg] = c;
+		parent[seg] = from;
+		hopLevel[seg] = (byte) level;
+	}
+
+	/**
+	 * Reaches the segment and pushes it if the cost is an improvement.
+	 * 
+	 * @return true if it was an improvement
+	 */
+	public boolean relax(int seg, double c, int from, int level, double key) {
+		if (c < getCost(seg) && !isSettled(seg)) {
+			reach(seg, c, from, level);
+			heap.push(seg, key);
+			return true;
+		}
+		return false;
+	}
+
+	public boolean isEmpty() {
+		return heap.isEmpty();
+	}
+
+	public double peekKey() {
+		return heap.peekKey();
+	}
+
+	public int pop() {
+		return heap.pop();
+	}
+
+}
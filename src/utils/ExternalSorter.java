@@ -0,0 +1,356 @@
+package utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * ExternalSorter: Sorts any number of records in a fixed amount of memory.
+ * Every record is the same number of longs and is sorted by its first. Records
+ * are gathered into a chunk of at most memoryBytes; each time it fills it is
+ * sorted and written out as a run in a temporary file, and reading the sorted
+ * records merges the runs. If everything fits in one chunk nothing is written.
+ * No more than MAX_FAN_IN runs, or as many as memoryBytes gives each a buffer
+ * of MIN_BUFFER, are merged at once; if there are more, groups of them are
+ * first merged into longer runs until there are few enough.
+ *
+ * Records with equal keys come out in no particular order. The runs are kept
+ * until close(), so the sorted records may be read more than once.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class ExternalSorter implements Closeable {
+
+	// smallest read buffer per run when merging
+	private static final int MIN_BUFFER = 1 << 12;
+	// most runs open at once when merging
+	private static final int MAX_FAN_IN = 64;
+
+	private final int width;
+	private final long memoryBytes;
+	private final File directory;
+	// the chunk grows up to this many longs before it is spilled
+	private final int maxChunk;
+	private long[] chunk;
+	private int size;
+	private boolean sorted;
+	private final List<File> runs = new ArrayList<File>();
+	private int spilled;
+	private long records;
+
+	/**
+	 * @param width
+	 *            the number of longs in a record
+	 * @param memoryBytes
+	 *            the most memory to gather records in, and to merge with
+	 * @param directory
+	 *            where to write the runs, or null for the system's temporary
+	 *            directory
+	 */
+	public ExternalSorter(int width, long memoryBytes, File directory) {
+		this.width = width;
+		this.memoryBytes = memoryBytes;
+		this.directory = directory;
+		long records = Math.max(1024, memoryBytes / 8 / width);
+		this.maxChunk = (int) Math.min(records * width, Integer.MAX_VALUE - 8) / width * width;
+		this.chunk = new long[1024 * width];
+	}
+
+	/**
+	 * Adds a record, which is copied, so the array may be reused.
+	 */
+	public void add(long[] record) throws IOException {
+		if (chunk == null) {
+			throw new IllegalStateException("Records cannot be added once they have been read");
+		}
+		if (size * width == chunk.length) {
+			if (chunk.length < maxChunk) {
+				chunk = Arrays.copyOf(chunk, (int) Math.min(maxChunk, 2L * chunk.length / width * width));
+			} else {
+				spill();
+			}
+		}
+		System.arraycopy(record, 0, chunk, size * width, width);
+		size++;
+		records++;
+		sorted = false;
+	}
+
+	/**
+	 * @return the number of records added
+	 */
+	public long size() {
+		return records;
+	}
+
+	/**
+	 * @return the number of runs spilled from memory to disk so far, not
+	 *         counting those merged from other runs
+	 */
+	public int numRuns() {
+		return spilled;
+	}
+
+	private void spill() throws IOException {
+		sortChunk();
+		File run = File.createTempFile("sort", ".run", directory);
+		runs.add(run);
+		spilled++;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run),
+				1 << 16))) {
+			for (int i = 0; i < size * width; i++) {
+				out.writeLong(chunk[i]);
+			}
+		}
+		size = 0;
+	}
+
+	/**
+	 * Finishes adding and starts reading the records in order. No more may be
+	 * added after this.
+	 */
+	public Reader sorted() throws IOException {
+		if (runs.isEmpty()) {
+			sortChunk();
+			return new ChunkReader();
+		}
+		if (chunk != null) {
+			if (size > 0) {
+				spill();
+			}
+			// the chunk's memory is for the merge now
+			chunk = null;
+		}
+		int fanIn = (int) Math.max(2, Math.min(MAX_FAN_IN, memoryBytes / MIN_BUFFER));
+		while (runs.size() > fanIn) {
+			mergePass(fanIn);
+		}
+		return new MergeReader(new ArrayList<File>(runs), bufferFor(runs.size()));
+	}
+
+	private int bufferFor(int runsAtOnce) {
+		return (int) Math.max(MIN_BUFFER, Math.min(1 << 20, memoryBytes / runsAtOnce));
+	}
+
+	/**
+	 * Merges each group of up to fanIn runs into one longer run.
+	 */
+	private void mergePass(int fanIn) throws IOException {
+		List<File> pass = new ArrayList<File>(runs);
+		long[] record = new long[width];
+		for (int i = 0; i + 1 < pass.size(); i += fanIn) {
+			List<File> group = pass.subList(i, Math.min(pass.size(), i + fanIn));
+			File run = File.createTempFile("sort", ".run", directory);
+			// listed at once so that close() deletes it whatever happens
+			runs.add(run);
+			try (MergeReader in = new MergeReader(group, bufferFor(group.size()));
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run),
+							1 << 16))) {
+				while (in.next(record)) {
+					for (int k = 0; k < width; k++) {
+						out.writeLong(record[k]);
+					}
+				}
+			}
+			for (File f : group) {
+				f.delete();
+			}
+			runs.removeAll(group);
+		}
+	}
+
+	/**
+	 * Deletes the runs.
+	 */
+	public void close() {
+		for (File run : runs) {
+			run.delete();
+		}
+		runs.clear();
+		chunk = null;
+	}
+
+	private void sortChunk() {
+		if (!sorted) {
+			quicksort(0, size - 1);
+			sorted = true;
+		}
+	}
+
+	/**
+	 * Sorts the records lo to hi of the chunk, recursing only on the smaller
+	 * side so the stack stays shallow. Partitioning stops at keys equal to
+	 * the pivot, so many equal keys still split evenly.
+	 */
+	private void quicksort(int lo, int hi) {
+		while (hi - lo > 16) {
+			int mid = (lo + hi) >>> 1;
+			// median of three
+			if (key(mid) < key(lo)) {
+				swap(mid, lo);
+			}
+			if (key(hi) < key(lo)) {
+				swap(hi, lo);
+			}
+			if (key(hi) < key(mid)) {
+				swap(hi, mid);
+			}
+			long pivot = key(mid);
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (key(i) < pivot) {
+					i++;
+				}
+				while (key(j) > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(i++, j--);
+				}
+			}
+			if (j - lo < hi - i) {
+				quicksort(lo, j);
+				lo = i;
+			} else {
+				quicksort(i, hi);
+				hi = j;
+			}
+		}
+		for (int i = lo + 1; i <= hi; i++) {
+			for (int j = i; j > lo && key(j) < key(j - 1); j--) {
+				swap(j, j - 1);
+			}
+		}
+	}
+
+	private long key(int record) {
+		return chunk[record * width];
+	}
+
+	private void swap(int a, int b) {
+		int x = a * width;
+		int y = b * width;
+		for (int k = 0; k < width; k++) {
+			long t = chunk[x + k];
+			chunk[x + k] = chunk[y + k];
+			chunk[y + k] = t;
+		}
+	}
+
+	/**
+	 * Reader: The records in order of their keys.
+	 */
+	public abstract static class Reader implements Closeable {
+
+		/**
+		 * Copies the next record into the array.
+		 *
+		 * @return false if there are no more
+		 */
+		public abstract boolean next(long[] record) throws IOException;
+
+		public void close() throws IOException {
+		}
+
+	}
+
+	private class ChunkReader extends Reader {
+
+		private int next;
+
+		public boolean next(long[] record) {
+			if (next == size) {
+				return false;
+			}
+			System.arraycopy(chunk, next * width, record, 0, width);
+			next++;
+			return true;
+		}
+
+	}
+
+	/**
+	 * RunReader: The current record of one run.
+	 */
+	private class RunReader {
+
+		final DataInputStream in;
+		final long[] record = new long[width];
+
+		RunReader(File run, int buffer) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), buffer));
+		}
+
+		boolean advance() throws IOException {
+			try {
+				for (int k = 0; k < width; k++) {
+					record[k] = in.readLong();
+				}
+				return true;
+			} catch (EOFException e) {
+				in.close();
+				return false;
+			}
+		}
+
+	}
+
+	private class MergeReader extends Reader {
+
+		private final PriorityQueue<RunReader> queue;
+
+		MergeReader(List<File> group, int buffer) throws IOException {
+			queue = new PriorityQueue<RunReader>(Math.max(1, group.size()), new Comparator<RunReader>() {
+				public int compare(RunReader a, RunReader b) {
+					return Long.compare(a.record[0], b.record[0]);
+				}
+			});
+			try {
+				for (File run : group) {
+					RunReader r = new RunReader(run, buffer);
+					if (r.advance()) {
+						queue.add(r);
+					}
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		public boolean next(long[] record) throws IOException {
+			RunReader r = queue.poll();
+			if (r == null) {
+				return false;
+			}
+			System.arraycopy(r.record, 0, record, 0, width);
+			if (r.advance()) {
+				queue.add(r);
+			}
+			return true;
+		}
+
+		public void close() throws IOException {
+			for (RunReader r : queue) {
+				r.in.close();
+			}
+			queue.clear();
+		}
+
+	}
+
+}
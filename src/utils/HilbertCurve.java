@@ -0,0 +1,77 @@
+package utils;
+
+import java.util.Collection;
+
+/**
+ * HilbertCurve: Positions along a Hilbert curve over the bounding box of a
+ * set of locations. Points close together on the curve are close together on
+ * the map, so numbering things in curve order keeps neighbours near each other
+ * in arrays indexed by that number.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class HilbertCurve {
+
+	// cells per side is 2^ORDER
+	private static final int ORDER = 16;
+
+	private final double west;
+	private final double south;
+	private final double scale;
+
+	/**
+	 * Covers the bounding box of the locations.
+	 */
+	public HilbertCurve(Collection<Location> locations) {
+		double w = Double.POSITIVE_INFINITY, e = Double.NEGATIVE_INFINITY;
+		double s = Double.POSITIVE_INFINITY, n = Double.NEGATIVE_INFINITY;
+		for (Location loc : locations) {
+			w = Math.min(w, loc.x);
+			e = Math.max(e, loc.x);
+			s = Math.min(s, loc.y);
+			n = Math.max(n, loc.y);
+		}
+		if (locations.isEmpty()) {
+			w = e = s = n = 0;
+		}
+		this.west = w;
+		this.south = s;
+		double side = Math.max(e - w, n - s);
+		this.scale = side > 0 ? ((1 << ORDER) - 1) / side : 0;
+	}
+
+	/**
+	 * @return the position of the location along the curve
+	 */
+	public long indexOf(Location loc) {
+		int x = (int) ((loc.x - west) * scale);
+		int y = (int) ((loc.y - south) * scale);
+		return index(x, y);
+	}
+
+	/**
+	 * @return the position of the cell (x, y) along the curve, for x and y
+	 *         below 2^ORDER
+	 */
+	static long index(int x, int y) {
+		long d = 0;
+		for (int s = 1 << (ORDER - 1); s > 0; s >>= 1) {
+			int rx = (x & s) > 0 ? 1 : 0;
+			int ry = (y & s) > 0 ? 1 : 0;
+			d += (long) s * s * ((3 * rx) ^ ry);
+			// rotate the quadrant so the curve inside it is the right way round
+			if (ry == 0) {
+				if (rx == 1) {
+					x = s - 1 - x;
+					y = s - 1 - y;
+				}
+				int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+
+}
@@ -0,0 +1,103 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * IntMinHeap: A binary min-heap of int items keyed by doubles, backed by two
+ * primitive arrays so pushing and popping never allocates once it has grown to
+ * size. Items are not deduplicated; searches push again on improvement and
+ * skip stale entries when they are popped.
+ * 
+ * @author harryross
+ * @version 1.1
+ */
+public class IntMinHeap {
+
+	private int[] items;
+	private double[] keys;
+	private int size;
+
+	public IntMinHeap(int capacity) {
+		items = new int[Math.max(capacity, 4)];
+		keys = new double[items.length];
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public double peekKey() {
+		return keys[0];
+	}
+
+	public int peek() {
+		return items[0];
+	}
+
+	/**
+	 * @return the item at a position in the heap array, for walking the
+	 *         contents without removing them
+	 */
+	public int itemAt(int i) {
+		return items[i];
+	}
+
+	public void push(int item, double key) {
+		if (size == items.length) {
+			items = Arrays.copyOf(items, size * 2);
+			keys = Arrays.copyOf(keys, size * 2);
+		}
+		int i = size++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (keys[parent] <= key) {
+				break;
+			}
+			items[i] = items[parent];
+			keys[i] = keys[parent];
+			i = parent;
+		}
+		items[i] = item;
+		keys[i] = key;
+	}
+
+	/**
+	 * Removes and returns the item with the smallest key.
+	 */
+	public int pop() {
+		int top = items[0];
+		size--;
+		int last = items[size];
+		double key = keys[size];
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && keys[child + 1] < keys[child]) {
+				child++;
+			}
+			if (key <= keys[child]) {
+				break;
+			}
+			items[i] = items[child];
+			keys[i] = keys[child];
+			i = child;
+		}
+		if (size > 0) {
+			items[i] = last;
+			keys[i] = key;
+		}
+		return top;
+	}
+
+}
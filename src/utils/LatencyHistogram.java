@@ -0,0 +1,127 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram: A lock-free, fixed size histogram of nanosecond latencies
+ * in the style of HdrHistogram. Values are bucketed by their power of two and
+ * then linearly within it, so every bucket is within ~6% of the values it
+ * holds while the whole range of a long fits in under a thousand counters.
+ *
+ * Recording never allocates and never blocks, so it is safe to call from any
+ * number of search threads at once.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class LatencyHistogram {
+
+	// number of linear sub-buckets per power of two (as bits)
+	private static final int SUB_BITS = 5;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int HALF = SUB / 2;
+	private static final int BUCKETS = SUB + (64 - SUB_BITS) * HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder total = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records one latency.
+	 *
+	 * @param nanos
+	 *            the latency in nanoseconds, negative values count as zero
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(indexOf(nanos));
+		total.increment();
+		sum.add(nanos);
+		long m = max.get();
+		while (nanos > m && !max.compareAndSet(m, nanos)) {
+			m = max.get();
+		}
+	}
+
+	public long getCount() {
+		return total.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = total.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * Returns the smallest recorded bucket bound such that at least the given
+	 * fraction of values lies at or below it.
+	 *
+	 * @param fraction
+	 *            between 0 and 1, eg 0.99 for the 99th percentile
+	 * @return the latency in nanoseconds, 0 if nothing has been recorded
+	 */
+	public long getPercentile(double fraction) {
+		long n = total.sum();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(fraction * n);
+		if (rank < 1) {
+			rank = 1;
+		}
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		total.reset();
+		sum.reset();
+		max.set(0);
+	}
+
+	/**
+	 * Returns the bucket a value falls into. Values below SUB get a bucket each,
+	 * larger values are bucketed by their top SUB_BITS bits.
+	 */
+	static int indexOf(long value) {
+		if (value < SUB) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BITS + 1;
+		int mantissa = (int) (value >>> shift);
+		return SUB + (shift - 1) * HALF + (mantissa - HALF);
+	}
+
+	/**
+	 * Returns the largest value that falls in the given bucket.
+	 */
+	static long upperBound(int index) {
+		if (index < SUB) {
+			return index;
+		}
+		int shift = (index - SUB) / HALF + 1;
+		long mantissa = (index - SUB) % HALF + HALF;
+		long bound = ((mantissa + 1) << shift) - 1;
+		return bound < 0 ? Long.MAX_VALUE : bound;
+	}
+
+}
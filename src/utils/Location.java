@@ -67,10 +67,38 @@ public class Location {
 	private static final double degToRad = Math.PI / 180;
 
 	public static Location newFromLatLon(double lat, double lon) {
-		double y = (lat - centerLat) * scaleLat;
-		double x = (lon - centerLon)
+		return new Location(xFromLatLon(lat, lon), yFromLatLon(lat));
+	}
+
+	/**
+	 * Return the x of the location newFromLatLon would give, without making
+	 * the location
+	 */
+	public static double xFromLatLon(double lat, double lon) {
+		return (lon - centerLon)
 				* (scaleLat * Math.cos((lat - centerLat) * degToRad));
-		return new Location(x, y);
+	}
+
+	/**
+	 * Return the y of the location newFromLatLon would give
+	 */
+	public static double yFromLatLon(double lat) {
+		return (lat - centerLat) * scaleLat;
+	}
+
+	/**
+	 * Return the latitude of this location, undoing newFromLatLon
+	 */
+	public double getLat() {
+		return y / scaleLat + centerLat;
+	}
+
+	/**
+	 * Return the longitude of this location, undoing newFromLatLon
+	 */
+	public double getLon() {
+		return x / (scaleLat * Math.cos((getLat() - centerLat) * degToRad))
+				+ centerLon;
 	}
 
 	// --------- UTILITY methods on Locations ------------------------
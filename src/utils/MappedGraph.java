@@ -0,0 +1,258 @@
+package utils;
+
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * MappedGraph: A road graph read straight from a compact binary file, as
+ * written by main.GraphBuilder, through memory mapping rather than as objects
+ * on the heap. The operating system pages the file in as it is used, so a
+ * graph far bigger than the heap can be searched, and every process mapping
+ * the same file shares one copy of it. main.MappedSearcher routes on it.
+ *
+ * The file is big-endian: a magic number and version, the number of nodes,
+ * arcs and restrictions, then the nodes in order of their IDs as (ID,
+ * latitude, longitude) with the angles in units of DEGREE_UNIT, the arcs
+ * grouped by the node they leave as (head node index, length, road ID,
+ * flags), the index of the first arc of every node and one past the last,
+ * and lastly the turn restrictions as (node ID, from node ID, to node ID) in
+ * order of the node they are at. The flags are the road's packed attributes
+ * (see Road.getAttributes()) with WALKING_ONLY set on the reverse arcs of one
+ * way roads that pedestrians may use; other one way roads have no reverse
+ * arcs. Nodes are known by their index here; findNode() turns an ID into
+ * one.
+ *
+ * Reading is safe from any thread.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class MappedGraph {
+
+	private static final int MAGIC = 0x41475246; // "AGRF"
+	private static final int VERSION = 2;
+	private static final int HEADER_BYTES = 20;
+
+	/** Ints per node, per arc and per restriction in the file */
+	public static final int NODE_INTS = 3;
+	public static final int ARC_INTS = 4;
+	public static final int RESTRICTION_INTS = 3;
+
+	/** Degrees per unit of the stored latitudes and longitudes */
+	public static final double DEGREE_UNIT = 1e-7;
+
+	/** The flag on an arc that only pedestrians may use */
+	public static final int WALKING_ONLY = 1 << 16;
+
+	private final int numNodes;
+	private final int numArcs;
+	private final int numRestrictions;
+	private final IntBuffer nodes;
+	private final IntBuffer arcs;
+	private final IntBuffer firstArc;
+	private final IntBuffer restrictions;
+
+	public MappedGraph(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			while (header.hasRemaining()) {
+				if (channel.read(header) < 0) {
+					break;
+				}
+			}
+			header.flip();
+			if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+				throw new IOException(file + " is not a graph file");
+			}
+			int version = header.getInt();
+			if (version != VERSION) {
+				throw new IOException(file + " has unsupported version " + version);
+			}
+			numNodes = header.getInt();
+			numArcs = header.getInt();
+			numRestrictions = header.getInt();
+			long pos = HEADER_BYTES;
+			nodes = map(channel, pos, 4L * NODE_INTS * numNodes);
+			pos += 4L * NODE_INTS * numNodes;
+			arcs = map(channel, pos, 4L * ARC_INTS * numArcs);
+			pos += 4L * ARC_INTS * numArcs;
+			firstArc = map(channel, pos, 4L * (numNodes + 1));
+			pos += 4L * (numNodes + 1);
+			restrictions = map(channel, pos, 4L * RESTRICTION_INTS * numRestrictions);
+			long end = pos + 4L * RESTRICTION_INTS * numRestrictions;
+			if (end != channel.size()) {
+				throw new IOException(file + " is " + channel.size() + " bytes, not " + end);
+			}
+		}
+	}
+
+	/**
+	 * Maps a section of the file; the mapping outlives the channel.
+	 */
+	private static IntBuffer map(FileChannel channel, long pos, long bytes) throws IOException {
+		if (bytes > Integer.MAX_VALUE) {
+			throw new IOException("A section of " + bytes + " bytes is too big to map");
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, pos, bytes).asIntBuffer();
+	}
+
+	/**
+	 * Writes the header of a graph file, which the nodes, arcs, first arcs
+	 * and restrictions must follow.
+	 */
+	public static void writeHeader(DataOutput out, int numNodes, int numArcs, int numRestrictions)
+			throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(numNodes);
+		out.writeInt(numArcs);
+		out.writeInt(numRestrictions);
+	}
+
+	public int numNodes() {
+		return numNodes;
+	}
+
+	public int numArcs() {
+		return numArcs;
+	}
+
+	public int numRestrictions() {
+		return numRestrictions;
+	}
+
+	public int getNodeID(int node) {
+		return nodes.get(node * NODE_INTS);
+	}
+
+	public Location getLocation(int node) {
+		return Location.newFromLatLon(nodes.get(node * NODE_INTS + 1) * DEGREE_UNIT,
+				nodes.get(node * NODE_INTS + 2) * DEGREE_UNIT);
+	}
+
+	/**
+	 * @return the index of the node with the given ID, or -1 if there is none
+	 */
+	public int findNode(int id) {
+		int lo = 0;
+		int hi = numNodes - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int midID = getNodeID(mid);
+			if (midID < id) {
+				lo = mid + 1;
+			} else if (midID > id) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the first of the arcs leaving the node
+	 */
+	public int getFirstArc(int node) {
+		return firstArc.get(node);
+	}
+
+	/**
+	 * @return one past the last of the arcs leaving the node
+	 */
+	public int getEndArc(int node) {
+		return firstArc.get(node + 1);
+	}
+
+	/**
+	 * @return the index of the node the arc goes to
+	 */
+	public int getHead(int arc) {
+		return arcs.get(arc * ARC_INTS);
+	}
+
+	/**
+	 * @return the length of the arc in kilometres
+	 */
+	public float getLength(int arc) {
+		return Float.intBitsToFloat(arcs.get(arc * ARC_INTS + 1));
+	}
+
+	public int getRoadID(int arc) {
+		return arcs.get(arc * ARC_INTS + 2);
+	}
+
+	/**
+	 * @return true if the arc runs the wrong way along a one way road, so is
+	 *         only for walking
+	 */
+	public boolean isWalkingOnly(int arc) {
+		return (arcs.get(arc * ARC_INTS + 3) & WALKING_ONLY) != 0;
+	}
+
+	/**
+	 * @return true if the transport mode may use the arc, as
+	 *         Segment.isFor() would
+	 */
+	public boolean isFor(int arc, String transportMode) {
+		int flags = arcs.get(arc * ARC_INTS + 3);
+		if ((flags & WALKING_ONLY) != 0 && !transportMode.equals("walking")) {
+			return false;
+		}
+		return Road.isFor((short) flags, transportMode);
+	}
+
+	/**
+	 * @return the speed limit of the arc's road in km/h
+	 */
+	public int getSpeedLimit(int arc) {
+		return Road.getSpeedLimit((short) arcs.get(arc * ARC_INTS + 3));
+	}
+
+	/**
+	 * Returns true if it is forbidden to go from n1 through n to n2, by node
+	 * ID. A first or last ID of -1, for a route that starts or ends at n, is
+	 * never restricted.
+	 */
+	public boolean isRestricted(int n1, int n, int n2) {
+		if (n1 < 0 || n2 < 0) {
+			return false;
+		}
+		// the first restriction at n
+		int lo = 0;
+		int hi = numRestrictions;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (restrictions.get(mid * RESTRICTION_INTS) < n) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		for (int r = lo; r < numRestrictions && restrictions.get(r * RESTRICTION_INTS) == n; r++) {
+			if (restrictions.get(r * RESTRICTION_INTS + 1) == n1 && restrictions.get(r * RESTRICTION_INTS + 2) == n2) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the size of the file
+	 */
+	public long sizeInBytes() {
+		return HEADER_BYTES + 4L * (NODE_INTS * (long) numNodes + ARC_INTS * (long) numArcs + numNodes + 1
+				+ RESTRICTION_INTS * (long) numRestrictions);
+	}
+
+	public String toString() {
+		return String.format("%,d nodes, %,d arcs and %,d restrictions in %,d KB", numNodes, numArcs,
+				numRestrictions, sizeInBytes() >> 10);
+	}
+
+}
@@ -0,0 +1,144 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ModeGraph: The segments one transport mode may use, as an array of out
+ * segments and an array of in segments for every node, built once when the
+ * graph is loaded. A search for the mode walks these instead of the node's
+ * own lists, so it never looks at a segment it would only throw away.
+ *
+ * Most intersections look the same to every mode, so when a node's array
+ * holds exactly the same segments as the one already built for it by
+ * another mode, that array is shared rather than copied.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class ModeGraph {
+
+	private static final Segment[] NONE = new Segment[0];
+
+	private final String transportMode;
+	// by node index
+	private final Segment[][] out;
+	private final Segment[][] in;
+	private int numSegments;
+	private int shared;
+
+	/**
+	 * Builds the graph for a transport mode.
+	 *
+	 * @param numNodes
+	 *            one more than the highest node index
+	 * @param segments
+	 *            every segment, in order of Segment.getID(), so each node's
+	 *            segments keep the order of its own lists
+	 * @param others
+	 *            graphs already built for other modes over the same nodes, to
+	 *            share arrays with
+	 */
+	public ModeGraph(String transportMode, int numNodes, List<Segment> segments, ModeGraph... others) {
+		this.transportMode = transportMode;
+		int[] outCount = new int[numNodes];
+		int[] inCount = new int[numNodes];
+		for (Segment s : segments) {
+			if (s.isFor(transportMode)) {
+				outCount[s.getStartNode().getIndex()]++;
+				inCount[s.getEndNode().getIndex()]++;
+				numSegments++;
+			}
+		}
+		out = new Segment[numNodes][];
+		in = new Segment[numNodes][];
+		for (int i = 0; i < numNodes; i++) {
+			out[i] = outCount[i] == 0 ? NONE : new Segment[outCount[i]];
+			in[i] = inCount[i] == 0 ? NONE : new Segment[inCount[i]];
+		}
+		Arrays.fill(outCount, 0);
+		Arrays.fill(inCount, 0);
+		for (Segment s : segments) {
+			if (s.isFor(transportMode)) {
+				int from = s.getStartNode().getIndex();
+				int to = s.getEndNode().getIndex();
+				out[from][outCount[from]++] = s;
+				in[to][inCount[to]++] = s;
+			}
+		}
+		for (int i = 0; i < numNodes; i++) {
+			out[i] = share(out[i], i, true, others);
+			in[i] = share(in[i], i, false, others);
+		}
+	}
+
+	/**
+	 * @return an equal array already built by one of the other graphs, or the
+	 *         given one if there is none
+	 */
+	private Segment[] share(Segment[] segs, int node, boolean isOut, ModeGraph[] others) {
+		if (segs == NONE) {
+			return segs;
+		}
+		for (ModeGraph other : others) {
+			Segment[] theirs = isOut ? other.out[node] : other.in[node];
+			if (Arrays.equals(segs, theirs)) {
+				shared++;
+				return theirs;
+			}
+		}
+		return segs;
+	}
+
+	/**
+	 * Builds the graph for a transport mode from the segments out of the
+	 * given nodes.
+	 */
+	public static ModeGraph of(String transportMode, Iterable<Node> nodes, int numNodes) {
+		List<Segment> segments = new ArrayList<Segment>();
+		for (Node n : nodes) {
+			segments.addAll(n.getOutNeighbours());
+		}
+		return new ModeGraph(transportMode, numNodes, segments);
+	}
+
+	public String getTransportMode() {
+		return transportMode;
+	}
+
+	/**
+	 * @return the segments out of the node the mode may use, which must not be
+	 *         modified
+	 */
+	public Segment[] getOut(Node node) {
+		return out[node.getIndex()];
+	}
+
+	/**
+	 * @return the segments into the node the mode may use, which must not be
+	 *         modified
+	 */
+	public Segment[] getIn(Node node) {
+		return in[node.getIndex()];
+	}
+
+	/**
+	 * @return the number of directed segments the mode may use
+	 */
+	public int numSegments() {
+		return numSegments;
+	}
+
+	/**
+	 * @return how many of the per node arrays are shared with another mode
+	 */
+	public int getShared() {
+		return shared;
+	}
+
+	public String toString() {
+		return String.format("%s: %,d segments, %,d arrays shared", transportMode, numSegments, shared);
+	}
+
+}
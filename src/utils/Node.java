@@ -16,6 +16,7 @@ import java.util.Set;
 public class Node {
 
 	private int id;
+	private int index; // position in the graph's node list, for search arrays
 	private Location loc;
 	private List<Segment> outNeighbours = new ArrayList<Segment>(2);
 	private List<Segment> inNeighbours = new ArrayList<Segment>(2);
@@ -52,6 +53,18 @@ public class Node {
 		return id;
 	}
 
+	/**
+	 * @return the dense index of this node, from 0 to one less than the number
+	 *         of nodes in the graph
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	public void setIndex(int index) {
+		this.index = index;
+	}
+
 	public Location getLoc() {
 		return this.loc;
 	}
@@ -0,0 +1,124 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * NodeGrid: A uniform grid over the node locations for finding the node
+ * closest to a point without looking at every node. Nodes are bucketed into
+ * square cells, and a lookup searches outwards ring by ring from the cell the
+ * point falls in until no closer node can exist.
+ *
+ * The grid is immutable once built, so lookups are safe from any thread.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class NodeGrid {
+
+	private final double west;
+	private final double south;
+	private final double cellSize;
+	private final int cols;
+	private final int rows;
+	// nodes sorted by cell, cell c holding cellNodes[cellStart[c]..cellStart[c+1])
+	private final int[] cellStart;
+	private final Node[] cellNodes;
+
+	/**
+	 * @param nodes
+	 * @param cellSize
+	 *            the width of a cell in kilometres
+	 */
+	public NodeGrid(Collection<Node> nodes, double cellSize) {
+		double w = Double.POSITIVE_INFINITY, e = Double.NEGATIVE_INFINITY;
+		double s = Double.POSITIVE_INFINITY, n = Double.NEGATIVE_INFINITY;
+		for (Node node : nodes) {
+			Location loc = node.getLoc();
+			w = Math.min(w, loc.x);
+			e = Math.max(e, loc.x);
+			s = Math.min(s, loc.y);
+			n = Math.max(n, loc.y);
+		}
+		if (nodes.isEmpty()) {
+			w = e = s = n = 0;
+		}
+		this.west = w;
+		this.south = s;
+		this.cellSize = cellSize;
+		this.cols = (int) ((e - w) / cellSize) + 1;
+		this.rows = (int) ((n - s) / cellSize) + 1;
+
+		// counting sort of the nodes into cells
+		cellStart = new int[cols * rows + 1];
+		int[] cellOf = new int[nodes.size()];
+		int i = 0;
+		for (Node node : nodes) {
+			cellOf[i] = cellOf(node.getLoc());
+			cellStart[cellOf[i] + 1]++;
+			i++;
+		}
+		for (int c = 0; c < cols * rows; c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+		int[] fill = Arrays.copyOf(cellStart, cellStart.length - 1);
+		cellNodes = new Node[nodes.size()];
+		i = 0;
+		for (Node node : nodes) {
+			cellNodes[fill[cellOf[i]]++] = node;
+			i++;
+		}
+	}
+
+	private int column(double x) {
+		return Math.max(0, Math.min(cols - 1, (int) ((x - west) / cellSize)));
+	}
+
+	private int row(double y) {
+		return Math.max(0, Math.min(rows - 1, (int) ((y - south) / cellSize)));
+	}
+
+	private int cellOf(Location loc) {
+		return row(loc.y) * cols + column(loc.x);
+	}
+
+	/**
+	 * Returns the node closest to the location, or null if the grid is empty.
+	 */
+	public Node nearest(Location loc) {
+		int cx = column(loc.x);
+		int cy = row(loc.y);
+		Node best = null;
+		double bestDist = Double.POSITIVE_INFINITY;
+		int maxRing = Math.max(cols, rows);
+		for (int ring = 0; ring <= maxRing; ring++) {
+			// every point in this ring is at least (ring - 1) cells away
+			if (best != null && (ring - 1) * cellSize > bestDist) {
+				break;
+			}
+			for (int y = cy - ring; y <= cy + ring; y++) {
+				if (y < 0 || y >= rows) {
+					continue;
+				}
+				boolean edgeRow = y == cy - ring || y == cy + ring;
+				for (int x = cx - ring; x <= cx + ring; x += edgeRow ? 1 : 2 * ring) {
+					if (x >= 0 && x < cols) {
+						int c = y * cols + x;
+						for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+							double d = cellNodes[k].distanceTo(loc);
+							if (d < bestDist) {
+								bestDist = d;
+								best = cellNodes[k];
+							}
+						}
+					}
+					if (ring == 0) {
+						break;
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+}
@@ -0,0 +1,346 @@
+package utils;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * PolygonStore: The background shapes of the map - coastline, parks, airport,
+ * rivers and so on - read from a Polish format (.mp) file such as
+ * polygon-shapes.mp. Only the [POLYGON] (or [RGN80]) sections are kept, each
+ * ring of the most detailed Data line being one polygon of the section's
+ * type.
+ *
+ * The points of every polygon are packed into one float array per level of
+ * detail, with the bounding box of each polygon alongside. Level 0 is the
+ * polygons as read; each level after it is simplified by Douglas-Peucker with
+ * a tolerance four times that of the level before, and drops the polygons too
+ * small to see at it. Drawing picks the coarsest level whose tolerance is
+ * under half a pixel and skips the polygons outside the area drawn. Polygons
+ * are kept largest first so smaller features are drawn over the areas they lie
+ * in.
+ *
+ * The store is read-only once read, so drawing is safe from any thread.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class PolygonStore {
+
+	/** The simplification tolerance of each level of detail, in kilometres */
+	public static final double[] TOLERANCES = { 0, 0.004, 0.016, 0.064, 0.256 };
+
+	private static final Color WATER = new Color(170, 210, 240);
+	private static final Color PARK = new Color(200, 230, 190);
+	private static final Color AIRPORT = new Color(215, 210, 220);
+	private static final Color URBAN = new Color(240, 235, 225);
+	private static final Color OTHER = new Color(225, 225, 225);
+
+	private final int[] types;
+	// minX, minY, maxX, maxY of each polygon
+	private final float[] bounds;
+	// per level, the x, y of the points of polygon i at
+	// coords[level][2 * start[level][i] .. 2 * start[level][i + 1])
+	private final float[][] coords;
+	private final int[][] start;
+
+	private PolygonStore(List<Integer> types, List<float[]> rings) {
+		int n = rings.size();
+		// largest first
+		Integer[] order = new Integer[n];
+		final double[] areas = new double[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+			areas[i] = Math.abs(area(rings.get(i)));
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(areas[b], areas[a]);
+			}
+		});
+		this.types = new int[n];
+		this.bounds = new float[4 * n];
+		this.coords = new float[TOLERANCES.length][];
+		this.start = new int[TOLERANCES.length][n + 1];
+		for (int i = 0; i < n; i++) {
+			float[] ring = rings.get(order[i]);
+			this.types[i] = types.get(order[i]);
+			float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+			float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+			for (int k = 0; k < ring.length; k += 2) {
+				minX = Math.min(minX, ring[k]);
+				maxX = Math.max(maxX, ring[k]);
+				minY = Math.min(minY, ring[k + 1]);
+				maxY = Math.max(maxY, ring[k + 1]);
+			}
+			bounds[4 * i] = minX;
+			bounds[4 * i + 1] = minY;
+			bounds[4 * i + 2] = maxX;
+			bounds[4 * i + 3] = maxY;
+		}
+		for (int level = 0; level < TOLERANCES.length; level++) {
+			float[] packed = new float[64];
+			int size = 0;
+			for (int i = 0; i < n; i++) {
+				start[level][i] = size / 2;
+				float[] ring = rings.get(order[i]);
+				double extent = Math.max(bounds[4 * i + 2] - bounds[4 * i], bounds[4 * i + 3] - bounds[4 * i + 1]);
+				if (level > 0 && extent < TOLERANCES[level]) {
+					continue;
+				}
+				float[] simple = level == 0 ? ring : simplify(ring, TOLERANCES[level]);
+				if (simple.length < 6) {
+					continue;
+				}
+				if (size + simple.length > packed.length) {
+					packed = Arrays.copyOf(packed, Math.max(2 * packed.length, size + simple.length));
+				}
+				System.arraycopy(simple, 0, packed, size, simple.length);
+				size += simple.length;
+			}
+			start[level][n] = size / 2;
+			coords[level] = Arrays.copyOf(packed, size);
+		}
+	}
+
+	/**
+	 * Reads the polygons of a Polish format file.
+	 */
+	public static PolygonStore read(BufferedReader in) throws IOException {
+		List<Integer> types = new ArrayList<Integer>();
+		List<float[]> rings = new ArrayList<float[]>();
+		boolean inPolygon = false;
+		int type = 0;
+		int dataLevel = Integer.MAX_VALUE;
+		List<float[]> sectionRings = new ArrayList<float[]>();
+		while (true) {
+			String line = in.readLine();
+			if (line == null) {
+				break;
+			}
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith(";")) {
+				continue;
+			}
+			if (line.startsWith("[")) {
+				String section = line.toUpperCase();
+				if (section.equals("[POLYGON]") || section.equals("[RGN80]")) {
+					inPolygon = true;
+					type = 0;
+					dataLevel = Integer.MAX_VALUE;
+					sectionRings.clear();
+				} else if (section.startsWith("[END") && inPolygon) {
+					for (float[] ring : sectionRings) {
+						types.add(type);
+						rings.add(ring);
+					}
+					inPolygon = false;
+				}
+				continue;
+			}
+			if (!inPolygon) {
+				continue;
+			}
+			int equals = line.indexOf('=');
+			if (equals < 0) {
+				continue;
+			}
+			String key = line.substring(0, equals).trim();
+			String value = line.substring(equals + 1).trim();
+			if (key.equalsIgnoreCase("Type")) {
+				type = Integer.decode(value);
+			} else if (key.startsWith("Data") || key.startsWith("Origin")) {
+				int level = Integer.parseInt(key.substring(key.startsWith("Data") ? 4 : 6));
+				// keep only the rings of the most detailed level given
+				if (level > dataLevel) {
+					continue;
+				}
+				if (level < dataLevel) {
+					sectionRings.clear();
+					dataLevel = level;
+				}
+				float[] ring = parseRing(value);
+				if (ring.length >= 6) {
+					sectionRings.add(ring);
+				}
+			}
+		}
+		return new PolygonStore(types, rings);
+	}
+
+	/**
+	 * @return the x, y of each "(lat,lon)" of a Data line
+	 */
+	private static float[] parseRing(String value) {
+		String[] numbers = value.replace("(", "").replace(")", "").split(",");
+		float[] ring = new float[numbers.length / 2 * 2];
+		for (int k = 0; k + 1 < numbers.length; k += 2) {
+			Location loc = Location.newFromLatLon(Double.parseDouble(numbers[k].trim()),
+					Double.parseDouble(numbers[k + 1].trim()));
+			ring[k] = (float) loc.x;
+			ring[k + 1] = (float) loc.y;
+		}
+		int n = ring.length;
+		// the ring closes itself, so drop a repeated first point
+		if (n >= 4 && ring[0] == ring[n - 2] && ring[1] == ring[n - 1]) {
+			ring = Arrays.copyOf(ring, n - 2);
+		}
+		return ring;
+	}
+
+	private static double area(float[] ring) {
+		double sum = 0;
+		int n = ring.length / 2;
+		for (int k = 0; k < n; k++) {
+			int j = (k + 1) % n;
+			sum += (double) ring[2 * k] * ring[2 * j + 1] - (double) ring[2 * j] * ring[2 * k + 1];
+		}
+		return sum / 2;
+	}
+
+	/**
+	 * Douglas-Peucker: keeps the points more than the tolerance away from the
+	 * line between the points kept either side of them.
+	 */
+	private static float[] simplify(float[] ring, double tolerance) {
+		int n = ring.length / 2;
+		boolean[] keep = new boolean[n];
+		keep[0] = true;
+		keep[n - 1] = true;
+		int[] stack = new int[2 * n];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = n - 1;
+		while (top > 0) {
+			int last = stack[--top];
+			int first = stack[--top];
+			double ax = ring[2 * first];
+			double ay = ring[2 * first + 1];
+			double dx = ring[2 * last] - ax;
+			double dy = ring[2 * last + 1] - ay;
+			double lengthSq = dx * dx + dy * dy;
+			int farthest = -1;
+			double farthestDistance = tolerance;
+			for (int k = first + 1; k < last; k++) {
+				double px = ring[2 * k] - ax;
+				double py = ring[2 * k + 1] - ay;
+				double t = lengthSq == 0 ? 0 : Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSq));
+				double d = Math.hypot(px - t * dx, py - t * dy);
+				if (d > farthestDistance) {
+					farthest = k;
+					farthestDistance = d;
+				}
+			}
+			if (farthest >= 0) {
+				keep[farthest] = true;
+				stack[top++] = first;
+				stack[top++] = farthest;
+				stack[top++] = farthest;
+				stack[top++] = last;
+			}
+		}
+		int kept = 0;
+		for (boolean k : keep) {
+			if (k) {
+				kept++;
+			}
+		}
+		float[] ans = new float[2 * kept];
+		int j = 0;
+		for (int k = 0; k < n; k++) {
+			if (keep[k]) {
+				ans[j++] = ring[2 * k];
+				ans[j++] = ring[2 * k + 1];
+			}
+		}
+		return ans;
+	}
+
+	/**
+	 * @return the level of detail to draw at a scale in pixels per kilometre
+	 */
+	public static int levelFor(double scale) {
+		int level = 0;
+		while (level + 1 < TOLERANCES.length && TOLERANCES[level + 1] * scale <= 0.5) {
+			level++;
+		}
+		return level;
+	}
+
+	/**
+	 * Fills the polygons that overlap an area, at the detail for the scale.
+	 *
+	 * @return the number of polygons drawn
+	 */
+	public int draw(Graphics g, Location origin, double scale, double minX, double minY, double maxX, double maxY) {
+		int level = levelFor(scale);
+		float[] c = coords[level];
+		int[] s = start[level];
+		int[] xs = new int[64];
+		int[] ys = new int[64];
+		int drawn = 0;
+		for (int i = 0; i < types.length; i++) {
+			int points = s[i + 1] - s[i];
+			if (points == 0 || bounds[4 * i + 2] < minX || bounds[4 * i] > maxX || bounds[4 * i + 3] < minY
+					|| bounds[4 * i + 1] > maxY) {
+				continue;
+			}
+			if (points > xs.length) {
+				xs = new int[points];
+				ys = new int[points];
+			}
+			for (int k = 0; k < points; k++) {
+				xs[k] = (int) Math.round((c[2 * (s[i] + k)] - origin.x) * scale);
+				ys[k] = (int) Math.round((origin.y - c[2 * (s[i] + k) + 1]) * scale);
+			}
+			g.setColor(colourOf(types[i]));
+			g.fillPolygon(xs, ys, points);
+			drawn++;
+		}
+		return drawn;
+	}
+
+	/**
+	 * @return the colour of a Garmin polygon type
+	 */
+	public static Color colourOf(int type) {
+		if (type == 0x28 || type == 0x29 || type == 0x32 || type == 0x3b || type >= 0x3c && type <= 0x49) {
+			return WATER;
+		}
+		if (type >= 0x14 && type <= 0x17 || type >= 0x1e && type <= 0x20 || type >= 0x4e && type <= 0x52) {
+			return PARK;
+		}
+		if (type == 0x07 || type == 0x0e) {
+			return AIRPORT;
+		}
+		if (type >= 0x01 && type <= 0x03) {
+			return URBAN;
+		}
+		return OTHER;
+	}
+
+	public int size() {
+		return types.length;
+	}
+
+	/**
+	 * @return the number of points at a level of detail
+	 */
+	public int numPoints(int level) {
+		return coords[level].length / 2;
+	}
+
+	public String toString() {
+		StringBuilder b = new StringBuilder(String.format("%,d polygons, points by level of detail:", size()));
+		for (int level = 0; level < TOLERANCES.length; level++) {
+			b.append(String.format(" %,d", numPoints(level)));
+		}
+		return b.toString();
+	}
+
+}
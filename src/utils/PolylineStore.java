@@ -0,0 +1,161 @@
+package utils;
+
+import java.awt.Graphics;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PolylineStore: The drawing geometry of every segment, packed into one byte
+ * array instead of a list of Location objects per segment. A polyline is
+ * known by the offset it starts at. It is stored as its number of points and
+ * then, for each point, the change in x and y from the point before (from 0
+ * for the first). Each change is in fixed-point steps of UNIT kilometres,
+ * zigzag encoded so small negative numbers stay small, and written as a
+ * varint of 7 bits per byte. Neighbouring points on a road are close together,
+ * so most points take two to four bytes rather than the 40 or so of a
+ * Location and its slot in a list.
+ *
+ * Polylines are decoded as they are used, so nothing but the bytes is kept.
+ * The store only grows while the graph loads and is read-only after that, so
+ * reading is safe from any thread.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class PolylineStore {
+
+	/** Kilometres per fixed-point step, ie a tenth of a metre */
+	public static final double UNIT = 1e-4;
+
+	private byte[] bytes = new byte[1 << 12];
+	private int size;
+	private int polylines;
+	private long points;
+
+	/**
+	 * Appends a polyline.
+	 *
+	 * @return the offset to find it by
+	 */
+	public int add(List<Location> locations) {
+		int offset = size;
+		writeVarint(locations.size());
+		int px = 0;
+		int py = 0;
+		for (Location loc : locations) {
+			int x = (int) Math.round(loc.x / UNIT);
+			int y = (int) Math.round(loc.y / UNIT);
+			writeVarint(zigzag(x - px));
+			writeVarint(zigzag(y - py));
+			px = x;
+			py = y;
+		}
+		polylines++;
+		points += locations.size();
+		return offset;
+	}
+
+	/**
+	 * Drops the spare capacity left from loading.
+	 */
+	public void trim() {
+		bytes = Arrays.copyOf(bytes, size);
+	}
+
+	/**
+	 * Decodes the polyline at the offset into new Locations, for the odd
+	 * caller that needs them; drawing does not.
+	 */
+	public List<Location> get(int offset) {
+		byte[] b = bytes;
+		int[] pos = { offset };
+		int n = readVarint(b, pos);
+		List<Location> ans = new ArrayList<Location>(n);
+		int x = 0;
+		int y = 0;
+		for (int i = 0; i < n; i++) {
+			x += unzigzag(readVarint(b, pos));
+			y += unzigzag(readVarint(b, pos));
+			ans.add(new Location(x * UNIT, y * UNIT));
+		}
+		return ans;
+	}
+
+	/**
+	 * Draws the polyline at the offset as connected lines, decoding each point
+	 * as it goes. Shifts the origin to origin and scales by scale, as
+	 * Location.getPoint() does.
+	 */
+	public void draw(int offset, Graphics g, Location origin, double scale) {
+		byte[] b = bytes;
+		int[] pos = { offset };
+		int n = readVarint(b, pos);
+		int x = 0;
+		int y = 0;
+		int lastU = 0;
+		int lastV = 0;
+		for (int i = 0; i < n; i++) {
+			x += unzigzag(readVarint(b, pos));
+			y += unzigzag(readVarint(b, pos));
+			int u = (int) ((x * UNIT - origin.x) * scale);
+			int v = (int) ((origin.y - y * UNIT) * scale);
+			if (i > 0) {
+				g.drawLine(lastU, lastV, u, v);
+			}
+			lastU = u;
+			lastV = v;
+		}
+	}
+
+	private void writeVarint(int value) {
+		if (size + 5 > bytes.length) {
+			bytes = Arrays.copyOf(bytes, bytes.length * 2);
+		}
+		while ((value & ~0x7f) != 0) {
+			bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		bytes[size++] = (byte) value;
+	}
+
+	private static int readVarint(byte[] b, int[] pos) {
+		int value = 0;
+		for (int shift = 0;; shift += 7) {
+			byte next = b[pos[0]++];
+			value |= (next & 0x7f) << shift;
+			if (next >= 0) {
+				return value;
+			}
+		}
+	}
+
+	private static int zigzag(int n) {
+		return (n << 1) ^ (n >> 31);
+	}
+
+	private static int unzigzag(int n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	/**
+	 * @return the bytes in use
+	 */
+	public int sizeInBytes() {
+		return size;
+	}
+
+	public long numPoints() {
+		return points;
+	}
+
+	public int numPolylines() {
+		return polylines;
+	}
+
+	public String toString() {
+		return String.format("%,d polylines of %,d points in %,d KB (%.1f bytes a point)", polylines, points,
+				size >> 10, points == 0 ? 0 : (double) size / points);
+	}
+
+}
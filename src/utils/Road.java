@@ -11,46 +11,92 @@ import java.util.List;
 
 public class Road {
 
+	// the fastest value getSpeedLimit() can return
+	public static final int MAX_SPEED_LIMIT = 99;
+
+	// layout of the attributes: speed and class in four bits each, then flags
+	private static final int SPEED_SHIFT = 0;
+	private static final int CLASS_SHIFT = 4;
+	private static final int FIELD_MASK = 0xf;
+	private static final int ONE_WAY = 1 << 8;
+	private static final int NOT_FOR_CARS = 1 << 9;
+	private static final int NOT_FOR_PEDESTRIANS = 1 << 10;
+	private static final int NOT_FOR_BICYCLES = 1 << 11;
+
 	private int id;
-	private String name;
-	private String city;
-	private boolean oneway;
-	private int speed;
-	private int roadClass;
-	private boolean notForCars;
-	private boolean notForPedestrians;
-	private boolean notForBicycles;
+	private StringTable names; // the graph's table of road names and cities
+	private int nameID;
+	private int cityID;
+	private int fullNameID;
+	private short attributes; // speed, class, one way and access, packed
+	private short profile; // hourly speed profile, see SpeedProfiles
 	private List<Segment> segments = new ArrayList<Segment>();
 
-	/** Construct a new Road object */
-	public Road(int id, String name, boolean oneway, int speed, int roadClass,
-			boolean notForCars, boolean notForPedestrians,
-			boolean notForBicycles) {
+	/** Construct a new Road object, adding its name to the table */
+	public Road(int id, String name, String city, boolean oneway, int speed,
+			int roadClass, boolean notForCars, boolean notForPedestrians,
+			boolean notForBicycles, StringTable names) {
 		this.id = id;
-		this.name = name;
-		this.oneway = oneway;
-		this.speed = speed;
-		this.roadClass = roadClass;
-		this.notForCars = notForCars;
-		this.notForPedestrians = notForPedestrians;
-		this.notForBicycles = notForBicycles;
+		this.names = names;
+		this.nameID = names.add(name);
+		this.cityID = names.add(city);
+		this.fullNameID = city.isEmpty() ? nameID : names.add(name + " "
+				+ city);
+		this.attributes = pack(id, speed, roadClass, oneway, notForCars,
+				notForPedestrians, notForBicycles);
 	}
 
-	/** Construct a new Road object from a line from the data file */
-	public Road(String line) {
+	/**
+	 * Construct a new Road object from a line from the data file, adding its
+	 * name to the table
+	 */
+	public Road(String line, StringTable names) {
+		this(line.split("\t"), names);
+	}
+
+	private Road(String[] values, StringTable names) {
+		this(Integer.parseInt(values[0]), values[2],
+				values[3].equals("-") ? "" : values[3], values[4].equals("1"),
+				Integer.parseInt(values[5]), Integer.parseInt(values[6]),
+				values[7].equals("1"), values[8].equals("1"),
+				values[9].equals("1"), names);
+	}
+
+	/**
+	 * @return the speed, class, one way flag and access of the road on a line
+	 *         from the data file, packed as getAttributes() packs them,
+	 *         without making a Road or adding its names anywhere
+	 */
+	public static short parseAttributes(String line) {
 		String[] values = line.split("\t");
-		this.id = Integer.parseInt(values[0]); // id
-		this.name = values[2];
-		this.city = values[3];
-		if (this.city.equals("-")) {
-			this.city = "";
+		return pack(Integer.parseInt(values[0]), Integer.parseInt(values[5]),
+				Integer.parseInt(values[6]), values[4].equals("1"),
+				values[7].equals("1"), values[8].equals("1"),
+				values[9].equals("1"));
+	}
+
+	private static short pack(int id, int speed, int roadClass,
+			boolean oneway, boolean notForCars, boolean notForPedestrians,
+			boolean notForBicycles) {
+		if (speed < 0 || speed > FIELD_MASK || roadClass < 0
+				|| roadClass > FIELD_MASK) {
+			throw new IllegalArgumentException("Road " + id + ": speed "
+					+ speed + " or class " + roadClass + " out of range");
 		}
-		this.oneway = values[4].equals("1");
-		this.speed = Integer.parseInt(values[5]);
-		this.roadClass = Integer.parseInt(values[6]);
-		this.notForCars = values[7].equals("1");
-		this.notForPedestrians = values[8].equals("1");
-		this.notForBicycles = values[9].equals("1");
+		int a = speed << SPEED_SHIFT | roadClass << CLASS_SHIFT;
+		if (oneway) {
+			a |= ONE_WAY;
+		}
+		if (notForCars) {
+			a |= NOT_FOR_CARS;
+		}
+		if (notForPedestrians) {
+			a |= NOT_FOR_PEDESTRIANS;
+		}
+		if (notForBicycles) {
+			a |= NOT_FOR_BICYCLES;
+		}
+		return (short) a;
 	}
 
 	public int getID() {
@@ -58,38 +104,97 @@ public class Road {
 	}
 
 	public String getName() {
-		return this.name;
+		return names.get(nameID);
+	}
+
+	/**
+	 * @return the ID of the name in the graph's table, the same for every
+	 *         road with the same name
+	 */
+	public int getNameID() {
+		return this.nameID;
+	}
+
+	/**
+	 * @return the ID of the city in the graph's table, that of "" if there is
+	 *         none
+	 */
+	public int getCityID() {
+		return this.cityID;
 	}
 
 	public String getFullName() {
-		if (this.city == "") {
-			return this.name;
-		}
-		return this.name + " " + this.city;
+		return names.get(fullNameID);
+	}
+
+	/**
+	 * @return the ID of the name and city together in the graph's table
+	 */
+	public int getFullNameID() {
+		return this.fullNameID;
+	}
+
+	/**
+	 * @return the speed, class, one way flag and access, packed; the static
+	 *         methods taking attributes read them without a Road
+	 */
+	public short getAttributes() {
+		return attributes;
 	}
 
 	public int getRoadclass() {
-		return this.roadClass;
+		return attributes >> CLASS_SHIFT & FIELD_MASK;
 	}
 
 	public int getSpeed() {
-		return this.speed;
+		return attributes >> SPEED_SHIFT & FIELD_MASK;
 	}
 
 	public boolean isOneWay() {
-		return this.oneway;
+		return isOneWay(attributes);
+	}
+
+	public static boolean isOneWay(short attributes) {
+		return (attributes & ONE_WAY) != 0;
 	}
 
 	public boolean isNotForCars() {
-		return this.notForCars;
+		return (attributes & NOT_FOR_CARS) != 0;
 	}
 
 	public boolean isNotForPedestrians() {
-		return this.notForPedestrians;
+		return (attributes & NOT_FOR_PEDESTRIANS) != 0;
 	}
 
 	public boolean isNotForBicycles() {
-		return this.notForBicycles;
+		return (attributes & NOT_FOR_BICYCLES) != 0;
+	}
+
+	/**
+	 * @return true if the transport mode ("car", "bike" or "walking") may use
+	 *         the road; any other mode may use every road
+	 */
+	public boolean isFor(String transportMode) {
+		return isFor(attributes, transportMode);
+	}
+
+	public static boolean isFor(short attributes, String transportMode) {
+		if (transportMode.equals("car")) {
+			return (attributes & NOT_FOR_CARS) == 0;
+		} else if (transportMode.equals("bike")) {
+			return (attributes & NOT_FOR_BICYCLES) == 0;
+		} else if (transportMode.equals("walking")) {
+			return (attributes & NOT_FOR_PEDESTRIANS) == 0;
+		}
+		return true;
+	}
+
+	public short getProfile() {
+		return this.profile;
+	}
+
+	public void setProfile(short profile) {
+		this.profile = profile;
 	}
 
 	public void addSegment(Segment seg) {
@@ -106,7 +211,11 @@ public class Road {
 	}
 
 	public int getSpeedLimit() {
-		switch (speed) {
+		return getSpeedLimit(attributes);
+	}
+
+	public static int getSpeedLimit(short attributes) {
+		switch (attributes >> SPEED_SHIFT & FIELD_MASK) {
 		case 0:
 			return 4;
 		case 1:
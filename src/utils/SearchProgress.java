@@ -0,0 +1,215 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * SearchProgress: Lets a running search be watched. Every so often the search
+ * offers its SearchState, and if anyone has subscribed and the interval has
+ * passed the settled nodes and the fringe are copied out as arrays of node
+ * indices. The subscriber is told, and picks up the latest snapshot from
+ * another thread when it is ready to draw it.
+ *
+ * There are two snapshots, one being written and one published, swapped on
+ * each publish. Each is claimed by whoever is using it with a compare and set,
+ * and neither side ever waits: a search that finds its next snapshot still
+ * claimed by the reader skips that publish, and a reader that finds the
+ * published one being written gets nothing this time round. A search only
+ * looks at its progress when somebody has subscribed, so one left in place
+ * costs a null check per node.
+ *
+ * Only one search at a time should publish to a SearchProgress.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class SearchProgress {
+
+	/**
+	 * Snapshot: The settled nodes and fringe of a search at one moment.
+	 */
+	public static class Snapshot {
+
+		private int[] settled = new int[0];
+		private int numSettled;
+		private int[] fringe = new int[0];
+		private int numFringe;
+		private int sequence;
+		private boolean finished;
+		private final AtomicBoolean claimed = new AtomicBoolean();
+
+		/**
+		 * @return the indices of the settled nodes, in the first
+		 *         getNumSettled() places
+		 */
+		public int[] getSettled() {
+			return settled;
+		}
+
+		public int getNumSettled() {
+			return numSettled;
+		}
+
+		/**
+		 * @return the indices of the nodes on the fringe, in the first
+		 *         getNumFringe() places
+		 */
+		public int[] getFringe() {
+			return fringe;
+		}
+
+		public int getNumFringe() {
+			return numFringe;
+		}
+
+		/**
+		 * @return how many snapshots were published before this one
+		 */
+		public int getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * @return true if this is the last snapshot of a search
+		 */
+		public boolean isFinished() {
+			return finished;
+		}
+
+	}
+
+	private final long interval;
+	private volatile Runnable listener; // null when no one is watching
+	private final AtomicReference<Snapshot> latest = new AtomicReference<Snapshot>();
+	// the snapshot the search writes next
+	private Snapshot spare = new Snapshot();
+	private long due;
+	// counted by the search, read by toString() from any thread
+	private final AtomicInteger published = new AtomicInteger();
+	private final AtomicInteger skipped = new AtomicInteger();
+
+	/**
+	 * @param intervalMillis
+	 *            the least time between snapshots of a search
+	 */
+	public SearchProgress(long intervalMillis) {
+		this.interval = intervalMillis * 1000000;
+	}
+
+	/**
+	 * Starts publishing snapshots, and calling the listener (on the searching
+	 * thread) after each one.
+	 */
+	public void subscribe(Runnable listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Stops publishing snapshots and forgets the last one.
+	 */
+	public void unsubscribe() {
+		listener = null;
+		clear();
+	}
+
+	public boolean isSubscribed() {
+		return listener != null;
+	}
+
+	/**
+	 * Forgets the last snapshot published, so there is none to draw until the
+	 * next search publishes.
+	 */
+	public void clear() {
+		latest.set(null);
+	}
+
+	/**
+	 * Called by a search as it starts.
+	 */
+	public void begin() {
+		due = System.nanoTime() + interval;
+	}
+
+	/**
+	 * Called by a search as it goes: publishes a snapshot if the interval has
+	 * passed since the last.
+	 */
+	public void offer(SearchState state) {
+		long now = System.nanoTime();
+		if (now >= due) {
+			due = now + interval;
+			publish(state, false);
+		}
+	}
+
+	/**
+	 * Called by a search when it has finished.
+	 */
+	public void finish(SearchState state) {
+		publish(state, true);
+	}
+
+	private void publish(SearchState state, boolean finished) {
+		Runnable l = listener;
+		if (l == null) {
+			return;
+		}
+		Snapshot s = spare;
+		if (!s.claimed.compareAndSet(false, true)) {
+			// still being drawn
+			skipped.incrementAndGet();
+			return;
+		}
+		if (s.settled.length < state.size()) {
+			s.settled = new int[state.size()];
+		}
+		if (s.fringe.length < state.fringeSize()) {
+			s.fringe = new int[Math.max(state.fringeSize(), 2 * s.fringe.length)];
+		}
+		s.numSettled = state.getSettled(s.settled);
+		s.numFringe = state.getFringe(s.fringe);
+		s.sequence = published.getAndIncrement();
+		s.finished = finished;
+		s.claimed.set(false);
+		spare = latest.getAndSet(s);
+		if (spare == null) {
+			spare = new Snapshot();
+		}
+		l.run();
+	}
+
+	/**
+	 * Claims the latest snapshot for reading, which must be given back with
+	 * release() once done with.
+	 *
+	 * @return null if there is none, or it is being written just now
+	 */
+	public Snapshot acquire() {
+		for (int tries = 0; tries < 2; tries++) {
+			Snapshot s = latest.get();
+			if (s == null) {
+				return null;
+			}
+			if (s.claimed.compareAndSet(false, true)) {
+				// it may have been swapped out before it was claimed
+				if (latest.get() == s) {
+					return s;
+				}
+				s.claimed.set(false);
+			}
+		}
+		return null;
+	}
+
+	public void release(Snapshot s) {
+		s.claimed.set(false);
+	}
+
+	public String toString() {
+		return String.format("search progress: %,d snapshots published, %,d skipped while drawn", published.get(),
+				skipped.get());
+	}
+
+}
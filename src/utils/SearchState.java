@@ -0,0 +1,203 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * SearchState: The per-query working memory of a shortest path search, kept
+ * apart from the Node objects so that several searches can run over the same
+ * graph at once. Arrays are indexed by Node.getIndex() and are reset lazily
+ * with a round counter, so one state can be reused for query after query
+ * without clearing or reallocating anything.
+ *
+ * The fringe is a binary heap of nodes keyed by their estimate. Nodes are
+ * pushed again rather than moved when a cheaper route is found, and the old
+ * entries are skipped when they come off the top (a stale pop).
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class SearchState {
+
+	private double[] cost;
+	private Segment[] via;
+	private int[] reached;
+	private int[] settled;
+	private int round;
+
+	private Node[] heapNodes = new Node[64];
+	private double[] heapKeys = new double[64];
+	private int heapSize;
+
+	/**
+	 * @param numNodes
+	 *            the number of nodes in the graph, ie one more than the
+	 *            largest Node.getIndex()
+	 */
+	public SearchState(int numNodes) {
+		cost = new double[numNodes];
+		via = new Segment[numNodes];
+		reached = new int[numNodes];
+		settled = new int[numNodes];
+	}
+
+	/**
+	 * Forgets everything about the previous query.
+	 */
+	public void reset() {
+		heapSize = 0;
+		round++;
+		if (round == Integer.MAX_VALUE) {
+			Arrays.fill(reached, 0);
+			Arrays.fill(settled, 0);
+			round = 1;
+		}
+	}
+
+	public int size() {
+		return cost.length;
+	}
+
+	public boolean isReached(Node n) {
+		return reached[n.getIndex()] == round;
+	}
+
+	public boolean isSettled(Node n) {
+		return settled[n.getIndex()] == round;
+	}
+
+	public void settle(Node n) {
+		settled[n.getIndex()] = round;
+	}
+
+	/**
+	 * @return the best cost found so far to the node, infinity if it has not
+	 *         been reached this round
+	 */
+	public double getCost(Node n) {
+		int i = n.getIndex();
+		return reached[i] == round ? cost[i] : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @return the segment the best route so far arrives by, null for the
+	 *         start node or a node that has not been reached
+	 */
+	public Segment getVia(Node n) {
+		int i = n.getIndex();
+		return reached[i] == round ? via[i] : null;
+	}
+
+	/**
+	 * Records a (better) route to a node.
+	 */
+	public void reach(Node n, double c, Segment arrivedBy) {
+		int i = n.getIndex();
+		reached[i] = round;
+		cost[i] = c;
+		via[i] = arrivedBy;
+	}
+
+	public void push(Node n, double key) {
+		if (heapSize == heapNodes.length) {
+			heapNodes = Arrays.copyOf(heapNodes, heapSize * 2);
+			heapKeys = Arrays.copyOf(heapKeys, heapSize * 2);
+		}
+		int i = heapSize++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (heapKeys[parent] <= key) {
+				break;
+			}
+			heapNodes[i] = heapNodes[parent];
+			heapKeys[i] = heapKeys[parent];
+			i = parent;
+		}
+		heapNodes[i] = n;
+		heapKeys[i] = key;
+	}
+
+	public boolean isEmpty() {
+		return heapSize == 0;
+	}
+
+	/**
+	 * @return the number of entries on the heap, stale ones included
+	 */
+	public int fringeSize() {
+		return heapSize;
+	}
+
+	/**
+	 * Writes the index of every node settled this round into out, which must
+	 * hold size() ints. Looks at every node, so it is for occasional use.
+	 *
+	 * @return the number written
+	 */
+	public int getSettled(int[] out) {
+		int n = 0;
+		for (int i = 0; i < settled.length; i++) {
+			if (settled[i] == round) {
+				out[n++] = i;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Writes the index of every node on the heap that is not settled yet into
+	 * out, which must hold fringeSize() ints. A node pushed more than once may
+	 * be written more than once.
+	 *
+	 * @return the number written
+	 */
+	public int getFringe(int[] out) {
+		int n = 0;
+		for (int k = 0; k < heapSize; k++) {
+			int i = heapNodes[k].getIndex();
+			if (settled[i] != round) {
+				out[n++] = i;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @return the key of the node on top of the heap
+	 */
+	public double peekKey() {
+		return heapKeys[0];
+	}
+
+	/**
+	 * Removes and returns the node with the smallest key.
+	 */
+	public Node pop() {
+		Node top = heapNodes[0];
+		heapSize--;
+		Node last = heapNodes[heapSize];
+		double key = heapKeys[heapSize];
+		heapNodes[heapSize] = null;
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= heapSize) {
+				break;
+			}
+			if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child]) {
+				child++;
+			}
+			if (key <= heapKeys[child]) {
+				break;
+			}
+			heapNodes[i] = heapNodes[child];
+			heapKeys[i] = heapKeys[child];
+			i = child;
+		}
+		if (heapSize > 0) {
+			heapNodes[i] = last;
+			heapKeys[i] = key;
+		}
+		return top;
+	}
+
+}
@@ -0,0 +1,105 @@
+package utils;
+
+/**
+ * SearchStats: The counters for a single route query. A search engine owns one
+ * of these and bumps the plain int fields as it goes, so counting costs no more
+ * than an increment per event and never allocates. When the query is finished
+ * the stats are handed to main.SearchMetrics to be aggregated.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class SearchStats {
+
+	private int settled;
+	private int pushes;
+	private int pops;
+	private int stalePops;
+	private int restrictionChecks;
+	private int filteredEdges;
+	private long startTime;
+	private long wallTime;
+
+	/**
+	 * Clears the counters and starts the clock for a new query.
+	 */
+	public void start() {
+		settled = 0;
+		pushes = 0;
+		pops = 0;
+		stalePops = 0;
+		restrictionChecks = 0;
+		filteredEdges = 0;
+		wallTime = 0;
+		startTime = System.nanoTime();
+	}
+
+	/**
+	 * Stops the clock for the current query.
+	 */
+	public void stop() {
+		wallTime = System.nanoTime() - startTime;
+	}
+
+	public void settle() {
+		settled++;
+	}
+
+	public void push() {
+		pushes++;
+	}
+
+	public void pop() {
+		pops++;
+	}
+
+	public void stalePop() {
+		stalePops++;
+	}
+
+	public void restrictionCheck() {
+		restrictionChecks++;
+	}
+
+	public void filterEdge() {
+		filteredEdges++;
+	}
+
+	public int getSettled() {
+		return settled;
+	}
+
+	public int getPushes() {
+		return pushes;
+	}
+
+	public int getPops() {
+		return pops;
+	}
+
+	public int getStalePops() {
+		return stalePops;
+	}
+
+	public int getRestrictionChecks() {
+		return restrictionChecks;
+	}
+
+	public int getFilteredEdges() {
+		return filteredEdges;
+	}
+
+	/**
+	 * @return wall time of the last query in nanoseconds
+	 */
+	public long getWallTime() {
+		return wallTime;
+	}
+
+	public String toString() {
+		return String.format("settled %,d, pushes %,d, pops %,d (%,d stale), restriction checks %,d, "
+				+ "edges filtered %,d, %.3fms", settled, pushes, pops, stalePops, restrictionChecks, filteredEdges,
+				wallTime / 1e6);
+	}
+
+}
@@ -1,6 +1,5 @@
 package utils;
 import java.awt.Graphics;
-import java.awt.Point;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -11,12 +10,14 @@ import main.AucklandMapper;
 
 public class Segment {
 
+	private int id; // index of this (directed) segment in the graph
 	private Road road; // the road this segment is part of
 	private double length; // length of segment
 	private Node startNode; // the intersection it starts at
 	private Node endNode; // the intersection it ends at
-	private List<Location> coords = new ArrayList<Location>(); // coords for
-																// drawing
+	private PolylineStore polylines; // where the coords for drawing are kept
+	private int polyline = -1; // their offset in it, -1 if there are none
+	private boolean walkingOnly; // runs against a one way road
 
 	/** Construct a new Segment object */
 	public Segment(Road road, double length, Node startNode, Node endNode) {
@@ -26,20 +27,39 @@ public class Segment {
 		this.endNode = endNode;
 	}
 
-	/** Construct a new Segment object from a line in the data file */
+	/**
+	 * Construct a new Segment object from a line in the data file, adding its
+	 * coords to the store
+	 */
 	public Segment(String line, Map<Integer, Road> roads,
-			Map<Integer, Node> nodes) {
+			Map<Integer, Node> nodes, PolylineStore polylines) {
 		String[] values = line.split("\t");
 		road = roads.get(Integer.parseInt(values[0]));
 		length = Double.parseDouble(values[1]);
 		startNode = nodes.get(Integer.parseInt(values[2]));
 		endNode = nodes.get(Integer.parseInt(values[3]));
 
+		List<Location> coords = new ArrayList<Location>((values.length - 4) / 2);
 		for (int i = 4; i < values.length; i += 2) {
 			double lat = Double.parseDouble(values[i]);
 			double lon = Double.parseDouble(values[i + 1]);
 			coords.add(Location.newFromLatLon(lat, lon));
 		}
+		this.polylines = polylines;
+		this.polyline = polylines.add(coords);
+	}
+
+	/**
+	 * @return the dense index of this directed segment, from 0 to one less
+	 *         than the number of segments in the graph. A reversed copy of a
+	 *         two way segment has an index of its own.
+	 */
+	public int getID() {
+		return id;
+	}
+
+	public void setID(int id) {
+		this.id = id;
 	}
 
 	public Road getRoad() {
@@ -58,32 +78,64 @@ public class Segment {
 		return endNode;
 	}
 
-	public void addCoord(Location loc) {
-		coords.add(loc);
+	/**
+	 * @return the coords for drawing, decoded afresh on every call
+	 */
+	public List<Location> getCoords() {
+		if (polyline < 0) {
+			return new ArrayList<Location>();
+		}
+		return polylines.get(polyline);
 	}
 
-	public List<Location> getCoords() {
-		return coords;
+	/**
+	 * @return true if the two segments draw the same stored coords, as a
+	 *         segment and its reversed copy do
+	 */
+	public boolean sharesCoords(Segment other) {
+		return polyline >= 0 && polylines == other.polylines && polyline == other.polyline;
 	}
 
 	public Segment reverse() {
 		Segment ans = new Segment(road, length, endNode, startNode);
-		ans.coords = this.coords;
+		ans.polylines = this.polylines;
+		ans.polyline = this.polyline;
 		return ans;
 	}
 
+	/**
+	 * @return a reversed copy of a segment of a one way road, which only
+	 *         pedestrians may use, and only if they may use the road at all
+	 */
+	public Segment reverseForWalking() {
+		Segment ans = reverse();
+		ans.walkingOnly = true;
+		return ans;
+	}
+
+	/**
+	 * @return true if the segment runs the wrong way along a one way road, so
+	 *         is only for walking. Such segments are not in the nodes' own
+	 *         neighbour lists, only in the walking ModeGraph.
+	 */
+	public boolean isWalkingOnly() {
+		return walkingOnly;
+	}
+
+	/**
+	 * @return true if the transport mode may use the segment
+	 */
+	public boolean isFor(String transportMode) {
+		return (!walkingOnly || transportMode.equals("walking")) && road.isFor(transportMode);
+	}
+
 	/**
 	 * draw the roadsegment on the graphics. For each location, shift the origin
 	 * to origin and scale by scale
 	 */
 	public void draw(Graphics g, Location origin, double scale) {
-		if (!coords.isEmpty()) {
-			Point p1 = coords.get(0).getPoint(origin, scale);
-			for (int i = 1; i < coords.size(); i++) {
-				Point p2 = coords.get(i).getPoint(origin, scale);
-				g.drawLine(p1.x, p1.y, p2.x, p2.y);
-				p1 = p2;
-			}
+		if (polyline >= 0) {
+			polylines.draw(polyline, g, origin, scale);
 		}
 	}
 
@@ -0,0 +1,326 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SegmentGrid: A uniform grid over the drawn shape of a set of segments for
+ * finding every segment near a point. Each straight piece of a segment's
+ * polyline is put in every square cell its bounding box touches, so a lookup
+ * only measures the pieces in the cells within the radius of the point.
+ *
+ * A segment and its reversed copy share a shape but are both indexed, each
+ * with its pieces in its own direction, so the offsets along them are right.
+ * The grid is immutable once built, so lookups are safe from any thread.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class SegmentGrid {
+
+	/**
+	 * Projection: The closest point of a segment to a location.
+	 */
+	public static class Projection {
+
+		public final Segment segment;
+		/** How far the location is from the segment */
+		public final double distance;
+		/** How far along the segment the closest point is, in its length units */
+		public final double offset;
+
+		Projection(Segment segment, double distance, double offset) {
+			this.segment = segment;
+			this.distance = distance;
+			this.offset = offset;
+		}
+
+		public String toString() {
+			return String.format("%s at %.4f, %.4f away", segment, offset, distance);
+		}
+
+	}
+
+	private final double west;
+	private final double south;
+	private final double cellSize;
+	private final int cols;
+	private final int rows;
+	private final Segment[] segments;
+	// per piece: the segment it belongs to, its ends, and how far along the
+	// segment it starts and how much of the segment's length it covers
+	private final int[] pieceSegment;
+	private final float[] pieceCoords;
+	private final float[] pieceStart;
+	private final float[] pieceLength;
+	// pieces by cell, cell c holding cellPieces[cellStart[c]..cellStart[c+1])
+	private final int[] cellStart;
+	private final int[] cellPieces;
+
+	/**
+	 * @param cellSize
+	 *            the width of a cell in kilometres
+	 */
+	public SegmentGrid(Collection<Segment> segments, double cellSize) {
+		this.segments = segments.toArray(new Segment[segments.size()]);
+		this.cellSize = cellSize;
+
+		// cut every segment into pieces, in its own direction
+		int[] segOf = new int[1024];
+		float[] coords = new float[4 * 1024];
+		float[] start = new float[1024];
+		float[] length = new float[1024];
+		int pieces = 0;
+		double w = Double.POSITIVE_INFINITY, e = Double.NEGATIVE_INFINITY;
+		double s = Double.POSITIVE_INFINITY, n = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < this.segments.length; i++) {
+			Segment seg = this.segments[i];
+			List<Location> shape = shapeOf(seg);
+			double total = 0;
+			for (int k = 1; k < shape.size(); k++) {
+				total += shape.get(k - 1).distanceTo(shape.get(k));
+			}
+			// the segment's own length may differ from that of its shape
+			double scale = total > 0 ? seg.getLength() / total : 0;
+			double along = 0;
+			for (int k = 1; k < shape.size(); k++) {
+				Location a = shape.get(k - 1);
+				Location b = shape.get(k);
+				if (pieces == segOf.length) {
+					segOf = Arrays.copyOf(segOf, pieces * 2);
+					coords = Arrays.copyOf(coords, pieces * 8);
+					start = Arrays.copyOf(start, pieces * 2);
+					length = Arrays.copyOf(length, pieces * 2);
+				}
+				segOf[pieces] = i;
+				coords[4 * pieces] = (float) a.x;
+				coords[4 * pieces + 1] = (float) a.y;
+				coords[4 * pieces + 2] = (float) b.x;
+				coords[4 * pieces + 3] = (float) b.y;
+				start[pieces] = (float) (along * scale);
+				length[pieces] = (float) (a.distanceTo(b) * scale);
+				along += a.distanceTo(b);
+				pieces++;
+				w = Math.min(w, Math.min(a.x, b.x));
+				e = Math.max(e, Math.max(a.x, b.x));
+				s = Math.min(s, Math.min(a.y, b.y));
+				n = Math.max(n, Math.max(a.y, b.y));
+			}
+		}
+		if (pieces == 0) {
+			w = e = s = n = 0;
+		}
+		this.pieceSegment = Arrays.copyOf(segOf, pieces);
+		this.pieceCoords = Arrays.copyOf(coords, 4 * pieces);
+		this.pieceStart = Arrays.copyOf(start, pieces);
+		this.pieceLength = Arrays.copyOf(length, pieces);
+		this.west = w;
+		this.south = s;
+		this.cols = (int) ((e - w) / cellSize) + 1;
+		this.rows = (int) ((n - s) / cellSize) + 1;
+
+		// counting sort of the pieces into every cell they touch
+		cellStart = new int[cols * rows + 1];
+		for (int p = 0; p < pieces; p++) {
+			for (int y = row(minY(p)); y <= row(maxY(p)); y++) {
+				for (int x = column(minX(p)); x <= column(maxX(p)); x++) {
+					cellStart[y * cols + x + 1]++;
+				}
+			}
+		}
+		for (int c = 0; c < cols * rows; c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+		int[] fill = Arrays.copyOf(cellStart, cellStart.length - 1);
+		cellPieces = new int[cellStart[cols * rows]];
+		for (int p = 0; p < pieces; p++) {
+			for (int y = row(minY(p)); y <= row(maxY(p)); y++) {
+				for (int x = column(minX(p)); x <= column(maxX(p)); x++) {
+					cellPieces[fill[y * cols + x]++] = p;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the segment's shape from its start node to its end node; a
+	 *         reversed copy stores the shape of the original
+	 */
+	private static List<Location> shapeOf(Segment seg) {
+		List<Location> shape = seg.getCoords();
+		if (shape.size() < 2) {
+			shape = new ArrayList<Location>();
+			shape.add(seg.getStartNode().getLoc());
+			shape.add(seg.getEndNode().getLoc());
+		} else if (shape.get(0).distanceTo(seg.getStartNode().getLoc()) > shape.get(0).distanceTo(
+				seg.getEndNode().getLoc())) {
+			Collections.reverse(shape);
+		}
+		return shape;
+	}
+
+	private double minX(int p) {
+		return Math.min(pieceCoords[4 * p], pieceCoords[4 * p + 2]);
+	}
+
+	private double maxX(int p) {
+		return Math.max(pieceCoords[4 * p], pieceCoords[4 * p + 2]);
+	}
+
+	private double minY(int p) {
+		return Math.min(pieceCoords[4 * p + 1], pieceCoords[4 * p + 3]);
+	}
+
+	private double maxY(int p) {
+		return Math.max(pieceCoords[4 * p + 1], pieceCoords[4 * p + 3]);
+	}
+
+	private int column(double x) {
+		return Math.max(0, Math.min(cols - 1, (int) ((x - west) / cellSize)));
+	}
+
+	private int row(double y) {
+		return Math.max(0, Math.min(rows - 1, (int) ((y - south) / cellSize)));
+	}
+
+	/**
+	 * Returns the closest point of every segment within the radius of the
+	 * location, closest first.
+	 */
+	public List<Projection> near(Location loc, double radius) {
+		Map<Integer, Projection> best = new HashMap<Integer, Projection>();
+		for (int y = row(loc.y - radius); y <= row(loc.y + radius); y++) {
+			for (int x = column(loc.x - radius); x <= column(loc.x + radius); x++) {
+				int c = y * cols + x;
+				for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+					int p = cellPieces[k];
+					double t = along(p, loc.x, loc.y);
+					double d = distance(p, t, loc.x, loc.y);
+					if (d > radius) {
+						continue;
+					}
+					Projection old = best.get(pieceSegment[p]);
+					if (old == null || d < old.distance) {
+						best.put(pieceSegment[p], new Projection(segments[pieceSegment[p]], d, pieceStart[p] + t
+								* pieceLength[p]));
+					}
+				}
+			}
+		}
+		List<Projection> ans = new ArrayList<Projection>(best.values());
+		Collections.sort(ans, new Comparator<Projection>() {
+			public int compare(Projection a, Projection b) {
+				return Double.compare(a.distance, b.distance);
+			}
+		});
+		return ans;
+	}
+
+	/**
+	 * Finds the closest piece of any segment to a point, searching rings of
+	 * cells outwards from the point's cell until no cell left could hold a
+	 * closer one. Nothing is allocated, so it suits bulk lookups.
+	 *
+	 * @return the piece, or -1 if there is none within maxRadius or the point
+	 *         is not a number or infinite
+	 */
+	public int nearestPiece(double x, double y, double maxRadius) {
+		double dx = Math.max(0, Math.max(west - x, x - (west + cols * cellSize)));
+		double dy = Math.max(0, Math.max(south - y, y - (south + rows * cellSize)));
+		if (Double.isInfinite(x) || Double.isInfinite(y) || !(Math.hypot(dx, dy) <= maxRadius)) {
+			return -1;
+		}
+		// a point further off than the grid is wide starts from a nearer
+		// cell, so the ring bounds cannot overflow; the distance left
+		// outside the rings is then an underestimate and the search runs on
+		// until the rings cover the grid
+		int limit = cols + rows;
+		int cx = (int) Math.max(-limit, Math.min(cols + limit, Math.floor((x - west) / cellSize)));
+		int cy = (int) Math.max(-limit, Math.min(rows + limit, Math.floor((y - south) / cellSize)));
+		// the rings before this one miss the grid altogether
+		int first = Math.max(Math.max(0, Math.max(-cx, cx - cols + 1)), Math.max(-cy, cy - rows + 1));
+		int best = -1;
+		double bestDistance = maxRadius;
+		for (int r = first;; r++) {
+			int x0 = cx - r;
+			int x1 = cx + r;
+			int y0 = cy - r;
+			int y1 = cy + r;
+			for (int gy = Math.max(y0, 0); gy <= Math.min(y1, rows - 1); gy++) {
+				// only the edges of the ring are new
+				boolean edge = gy == y0 || gy == y1;
+				int start = edge ? Math.max(x0, 0) : x0 >= 0 ? x0 : x1;
+				for (int gx = start; gx <= Math.min(x1, cols - 1); gx = edge || gx == x1 ? gx + 1 : x1) {
+					int c = gy * cols + gx;
+					for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+						int p = cellPieces[k];
+						double d = distance(p, along(p, x, y), x, y);
+						if (d < bestDistance || d == bestDistance && best < 0) {
+							best = p;
+							bestDistance = d;
+						}
+					}
+				}
+			}
+			// how close anything outside the rings so far could be
+			double outside = Math.min(Math.min(x - west - x0 * cellSize, west + (x1 + 1) * cellSize - x),
+					Math.min(y - south - y0 * cellSize, south + (y1 + 1) * cellSize - y));
+			if (bestDistance <= outside || x0 <= 0 && y0 <= 0 && x1 >= cols - 1 && y1 >= rows - 1) {
+				return best;
+			}
+		}
+	}
+
+	/**
+	 * @return the segment a piece belongs to
+	 */
+	public Segment getSegment(int piece) {
+		return segments[pieceSegment[piece]];
+	}
+
+	/**
+	 * @return how far a point is from a piece
+	 */
+	public double distanceToPiece(int piece, double x, double y) {
+		return distance(piece, along(piece, x, y), x, y);
+	}
+
+	/**
+	 * @return how far along a piece, from 0 to 1, the closest point of it to
+	 *         a point is
+	 */
+	private double along(int p, double x, double y) {
+		double ax = pieceCoords[4 * p];
+		double ay = pieceCoords[4 * p + 1];
+		double dx = pieceCoords[4 * p + 2] - ax;
+		double dy = pieceCoords[4 * p + 3] - ay;
+		double lengthSq = dx * dx + dy * dy;
+		double t = lengthSq == 0 ? 0 : ((x - ax) * dx + (y - ay) * dy) / lengthSq;
+		return Math.max(0, Math.min(1, t));
+	}
+
+	/**
+	 * @return how far a point is from the point a fraction t along a piece
+	 */
+	private double distance(int p, double t, double x, double y) {
+		double ax = pieceCoords[4 * p];
+		double ay = pieceCoords[4 * p + 1];
+		double px = ax + t * (pieceCoords[4 * p + 2] - ax);
+		double py = ay + t * (pieceCoords[4 * p + 3] - ay);
+		return Math.hypot(px - x, py - y);
+	}
+
+	/**
+	 * @return the number of segment pieces indexed
+	 */
+	public int numPieces() {
+		return pieceSegment.length;
+	}
+
+}
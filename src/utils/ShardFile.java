@@ -0,0 +1,220 @@
+package utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * ShardFile: One shard of a partitioned road graph, as written by the
+ * Partitioner. It holds the IDs of the shard's nodes, the segments entering
+ * and leaving the shard (its cut segments), and the cost of the best route
+ * from the end of every entering segment to the end of every leaving one
+ * using only the shard's own segments and obeying its turn restrictions.
+ * Together the shard files give an overlay graph of the whole map, with a
+ * node for each cut segment, that is small enough for a coordinator to
+ * search.
+ *
+ * The file is big-endian binary: a magic number and version, the shard number
+ * and count, the transport mode the costs are for, then the node IDs, the
+ * entering segments as (from node ID, to node ID), the leaving segments as
+ * (from node ID, to node ID, to shard, length), and the cost matrix (a float
+ * per pair, row per entering segment, infinite where there is no route). The
+ * cost of a pair includes the length of the leaving segment but not the
+ * entering one. Parallel segments between the same two nodes are one cut
+ * segment, as long as the shortest of them.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class ShardFile {
+
+	private static final int MAGIC = 0x41534844; // "ASHD"
+	private static final int VERSION = 2;
+
+	private final int shard;
+	private final int shards;
+	private final String transportMode;
+	private final int[] nodes;
+	private final int[] entryFrom;
+	private final int[] entryTo;
+	private final int[] exitFrom;
+	private final int[] exitTo;
+	private final int[] exitShard;
+	private final float[] exitLength;
+	private final float[] costs;
+
+	public ShardFile(int shard, int shards, String transportMode, int[] nodes, int[] entryFrom, int[] entryTo,
+			int[] exitFrom, int[] exitTo, int[] exitShard, float[] exitLength, float[] costs) {
+		this.shard = shard;
+		this.shards = shards;
+		this.transportMode = transportMode;
+		this.nodes = nodes;
+		this.entryFrom = entryFrom;
+		this.entryTo = entryTo;
+		this.exitFrom = exitFrom;
+		this.exitTo = exitTo;
+		this.exitShard = exitShard;
+		this.exitLength = exitLength;
+		this.costs = costs;
+	}
+
+	/**
+	 * @return the name of the file for a shard in a directory of shards
+	 */
+	public static File fileFor(String directory, int shard) {
+		return new File(directory, String.format("shard-%03d.bin", shard));
+	}
+
+	public void write(File file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+				1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(shard);
+			out.writeInt(shards);
+			out.writeUTF(transportMode);
+			writeInts(out, nodes);
+			out.writeInt(entryFrom.length);
+			for (int i = 0; i < entryFrom.length; i++) {
+				out.writeInt(entryFrom[i]);
+				out.writeInt(entryTo[i]);
+			}
+			out.writeInt(exitFrom.length);
+			for (int i = 0; i < exitFrom.length; i++) {
+				out.writeInt(exitFrom[i]);
+				out.writeInt(exitTo[i]);
+				out.writeInt(exitShard[i]);
+				out.writeFloat(exitLength[i]);
+			}
+			for (float c : costs) {
+				out.writeFloat(c);
+			}
+		}
+	}
+
+	public static ShardFile read(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(file + " is not a shard file");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException(file + " has unsupported version " + version);
+			}
+			int shard = in.readInt();
+			int shards = in.readInt();
+			String transportMode = in.readUTF();
+			int[] nodes = readInts(in);
+			int entries = in.readInt();
+			int[] entryFrom = new int[entries];
+			int[] entryTo = new int[entries];
+			for (int i = 0; i < entries; i++) {
+				entryFrom[i] = in.readInt();
+				entryTo[i] = in.readInt();
+			}
+			int exits = in.readInt();
+			int[] exitFrom = new int[exits];
+			int[] exitTo = new int[exits];
+			int[] exitShard = new int[exits];
+			float[] exitLength = new float[exits];
+			for (int i = 0; i < exits; i++) {
+				exitFrom[i] = in.readInt();
+				exitTo[i] = in.readInt();
+				exitShard[i] = in.readInt();
+				exitLength[i] = in.readFloat();
+			}
+			float[] costs = new float[entries * exits];
+			for (int i = 0; i < costs.length; i++) {
+				costs[i] = in.readFloat();
+			}
+			return new ShardFile(shard, shards, transportMode, nodes, entryFrom, entryTo, exitFrom, exitTo,
+					exitShard, exitLength, costs);
+		}
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+		out.writeInt(values.length);
+		for (int v : values) {
+			out.writeInt(v);
+		}
+	}
+
+	private static int[] readInts(DataInputStream in) throws IOException {
+		int[] values = new int[in.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readInt();
+		}
+		return values;
+	}
+
+	public int getShard() {
+		return shard;
+	}
+
+	public int getShards() {
+		return shards;
+	}
+
+	public String getTransportMode() {
+		return transportMode;
+	}
+
+	/**
+	 * @return the IDs of the nodes in the shard, ascending
+	 */
+	public int[] getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * @return the number of (distinct) segments into the shard
+	 */
+	public int numEntries() {
+		return entryFrom.length;
+	}
+
+	public int getEntryFrom(int i) {
+		return entryFrom[i];
+	}
+
+	public int getEntryTo(int i) {
+		return entryTo[i];
+	}
+
+	/**
+	 * @return the number of (distinct) segments out of the shard
+	 */
+	public int numExits() {
+		return exitFrom.length;
+	}
+
+	public int getExitFrom(int i) {
+		return exitFrom[i];
+	}
+
+	public int getExitTo(int i) {
+		return exitTo[i];
+	}
+
+	public int getExitShard(int i) {
+		return exitShard[i];
+	}
+
+	public float getExitLength(int i) {
+		return exitLength[i];
+	}
+
+	/**
+	 * @return the cost inside the shard from the end of an entering segment to
+	 *         the end of a leaving one, by position
+	 */
+	public float getCost(int entry, int exit) {
+		return costs[entry * exitFrom.length + exit];
+	}
+
+}
@@ -0,0 +1,169 @@
+package utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * SpeedProfiles: Hourly speed profiles for time-dependent routing. A profile
+ * is 24 factors, one per hour of the day, that scale Road.getSpeedLimit(), so
+ * 0.5 at 8am means traffic on that road moves at half its limit during rush
+ * hour. Factors are quantised to 1/128ths and held in a single byte array,
+ * and identical profiles are stored once and shared, so each road only
+ * carries a short profile id (see Road.getProfile()). Profile 0 is the flat
+ * profile, ie the plain speed limit all day.
+ *
+ * Profiles are read from the optional speed-profiles.tab file, where each line
+ * is a key (road:&lt;roadID&gt; or class:&lt;roadclass&gt;) followed by the 24
+ * hourly factors. A road gets its own profile if it has one, otherwise the one
+ * for its road class, otherwise the flat one.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class SpeedProfiles {
+
+	public static final int HOURS = 24;
+	private static final double STEP = 1.0 / 128;
+
+	// HOURS unsigned quantised factors per profile
+	private byte[] factors = new byte[HOURS * 16];
+	private int count;
+	private Map<String, Short> interned = new HashMap<String, Short>();
+	private int maxQuantised;
+
+	// profiles assigned by the file, applied to the roads by assign()
+	private Map<Integer, Short> byRoad = new HashMap<Integer, Short>();
+	private Map<Integer, Short> byClass = new HashMap<Integer, Short>();
+
+	public SpeedProfiles() {
+		double[] flat = new double[HOURS];
+		Arrays.fill(flat, 1.0);
+		intern(flat);
+	}
+
+	/**
+	 * Returns the id of the profile with these hourly factors, adding it if no
+	 * equal (after quantisation) profile exists yet.
+	 */
+	public short intern(double[] hourly) {
+		byte[] q = new byte[HOURS];
+		for (int h = 0; h < HOURS; h++) {
+			long v = Math.round(hourly[h] / STEP);
+			q[h] = (byte) Math.max(1, Math.min(255, v));
+		}
+		String key = new String(q, StandardCharsets.ISO_8859_1);
+		Short id = interned.get(key);
+		if (id != null) {
+			return id;
+		}
+		if (count == Short.MAX_VALUE) {
+			throw new IllegalStateException("Too many distinct speed profiles");
+		}
+		if ((count + 1) * HOURS > factors.length) {
+			factors = Arrays.copyOf(factors, factors.length * 2);
+		}
+		System.arraycopy(q, 0, factors, count * HOURS, HOURS);
+		for (byte b : q) {
+			maxQuantised = Math.max(maxQuantised, b & 0xff);
+		}
+		id = (short) count++;
+		interned.put(key, id);
+		return id;
+	}
+
+	/**
+	 * Reads one line of speed-profiles.tab.
+	 *
+	 * @param line
+	 */
+	public void addLine(String line) {
+		String[] values = line.split("\t");
+		if (values.length != HOURS + 1) {
+			throw new IllegalArgumentException("Expected a key and " + HOURS + " factors: " + line);
+		}
+		double[] hourly = new double[HOURS];
+		for (int h = 0; h < HOURS; h++) {
+			hourly[h] = Double.parseDouble(values[h + 1]);
+		}
+		short id = intern(hourly);
+		String key = values[0];
+		if (key.startsWith("road:")) {
+			byRoad.put(Integer.parseInt(key.substring(5)), id);
+		} else if (key.startsWith("class:")) {
+			byClass.put(Integer.parseInt(key.substring(6)), id);
+		} else {
+			throw new IllegalArgumentException("Unknown speed profile key: " + key);
+		}
+	}
+
+	/**
+	 * Sets the profile of every road from the lines read so far.
+	 */
+	public void assign(Collection<Road> roads) {
+		for (Road road : roads) {
+			Short id = byRoad.get(road.getID());
+			if (id == null) {
+				id = byClass.get(road.getRoadclass());
+			}
+			road.setProfile(id == null ? 0 : id);
+		}
+		byRoad = new HashMap<Integer, Short>();
+		byClass = new HashMap<Integer, Short>();
+	}
+
+	/**
+	 * @return the number of distinct profiles, including the flat one
+	 */
+	public int size() {
+		return count;
+	}
+
+	public double getFactor(int profile, int hour) {
+		return (factors[profile * HOURS + hour] & 0xff) * STEP;
+	}
+
+	/**
+	 * @return the largest factor of any profile at any hour, for bounding
+	 *         travel times from below
+	 */
+	public double getMaxFactor() {
+		return maxQuantised * STEP;
+	}
+
+	/**
+	 * Returns the hours taken to drive a length of road when setting off at
+	 * the given time. The speed changes on the hour as the car goes, rather
+	 * than being fixed by the departure hour, which keeps travel FIFO: leaving
+	 * later never gets you there earlier.
+	 *
+	 * @param road
+	 * @param length
+	 *            in kilometres
+	 * @param depart
+	 *            hours since midnight, may be past 24 on long trips
+	 */
+	public double travelTime(Road road, double length, double depart) {
+		int base = road.getProfile() * HOURS;
+		double limit = road.getSpeedLimit();
+		double t = depart;
+		double remaining = length;
+		while (true) {
+			double hourEnd = Math.floor(t) + 1;
+			int hour = ((int) Math.floor(t)) % HOURS;
+			if (hour < 0) {
+				hour += HOURS;
+			}
+			double speed = limit * (factors[base + hour] & 0xff) * STEP;
+			double reach = speed * (hourEnd - t);
+			if (reach >= remaining) {
+				return t + remaining / speed - depart;
+			}
+			remaining -= reach;
+			t = hourEnd;
+		}
+	}
+
+}
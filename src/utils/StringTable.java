@@ -0,0 +1,55 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * StringTable: A dictionary of distinct strings, each known by a small int ID
+ * given out in the order they were first added. Objects that would each hold
+ * their own copy of a repeated string (a road name, say) hold its ID instead,
+ * so there is one copy of every string and two of them are equal exactly when
+ * their IDs are.
+ *
+ * Adding is for loading time only; once nothing more is added, reading is
+ * safe from any thread.
+ *
+ * @author harryross
+ * @version 1.1
+ */
+public class StringTable {
+
+	private final List<String> strings = new ArrayList<String>();
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+	/**
+	 * @return the ID of the string, adding it if it is new
+	 */
+	public int add(String s) {
+		Integer id = ids.get(s);
+		if (id == null) {
+			id = strings.size();
+			strings.add(s);
+			ids.put(s, id);
+		}
+		return id;
+	}
+
+	/**
+	 * @return the ID of the string, or -1 if it has not been added
+	 */
+	public int find(String s) {
+		Integer id = ids.get(s);
+		return id == null ? -1 : id;
+	}
+
+	public String get(int id) {
+		return strings.get(id);
+	}
+
+	public int size() {
+		return strings.size();
+	}
+
+}
@@ -0,0 +1,98 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * TrafficSnapshot: An immutable view of the live traffic overrides on every
+ * directed segment, as published by main.TrafficManager. A search takes one
+ * snapshot when it starts and reads only that, so it sees a consistent set of
+ * closures and speeds however many updates are published while it runs.
+ * 
+ * @author harryross
+ * @version 1.1
+ */
+public class TrafficSnapshot {
+
+	/** The snapshot with no overrides at all */
+	public static final TrafficSnapshot EMPTY = new TrafficSnapshot(null, 0, 0, 0);
+
+	// override speed in km/h per segment ID: NaN for none, 0 for closed.
+	// Never written after construction.
+	private final float[] speeds;
+	private final long version;
+	private final int overrides;
+	private final long publishedAt;
+
+	/**
+	 * @param speeds
+	 *            the override speeds, which must not be changed afterwards, or
+	 *            null for none
+	 */
+	public TrafficSnapshot(float[] speeds, long version, int overrides, long publishedAt) {
+		this.speeds = speeds;
+		this.version = version;
+		this.overrides = overrides;
+		this.publishedAt = publishedAt;
+	}
+
+	public boolean isClosed(Segment seg) {
+		return speeds != null && speeds[seg.getID()] == 0;
+	}
+
+	/**
+	 * @return the override speed of the segment in km/h, NaN if it has none
+	 */
+	public double getSpeed(Segment seg) {
+		return speeds == null ? Double.NaN : speeds[seg.getID()];
+	}
+
+	public boolean hasOverride(Segment seg) {
+		return speeds != null && !Float.isNaN(speeds[seg.getID()]);
+	}
+
+	/**
+	 * @return the speed to use for a segment: its override if it has one,
+	 *         otherwise the road's speed limit
+	 */
+	public double speedOf(Segment seg) {
+		if (speeds != null) {
+			float s = speeds[seg.getID()];
+			if (!Float.isNaN(s)) {
+				return s;
+			}
+		}
+		return seg.getRoad().getSpeedLimit();
+	}
+
+	/**
+	 * @return a copy of the override array for building the next snapshot
+	 */
+	public float[] copySpeeds(int numSegments) {
+		float[] copy = new float[numSegments];
+		if (speeds == null) {
+			Arrays.fill(copy, Float.NaN);
+		} else {
+			System.arraycopy(speeds, 0, copy, 0, numSegments);
+		}
+		return copy;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the number of segments with an override
+	 */
+	public int getOverrides() {
+		return overrides;
+	}
+
+	/**
+	 * @return System.nanoTime() when this snapshot was published
+	 */
+	public long getPublishedAt() {
+		return publishedAt;
+	}
+
+}
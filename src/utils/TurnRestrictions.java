@@ -0,0 +1,72 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * TurnRestrictions: The restrictions indexed by their middle node, so that a
+ * turn can be checked by looking only at the restrictions on the intersection
+ * it is made at rather than at every restriction in the graph.
+ * 
+ * @author harryross
+ * @version 1.1
+ */
+public class TurnRestrictions {
+
+	// for each middle node ID, pairs of (from node ID, to node ID)
+	private Map<Integer, int[]> byNode = new HashMap<Integer, int[]>();
+	private int size;
+
+	public TurnRestrictions(Collection<Restriction> restrictions) {
+		for (Restriction r : restrictions) {
+			int[] pairs = byNode.get(r.getNode());
+			pairs = pairs == null ? new int[2] : Arrays.copyOf(pairs, pairs.length + 2);
+			pairs[pairs.length - 2] = r.getNode1();
+			pairs[pairs.length - 1] = r.getNode2();
+			byNode.put(r.getNode(), pairs);
+			size++;
+		}
+	}
+
+	/**
+	 * Returns true if it is forbidden to go from n1 through n to n2.
+	 */
+	public boolean isRestricted(Node n1, Node n, Node n2) {
+		return n1 != null && isRestricted(n1.getID(), n.getID(), n2.getID());
+	}
+
+	/**
+	 * Returns true if it is forbidden to go from the first node through the
+	 * second to the third, by ID. A first or last ID of -1, for a route that
+	 * starts or ends at the middle node, is never restricted.
+	 */
+	public boolean isRestricted(int n1, int n, int n2) {
+		if (n1 < 0 || n2 < 0) {
+			return false;
+		}
+		int[] pairs = byNode.get(n);
+		if (pairs == null) {
+			return false;
+		}
+		for (int i = 0; i < pairs.length; i += 2) {
+			if (pairs[i] == n1 && pairs[i + 1] == n2) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if it is forbidden to turn from one segment into the next.
+	 */
+	public boolean isRestricted(Segment in, Segment out) {
+		return isRestricted(in.getStartNode(), in.getEndNode(), out.getEndNode());
+	}
+
+	public int size() {
+		return size;
+	}
+
+}